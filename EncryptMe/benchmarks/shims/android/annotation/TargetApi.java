@@ -0,0 +1,8 @@
+package android.annotation;
+
+/**
+ * Plain JVM stand-in for {@code android.annotation.TargetApi}, used only by the benchmarks.
+ */
+public @interface TargetApi {
+    int value();
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Plain JVM stand-in for {@code android.content.ContentResolver}, used only by the benchmarks.
+ */
+public class ContentResolver {
+}
@@ -0,0 +1,21 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Plain JVM stand-in for {@code android.content.Context}, used only by the benchmarks.
+ */
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract Context getApplicationContext();
+
+    public abstract File getFilesDir();
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract String getPackageName();
+
+    public abstract ContentResolver getContentResolver();
+}
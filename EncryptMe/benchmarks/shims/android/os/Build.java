@@ -0,0 +1,25 @@
+package android.os;
+
+/**
+ * Plain JVM stand-in for {@code android.os.Build}, used only by the benchmarks. Reports a
+ * KitKat device, the target platform of the app.
+ */
+public final class Build {
+
+    public static final String FINGERPRINT = "jvm";
+    public static final String SERIAL = "jvm";
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = VERSION_CODES.KITKAT;
+    }
+
+    public static final class VERSION_CODES {
+        public static final int GINGERBREAD = 9;
+        public static final int JELLY_BEAN = 16;
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int KITKAT = 19;
+    }
+}
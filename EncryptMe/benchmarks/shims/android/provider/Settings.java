@@ -0,0 +1,20 @@
+package android.provider;
+
+import android.content.ContentResolver;
+
+/**
+ * Plain JVM stand-in for {@code android.provider.Settings}, used only by the benchmarks.
+ */
+public final class Settings {
+
+    private Settings() {
+    }
+
+    public static final class Secure {
+        public static final String ANDROID_ID = "android_id";
+
+        public static String getString(ContentResolver resolver, String name) {
+            return null;
+        }
+    }
+}
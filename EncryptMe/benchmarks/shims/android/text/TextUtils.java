@@ -0,0 +1,14 @@
+package android.text;
+
+/**
+ * Plain JVM stand-in for {@code android.text.TextUtils}, used only by the benchmarks.
+ */
+public final class TextUtils {
+
+    private TextUtils() {
+    }
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
@@ -0,0 +1,61 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.org.tomek.encryptme.crypto.BatchResult;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+
+/**
+ * Small records encrypted one by one compared with {@link CryptoUtils#encryptAll(byte[][])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchEncryptionBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"64", "512"})
+    public int recordSize;
+
+    private CryptoUtils mCryptoUtils;
+    private byte[][] mRecords;
+
+    @Setup
+    public void setUp() {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mRecords = new byte[batchSize][];
+        for (int i = 0; i < batchSize; i++) {
+            mRecords[i] = BenchmarkKeys.newPayload(recordSize);
+        }
+    }
+
+    @Benchmark
+    public void encryptOneByOne(Blackhole blackhole) {
+        for (byte[] record : mRecords) {
+            blackhole.consume(mCryptoUtils.encryptData(record));
+        }
+    }
+
+    @Benchmark
+    public BatchResult encryptAll() {
+        return mCryptoUtils.encryptAll(mRecords);
+    }
+}
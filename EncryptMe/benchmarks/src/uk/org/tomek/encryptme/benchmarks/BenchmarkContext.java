@@ -0,0 +1,200 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * {@link Context} keeping its preferences in memory, standing in for the app at start up.
+ */
+final class BenchmarkContext extends Context {
+
+    private final File mFilesDir;
+    private final Map<String, MemoryPreferences> mPreferences =
+            new HashMap<String, MemoryPreferences>();
+
+    BenchmarkContext() throws IOException {
+        mFilesDir = File.createTempFile("encryptme", "");
+        if (!mFilesDir.delete() || !mFilesDir.mkdir()) {
+            throw new IOException("Impossible to create " + mFilesDir);
+        }
+        mFilesDir.deleteOnExit();
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        MemoryPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new MemoryPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "uk.org.tomek.encryptme";
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return new ContentResolver();
+    }
+
+    private static final class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<String, Object>(mValues);
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return (String) get(key, defValue);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return (Set<String>) get(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return (Integer) get(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return (Long) get(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return (Float) get(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return (Boolean) get(key, defValue);
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            // nothing listens in the benchmarks
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        private synchronized Object get(String key, Object defValue) {
+            Object value = mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @Override
+        public Editor edit() {
+            // null values are removals
+            final Map<String, Object> changes = new HashMap<String, Object>();
+            return new Editor() {
+                private boolean mClear;
+
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    changes.put(key, values);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    changes.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    mClear = true;
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    synchronized (MemoryPreferences.this) {
+                        if (mClear) {
+                            mValues.clear();
+                        }
+                        for (Map.Entry<String, Object> change : changes.entrySet()) {
+                            if (change.getValue() == null) {
+                                mValues.remove(change.getKey());
+                            } else {
+                                mValues.put(change.getKey(), change.getValue());
+                            }
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+    }
+}
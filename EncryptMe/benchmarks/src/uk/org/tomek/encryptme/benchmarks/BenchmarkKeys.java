@@ -0,0 +1,46 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.security.Security;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+
+/**
+ * Shared setup of the benchmarks: installs the provider Android ships with and creates
+ * reproducible keys and payloads.
+ */
+final class BenchmarkKeys {
+
+    private static final long SEED = 0x5eedL;
+
+    private BenchmarkKeys() {
+    }
+
+    static synchronized void installProvider() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * Returns in memory {@link KeyFactory} holding a fixed 256 bit AES key.
+     */
+    static KeyFactory newKeyFactory() {
+        installProvider();
+        byte[] keyBytes = new byte[32];
+        new Random(SEED).nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        return KeyFactory.newInMemoryInstance(key);
+    }
+
+    static byte[] newPayload(int size) {
+        byte[] payload = new byte[size];
+        new Random(SEED + size).nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,72 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.AndroidPlatform;
+import uk.org.tomek.encryptme.crypto.CryptoContext;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+
+/**
+ * Cold start of the crypto classes, one measurement per fresh JVM. The {@code eager} benchmarks
+ * do everything on the calling thread, like the activity used to; the {@code shared} ones go
+ * through {@link CryptoContext}, which leaves key loading and provider set up to its background
+ * warm up. The {@code Start} benchmarks time what blocks the main thread, the
+ * {@code FirstEncryption} ones the time until the first ciphertext.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class ColdStartBenchmark {
+
+    private static final byte[] PAYLOAD = "uk.org.tomek.encryptme".getBytes();
+
+    private BenchmarkContext mContext;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkKeys.installProvider();
+        mContext = new BenchmarkContext();
+        // a saved key, as on every start but the first one
+        KeyFactory keyFactory = KeyFactory.newInstance(AndroidPlatform.newInstance(mContext));
+        keyFactory.saveKey(BenchmarkKeys.newKeyFactory().getKey());
+        keyFactory.getKeyStore().flush();
+    }
+
+    @Benchmark
+    public CryptoUtils eagerStart() {
+        KeyFactory keyFactory = KeyFactory.newInstance(AndroidPlatform.newInstance(mContext));
+        keyFactory.getKey();
+        return CryptoUtils.newInstance(keyFactory);
+    }
+
+    @Benchmark
+    public CryptoContext sharedStart() {
+        return CryptoContext.getInstance(mContext);
+    }
+
+    @Benchmark
+    public byte[] eagerFirstEncryption() {
+        return eagerStart().encryptData(PAYLOAD);
+    }
+
+    @Benchmark
+    public byte[] sharedFirstEncryption() {
+        return sharedStart().getCryptoUtils().encryptData(PAYLOAD);
+    }
+}
@@ -0,0 +1,79 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+
+/**
+ * {@link CryptoUtils#encryptData(byte[])} and {@link CryptoUtils#decryptData(byte[])} of JSON
+ * and of random data at several compression levels. Random data shows the cost of the
+ * heuristic which leaves it uncompressed. The encrypted size of each payload is printed in the
+ * set up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"4096", "262144"})
+    public int payloadSize;
+
+    @Param({"0", "1", "6"})
+    public int compressionLevel;
+
+    @Param({"json", "random"})
+    public String payload;
+
+    private CryptoUtils mCryptoUtils;
+    private byte[] mPlain;
+    private byte[] mEncrypted;
+
+    @Setup
+    public void setUp() {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+        mCryptoUtils.setCompressionLevel(compressionLevel);
+        mPlain = "json".equals(payload) ? newJson(payloadSize)
+                : BenchmarkKeys.newPayload(payloadSize);
+        mEncrypted = mCryptoUtils.encryptData(mPlain);
+        System.out.println(payload + " " + payloadSize + " bytes encrypted to "
+                + mEncrypted.length);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return mCryptoUtils.encryptData(mPlain);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return mCryptoUtils.decryptData(mEncrypted);
+    }
+
+    private static byte[] newJson(int size) {
+        StringBuilder json = new StringBuilder(size + 100).append('[');
+        for (int i = 0; json.length() < size; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"user").append(i)
+                    .append("\",\"score\":").append((i * 7919) % 1000)
+                    .append(",\"active\":").append(i % 3 == 0).append("},");
+        }
+        json.setLength(size - 1);
+        return json.append(']').toString().getBytes(CryptoUtils.DEFAULT_CHARSET);
+    }
+}
@@ -0,0 +1,87 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+
+/**
+ * Throughput and latency of {@link CryptoUtils#encryptData(byte[])} and
+ * {@link CryptoUtils#decryptData(byte[])} from a single block up to 64 MB, compared with the
+ * caller supplied buffer variants, in every {@link CipherMode}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class CryptoUtilsBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576", "67108864"})
+    public int payloadSize;
+
+    @Param({"LEGACY_CBC", "AES_GCM"})
+    public CipherMode cipherMode;
+
+    private CryptoUtils mCryptoUtils;
+    private byte[] mPlainData;
+    private byte[] mEncryptedData;
+    private byte[] mOutputArray;
+    private ByteBuffer mDirectInput;
+    private ByteBuffer mDirectOutput;
+
+    @Setup
+    public void setUp() {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mCryptoUtils.setCipherMode(cipherMode);
+        mPlainData = BenchmarkKeys.newPayload(payloadSize);
+        mEncryptedData = mCryptoUtils.encryptData(mPlainData);
+        if (mEncryptedData == null) {
+            throw new IllegalStateException("Encryption is not available");
+        }
+        int outputSize = mCryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, payloadSize);
+        mOutputArray = new byte[outputSize];
+        mDirectInput = ByteBuffer.allocateDirect(payloadSize);
+        mDirectInput.put(mPlainData);
+        mDirectOutput = ByteBuffer.allocateDirect(outputSize);
+    }
+
+    @Benchmark
+    public byte[] encryptData() {
+        return mCryptoUtils.encryptData(mPlainData);
+    }
+
+    @Benchmark
+    public byte[] decryptData() {
+        return mCryptoUtils.decryptData(mEncryptedData);
+    }
+
+    @Benchmark
+    public int encryptIntoArray() throws GeneralSecurityException {
+        return mCryptoUtils.encrypt(mPlainData, 0, mPlainData.length, mOutputArray, 0);
+    }
+
+    @Benchmark
+    public int encryptDirectBuffer() throws GeneralSecurityException {
+        mDirectInput.rewind();
+        mDirectOutput.clear();
+        return mCryptoUtils.encrypt(mDirectInput, mDirectOutput);
+    }
+}
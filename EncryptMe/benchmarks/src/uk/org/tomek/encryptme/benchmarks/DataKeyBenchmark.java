@@ -0,0 +1,69 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.DataKeyCache;
+
+/**
+ * {@link CryptoUtils#encryptData(byte[])} of small payloads with the key itself
+ * ({@code direct}), with a new data key per message ({@code fresh}) and with data keys reused
+ * up to the default limits of {@link DataKeyCache} ({@code cached}). The counters of the cache
+ * are printed in the tear down.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataKeyBenchmark {
+
+    @Param({"256", "4096"})
+    public int payloadSize;
+
+    @Param({"direct", "fresh", "cached"})
+    public String dataKeys;
+
+    private CryptoUtils mCryptoUtils;
+    private byte[] mPlain;
+
+    @Setup
+    public void setUp() {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        if ("direct".equals(dataKeys)) {
+            mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+        } else {
+            mCryptoUtils.setCipherMode(CipherMode.AES_GCM_DATA_KEY);
+        }
+        if ("fresh".equals(dataKeys)) {
+            mCryptoUtils.setDataKeyLimits(1, DataKeyCache.DEFAULT_MAX_BYTES,
+                    DataKeyCache.DEFAULT_MAX_AGE_MILLIS);
+        }
+        mPlain = BenchmarkKeys.newPayload(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(mCryptoUtils.getDataKeyCache());
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return mCryptoUtils.encryptData(mPlain);
+    }
+}
@@ -0,0 +1,108 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.EncryptedPreferences;
+
+/**
+ * {@link EncryptedPreferences} against the pattern it replaces: values encrypted with
+ * {@link CryptoUtils#encryptData(String)}, kept as Latin-1 strings in plain preferences and
+ * decrypted on every read. Writes compare a commit per change, which syncs the file every time,
+ * with apply, which saves a burst of changes at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptedPreferencesBenchmark {
+
+    private static final int KEYS = 32;
+    private static final String VALUE = "a typical preference value, e.g. an account token";
+
+    @Param({"LEGACY_CBC", "AES_GCM"})
+    public String cipherMode;
+
+    private CryptoUtils mCryptoUtils;
+    private SharedPreferences mPlainPreferences;
+    private EncryptedPreferences mEncryptedPreferences;
+    private File mFile;
+    private String[] mKeys;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mCryptoUtils.setCipherMode(CipherMode.valueOf(cipherMode));
+        BenchmarkContext context = new BenchmarkContext();
+        mPlainPreferences = context.getSharedPreferences("plain", Context.MODE_PRIVATE);
+        mFile = new File(context.getFilesDir(), "benchmark.eprefs");
+        mEncryptedPreferences = EncryptedPreferences.newInstance(mCryptoUtils, mFile,
+                EncryptedPreferences.DEFAULT_CACHE_SIZE);
+        mKeys = new String[KEYS];
+        SharedPreferences.Editor plainEditor = mPlainPreferences.edit();
+        SharedPreferences.Editor encryptedEditor = mEncryptedPreferences.edit();
+        for (int i = 0; i < KEYS; i++) {
+            mKeys[i] = "key" + i;
+            plainEditor.putString(mKeys[i], new String(mCryptoUtils.encryptData(VALUE),
+                    CryptoUtils.DEFAULT_CHARSET));
+            encryptedEditor.putString(mKeys[i], VALUE);
+        }
+        plainEditor.commit();
+        encryptedEditor.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mEncryptedPreferences.flush();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public String readDecryptingEveryTime() {
+        String encrypted = mPlainPreferences.getString(nextKey(), null);
+        return new String(mCryptoUtils.decryptData(encrypted.getBytes(CryptoUtils.DEFAULT_CHARSET)),
+                CryptoUtils.DEFAULT_CHARSET);
+    }
+
+    @Benchmark
+    public String readCached() {
+        return mEncryptedPreferences.getString(nextKey(), null);
+    }
+
+    @Benchmark
+    public boolean writeCommit() {
+        return mEncryptedPreferences.edit().putString(nextKey(), VALUE).commit();
+    }
+
+    @Benchmark
+    public void writeApply() {
+        mEncryptedPreferences.edit().putString(nextKey(), VALUE).apply();
+    }
+
+    private String nextKey() {
+        mNext = (mNext + 1) % KEYS;
+        return mKeys[mNext];
+    }
+}
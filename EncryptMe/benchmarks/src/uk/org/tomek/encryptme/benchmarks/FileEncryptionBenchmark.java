@@ -0,0 +1,97 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+
+/**
+ * Whole file encryption and decryption through the stream path of
+ * {@link FilesHelper#encryptFile} against the mapped path of {@link FilesHelper#encryptFileMapped}.
+ * The files stay in the page cache, so this measures the copies and the cipher, not the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileEncryptionBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"LEGACY_CBC", "AES_GCM"})
+    public String cipherMode;
+
+    private CryptoUtils mCryptoUtils;
+    private File mDir;
+    private File mPlainFile;
+    private File mEncryptedFile;
+    private File mOutputFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mCryptoUtils.setCipherMode(CipherMode.valueOf(cipherMode));
+        mDir = new BenchmarkContext().getFilesDir();
+        mPlainFile = new File(mDir, "plain.bin");
+        mEncryptedFile = new File(mDir, "plain.bin.enc");
+        mOutputFile = new File(mDir, "output.bin");
+        FileOutputStream out = new FileOutputStream(mPlainFile);
+        try {
+            byte[] chunk = BenchmarkKeys.newPayload(1024 * 1024);
+            for (int written = 0; written < fileSize; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, fileSize - written));
+            }
+        } finally {
+            out.close();
+        }
+        FilesHelper.encryptFile(mCryptoUtils, mPlainFile, mEncryptedFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPlainFile.delete();
+        mEncryptedFile.delete();
+        mOutputFile.delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long encryptStream() throws IOException {
+        return FilesHelper.encryptFile(mCryptoUtils, mPlainFile, mOutputFile);
+    }
+
+    @Benchmark
+    public long encryptMapped() throws IOException {
+        return FilesHelper.encryptFileMapped(mCryptoUtils, mPlainFile, mOutputFile, null);
+    }
+
+    @Benchmark
+    public long decryptStream() throws IOException {
+        return FilesHelper.decryptFile(mCryptoUtils, mEncryptedFile, mOutputFile);
+    }
+
+    @Benchmark
+    public long decryptMapped() throws IOException {
+        return FilesHelper.decryptFileMapped(mCryptoUtils, mEncryptedFile, mOutputFile, null);
+    }
+}
@@ -0,0 +1,82 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import uk.org.tomek.encryptme.helpers.HexStringHelper.Encoding;
+
+/**
+ * Cost of the {@link HexStringHelper} encoders and decoders, allocating a new String compared
+ * with writing into a reused char array.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HexStringHelperBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] mData;
+    private String mBase64;
+    private String mHex;
+    private char[] mOutput;
+
+    @Setup
+    public void setUp() {
+        mData = BenchmarkKeys.newPayload(payloadSize);
+        mBase64 = HexStringHelper.base64Encode(mData);
+        mHex = HexStringHelper.hexEncodeCompact(mData);
+        mOutput = new char[HexStringHelper.getEncodedLength(Encoding.HEX_FORMATTED, payloadSize)];
+    }
+
+    @Benchmark
+    public String hexEncode() {
+        return HexStringHelper.hexEncode(mData);
+    }
+
+    @Benchmark
+    public String hexEncodeCompact() {
+        return HexStringHelper.hexEncodeCompact(mData);
+    }
+
+    @Benchmark
+    public int hexEncodeIntoArray() {
+        return HexStringHelper.encode(Encoding.HEX, mData, 0, mData.length, mOutput, 0);
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return HexStringHelper.hexDecode(mHex);
+    }
+
+    @Benchmark
+    public String base64Encode() {
+        return HexStringHelper.base64Encode(mData);
+    }
+
+    @Benchmark
+    public int base64EncodeIntoArray() {
+        return HexStringHelper.encode(Encoding.BASE64, mData, 0, mData.length, mOutput, 0);
+    }
+
+    @Benchmark
+    public byte[] base64Decode() {
+        return HexStringHelper.base64Decode(mBase64);
+    }
+}
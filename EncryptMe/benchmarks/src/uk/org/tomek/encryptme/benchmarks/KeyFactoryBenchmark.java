@@ -0,0 +1,52 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+
+/**
+ * Cost of {@link KeyFactory#generateKey()} (random AES key) and
+ * {@link KeyFactory#generateKey(char[], byte[])} (PBKDF2, see also {@link Pbkdf2Benchmark}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyFactoryBenchmark {
+
+    private static final char[] PASSPHRASE = "uk.org.tomek.encryptme".toCharArray();
+    private static final byte[] SALT = "0123456789abcdef".getBytes();
+
+    private KeyFactory mKeyFactory;
+
+    @Setup
+    public void setUp() {
+        mKeyFactory = BenchmarkKeys.newKeyFactory();
+    }
+
+    @Benchmark
+    public SecretKey generateRandomKey() {
+        return mKeyFactory.generateKey();
+    }
+
+    @Benchmark
+    public SecretKey generatePbkdf2Key() throws GeneralSecurityException {
+        return mKeyFactory.generateKey(PASSPHRASE, SALT);
+    }
+}
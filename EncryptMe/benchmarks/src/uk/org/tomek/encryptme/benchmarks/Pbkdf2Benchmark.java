@@ -0,0 +1,67 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.Pbkdf2;
+
+/**
+ * {@link Pbkdf2} with its precomputed pad state against the {@link SecretKeyFactory} of the
+ * JVM, deriving a 128 bit key. HotSpot compiles the JCE SHA-256 to the SHA instructions of the
+ * CPU where it has them, which Android does not, so compare on the target as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Pbkdf2Benchmark {
+
+    private static final char[] PASSPHRASE = "uk.org.tomek.encryptme".toCharArray();
+    private static final byte[] PASSPHRASE_BYTES = "uk.org.tomek.encryptme".getBytes();
+    private static final byte[] SALT = "0123456789abcdef".getBytes();
+    private static final int KEY_LENGTH = 128;
+
+    @Param({"HMAC_SHA1", "HMAC_SHA256"})
+    public String prf;
+
+    @Param({"1000", "10000"})
+    public int iterations;
+
+    private Pbkdf2.Prf mPrf;
+    private SecretKeyFactory mSecretKeyFactory;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        BenchmarkKeys.installProvider();
+        mPrf = Pbkdf2.Prf.valueOf(prf);
+        mSecretKeyFactory = SecretKeyFactory.getInstance(mPrf.getJceAlgorithm());
+    }
+
+    @Benchmark
+    public byte[] jce() throws GeneralSecurityException {
+        return mSecretKeyFactory.generateSecret(new PBEKeySpec(PASSPHRASE, SALT, iterations,
+                KEY_LENGTH)).getEncoded();
+    }
+
+    @Benchmark
+    public byte[] precomputed() {
+        return Pbkdf2.deriveKey(mPrf, PASSPHRASE_BYTES, SALT, iterations, KEY_LENGTH / 8);
+    }
+}
@@ -0,0 +1,63 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.ProviderSelector;
+
+/**
+ * AES-GCM {@link CryptoUtils#encryptData(byte[])} with the ciphers of a given provider, of
+ * the most preferred one ({@code default}) and of the ones {@link ProviderSelector} picks
+ * ({@code selected}). The choice is printed in the set up. The legacy cipher is left out, only
+ * BouncyCastle has it on a JVM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int payloadSize;
+
+    @Param({"default", "selected", "SunJCE", "BC"})
+    public String provider;
+
+    private CryptoUtils mCryptoUtils;
+    private byte[] mPlain;
+
+    @Setup
+    public void setUp() {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+        if ("selected".equals(provider)) {
+            ProviderSelector.Selection selection = ProviderSelector.newInstance(null).select();
+            selection.applyTo(mCryptoUtils);
+            System.out.println(selection);
+        } else if (!"default".equals(provider)) {
+            mCryptoUtils.setCipherProvider(CipherMode.AES_GCM, Security.getProvider(provider));
+        }
+        mPlain = BenchmarkKeys.newPayload(payloadSize);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return mCryptoUtils.encryptData(mPlain);
+    }
+}
@@ -0,0 +1,69 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+
+/**
+ * Reading a small slice of a {@link CipherMode#LEGACY_CBC} blob by decrypting all of it with
+ * {@link CryptoUtils#decryptData(byte[])} against {@link CryptoUtils#decryptRange}, once for a
+ * slice inside the blob and once for the last bytes, which includes the padding check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangeDecryptionBenchmark {
+
+    private static final int SLICE_LENGTH = 64;
+
+    @Param({"1048576", "4194304"})
+    public int payloadSize;
+
+    private CryptoUtils mCryptoUtils;
+    private byte[] mEncrypted;
+    private int mMiddleOffset;
+    private int mTailOffset;
+
+    @Setup
+    public void setUp() {
+        mCryptoUtils = CryptoUtils.newInstance(BenchmarkKeys.newKeyFactory());
+        mCryptoUtils.setCipherMode(CipherMode.LEGACY_CBC);
+        mEncrypted = mCryptoUtils.encryptData(BenchmarkKeys.newPayload(payloadSize));
+        // not block aligned, so the slice spans two blocks of the blob
+        mMiddleOffset = payloadSize * 3 / 4 + 7;
+        mTailOffset = payloadSize - SLICE_LENGTH;
+    }
+
+    @Benchmark
+    public byte[] fullMiddle() {
+        return Arrays.copyOfRange(mCryptoUtils.decryptData(mEncrypted), mMiddleOffset,
+                mMiddleOffset + SLICE_LENGTH);
+    }
+
+    @Benchmark
+    public byte[] rangeMiddle() {
+        return mCryptoUtils.decryptRange(mEncrypted, mMiddleOffset, SLICE_LENGTH);
+    }
+
+    @Benchmark
+    public byte[] rangeTail() {
+        return mCryptoUtils.decryptRange(mEncrypted, mTailOffset, SLICE_LENGTH);
+    }
+}
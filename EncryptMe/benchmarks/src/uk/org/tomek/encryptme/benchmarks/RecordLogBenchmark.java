@@ -0,0 +1,116 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.helpers.RecordLog;
+
+/**
+ * Storing small events as one {@link CryptoUtils#encryptData(byte[])} blob per file against
+ * appending them to a {@link RecordLog}, committing every {@code batchSize} events with each
+ * {@link RecordLog.SyncPolicy}. The score is the time per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordLogBenchmark {
+
+    private static final int EVENTS = 64;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    @Param({"ALWAYS", "INTERVAL", "NEVER"})
+    public String syncPolicy;
+
+    private CryptoUtils mCryptoUtils;
+    private RecordLog mLog;
+    private File mDir;
+    private File mLogDir;
+    private byte[] mPlain;
+    private int mFileCount;
+
+    @Setup
+    public void setUp() throws IOException {
+        KeyFactory keyFactory = BenchmarkKeys.newKeyFactory();
+        mCryptoUtils = CryptoUtils.newInstance(keyFactory);
+        mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+        mDir = new BenchmarkContext().getFilesDir();
+        mLogDir = new File(mDir, "records");
+        mLog = RecordLog.open(keyFactory.getKey(), mLogDir,
+                RecordLog.SyncPolicy.valueOf(syncPolicy));
+        mPlain = BenchmarkKeys.newPayload(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mLog.close();
+        deleteFiles(mLogDir);
+        deleteFiles(mDir);
+    }
+
+    private static void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void filePerEvent() throws IOException {
+        for (int i = 0; i < EVENTS; i++) {
+            FileOutputStream out = new FileOutputStream(new File(mDir,
+                    "event" + (mFileCount++ % 1024)));
+            try {
+                out.write(mCryptoUtils.encryptData(mPlain));
+                if (!"NEVER".equals(syncPolicy)) {
+                    out.getFD().sync();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long recordLog() throws IOException {
+        long sequence = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            sequence = mLog.append(mPlain);
+            if ((i + 1) % batchSize == 0) {
+                mLog.commit();
+            }
+        }
+        return sequence;
+    }
+}
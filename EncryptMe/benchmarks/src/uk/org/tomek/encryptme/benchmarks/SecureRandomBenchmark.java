@@ -0,0 +1,73 @@
+package uk.org.tomek.encryptme.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.tomek.encryptme.crypto.PRNGFixes;
+
+/**
+ * Throughput of {@link PRNGFixes.LinuxPRNGSecureRandom} shared by several threads, with every
+ * request read from /dev/urandom under the global lock compared with the striped, buffered
+ * high-throughput mode. Request sizes match a GCM IV and a key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class SecureRandomBenchmark {
+
+    @Param({"false", "true"})
+    public boolean highThroughputMode;
+
+    @Param({"12", "32"})
+    public int requestSize;
+
+    private SecureRandom mSecureRandom;
+
+    @Setup
+    public void setUp() {
+        PRNGFixes.setHighThroughputMode(highThroughputMode);
+        // the engine is used directly, the fixes only install it on old platforms
+        mSecureRandom = new SecureRandom(new PRNGFixes.LinuxPRNGSecureRandom(), null) {
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        PRNGFixes.setHighThroughputMode(false);
+    }
+
+    @Benchmark
+    public byte[] nextBytes(ThreadBuffer buffer) {
+        mSecureRandom.nextBytes(buffer.mBytes);
+        return buffer.mBytes;
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadBuffer {
+        private byte[] mBytes;
+
+        @Setup
+        public void setUp(SecureRandomBenchmark benchmark) {
+            mBytes = new byte[benchmark.requestSize];
+        }
+    }
+}
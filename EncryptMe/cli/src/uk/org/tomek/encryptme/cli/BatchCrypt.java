@@ -0,0 +1,277 @@
+package uk.org.tomek.encryptme.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.DeviceIdentity;
+import uk.org.tomek.encryptme.crypto.JvmPlatform;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.ProviderSelector;
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * Headless entry point encrypting or decrypting every file of a directory tree into another
+ * directory, on several threads, with the same code and format as the app. Prints throughput
+ * once done. See the README for the options.
+ */
+public final class BatchCrypt {
+
+    private static final String USAGE = "Usage: java -jar encryptme-cli.jar encrypt|decrypt"
+            + " [options] <source dir> <target dir>\n"
+            + "  --threads <n>          worker threads, number of processors by default\n"
+            + "  --key-dir <dir>        directory of the key file, ~/.encryptme by default\n"
+            + "  --new-key              creates a key if the key file has none\n"
+            + "  --device <app>:<id>    derives the key of a device from its package name and"
+            + " serial number instead\n"
+            + "  --mode <mode>          LEGACY_CBC, AES_GCM or AES_GCM_DATA_KEY, for encryption,"
+            + " AES_GCM by default\n"
+            + "  --compression <level>  0 (off, the default) to 9, for encryption\n"
+            + "  --select-providers     uses the fastest providers, measured once and saved in"
+            + " the key directory\n"
+            + "  --trace                prints debug traces of the crypto classes";
+    private static final double MB = 1024 * 1024;
+    private static final String PROVIDER_FILE = "providers.bin";
+
+    private boolean mEncrypt;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private File mKeyDir = new File(System.getProperty("user.home"), ".encryptme");
+    private boolean mNewKey;
+    private DeviceIdentity mDeviceIdentity;
+    private CipherMode mCipherMode = CipherMode.AES_GCM;
+    private int mCompressionLevel = CryptoUtils.COMPRESSION_OFF;
+    private boolean mSelectProviders;
+    private File mSourceDir;
+    private File mTargetDir;
+    private final AtomicInteger mDoneFiles = new AtomicInteger();
+    private final AtomicInteger mFailedFiles = new AtomicInteger();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    private BatchCrypt() {
+    }
+
+    public static void main(String[] args) {
+        BatchCrypt batchCrypt = new BatchCrypt();
+        try {
+            batchCrypt.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            System.exit(batchCrypt.run() ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        List<String> paths = new ArrayList<String>();
+        String command = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--threads".equals(arg)) {
+                mThreads = parseInt(arg, value(args, ++i), 1, 1024);
+            } else if ("--key-dir".equals(arg)) {
+                mKeyDir = new File(value(args, ++i));
+            } else if ("--new-key".equals(arg)) {
+                mNewKey = true;
+            } else if ("--device".equals(arg)) {
+                String device = value(args, ++i);
+                int separator = device.indexOf(':');
+                if (separator <= 0 || separator == device.length() - 1) {
+                    throw new IllegalArgumentException("--device needs <app>:<id>");
+                }
+                mDeviceIdentity = DeviceIdentity.newInstance(device.substring(0, separator),
+                        device.substring(separator + 1));
+            } else if ("--mode".equals(arg)) {
+                String mode = value(args, ++i);
+                try {
+                    mCipherMode = CipherMode.valueOf(mode.toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown mode " + mode + ", one of "
+                            + Arrays.toString(CipherMode.values()));
+                }
+            } else if ("--compression".equals(arg)) {
+                mCompressionLevel = parseInt(arg, value(args, ++i), 0, 9);
+            } else if ("--select-providers".equals(arg)) {
+                mSelectProviders = true;
+            } else if ("--trace".equals(arg)) {
+                Tracer.setLevel(Tracer.DEBUG);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else if (command == null) {
+                command = arg;
+            } else {
+                paths.add(arg);
+            }
+        }
+        if ("encrypt".equals(command)) {
+            mEncrypt = true;
+        } else if (!"decrypt".equals(command)) {
+            throw new IllegalArgumentException("Command must be encrypt or decrypt");
+        }
+        if (paths.size() != 2) {
+            throw new IllegalArgumentException("Source and target directory needed");
+        }
+        mSourceDir = new File(paths.get(0));
+        mTargetDir = new File(paths.get(1));
+        if (!mSourceDir.isDirectory()) {
+            throw new IllegalArgumentException(mSourceDir + " is not a directory");
+        }
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(args[index - 1] + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int parseInt(String option, String value, int min, int max) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= min && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " must be between " + min + " and " + max);
+    }
+
+    /*
+     * Returns true if every file was processed.
+     */
+    private boolean run() throws IOException, InterruptedException {
+        // the legacy mode needs the provider Android ships with, the JVM ones stay first
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        final CryptoUtils cryptoUtils = CryptoUtils.newInstance(newKeyFactory(), mThreads);
+        cryptoUtils.setCipherMode(mCipherMode);
+        cryptoUtils.setCompressionLevel(mCompressionLevel);
+        if (mSelectProviders) {
+            mKeyDir.mkdirs();
+            ProviderSelector.Selection selection = ProviderSelector.newInstance(
+                    new File(mKeyDir, PROVIDER_FILE)).select();
+            selection.applyTo(cryptoUtils);
+            System.out.println("Providers: " + selection);
+        }
+        cryptoUtils.warmUp();
+
+        List<String> files = new ArrayList<String>();
+        listFiles(mSourceDir, "", files);
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        long start = System.nanoTime();
+        for (final String path : files) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    processFile(cryptoUtils, path);
+                }
+            });
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            // waiting for the last files
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        printStats(elapsedNanos);
+        return mFailedFiles.get() == 0;
+    }
+
+    private KeyFactory newKeyFactory() throws IOException {
+        KeyFactory keyFactory = KeyFactory.newInstance(JvmPlatform.newInstance(mKeyDir,
+                mDeviceIdentity));
+        if (mDeviceIdentity != null) {
+            SecretKey key = keyFactory.generateKeyFromIdentity(mDeviceIdentity);
+            if (key == null) {
+                throw new IOException("Impossible to derive the key of the device");
+            }
+            // derived again on every run, never saved
+            return KeyFactory.newInMemoryInstance(key);
+        }
+        if (keyFactory.getKey() == null) {
+            if (!mNewKey) {
+                throw new IOException("No key in " + mKeyDir + ", create one with --new-key");
+            }
+            keyFactory.saveKey(keyFactory.generateNewKeyNoPin());
+            keyFactory.getKeyStore().flush();
+            System.out.println("Created new key in " + mKeyDir);
+        }
+        return keyFactory;
+    }
+
+    /*
+     * Collects paths of the files below the directory, relative to the source directory.
+     */
+    private static void listFiles(File dir, String prefix, List<String> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                listFiles(child, path + File.separator, files);
+            } else {
+                files.add(path);
+            }
+        }
+    }
+
+    private void processFile(CryptoUtils cryptoUtils, String path) {
+        File source = new File(mSourceDir, path);
+        File target = new File(mTargetDir, path);
+        try {
+            File targetDir = target.getParentFile();
+            if (!targetDir.isDirectory() && !targetDir.mkdirs() && !targetDir.isDirectory()) {
+                throw new IOException("Impossible to create " + targetDir);
+            }
+            long sourceLength = source.length();
+            long written = mEncrypt ? FilesHelper.encryptFile(cryptoUtils, source, target)
+                    : FilesHelper.decryptFile(cryptoUtils, source, target);
+            mBytesIn.addAndGet(sourceLength);
+            mBytesOut.addAndGet(written);
+            mDoneFiles.incrementAndGet();
+        } catch (IOException e) {
+            mFailedFiles.incrementAndGet();
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            System.err.println("Failed " + path + ": " + cause);
+        }
+    }
+
+    private void printStats(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        double megabytesIn = mBytesIn.get() / MB;
+        System.out.println(String.format(Locale.US,
+                "%s %d files, %.1f MB in, %.1f MB out, %d failed",
+                mEncrypt ? "Encrypted" : "Decrypted", mDoneFiles.get(), megabytesIn,
+                mBytesOut.get() / MB, mFailedFiles.get()));
+        System.out.println(String.format(Locale.US,
+                "%.0f ms on %d threads, %.1f MB/s, %.1f files/s",
+                seconds * 1000, mThreads, megabytesIn / seconds, mDoneFiles.get() / seconds));
+    }
+}
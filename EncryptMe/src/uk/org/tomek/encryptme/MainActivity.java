@@ -12,14 +12,17 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
+import android.widget.Toast;
 
-import javax.crypto.SecretKey;
-
+import uk.org.tomek.encryptme.crypto.AsyncCrypto;
+import uk.org.tomek.encryptme.crypto.CryptoContext;
 import uk.org.tomek.encryptme.crypto.CryptoUtils;
 import uk.org.tomek.encryptme.crypto.KeyFactory;
-import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import uk.org.tomek.encryptme.helpers.MainThreadExecutor;
+import uk.org.tomek.encryptme.helpers.Tracer;
 import uk.org.tomek.encryptme.presenters.MainActivityPresenter;
 import uk.org.tomek.encryptme.views.MainScreenView;
 
@@ -35,24 +38,29 @@ public final class MainActivity extends Activity implements MainScreenView {
     private TextView mKeyValueTv;
     private EditText mInputTextFiled;
     private TextView mOutputTextField;
+    private ProgressBar mProgressBar;
 
     public MainActivity() {
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long start = Tracer.startTimer();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mKeyFactory = KeyFactory.newInstance(this);
-        mPresenter = MainActivityPresenter.newInstance(CryptoUtils.newInstance(mKeyFactory));
-
-        // create crypto utils instance
-        final CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+        // shared with the rest of the app, the key is loaded in the background
+        CryptoContext cryptoContext = CryptoContext.getInstance(this);
+        mKeyFactory = cryptoContext.getKeyFactory();
+        // crypto utils instance, used in the background only
+        CryptoUtils cryptoUtils = cryptoContext.getCryptoUtils();
+        mPresenter = MainActivityPresenter.newInstance(cryptoUtils,
+                AsyncCrypto.newInstance(cryptoUtils, mKeyFactory, MainThreadExecutor.newInstance()));
 
         //get views
         mEncryptionTypeTv = (TextView) findViewById(R.id.encryption_type);
         mKeyValueTv = (TextView) findViewById(R.id.key_value);
+        mProgressBar = (ProgressBar) findViewById(R.id.progress);
 
         // set view in Presenter
         mPresenter.setView(this);
@@ -74,10 +82,7 @@ public final class MainActivity extends Activity implements MainScreenView {
                     String inputText = mInputTextFiled.getText().toString();
                     Log.d(TAG, String.format("Input data:%s", inputText));
 
-                    byte[] encryptedData = cryptoUtils.encryptData(inputText);
-                    String hexEncodedOutput = HexStringHelper.hexEncode(encryptedData);
-                    Log.d(TAG, String.format("Output data:%s", hexEncodedOutput));
-                    mOutputTextField.setText(hexEncodedOutput);
+                    mPresenter.encrypt(inputText);
 
                     // hide keyboard
                     InputMethodManager inputManager =
@@ -97,15 +102,19 @@ public final class MainActivity extends Activity implements MainScreenView {
 
             @Override
             public void onClick(View v) {
-                SecretKey secretKey = mKeyFactory.generateKeyFromPackage(getApplicationContext());
-                // save the key
-                mKeyFactory.saveKey(secretKey);
-                // refresh key values on the screen
-                mPresenter.present();
+                // creates and saves the key, then refreshes key values on the screen
+                mPresenter.createNewKey(getApplicationContext());
             }
         });
 
         mPresenter.present();
+        Tracer.d(TAG, "onCreate took %dus", Tracer.elapsedMicros(start));
+    }
+
+    @Override
+    protected void onDestroy() {
+        mPresenter.detachView();
+        super.onDestroy();
     }
 
     @Override
@@ -126,5 +135,21 @@ public final class MainActivity extends Activity implements MainScreenView {
         mKeyValueTv.setText(key);
     }
 
+    @Override
+    public void showEncryptedData(String encryptedData) {
+        Log.d(TAG, String.format("Output data:%s", encryptedData));
+        mOutputTextField.setText(encryptedData);
+    }
+
+    @Override
+    public void showError(String message) {
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void showProgress(boolean inProgress) {
+        mProgressBar.setVisibility(inProgress ? View.VISIBLE : View.GONE);
+    }
+
 
 }
@@ -0,0 +1,102 @@
+package uk.org.tomek.encryptme.crypto;
+
+import android.content.Context;
+import android.os.Build;
+import android.provider.Settings;
+import android.text.TextUtils;
+
+import java.io.File;
+
+import uk.org.tomek.encryptme.helpers.LogcatTraceSink;
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * {@link Platform} of the app: keys in a {@link FileKeyStore} in the app files, migrated from
+ * the {@link PreferencesKeyStore} of older versions, and the device serial number as the
+ * device ID. The first instance applies {@link PRNGFixes} and sends {@link Tracer} messages to
+ * the Android log.
+ *
+ * @author Tomek Giszczak
+ */
+public final class AndroidPlatform implements Platform {
+
+    private static final String TAG = AndroidPlatform.class.getSimpleName();
+    private static volatile boolean sInitialised;
+    private final Context mContext;
+
+    private AndroidPlatform(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Creates new instance of {@link AndroidPlatform}. Does no I/O apart from the one-off
+     * {@link PRNGFixes}.
+     *
+     * @param context any context, only its application context is kept
+     * @return {@link AndroidPlatform}
+     */
+    public static AndroidPlatform newInstance(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context must not be null");
+        }
+        if (!sInitialised) {
+            synchronized (AndroidPlatform.class) {
+                if (!sInitialised) {
+                    Tracer.setSink(new LogcatTraceSink());
+                    PRNGFixes.apply();
+                    sInitialised = true;
+                }
+            }
+        }
+        Context applicationContext = context.getApplicationContext();
+        return new AndroidPlatform(applicationContext == null ? context : applicationContext);
+    }
+
+    @Override
+    public SecretKeyStore openKeyStore() {
+        return FileKeyStore.newInstance(new File(mContext.getFilesDir(), KeyFactory.KEY_FILE));
+    }
+
+    @Override
+    public SecretKeyStore openLegacyKeyStore() {
+        return PreferencesKeyStore.newInstance(mContext);
+    }
+
+    /**
+     * Returns the package name and the serial number of the device, or its Android ID if
+     * there is no serial number.
+     */
+    @Override
+    public DeviceIdentity getDeviceIdentity() {
+        String deviceSerial = getDeviceSerial(mContext);
+        if (TextUtils.isEmpty(deviceSerial)) {
+            return null;
+        }
+        return DeviceIdentity.newInstance(mContext.getPackageName(), deviceSerial);
+    }
+
+    /**
+     * Returns device serial number as String.
+     *
+     * @return
+     */
+    private static String getDeviceSerial(Context context) {
+        try {
+            String deviceSerial = (String) Build.class.getField("SERIAL").get(null);
+
+            // if it is still empty try a different way
+            if (TextUtils.isEmpty(deviceSerial)) {
+                deviceSerial = Settings.Secure.getString(context.getContentResolver(),
+                        Settings.Secure.ANDROID_ID);
+            }
+            Tracer.d(TAG, "Got serial number, empty:%s", TextUtils.isEmpty(deviceSerial));
+
+            return deviceSerial;
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        } catch (NoSuchFieldException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
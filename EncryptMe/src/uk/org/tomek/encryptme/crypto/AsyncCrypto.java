@@ -0,0 +1,259 @@
+package uk.org.tomek.encryptme.crypto;
+
+import android.content.Context;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * Runs {@link CryptoUtils} and {@link KeyFactory} operations off the calling thread, so that
+ * they can be started from the main thread. Every operation returns a {@link Future} to wait
+ * for or cancel it, and reports its outcome to an optional {@link Callback} through the callback
+ * executor, e.g. the main thread. <p>
+ * Cancelling an operation drops its callback, even if the result is already on its way. An
+ * operation which is already running is interrupted but the cipher itself runs to completion.
+ *
+ * @author Tomek Giszczak
+ */
+public final class AsyncCrypto {
+
+    private static final String TAG = AsyncCrypto.class.getSimpleName();
+    private static ExecutorService sDefaultExecutor;
+    private final CryptoUtils mCryptoUtils;
+    private final KeyFactory mKeyFactory;
+    private final ExecutorService mExecutor;
+    private final Executor mCallbackExecutor;
+
+    /**
+     * Receives the outcome of an operation.
+     *
+     * @param <T> result type
+     */
+    public interface Callback<T> {
+
+        /**
+         * Called with the result of a successful operation.
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called with the reason an operation failed.
+         */
+        void onFailure(Throwable error);
+    }
+
+    private AsyncCrypto(CryptoUtils cryptoUtils, KeyFactory keyFactory, ExecutorService executor,
+            Executor callbackExecutor) {
+        mCryptoUtils = cryptoUtils;
+        mKeyFactory = keyFactory;
+        mExecutor = executor;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Creates new instance of {@link AsyncCrypto} running operations one after another on a
+     * shared background thread, so that e.g. an encryption queued after a key change uses the
+     * new key.
+     *
+     * @param callbackExecutor executor delivering callbacks, null calls them on the background
+     *                         thread
+     * @return {@link AsyncCrypto}
+     */
+    public static AsyncCrypto newInstance(CryptoUtils cryptoUtils, KeyFactory keyFactory,
+            Executor callbackExecutor) {
+        return new AsyncCrypto(cryptoUtils, keyFactory, getDefaultExecutor(), callbackExecutor);
+    }
+
+    /**
+     * Creates new instance of {@link AsyncCrypto} running operations on the given executor.
+     *
+     * @param executor         executor running the operations
+     * @param callbackExecutor executor delivering callbacks, null calls them on the thread which
+     *                         ran the operation
+     * @return {@link AsyncCrypto}
+     */
+    public static AsyncCrypto newInstance(CryptoUtils cryptoUtils, KeyFactory keyFactory,
+            ExecutorService executor, Executor callbackExecutor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        return new AsyncCrypto(cryptoUtils, keyFactory, executor, callbackExecutor);
+    }
+
+    /**
+     * Encrypts data in the background.
+     *
+     * @param data     plain data
+     * @param callback receives the encrypted data, may be null
+     * @return future of the encrypted data
+     */
+    public Future<byte[]> encrypt(final byte[] data, Callback<byte[]> callback) {
+        return submit(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws GeneralSecurityException {
+                byte[] encryptedData = mCryptoUtils.encryptData(data);
+                if (encryptedData == null) {
+                    throw new GeneralSecurityException("Impossible encrypt");
+                }
+                return encryptedData;
+            }
+        }, callback);
+    }
+
+    /**
+     * Decrypts data in the background.
+     *
+     * @param data     encrypted data
+     * @param callback receives the decrypted data, may be null
+     * @return future of the decrypted data
+     */
+    public Future<byte[]> decrypt(final byte[] data, Callback<byte[]> callback) {
+        return submit(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws GeneralSecurityException {
+                byte[] decryptedData = mCryptoUtils.decryptData(data);
+                if (decryptedData == null) {
+                    throw new GeneralSecurityException("Impossible decrypt");
+                }
+                return decryptedData;
+            }
+        }, callback);
+    }
+
+    /**
+     * Derives a new key from the package name and device ID and saves it, see
+     * {@link KeyFactory#generateKeyFromIdentity(DeviceIdentity)}.
+     *
+     * @param context  app context
+     * @param callback receives the new key, may be null
+     * @return future of the new key
+     */
+    public Future<SecretKey> createKeyFromPackage(final Context context,
+            Callback<SecretKey> callback) {
+        return submit(new Callable<SecretKey>() {
+
+            @Override
+            public SecretKey call() throws GeneralSecurityException {
+                long start = Tracer.startTimer();
+                DeviceIdentity identity = AndroidPlatform.newInstance(context)
+                        .getDeviceIdentity();
+                SecretKey key = identity == null ? null
+                        : mKeyFactory.generateKeyFromIdentity(identity);
+                if (key == null) {
+                    throw new GeneralSecurityException("Impossible to create encryption key");
+                }
+                mKeyFactory.saveKey(key);
+                Tracer.d(TAG, "Created and saved key in %dus", Tracer.elapsedMicros(start));
+                return key;
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs any task on the executor of this instance, e.g. an operation together with the
+     * formatting of its result.
+     *
+     * @param task     task to run
+     * @param callback receives the result, may be null
+     * @return future of the result
+     */
+    public <T> Future<T> submit(Callable<T> task, Callback<T> callback) {
+        CallbackTask<T> future = new CallbackTask<T>(task, callback);
+        mExecutor.execute(future);
+        return future;
+    }
+
+    /*
+     * Lazily created single thread shared by all instances which do not set their own executor.
+     */
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CryptoAsync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    /*
+     * Future which hands its outcome to the callback once it is done.
+     */
+    private final class CallbackTask<T> extends FutureTask<T> {
+        private final Callback<T> mCallback;
+        private volatile boolean mCallbackDropped;
+
+        private CallbackTask(Callable<T> task, Callback<T> callback) {
+            super(task);
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mCallbackDropped = true;
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null || isCancelled()) {
+                return;
+            }
+            Runnable delivery;
+            try {
+                final T result = get();
+                delivery = new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!mCallbackDropped) {
+                            mCallback.onSuccess(result);
+                        }
+                    }
+                };
+            } catch (ExecutionException e) {
+                final Throwable error = e.getCause();
+                Tracer.w(TAG, "Operation failed", error);
+                delivery = new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!mCallbackDropped) {
+                            mCallback.onFailure(error);
+                        }
+                    }
+                };
+            } catch (InterruptedException e) {
+                // not possible once the task is done
+                Thread.currentThread().interrupt();
+                return;
+            } catch (CancellationException e) {
+                return;
+            }
+            if (mCallbackExecutor == null) {
+                delivery.run();
+            } else {
+                mCallbackExecutor.execute(delivery);
+            }
+        }
+    }
+}
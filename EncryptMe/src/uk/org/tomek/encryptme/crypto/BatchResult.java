@@ -0,0 +1,85 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link CryptoUtils#encryptAll(List)} and {@link CryptoUtils#decryptAll(List)}.
+ * Results are kept in input order; an item which could not be processed has no result and
+ * carries the exception instead.
+ *
+ * @author Tomek Giszczak
+ */
+public final class BatchResult {
+
+    private final byte[][] mResults;
+    private final Exception[] mFailures;
+
+    BatchResult(int size) {
+        mResults = new byte[size][];
+        mFailures = new Exception[size];
+    }
+
+    void setResult(int index, byte[] result) {
+        mResults[index] = result;
+    }
+
+    void setFailure(int index, Exception failure) {
+        mFailures[index] = failure;
+    }
+
+    /**
+     * Returns number of items in the batch.
+     */
+    public int size() {
+        return mResults.length;
+    }
+
+    /**
+     * Returns the output of the item at the given input position.
+     *
+     * @return output or null if the item failed
+     */
+    public byte[] get(int index) {
+        return mResults[index];
+    }
+
+    /**
+     * Returns the reason the item at the given input position failed.
+     *
+     * @return exception or null if the item succeeded
+     */
+    public Exception getFailure(int index) {
+        return mFailures[index];
+    }
+
+    /**
+     * Returns true if the item at the given input position succeeded.
+     */
+    public boolean isSuccess(int index) {
+        return mFailures[index] == null;
+    }
+
+    /**
+     * Returns number of failed items.
+     */
+    public int getFailureCount() {
+        int count = 0;
+        for (Exception failure : mFailures) {
+            if (failure != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns all outputs in input order, with null for failed items.
+     */
+    public List<byte[]> getResults() {
+        List<byte[]> results = new ArrayList<byte[]>(mResults.length);
+        Collections.addAll(results, mResults);
+        return results;
+    }
+}
@@ -0,0 +1,60 @@
+package uk.org.tomek.encryptme.crypto;
+
+/**
+ * Algorithms {@link CryptoUtils} encrypts with. Data encrypted in any mode can be decrypted by
+ * any instance, the mode only selects how new data is encrypted.
+ *
+ * @author Tomek Giszczak
+ */
+public enum CipherMode {
+    /**
+     * Original format: password based AES-CBC with a fixed IV and no header. Every
+     * initialisation of the cipher derives the AES key and IV from the key again.
+     */
+    LEGACY_CBC("PBEWITHMD5AND256BITAES-CBC-OPENSSL", 0),
+    /**
+     * Authenticated AES-GCM using the raw key, with a random IV per message stored in a
+     * {@link CiphertextEnvelope}. Needs API level 19.
+     */
+    AES_GCM("AES/GCM/NoPadding", 1),
+    /**
+     * AES-GCM with a data key which is wrapped with the key and stored next to the data, so
+     * that a key rotation only has to wrap the data keys again, see {@link DataKeyCache}. Needs
+     * API level 19.
+     */
+    AES_GCM_DATA_KEY("AES/GCM/NoPadding", 2);
+
+    private final String mTransformation;
+    private final int mAlgorithmId;
+
+    private CipherMode(String transformation, int algorithmId) {
+        mTransformation = transformation;
+        mAlgorithmId = algorithmId;
+    }
+
+    /**
+     * Returns name passed to {@link javax.crypto.Cipher#getInstance(String)}.
+     */
+    public String getTransformation() {
+        return mTransformation;
+    }
+
+    /**
+     * Returns id of the algorithm in the envelope header.
+     */
+    int getAlgorithmId() {
+        return mAlgorithmId;
+    }
+
+    /**
+     * Returns mode with the given envelope algorithm id or null if the id is unknown.
+     */
+    static CipherMode fromAlgorithmId(int algorithmId) {
+        for (CipherMode mode : values()) {
+            if (mode != LEGACY_CBC && mode.mAlgorithmId == algorithmId) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,264 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * Bounded pool of {@link Cipher} instances for a single transformation. A {@link Cipher} is not
+ * thread safe, so every thread borrows its own instance for the duration of one operation and
+ * returns it afterwards. Instances are created lazily up to the maximum size; once all of them
+ * are in use further borrowers wait for one to be returned. <p>
+ * A pooled cipher remembers how it was last initialised. As {@code doFinal} returns a cipher to
+ * its initialised state, initialising it again with the same key and parameters is skipped,
+ * which saves the key schedule (and for PBE algorithms the key derivation) on every call.
+ *
+ * @author Tomek Giszczak
+ */
+public final class CipherPool {
+
+    private static final String TAG = CipherPool.class.getSimpleName();
+    private final String mTransformation;
+    private final int mMaxSize;
+    private final BlockingQueue<PooledCipher> mIdleCiphers;
+    private final AtomicInteger mCreatedCount = new AtomicInteger();
+    private final AtomicLong mBorrowCount = new AtomicLong();
+    private final AtomicLong mContendedCount = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+    private volatile Provider mProvider;
+
+    private CipherPool(String transformation, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        mTransformation = transformation;
+        mMaxSize = maxSize;
+        mIdleCiphers = new ArrayBlockingQueue<PooledCipher>(maxSize);
+    }
+
+    /**
+     * Creates new instance of {@link CipherPool}.
+     *
+     * @param transformation name passed to {@link Cipher#getInstance(String)}
+     * @param maxSize maximum number of ciphers created by the pool
+     * @return {@link CipherPool}
+     */
+    public static CipherPool newInstance(String transformation, int maxSize) {
+        return new CipherPool(transformation, maxSize);
+    }
+
+    /**
+     * Returns an idle cipher, creates a new one if the pool is not full yet or waits for one to
+     * be returned. Every borrowed cipher has to be given back with
+     * {@link #release(PooledCipher)}.
+     *
+     * @return cipher or null if it could not be created or the thread was interrupted
+     */
+    public PooledCipher borrow() {
+        mBorrowCount.incrementAndGet();
+        PooledCipher cipher = mIdleCiphers.poll();
+        if (cipher != null) {
+            return cipher;
+        }
+
+        // try to grow the pool
+        int created;
+        while ((created = mCreatedCount.get()) < mMaxSize) {
+            if (mCreatedCount.compareAndSet(created, created + 1)) {
+                cipher = createCipher();
+                if (cipher == null) {
+                    mCreatedCount.decrementAndGet();
+                }
+                return cipher;
+            }
+        }
+
+        // pool is exhausted, wait for another thread to return a cipher
+        mContendedCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return mIdleCiphers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            mWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns borrowed cipher to the pool.
+     *
+     * @param cipher cipher obtained from {@link #borrow()}, null is ignored
+     */
+    public void release(PooledCipher cipher) {
+        if (cipher == null) {
+            return;
+        }
+        Provider provider = mProvider;
+        if (provider != null && cipher.mCipher.getProvider() != provider) {
+            // borrowed before the provider changed, replaced so that waiting borrowers get one
+            cipher = createCipher();
+            if (cipher == null) {
+                mCreatedCount.decrementAndGet();
+                return;
+            }
+        }
+        mIdleCiphers.offer(cipher);
+    }
+
+    /**
+     * Makes the pool create its ciphers with the given provider instead of the most preferred
+     * one. Idle ciphers are dropped, borrowed ones are replaced when they are returned.
+     *
+     * @param provider provider of new ciphers, null for {@link Cipher#getInstance(String)}
+     */
+    public void setProvider(Provider provider) {
+        mProvider = provider;
+        while (mIdleCiphers.poll() != null) {
+            mCreatedCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the provider set with {@link #setProvider(Provider)}.
+     *
+     * @return provider or null if the most preferred one is used
+     */
+    public Provider getProvider() {
+        return mProvider;
+    }
+
+    private PooledCipher createCipher() {
+        try {
+            Provider provider = mProvider;
+            return new PooledCipher(provider == null ? Cipher.getInstance(mTransformation)
+                    : Cipher.getInstance(mTransformation, provider));
+        } catch (NoSuchAlgorithmException e) {
+            Tracer.w(TAG, "Impossible to get Cipher instance", e);
+            e.printStackTrace();
+        } catch (NoSuchPaddingException e) {
+            Tracer.w(TAG, "Impossible to get Cipher instance", e);
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns transformation of the pooled ciphers.
+     */
+    public String getTransformation() {
+        return mTransformation;
+    }
+
+    /**
+     * Returns maximum number of ciphers the pool creates.
+     */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns number of ciphers created so far.
+     */
+    public int getCreatedCount() {
+        return mCreatedCount.get();
+    }
+
+    /**
+     * Returns number of ciphers currently waiting in the pool.
+     */
+    public int getIdleCount() {
+        return mIdleCiphers.size();
+    }
+
+    /**
+     * Returns total number of {@link #borrow()} calls.
+     */
+    public long getBorrowCount() {
+        return mBorrowCount.get();
+    }
+
+    /**
+     * Returns number of {@link #borrow()} calls which had to wait for a cipher to be returned.
+     */
+    public long getContendedCount() {
+        return mContendedCount.get();
+    }
+
+    /**
+     * Returns total time in nanoseconds borrowers spent waiting for a cipher.
+     */
+    public long getWaitNanos() {
+        return mWaitNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CipherPool[%s, size:%d/%d, idle:%d, borrows:%d, contended:%d, "
+                        + "waitMs:%d]", mTransformation, getCreatedCount(), mMaxSize,
+                getIdleCount(), getBorrowCount(), getContendedCount(), getWaitNanos() / 1000000L);
+    }
+
+    /**
+     * {@link Cipher} owned by the pool together with the arguments of its last initialisation.
+     */
+    public static final class PooledCipher {
+        private final Cipher mCipher;
+        private int mOpmode;
+        private Key mKey;
+        private AlgorithmParameterSpec mParams;
+
+        private PooledCipher(Cipher cipher) {
+            mCipher = cipher;
+        }
+
+        /**
+         * Initialises the cipher unless it is already initialised with the same mode, key and
+         * parameters (compared by identity).
+         *
+         * @return initialised cipher
+         */
+        public Cipher init(int opmode, Key key, AlgorithmParameterSpec params)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            if (mKey != key || mParams != params || mOpmode != opmode) {
+                // forget the state first, init() may fail half way
+                mKey = null;
+                mCipher.init(opmode, key, params);
+                mOpmode = opmode;
+                mKey = key;
+                mParams = params;
+            }
+            return mCipher;
+        }
+
+        /**
+         * Forces the next {@link #init} call to initialise the cipher, e.g. after a failed
+         * operation left it in an unknown state.
+         */
+        public void invalidate() {
+            mKey = null;
+            mParams = null;
+        }
+
+        /**
+         * Returns the pooled cipher. Callers initialising it directly have to call
+         * {@link #invalidate()} before releasing it.
+         */
+        public Cipher getCipher() {
+            return mCipher;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header put in front of data encrypted in any mode other than {@link CipherMode#LEGACY_CBC}.
+ * Layout:
+ * <pre>
+ * magic 'E' 'M' (2) | version (1) | algorithm id (1) | flags (1) | IV (12) | ciphertext | tag (16)
+ * </pre>
+ * Data in {@link CipherMode#AES_GCM_DATA_KEY} has a key block between the header and the IV:
+ * <pre>
+ * key id (8) | wrap IV (12) | data key wrapped with AES-GCM (16) | wrap tag (16)
+ * </pre>
+ * The header of such data is always authenticated, without the key slot, together with the
+ * key id, so that the data key can be wrapped again without touching the ciphertext.
+ * The upper four bits of the flags hold the key slot, which tells the key version the data was
+ * encrypted with, see {@link #toKeySlot(int)}. Data written before key slots were added has
+ * slot 0 and was encrypted with the first key. {@link #FLAG_DEFLATE} marks data compressed
+ * before encryption, the header of such data is authenticated along with the ciphertext. <p>
+ * Legacy data has no header. A legacy ciphertext starts with a valid header by chance about
+ * once in 2^26 messages. Such data fails authentication like tampered data does, it is never
+ * retried as legacy data, which would let tampered envelope data through as garbage.
+ *
+ * @author Tomek Giszczak
+ */
+final class CiphertextEnvelope {
+
+    static final int HEADER_SIZE = 5;
+    static final int IV_SIZE = 12;
+    static final int TAG_SIZE = 16;
+    static final int TAG_BITS = TAG_SIZE * 8;
+    /**
+     * Bytes in front of the ciphertext.
+     */
+    static final int PREFIX_SIZE = HEADER_SIZE + IV_SIZE;
+    static final int KEY_ID_SIZE = 8;
+    static final int DATA_KEY_SIZE = 16;
+    /**
+     * Bytes of the key id and the wrapped data key, see {@link CipherMode#AES_GCM_DATA_KEY}.
+     */
+    static final int KEY_BLOCK_SIZE = KEY_ID_SIZE + IV_SIZE + DATA_KEY_SIZE + TAG_SIZE;
+    /**
+     * Number of distinct key slots, key versions further apart share a slot.
+     */
+    static final int KEY_SLOTS = 15;
+    /**
+     * The plain data was compressed with {@link java.util.zip.Deflater} before encryption.
+     */
+    static final int FLAG_DEFLATE = 0x01;
+    private static final byte MAGIC_0 = 0x45;
+    private static final byte MAGIC_1 = 0x4d;
+    private static final byte VERSION = 1;
+    // the lower four bits, data with other flags is not in this format
+    private static final int KNOWN_FLAGS = FLAG_DEFLATE;
+    private static final int KEY_SLOT_SHIFT = 4;
+    private static final int KEY_SLOT_MASK = 0xf0;
+    private static final int FLAGS_OFFSET = 4;
+
+    private CiphertextEnvelope() {
+    }
+
+    /**
+     * Returns number of bytes in front of the ciphertext in the given mode.
+     */
+    static int getPrefixSize(CipherMode mode) {
+        return mode == CipherMode.AES_GCM_DATA_KEY ? PREFIX_SIZE + KEY_BLOCK_SIZE : PREFIX_SIZE;
+    }
+
+    /**
+     * Returns number of bytes the envelope adds to the plain data in the given mode.
+     */
+    static int getOverhead(CipherMode mode) {
+        return getPrefixSize(mode) + TAG_SIZE;
+    }
+
+    /**
+     * Returns number of bytes the envelope adds to the plain data in the mode with the largest
+     * header.
+     */
+    static int getMaxOverhead() {
+        return getOverhead(CipherMode.AES_GCM_DATA_KEY);
+    }
+
+    /**
+     * Writes the header for the given mode.
+     *
+     * @return number of bytes written
+     */
+    static int writeHeader(byte[] output, int offset, CipherMode mode, int flags) {
+        output[offset] = MAGIC_0;
+        output[offset + 1] = MAGIC_1;
+        output[offset + 2] = VERSION;
+        output[offset + 3] = (byte) mode.getAlgorithmId();
+        output[offset + 4] = (byte) flags;
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Buffer variant of {@link #writeHeader(byte[], int, CipherMode, int)}.
+     */
+    static int writeHeader(ByteBuffer output, CipherMode mode, int flags) {
+        output.put(MAGIC_0).put(MAGIC_1).put(VERSION).put((byte) mode.getAlgorithmId())
+                .put((byte) flags);
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Returns the mode of the data, {@link CipherMode#LEGACY_CBC} if it has no valid header.
+     */
+    static CipherMode readMode(byte[] input, int offset, int length) {
+        if (length < HEADER_SIZE) {
+            return CipherMode.LEGACY_CBC;
+        }
+        return checkLength(readMode(input[offset], input[offset + 1], input[offset + 2],
+                input[offset + 3], input[offset + 4]), length);
+    }
+
+    /**
+     * Buffer variant of {@link #readMode(byte[], int, int)}, the buffer position is not moved.
+     */
+    static CipherMode readMode(ByteBuffer input) {
+        if (input.remaining() < HEADER_SIZE) {
+            return CipherMode.LEGACY_CBC;
+        }
+        int position = input.position();
+        return checkLength(readMode(input.get(position), input.get(position + 1),
+                input.get(position + 2), input.get(position + 3), input.get(position + 4)),
+                input.remaining());
+    }
+
+    // data too short for the envelope of its mode is legacy data
+    private static CipherMode checkLength(CipherMode mode, int length) {
+        return length < getOverhead(mode) ? CipherMode.LEGACY_CBC : mode;
+    }
+
+    private static CipherMode readMode(byte magic0, byte magic1, byte version, byte algorithmId,
+            byte flags) {
+        if (magic0 != MAGIC_0 || magic1 != MAGIC_1 || version != VERSION
+                || (flags & 0xff & ~(KNOWN_FLAGS | KEY_SLOT_MASK)) != 0) {
+            return CipherMode.LEGACY_CBC;
+        }
+        CipherMode mode = CipherMode.fromAlgorithmId(algorithmId & 0xff);
+        return mode == null ? CipherMode.LEGACY_CBC : mode;
+    }
+
+    /**
+     * Returns the key slot of a key version, 1 to {@link #KEY_SLOTS}, or 0 for an unknown
+     * version.
+     */
+    static int toKeySlot(int keyVersion) {
+        return keyVersion < 1 ? 0 : (keyVersion - 1) % KEY_SLOTS + 1;
+    }
+
+    /**
+     * Returns the flags bits holding the slot of the key version.
+     */
+    static int getKeySlotFlags(int keyVersion) {
+        return toKeySlot(keyVersion) << KEY_SLOT_SHIFT;
+    }
+
+    /**
+     * Returns the key slot of data with a valid header.
+     */
+    static int readKeySlot(byte[] input, int offset) {
+        return (input[offset + FLAGS_OFFSET] & KEY_SLOT_MASK) >>> KEY_SLOT_SHIFT;
+    }
+
+    /**
+     * Buffer variant of {@link #readKeySlot(byte[], int)}, the buffer position is not moved.
+     */
+    static int readKeySlot(ByteBuffer input) {
+        return (input.get(input.position() + FLAGS_OFFSET) & KEY_SLOT_MASK) >>> KEY_SLOT_SHIFT;
+    }
+
+    /**
+     * Sets the key slot of data with a valid header, see {@link #toKeySlot(int)}.
+     */
+    static void writeKeySlot(byte[] output, int offset, int keyVersion) {
+        output[offset + FLAGS_OFFSET] = (byte) ((output[offset + FLAGS_OFFSET] & ~KEY_SLOT_MASK)
+                | getKeySlotFlags(keyVersion));
+    }
+
+    /**
+     * Returns the key id at the start of a key block.
+     */
+    static long readKeyId(byte[] keyBlock, int offset) {
+        long keyId = 0;
+        for (int i = 0; i < KEY_ID_SIZE; i++) {
+            keyId = keyId << 8 | keyBlock[offset + i] & 0xff;
+        }
+        return keyId;
+    }
+
+    /**
+     * Returns the data authenticated along with the ciphertext of data in
+     * {@link CipherMode#AES_GCM_DATA_KEY}: the header with its key slot cleared and the key id.
+     */
+    static byte[] getDataKeyAad(byte[] input, int offset) {
+        byte[] aad = new byte[HEADER_SIZE + KEY_ID_SIZE];
+        System.arraycopy(input, offset, aad, 0, aad.length);
+        aad[FLAGS_OFFSET] &= ~KEY_SLOT_MASK;
+        return aad;
+    }
+
+    /**
+     * Tells whether data with a valid header was compressed before encryption.
+     */
+    static boolean isCompressed(byte[] input, int offset) {
+        return (input[offset + FLAGS_OFFSET] & FLAG_DEFLATE) != 0;
+    }
+
+    /**
+     * Buffer variant of {@link #isCompressed(byte[], int)}, the buffer position is not moved.
+     */
+    static boolean isCompressed(ByteBuffer input) {
+        return (input.get(input.position() + FLAGS_OFFSET) & FLAG_DEFLATE) != 0;
+    }
+}
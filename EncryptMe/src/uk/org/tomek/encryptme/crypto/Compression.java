@@ -0,0 +1,139 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of plain data before encryption, see {@link CryptoUtils#setCompressionLevel(int)}.
+ * Only data likely to shrink is compressed: small inputs gain too little to pay for the deflate
+ * header and the extra work, and data with an almost uniform byte distribution is compressed or
+ * encrypted already. The distribution is estimated from a sample, so the check costs little even
+ * for large inputs.
+ *
+ * @author Tomek Giszczak
+ */
+final class Compression {
+
+    /**
+     * Inputs below this size are never compressed.
+     */
+    static final int MIN_SIZE = 256;
+    // sampled in runs, which keeps the local structure text and JSON are made of
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int SAMPLE_RUN = 64;
+    // bits per byte above which data is taken to be compressed or encrypted already, a sample of
+    // random bytes measures about 7.95
+    private static final double MAX_ENTROPY = 7.5;
+    private static final double LOG_2 = Math.log(2);
+
+    private Compression() {
+    }
+
+    /**
+     * Tells whether the data is worth compressing.
+     *
+     * @param input  data
+     * @param offset offset of the data
+     * @param length length of the data, or of its beginning if the rest is not known yet
+     * @param atEnd  whether the length is the whole data
+     */
+    static boolean isWorthCompressing(byte[] input, int offset, int length, boolean atEnd) {
+        if (atEnd && length < MIN_SIZE) {
+            return false;
+        }
+        return estimateEntropy(input, offset, length) <= MAX_ENTROPY;
+    }
+
+    /**
+     * Returns Shannon entropy of the byte distribution of a sample of the data.
+     *
+     * @return bits per byte, 0 to 8
+     */
+    static double estimateEntropy(byte[] input, int offset, int length) {
+        int[] counts = new int[256];
+        int sampled = 0;
+        if (length <= SAMPLE_SIZE) {
+            for (int i = offset; i < offset + length; i++) {
+                counts[input[i] & 0xff]++;
+            }
+            sampled = length;
+        } else {
+            int runs = SAMPLE_SIZE / SAMPLE_RUN;
+            long stride = (length - SAMPLE_RUN) / (runs - 1);
+            for (int run = 0; run < runs; run++) {
+                int start = offset + (int) (run * stride);
+                for (int i = start; i < start + SAMPLE_RUN; i++) {
+                    counts[input[i] & 0xff]++;
+                }
+            }
+            sampled = runs * SAMPLE_RUN;
+        }
+        if (sampled == 0) {
+            return 0;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / LOG_2;
+    }
+
+    /**
+     * Compresses the data.
+     *
+     * @return compressed data or null if it would not be smaller
+     */
+    static byte[] deflate(byte[] input, int offset, int length, int level) {
+        Deflater deflater = new Deflater(level);
+        // compressed data is only of use if it is smaller
+        byte[] buffer = new byte[length];
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished() && size < buffer.length) {
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] output = new byte[size];
+            System.arraycopy(buffer, 0, output, 0, size);
+            return output;
+        } finally {
+            deflater.end();
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    /**
+     * Decompresses data compressed by {@link #deflate(byte[], int, int, int)}.
+     *
+     * @throws DataFormatException if the data is not complete compressed data
+     */
+    static byte[] inflate(byte[] input, int offset, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length * 4);
+        byte[] buffer = new byte[Math.max(MIN_SIZE, Math.min(length * 4, 64 * 1024))];
+        try {
+            inflater.setInput(input, offset, length);
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed data");
+                }
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+}
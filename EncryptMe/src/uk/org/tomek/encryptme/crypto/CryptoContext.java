@@ -0,0 +1,141 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.File;
+
+import android.content.Context;
+
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * Process wide {@link KeyFactory} and {@link CryptoUtils}, so that every screen shares one key,
+ * one cipher pool and one seeded IV generator. Creating it does no I/O and no provider lookups:
+ * the saved key is read and the ciphers are created on a background thread right after, so the
+ * first operation does not pay for them, nor does the first frame. <p>
+ * Both steps are timed, see {@link #getCreateMicros()} and {@link #getWarmUpMicros()}. <p>
+ * Optionally the warm up first pins the fastest providers, see
+ * {@link #enableProviderSelection()}.
+ *
+ * @author Tomek Giszczak
+ */
+public final class CryptoContext {
+
+    private static final String TAG = CryptoContext.class.getSimpleName();
+    private static final Object sLock = new Object();
+    private static final String PROVIDER_FILE = "providers.bin";
+    private static volatile CryptoContext sInstance;
+    private static volatile boolean sProviderSelectionEnabled;
+    private final KeyFactory mKeyFactory;
+    private final CryptoUtils mCryptoUtils;
+    private final long mCreateMicros;
+    private volatile long mWarmUpMicros = -1;
+    private volatile ProviderSelector.Selection mProviderSelection;
+
+    private CryptoContext(Context context) {
+        // timed even with tracing off, the numbers are part of the API
+        long start = System.nanoTime();
+        mKeyFactory = KeyFactory.newInstance(AndroidPlatform.newInstance(context));
+        mCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+        mCreateMicros = (System.nanoTime() - start) / 1000;
+        Tracer.d(TAG, "Created in %dus", mCreateMicros);
+    }
+
+    /**
+     * Returns the instance of this process, creating it on first call.
+     *
+     * @param context any context, only its application context is kept
+     * @return {@link CryptoContext}
+     */
+    public static CryptoContext getInstance(Context context) {
+        CryptoContext instance = sInstance;
+        if (instance == null) {
+            synchronized (sLock) {
+                instance = sInstance;
+                if (instance == null) {
+                    if (context == null) {
+                        throw new IllegalArgumentException("Context must not be null");
+                    }
+                    instance = new CryptoContext(context.getApplicationContext());
+                    instance.startWarmUp(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Makes the instance pick the fastest providers on its warm up thread, before any cipher is
+     * created, see {@link ProviderSelector}. The choice is saved, so only the first start after
+     * an install or a system update measures them. Has to be called before the first
+     * {@link #getInstance(Context)}.
+     */
+    public static void enableProviderSelection() {
+        sProviderSelectionEnabled = true;
+    }
+
+    private void startWarmUp(final Context context) {
+        final boolean selectProviders = sProviderSelectionEnabled;
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                if (selectProviders) {
+                    ProviderSelector.Selection selection = ProviderSelector.newInstance(
+                            new File(context.getFilesDir(), PROVIDER_FILE)).select();
+                    selection.applyTo(mCryptoUtils);
+                    mProviderSelection = selection;
+                }
+                // the key first, it is what the first screen waits for
+                mKeyFactory.warmUp();
+                mCryptoUtils.warmUp();
+                mWarmUpMicros = (System.nanoTime() - start) / 1000;
+                Tracer.d(TAG, "Warmed up in %dus", mWarmUpMicros);
+            }
+        }, "CryptoWarmUp");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Returns the shared key factory.
+     */
+    public KeyFactory getKeyFactory() {
+        return mKeyFactory;
+    }
+
+    /**
+     * Returns the shared crypto utils.
+     */
+    public CryptoUtils getCryptoUtils() {
+        return mCryptoUtils;
+    }
+
+    /**
+     * Returns the providers picked by the warm up, e.g. for a diagnostics screen.
+     *
+     * @return selection or null if it is not enabled or has not finished yet
+     */
+    public ProviderSelector.Selection getProviderSelection() {
+        return mProviderSelection;
+    }
+
+    /**
+     * Returns how long creating the instance blocked its first caller.
+     *
+     * @return time in microseconds
+     */
+    public long getCreateMicros() {
+        return mCreateMicros;
+    }
+
+    /**
+     * Returns how long the background warm up took.
+     *
+     * @return time in microseconds or -1 if it has not finished yet
+     */
+    public long getWarmUpMicros() {
+        return mWarmUpMicros;
+    }
+}
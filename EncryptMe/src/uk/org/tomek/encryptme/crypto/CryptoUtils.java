@@ -1,58 +1,205 @@
 package uk.org.tomek.encryptme.crypto;
 
-import android.annotation.TargetApi;
-import android.content.Context;
-import android.os.Build;
-import android.text.TextUtils;
-import android.util.Log;
-
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
-import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import uk.org.tomek.encryptme.crypto.CipherPool.PooledCipher;
+import uk.org.tomek.encryptme.helpers.Tracer;
 
 /**
  * Class used to encrypt/decrypt some String content on Android. Based on
  * http://android-developers.blogspot.co.uk/2013/02/using-cryptography-to-store-credentials.html
+ * <p>
+ * New data is encrypted with the {@link CipherMode} set on the instance, {@link
+ * CipherMode#LEGACY_CBC} by default. Decryption recognises every mode by the
+ * {@link CiphertextEnvelope} header, data without a header is decrypted as legacy data.
  *
  * @author Tomek Giszczak
  */
 public class CryptoUtils {
-    public static final String LATIN_FORMAT = "Latin-1";
+    public static final String LATIN_FORMAT = "ISO-8859-1";
     public static final Charset DEFAULT_CHARSET = Charset.forName(LATIN_FORMAT);
+    /**
+     * Size of the chunks passed through {@link Cipher#update} by the streaming methods.
+     */
+    public static final int STREAM_CHUNK_SIZE = 16 * 1024;
+    /**
+     * Compression level which turns compression off, see {@link #setCompressionLevel(int)}.
+     */
+    public static final int COMPRESSION_OFF = 0;
 
     private static final String TAG = CryptoUtils.class.getSimpleName();
     //	private static final String CIPHER_ALGO = "AES/CBC/PKCS5Padding";
-    private static final String CIPHER_ALGO = "PBEWITHMD5AND256BITAES-CBC-OPENSSL";
+    private static final String AES_ALGO = "AES";
     private static final byte[] IV_BYTES = {(byte) 0xf8, (byte) 0x9f, (byte) 0x0a, (byte) 0x2b,
             (byte) 0x9b, (byte) 0x5b, (byte) 0x11, (byte) 0xad, (byte) 0x61, (byte) 0x19,
             (byte) 0xe9, (byte) 0xb6, (byte) 0x9f, (byte) 0xda, (byte) 0xf1, (byte) 0x3f};
     private static final IvParameterSpec IV_PARAMS_SPEC = new IvParameterSpec(IV_BYTES);
+    private static final int BLOCK_SIZE = 16;
+    private static final int DEFAULT_BATCH_PARALLEL_THRESHOLD = 64;
+    private static ExecutorService sDefaultBatchExecutor;
     private final KeyFactory mKeyFactory;
-    private Cipher sCipher;
+    private final CipherPool mLegacyCipherPool;
+    private final CipherPool mGcmCipherPool;
+    // created on first use, seeding it is a noticeable part of start up
+    private volatile SecureRandom mIvRandom;
+    private volatile CipherMode mCipherMode = CipherMode.LEGACY_CBC;
+    private volatile int mCompressionLevel = COMPRESSION_OFF;
+    private volatile AesKey mAesKey;
+    private volatile DataKeyCache mDataKeyCache = DataKeyCache.newInstance();
+    private volatile ExecutorService mBatchExecutor;
+    private volatile int mBatchParallelThreshold = DEFAULT_BATCH_PARALLEL_THRESHOLD;
 
-    private CryptoUtils(KeyFactory keyFactory) {
+    private CryptoUtils(KeyFactory keyFactory, int cipherPoolSize) {
         mKeyFactory = keyFactory;
+        mLegacyCipherPool = CipherPool.newInstance(CipherMode.LEGACY_CBC.getTransformation(),
+                cipherPoolSize);
+        mGcmCipherPool = CipherPool.newInstance(CipherMode.AES_GCM.getTransformation(),
+                cipherPoolSize);
+        mBatchExecutor = getDefaultBatchExecutor();
     }
 
     /**
-     * Applies PRNGFixes and creates new instance of {@link CryptoUtils}.
+     * Creates new instance of {@link CryptoUtils}. The instance can be used from as many threads
+     * as there are available processors without them waiting for each other. On a device
+     * {@link AndroidPlatform} applies PRNGFixes first.
      *
      * @return {@link CryptoUtils}
      */
     public static CryptoUtils newInstance(KeyFactory keyFactory) {
-        // apply PRNG fixes
-        PRNGFixes.apply();
-        return new CryptoUtils(keyFactory);
+        return newInstance(keyFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates new instance of {@link CryptoUtils}.
+     *
+     * @param keyFactory    source of the encryption key
+     * @param cipherPoolSize maximum number of concurrent encrypt/decrypt operations
+     * @return {@link CryptoUtils}
+     */
+    public static CryptoUtils newInstance(KeyFactory keyFactory, int cipherPoolSize) {
+        return new CryptoUtils(keyFactory, cipherPoolSize);
+    }
+
+    /**
+     * Sets the mode used to encrypt new data. Data encrypted before keeps being readable.
+     *
+     * @param cipherMode {@link CipherMode#AES_GCM} needs API level 19
+     */
+    public void setCipherMode(CipherMode cipherMode) {
+        if (cipherMode == null) {
+            throw new IllegalArgumentException("Cipher mode must not be null");
+        }
+        mCipherMode = cipherMode;
+    }
+
+    /**
+     * Returns the mode used to encrypt new data.
+     */
+    public CipherMode getCipherMode() {
+        return mCipherMode;
+    }
+
+    /**
+     * Sets the {@link java.util.zip.Deflater} level new data is compressed with before it is
+     * encrypted, by {@link #encryptData(byte[])}, the batch and the stream methods. Small inputs
+     * and inputs which look compressed or encrypted already are left as they are, so is the
+     * data whenever compressing it would not make it smaller. The methods writing to caller
+     * owned buffers never compress. Legacy data has no header to mark compressed data in, so
+     * {@link CipherMode#LEGACY_CBC} is never compressed either. <p>
+     * Decryption recognises compressed data whatever the level.
+     *
+     * @param level {@link #COMPRESSION_OFF} or 1 (fastest) to 9 (smallest)
+     */
+    public void setCompressionLevel(int level) {
+        if (level < COMPRESSION_OFF || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        mCompressionLevel = level;
+    }
+
+    /**
+     * Returns the compression level of new data, {@link #COMPRESSION_OFF} by default.
+     */
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /**
+     * Creates the ciphers of the given mode with the given provider from now on, see
+     * {@link ProviderSelector}. Data stays readable whichever provider wrote it.
+     *
+     * @param mode     cipher mode
+     * @param provider provider or null for the most preferred one
+     */
+    public void setCipherProvider(CipherMode mode, Provider provider) {
+        getPool(mode).setProvider(provider);
+    }
+
+    /**
+     * Sets how long new data in {@link CipherMode#AES_GCM_DATA_KEY} is encrypted with the same
+     * data key, see {@link DataKeyCache}. The data keys used so far are forgotten.
+     *
+     * @param maxMessages  number of messages encrypted with one data key
+     * @param maxBytes     number of plain bytes encrypted with one data key
+     * @param maxAgeMillis time after which a new data key is used
+     */
+    public void setDataKeyLimits(int maxMessages, long maxBytes, long maxAgeMillis) {
+        DataKeyCache previous = mDataKeyCache;
+        mDataKeyCache = DataKeyCache.newInstance(maxMessages, maxBytes, maxAgeMillis,
+                DataKeyCache.DEFAULT_MAX_UNWRAPPED_KEYS);
+        previous.clear();
+    }
+
+    /**
+     * Returns the data keys of {@link CipherMode#AES_GCM_DATA_KEY}, e.g. to read how often
+     * they are reused and what wrapping them costs.
+     *
+     * @return data key cache
+     */
+    public DataKeyCache getDataKeyCache() {
+        return mDataKeyCache;
+    }
+
+    /*
+     * Returns the source of the keys, null for instances created without one.
+     */
+    KeyFactory getKeyFactory() {
+        return mKeyFactory;
     }
 
     /**
@@ -62,36 +209,23 @@ public class CryptoUtils {
      * @return
      */
     public byte[] encryptData(byte[] inputBytes) {
-        Log.d(TAG, String.format("encryptData called with size:%d, data:%s", inputBytes.length,
-                HexStringHelper.hexEncode(inputBytes)));
-        Cipher cipher = getCipher();
-
-        if (cipher != null && mKeyFactory != null) {
-
-            try {
-                SecretKey keyNoPin = mKeyFactory.getKey();
-                Log.d(TAG,
-                        String.format("Using the key size:%d, key:%s", keyNoPin.getEncoded().length,
-                                HexStringHelper.hexEncode(keyNoPin.getEncoded()))
-                );
-                cipher.init(Cipher.ENCRYPT_MODE, keyNoPin, IV_PARAMS_SPEC);
-                byte[] outputBytes = cipher.doFinal(inputBytes);
-                Log.d(TAG, String.format("Encrypted data:%s",
-                        HexStringHelper.hexEncode(outputBytes)));
-                return outputBytes;
-            } catch (InvalidKeyException e) {
-                Log.d(TAG, "Impossible encrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (IllegalBlockSizeException e) {
-                Log.d(TAG, "Impossible encrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (BadPaddingException e) {
-                Log.d(TAG, "Impossible encrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (InvalidAlgorithmParameterException e) {
-                Log.d(TAG, "Impossible encrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            }
+        if (mKeyFactory == null) {
+            return null;
+        }
+        long start = Tracer.startTimer();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            byte[] outputBytes = encryptToArray(mCipherMode, lease, getKeyOrThrow(), inputBytes);
+            success = true;
+            Tracer.d(TAG, "Encrypted %d bytes into %d in %dus", inputBytes.length,
+                    outputBytes.length, Tracer.elapsedMicros(start));
+            return outputBytes;
+        } catch (GeneralSecurityException e) {
+            Tracer.w(TAG, "Impossible encrypt", e);
+            e.printStackTrace();
+        } finally {
+            lease.release(success);
         }
         return null;
     }
@@ -102,9 +236,9 @@ public class CryptoUtils {
      * @param inputText
      * @return
      */
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    @SuppressWarnings("NewApi")
     public byte[] encryptData(String inputText) {
-        if (!TextUtils.isEmpty(inputText)) {
+        if (inputText != null && inputText.length() > 0) {
             return encryptData(inputText.getBytes(DEFAULT_CHARSET));
         }
         return null;
@@ -117,58 +251,1364 @@ public class CryptoUtils {
      * @return
      */
     public byte[] decryptData(byte[] inputBytes) {
-        Log.d(TAG, String.format("decryptData called with size:%d, data:%s", inputBytes.length,
-                HexStringHelper.hexEncode(inputBytes)));
-        Cipher cipher = getCipher();
+        if (mKeyFactory == null) {
+            return null;
+        }
+        long start = Tracer.startTimer();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            byte[] outputBytes = decryptToArray(lease, getKeyOrThrow(), inputBytes);
+            success = true;
+            Tracer.d(TAG, "Decrypted %d bytes into %d in %dus", inputBytes.length,
+                    outputBytes.length, Tracer.elapsedMicros(start));
+            return outputBytes;
+        } catch (GeneralSecurityException e) {
+            Tracer.w(TAG, "Impossible decrypt", e);
+            e.printStackTrace();
+        } finally {
+            lease.release(success);
+        }
+        return null;
+    }
+
+    /**
+     * Decrypts a slice of {@link CipherMode#LEGACY_CBC} data without decrypting the rest. In
+     * CBC a block only depends on the ciphertext block before it, so only the blocks covering
+     * the slice and the one before them go through the cipher. The padding is only checked when
+     * the slice reaches the final block. <p>
+     * Like {@link #decryptData(byte[])}, the data is decrypted with the first key, the only one
+     * legacy data is ever encrypted with.
+     *
+     * @param inputBytes      legacy encrypted data
+     * @param plaintextOffset offset of the slice in the plain data
+     * @param length          length of the slice
+     * @return the same bytes as the slice of {@link #decryptData(byte[])}, fewer if the slice
+     * goes past the end of the plain data, or null if the data could not be decrypted
+     * @throws IllegalArgumentException if the data is in an envelope mode, which authenticates
+     *                                  the whole message and has to be decrypted in full
+     */
+    public byte[] decryptRange(byte[] inputBytes, int plaintextOffset, int length) {
+        if (plaintextOffset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range");
+        }
+        if (CiphertextEnvelope.readMode(inputBytes, 0, inputBytes.length)
+                != CipherMode.LEGACY_CBC) {
+            throw new IllegalArgumentException("Only legacy CBC data can be read in part");
+        }
+        if (mKeyFactory == null) {
+            return null;
+        }
+        long start = Tracer.startTimer();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            byte[] outputBytes = decryptLegacyRange(lease, getKeyOrThrow(), inputBytes,
+                    plaintextOffset, length);
+            success = true;
+            Tracer.d(TAG, "Decrypted %d of %d bytes in %dus", outputBytes.length,
+                    inputBytes.length, Tracer.elapsedMicros(start));
+            return outputBytes;
+        } catch (GeneralSecurityException e) {
+            Tracer.w(TAG, "Impossible decrypt range", e);
+            e.printStackTrace();
+        } finally {
+            lease.release(success);
+        }
+        return null;
+    }
 
-        if (cipher != null && mKeyFactory != null) {
+    private byte[] decryptLegacyRange(CipherLease lease, SecretKey key, byte[] input,
+            int offset, int length) throws GeneralSecurityException {
+        if (input.length == 0 || input.length % BLOCK_SIZE != 0) {
+            throw new IllegalBlockSizeException("Input is not a whole number of blocks");
+        }
+        int blocks = input.length / BLOCK_SIZE;
+        int firstBlock = offset / BLOCK_SIZE;
+        if (length == 0 || firstBlock >= blocks) {
+            return new byte[0];
+        }
+        int lastBlock = (int) Math.min(blocks - 1, ((long) offset + length - 1) / BLOCK_SIZE);
+        // the block before the slice stands in for the IV, its own output is dropped
+        int inputStart = Math.max(0, firstBlock - 1) * BLOCK_SIZE;
+        int skip = offset - inputStart;
+        byte[] output;
+        if (lastBlock == blocks - 1) {
+            output = lease.init(CipherMode.LEGACY_CBC, Cipher.DECRYPT_MODE, key,
+                    IV_PARAMS_SPEC).doFinal(input, inputStart, input.length - inputStart);
+        } else {
+            // a padding cipher holds the last block back until doFinal, so it gets one more
+            int inputEnd = (lastBlock + 2) * BLOCK_SIZE;
+            output = lease.init(CipherMode.LEGACY_CBC, Cipher.DECRYPT_MODE, key,
+                    IV_PARAMS_SPEC).update(input, inputStart, inputEnd - inputStart);
+            // the cipher is left in the middle of the data, the next user has to start over
+            lease.invalidate();
+        }
+        int count = output == null ? 0 : Math.max(0, Math.min(length, output.length - skip));
+        byte[] outputBytes = new byte[count];
+        if (count > 0) {
+            System.arraycopy(output, skip, outputBytes, 0, count);
+        }
+        if (output != null) {
+            Arrays.fill(output, (byte) 0);
+        }
+        return outputBytes;
+    }
+
+    /**
+     * Re-encrypts data with the current key and cipher mode, e.g. after
+     * {@link KeyFactory#rotateKey()}. Envelope data already encrypted this way is left alone.
+     * Data in {@link CipherMode#AES_GCM_DATA_KEY} only gets its data key wrapped with the
+     * current key, the ciphertext is copied as it is. Legacy data does not tell its key, so it
+     * is always re-encrypted, after decryption with the first key it was written with.
+     *
+     * @param input encrypted data
+     * @return re-encrypted data or null if the data is up to date
+     * @throws GeneralSecurityException if the data could not be decrypted with any saved key
+     */
+    public byte[] reEncrypt(byte[] input) throws GeneralSecurityException {
+        CipherMode mode = mCipherMode;
+        SecretKey key = getKeyOrThrow();
+        CipherMode inputMode = CiphertextEnvelope.readMode(input, 0, input.length);
+        if (inputMode == mode && mode != CipherMode.LEGACY_CBC
+                && CiphertextEnvelope.readKeySlot(input, 0) == CiphertextEnvelope.toKeySlot(
+                mKeyFactory.getKeyVersion(key))) {
+            return null;
+        }
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            if (inputMode == mode && mode == CipherMode.AES_GCM_DATA_KEY) {
+                byte[] outputBytes = wrapDataKeyAgain(lease, key, input);
+                success = true;
+                return outputBytes;
+            }
+            byte[] plainBytes = decryptToArray(lease, key, input);
+            byte[] outputBytes = encryptToArray(mode, lease, key, plainBytes);
+            Arrays.fill(plainBytes, (byte) 0);
+            success = true;
+            return outputBytes;
+        } finally {
+            lease.release(success);
+        }
+    }
+
+    /**
+     * Returns the number of bytes an output buffer needs to hold the result of encrypting or
+     * decrypting the given number of bytes with {@link #encrypt(ByteBuffer, ByteBuffer)},
+     * {@link #decrypt(ByteBuffer, ByteBuffer)} and their array variants. For decryption this is
+     * an upper bound, the padding is only known once the data is decrypted, unless the data was
+     * compressed, see {@link #setCompressionLevel(int)}. Decrypting compressed data into a
+     * buffer which is too small throws {@link ShortBufferException} telling the size needed.
+     *
+     * @param opmode      {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param inputLength number of input bytes
+     * @return required output size
+     */
+    public int getOutputSize(int opmode, int inputLength) {
+        return getOutputSize(mCipherMode, opmode, inputLength);
+    }
+
+    private static int getOutputSize(CipherMode mode, int opmode, int inputLength) {
+        if (opmode != Cipher.ENCRYPT_MODE) {
+            return inputLength;
+        }
+        if (mode == CipherMode.LEGACY_CBC) {
+            // PKCS#5 always adds between 1 and a full block of padding
+            return (inputLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+        }
+        return inputLength + CiphertextEnvelope.getOverhead(mode);
+    }
+
+    /**
+     * Encrypts the remaining bytes of the source buffer into the destination buffer. Both
+     * buffers may be direct. Apart from the IV nothing is allocated by this class, so a caller
+     * reusing its buffers gets an almost garbage free encryption path.
+     *
+     * @param src plain data, its position is moved to the limit
+     * @param dst receives encrypted data, needs {@link #getOutputSize(int, int)} bytes remaining
+     * @return number of bytes written to the destination buffer
+     * @throws ShortBufferException     if the destination buffer is too small
+     * @throws GeneralSecurityException if the data could not be encrypted
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        CipherMode mode = mCipherMode;
+        checkOutputSize(getOutputSize(mode, Cipher.ENCRYPT_MODE, src.remaining()),
+                dst.remaining());
+        SecretKey key = getKeyOrThrow();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            int count = encryptInto(mode, lease, key, src, dst);
+            success = true;
+            return count;
+        } finally {
+            lease.release(success);
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of the source buffer into the destination buffer.
+     * Counterpart of {@link #encrypt(ByteBuffer, ByteBuffer)}.
+     *
+     * @param src encrypted data, its position is moved to the limit
+     * @param dst receives decrypted data, needs {@link #getOutputSize(int, int)} bytes remaining
+     * @return number of bytes written to the destination buffer
+     * @throws ShortBufferException     if the destination buffer is too small
+     * @throws GeneralSecurityException if the data could not be decrypted
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        checkOutputSize(src.remaining(), dst.remaining());
+        SecretKey key = getKeyOrThrow();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            int count = decryptInto(lease, key, src, dst);
+            success = true;
+            return count;
+        } finally {
+            lease.release(success);
+        }
+    }
+
+    /**
+     * Encrypts part of the input array into a caller owned output array.
+     *
+     * @return number of bytes written to the output array
+     * @throws ShortBufferException     if the output array is too small
+     * @throws GeneralSecurityException if the data could not be encrypted
+     * @see #encrypt(ByteBuffer, ByteBuffer)
+     */
+    public int encrypt(byte[] input, int inputOffset, int inputLength, byte[] output,
+            int outputOffset) throws GeneralSecurityException {
+        CipherMode mode = mCipherMode;
+        checkOutputSize(getOutputSize(mode, Cipher.ENCRYPT_MODE, inputLength),
+                output.length - outputOffset);
+        SecretKey key = getKeyOrThrow();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            int count = encryptInto(mode, lease, key, input, inputOffset, inputLength, output,
+                    outputOffset, 0);
+            success = true;
+            return count;
+        } finally {
+            lease.release(success);
+        }
+    }
+
+    /**
+     * Decrypts part of the input array into a caller owned output array.
+     *
+     * @return number of bytes written to the output array
+     * @throws ShortBufferException     if the output array is too small
+     * @throws GeneralSecurityException if the data could not be decrypted
+     * @see #decrypt(ByteBuffer, ByteBuffer)
+     */
+    public int decrypt(byte[] input, int inputOffset, int inputLength, byte[] output,
+            int outputOffset) throws GeneralSecurityException {
+        checkOutputSize(inputLength, output.length - outputOffset);
+        SecretKey key = getKeyOrThrow();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            int count = decryptInto(lease, key, input, inputOffset, inputLength, output,
+                    outputOffset);
+            success = true;
+            return count;
+        } finally {
+            lease.release(success);
+        }
+    }
+
+    /*
+     * Checked up front, providers are not consistent about the buffer state afterwards.
+     */
+    private static void checkOutputSize(int required, int available)
+            throws ShortBufferException {
+        if (available < required) {
+            throw new ShortBufferException("Output needs " + required + " bytes");
+        }
+    }
+
+    private byte[] encryptToArray(CipherMode mode, CipherLease lease, SecretKey key,
+            byte[] input) throws GeneralSecurityException {
+        if (mode == CipherMode.LEGACY_CBC) {
+            return lease.init(mode, Cipher.ENCRYPT_MODE, key, IV_PARAMS_SPEC).doFinal(input);
+        }
+        int level = mCompressionLevel;
+        if (level != COMPRESSION_OFF
+                && Compression.isWorthCompressing(input, 0, input.length, true)) {
+            byte[] compressed = Compression.deflate(input, 0, input.length, level);
+            if (compressed != null) {
+                byte[] output = new byte[getOutputSize(mode, Cipher.ENCRYPT_MODE,
+                        compressed.length)];
+                encryptInto(mode, lease, key, compressed, 0, compressed.length, output, 0,
+                        CiphertextEnvelope.FLAG_DEFLATE);
+                Arrays.fill(compressed, (byte) 0);
+                return output;
+            }
+        }
+        // the envelope size is exact, there is no padding
+        byte[] output = new byte[getOutputSize(mode, Cipher.ENCRYPT_MODE, input.length)];
+        encryptInto(mode, lease, key, input, 0, input.length, output, 0, 0);
+        return output;
+    }
+
+    private int encryptInto(CipherMode mode, CipherLease lease, SecretKey key, byte[] input,
+            int inputOffset, int inputLength, byte[] output, int outputOffset, int flags)
+            throws GeneralSecurityException {
+        if (mode == CipherMode.LEGACY_CBC) {
+            return lease.init(mode, Cipher.ENCRYPT_MODE, key, IV_PARAMS_SPEC)
+                    .doFinal(input, inputOffset, inputLength, output, outputOffset);
+        }
+        byte[] iv = newIv();
+        DataKeyCache cache = mDataKeyCache;
+        DataKeyCache.DataKey dataKey = mode == CipherMode.AES_GCM_DATA_KEY
+                ? reserveDataKey(cache, lease, key, inputLength) : null;
+        try {
+            int prefixSize = writePrefix(mode, key, dataKey, iv, flags, output, outputOffset);
+            Cipher cipher = authenticateHeader(mode, initEnvelopeCipher(mode, lease,
+                    Cipher.ENCRYPT_MODE, key, dataKey, iv, 0), output, outputOffset);
+            return prefixSize + cipher.doFinal(input, inputOffset, inputLength, output,
+                    outputOffset + prefixSize);
+        } finally {
+            cache.release(dataKey);
+        }
+    }
+
+    private int encryptInto(CipherMode mode, CipherLease lease, SecretKey key, ByteBuffer src,
+            ByteBuffer dst) throws GeneralSecurityException {
+        if (mode == CipherMode.LEGACY_CBC) {
+            return lease.init(mode, Cipher.ENCRYPT_MODE, key, IV_PARAMS_SPEC).doFinal(src, dst);
+        }
+        byte[] iv = newIv();
+        if (mode == CipherMode.AES_GCM_DATA_KEY) {
+            DataKeyCache cache = mDataKeyCache;
+            DataKeyCache.DataKey dataKey = reserveDataKey(cache, lease, key, src.remaining());
             try {
-                SecretKey keyNoPin = mKeyFactory.getKey();
-                Log.d(TAG,
-                        String.format("Using the key size:%d, key:%s", keyNoPin.getEncoded().length,
-                                HexStringHelper.hexEncode(keyNoPin.getEncoded()))
-                );
-                cipher.init(Cipher.DECRYPT_MODE, keyNoPin, IV_PARAMS_SPEC);
-                return cipher.doFinal(inputBytes);
-            } catch (InvalidKeyException e) {
-                Log.d(TAG, "Impossible decrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (IllegalBlockSizeException e) {
-                Log.d(TAG, "Impossible decrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (BadPaddingException e) {
-                Log.d(TAG, "Impossible decrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (InvalidAlgorithmParameterException e) {
-                Log.d(TAG, "Impossible decrypt," + e.getClass().getSimpleName());
-                e.printStackTrace();
+                byte[] prefix = new byte[CiphertextEnvelope.getPrefixSize(mode)];
+                writePrefix(mode, key, dataKey, iv, 0, prefix, 0);
+                dst.put(prefix);
+                Cipher cipher = authenticateHeader(mode, initEnvelopeCipher(mode, lease,
+                        Cipher.ENCRYPT_MODE, key, dataKey, iv, 0), prefix, 0);
+                return prefix.length + cipher.doFinal(src, dst);
+            } finally {
+                cache.release(dataKey);
             }
         }
-        return null;
+        int prefixSize = CiphertextEnvelope.writeHeader(dst, mode,
+                CiphertextEnvelope.getKeySlotFlags(mKeyFactory.getKeyVersion(key)));
+        dst.put(iv);
+        prefixSize += iv.length;
+        Cipher cipher = initEnvelopeCipher(mode, lease, Cipher.ENCRYPT_MODE, key, null, iv, 0);
+        return prefixSize + cipher.doFinal(src, dst);
+    }
+
+    private byte[] decryptToArray(CipherLease lease, SecretKey key, byte[] input)
+            throws GeneralSecurityException {
+        CipherMode mode = CiphertextEnvelope.readMode(input, 0, input.length);
+        if (mode != CipherMode.LEGACY_CBC) {
+            return decryptEnvelopeToArray(mode, lease, key, input);
+        }
+        return lease.init(mode, Cipher.DECRYPT_MODE, key, IV_PARAMS_SPEC).doFinal(input);
+    }
+
+    @SuppressWarnings("NewApi")
+    private byte[] decryptEnvelopeToArray(CipherMode mode, CipherLease lease, SecretKey key,
+            byte[] input) throws GeneralSecurityException {
+        int prefixSize = CiphertextEnvelope.getPrefixSize(mode);
+        DataKeyCache cache = mDataKeyCache;
+        DataKeyCache.DataKey dataKey = null;
+        byte[] output;
+        try {
+            SecretKey envelopeKey = getEnvelopeKey(key,
+                    CiphertextEnvelope.readKeySlot(input, 0));
+            if (mode == CipherMode.AES_GCM_DATA_KEY) {
+                dataKey = reserveDataKey(cache, lease, envelopeKey, input, 0);
+            }
+            output = authenticateHeader(mode, initEnvelopeCipher(mode, lease,
+                    Cipher.DECRYPT_MODE, envelopeKey, dataKey, input,
+                    prefixSize - CiphertextEnvelope.IV_SIZE), input, 0).doFinal(input,
+                    prefixSize, input.length - prefixSize);
+        } finally {
+            cache.release(dataKey);
+        }
+        if (CiphertextEnvelope.isCompressed(input, 0)) {
+            return inflate(output, output.length);
+        }
+        return output;
+    }
+
+    private int decryptInto(CipherLease lease, SecretKey key, byte[] input, int inputOffset,
+            int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        CipherMode mode = CiphertextEnvelope.readMode(input, inputOffset, inputLength);
+        if (mode != CipherMode.LEGACY_CBC) {
+            return decryptEnvelopeInto(mode, lease, key, input, inputOffset, inputLength, output,
+                    outputOffset);
+        }
+        return lease.init(mode, Cipher.DECRYPT_MODE, key, IV_PARAMS_SPEC)
+                .doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    @SuppressWarnings("NewApi")
+    private int decryptEnvelopeInto(CipherMode mode, CipherLease lease, SecretKey key,
+            byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        int prefixSize = CiphertextEnvelope.getPrefixSize(mode);
+        DataKeyCache cache = mDataKeyCache;
+        DataKeyCache.DataKey dataKey = null;
+        try {
+            SecretKey envelopeKey = getEnvelopeKey(key,
+                    CiphertextEnvelope.readKeySlot(input, inputOffset));
+            if (mode == CipherMode.AES_GCM_DATA_KEY) {
+                dataKey = reserveDataKey(cache, lease, envelopeKey, input, inputOffset);
+            }
+            Cipher cipher = authenticateHeader(mode, initEnvelopeCipher(mode, lease,
+                    Cipher.DECRYPT_MODE, envelopeKey, dataKey, input,
+                    inputOffset + prefixSize - CiphertextEnvelope.IV_SIZE), input, inputOffset);
+            if (CiphertextEnvelope.isCompressed(input, inputOffset)) {
+                byte[] compressed = cipher.doFinal(input, inputOffset + prefixSize,
+                        inputLength - prefixSize);
+                return copyInflated(inflate(compressed, compressed.length), output, outputOffset);
+            }
+            return cipher.doFinal(input, inputOffset + prefixSize, inputLength - prefixSize,
+                    output, outputOffset);
+        } finally {
+            cache.release(dataKey);
+        }
+    }
+
+    private int decryptInto(CipherLease lease, SecretKey key, ByteBuffer src, ByteBuffer dst)
+            throws GeneralSecurityException {
+        CipherMode mode = CiphertextEnvelope.readMode(src);
+        if (mode != CipherMode.LEGACY_CBC) {
+            return decryptEnvelopeInto(mode, lease, key, src, dst);
+        }
+        return lease.init(mode, Cipher.DECRYPT_MODE, key, IV_PARAMS_SPEC).doFinal(src, dst);
+    }
+
+    @SuppressWarnings("NewApi")
+    private int decryptEnvelopeInto(CipherMode mode, CipherLease lease, SecretKey key,
+            ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        SecretKey envelopeKey = getEnvelopeKey(key, CiphertextEnvelope.readKeySlot(src));
+        boolean compressed = CiphertextEnvelope.isCompressed(src);
+        byte[] prefix = new byte[CiphertextEnvelope.getPrefixSize(mode)];
+        src.get(prefix);
+        DataKeyCache cache = mDataKeyCache;
+        DataKeyCache.DataKey dataKey = null;
+        try {
+            if (mode == CipherMode.AES_GCM_DATA_KEY) {
+                dataKey = reserveDataKey(cache, lease, envelopeKey, prefix, 0);
+            }
+            Cipher cipher = authenticateHeader(mode, initEnvelopeCipher(mode, lease,
+                    Cipher.DECRYPT_MODE, envelopeKey, dataKey, prefix,
+                    prefix.length - CiphertextEnvelope.IV_SIZE), prefix, 0);
+            if (compressed) {
+                ByteBuffer deflated = ByteBuffer.allocate(cipher.getOutputSize(src.remaining()));
+                cipher.doFinal(src, deflated);
+                byte[] inflated = inflate(deflated.array(), deflated.position());
+                if (inflated.length > dst.remaining()) {
+                    Arrays.fill(inflated, (byte) 0);
+                    throw new ShortBufferException("Output buffer too small, "
+                            + inflated.length + " bytes needed");
+                }
+                dst.put(inflated);
+                Arrays.fill(inflated, (byte) 0);
+                return inflated.length;
+            }
+            return cipher.doFinal(src, dst);
+        } finally {
+            cache.release(dataKey);
+        }
+    }
+
+    /*
+     * Compressed data authenticates its header, so the flag can be neither cleared nor set
+     * without failing the tag. Data without the flag keeps the format it always had. Data with
+     * a data key always authenticates its header and key id, but not the key slot, which
+     * changes whenever the data key is wrapped again.
+     */
+    @SuppressWarnings("NewApi")
+    private static Cipher authenticateHeader(CipherMode mode, Cipher cipher, byte[] header,
+            int offset) {
+        if (mode == CipherMode.AES_GCM_DATA_KEY) {
+            cipher.updateAAD(CiphertextEnvelope.getDataKeyAad(header, offset));
+        } else if (CiphertextEnvelope.isCompressed(header, offset)) {
+            cipher.updateAAD(header, offset, CiphertextEnvelope.HEADER_SIZE);
+        }
+        return cipher;
+    }
+
+    /*
+     * Decompresses decrypted data and clears it.
+     */
+    private static byte[] inflate(byte[] compressed, int length)
+            throws GeneralSecurityException {
+        try {
+            return Compression.inflate(compressed, 0, length);
+        } catch (DataFormatException e) {
+            throw new GeneralSecurityException("Decrypted data is not valid compressed data", e);
+        } finally {
+            Arrays.fill(compressed, (byte) 0);
+        }
+    }
+
+    private static int copyInflated(byte[] inflated, byte[] output, int outputOffset)
+            throws ShortBufferException {
+        try {
+            if (inflated.length > output.length - outputOffset) {
+                throw new ShortBufferException("Output buffer too small, " + inflated.length
+                        + " bytes needed");
+            }
+            System.arraycopy(inflated, 0, output, outputOffset, inflated.length);
+            return inflated.length;
+        } finally {
+            Arrays.fill(inflated, (byte) 0);
+        }
+    }
+
+    /*
+     * Initialises a cipher of an envelope mode with the data key if there is one, otherwise
+     * with the raw AES key, and the IV found at the given offset.
+     */
+    @SuppressWarnings("NewApi")
+    private Cipher initEnvelopeCipher(CipherMode mode, CipherLease lease, int opmode,
+            SecretKey key, DataKeyCache.DataKey dataKey, byte[] iv, int ivOffset)
+            throws GeneralSecurityException {
+        return lease.init(mode, opmode, dataKey != null ? dataKey.getKey() : getAesKey(key),
+                new GCMParameterSpec(CiphertextEnvelope.TAG_BITS, iv, ivOffset,
+                        CiphertextEnvelope.IV_SIZE));
+    }
+
+    /*
+     * Writes the header, the key block of the data key if there is one and the IV. Returns
+     * number of bytes written.
+     */
+    private int writePrefix(CipherMode mode, SecretKey key, DataKeyCache.DataKey dataKey,
+            byte[] iv, int flags, byte[] output, int offset) {
+        int prefixSize = CiphertextEnvelope.writeHeader(output, offset, mode,
+                CiphertextEnvelope.getKeySlotFlags(mKeyFactory.getKeyVersion(key)) | flags);
+        if (dataKey != null) {
+            prefixSize += dataKey.writeKeyBlock(output, offset + prefixSize);
+        }
+        System.arraycopy(iv, 0, output, offset + prefixSize, iv.length);
+        return prefixSize + iv.length;
+    }
+
+    /*
+     * Returns the data key a message of the given length is encrypted with. A new one is
+     * generated and wrapped with the key whenever the current one has reached a limit.
+     */
+    private DataKeyCache.DataKey reserveDataKey(DataKeyCache cache, CipherLease lease,
+            SecretKey key, long length) throws GeneralSecurityException {
+        DataKeyCache.DataKey dataKey = cache.reserve(key, length);
+        if (dataKey == null) {
+            dataKey = cache.setCurrentKey(newDataKey(cache, lease, key), length);
+        }
+        return dataKey;
+    }
+
+    /*
+     * Returns the data key of data in AES_GCM_DATA_KEY, unwrapped with the given key unless the
+     * cache holds it already.
+     */
+    private DataKeyCache.DataKey reserveDataKey(DataKeyCache cache, CipherLease lease,
+            SecretKey envelopeKey, byte[] input, int offset) throws GeneralSecurityException {
+        int keyBlockOffset = offset + CiphertextEnvelope.HEADER_SIZE;
+        DataKeyCache.DataKey dataKey = cache.reserve(input, keyBlockOffset);
+        if (dataKey != null) {
+            return dataKey;
+        }
+        long start = System.nanoTime();
+        byte[] keyBytes = unwrapKeyBytes(lease, envelopeKey, input, keyBlockOffset);
+        byte[] keyBlock = new byte[CiphertextEnvelope.KEY_BLOCK_SIZE];
+        System.arraycopy(input, keyBlockOffset, keyBlock, 0, keyBlock.length);
+        try {
+            return cache.add(new DataKeyCache.DataKey(CiphertextEnvelope.readKeyId(keyBlock, 0),
+                    KeyMaterial.newInstance(keyBytes, 0, keyBytes.length, AES_ALGO), keyBlock,
+                    null));
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+            cache.recordUnwrap(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Generates a data key with a random id and wraps it with the key.
+     */
+    private DataKeyCache.DataKey newDataKey(DataKeyCache cache, CipherLease lease,
+            SecretKey key) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        byte[] keyBytes = new byte[CiphertextEnvelope.DATA_KEY_SIZE];
+        byte[] keyBlock = new byte[CiphertextEnvelope.KEY_BLOCK_SIZE];
+        SecureRandom random = getIvRandom();
+        random.nextBytes(keyBytes);
+        random.nextBytes(keyBlock);
+        try {
+            wrapKeyBytes(lease, key, keyBytes, keyBlock, 0);
+            return new DataKeyCache.DataKey(CiphertextEnvelope.readKeyId(keyBlock, 0),
+                    KeyMaterial.newInstance(keyBytes, 0, keyBytes.length, AES_ALGO), keyBlock,
+                    key);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+            cache.recordWrap(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Encrypts data key bytes into the key block at the given offset, after its key id, which
+     * is authenticated with them.
+     */
+    @SuppressWarnings("NewApi")
+    private void wrapKeyBytes(CipherLease lease, SecretKey key, byte[] keyBytes,
+            byte[] keyBlock, int offset) throws GeneralSecurityException {
+        int ivOffset = offset + CiphertextEnvelope.KEY_ID_SIZE;
+        byte[] iv = newIv();
+        System.arraycopy(iv, 0, keyBlock, ivOffset, iv.length);
+        Cipher cipher = lease.init(CipherMode.AES_GCM_DATA_KEY, Cipher.ENCRYPT_MODE,
+                getAesKey(key), new GCMParameterSpec(CiphertextEnvelope.TAG_BITS, iv));
+        cipher.updateAAD(keyBlock, offset, CiphertextEnvelope.KEY_ID_SIZE);
+        cipher.doFinal(keyBytes, 0, keyBytes.length, keyBlock,
+                ivOffset + CiphertextEnvelope.IV_SIZE);
+    }
+
+    /*
+     * Decrypts the data key bytes of the key block at the given offset. The caller wipes them.
+     */
+    @SuppressWarnings("NewApi")
+    private byte[] unwrapKeyBytes(CipherLease lease, SecretKey key, byte[] keyBlock,
+            int offset) throws GeneralSecurityException {
+        int ivOffset = offset + CiphertextEnvelope.KEY_ID_SIZE;
+        Cipher cipher = lease.init(CipherMode.AES_GCM_DATA_KEY, Cipher.DECRYPT_MODE,
+                getAesKey(key), new GCMParameterSpec(CiphertextEnvelope.TAG_BITS, keyBlock,
+                        ivOffset, CiphertextEnvelope.IV_SIZE));
+        cipher.updateAAD(keyBlock, offset, CiphertextEnvelope.KEY_ID_SIZE);
+        return cipher.doFinal(keyBlock, ivOffset + CiphertextEnvelope.IV_SIZE,
+                CiphertextEnvelope.DATA_KEY_SIZE + CiphertextEnvelope.TAG_SIZE);
+    }
+
+    /*
+     * Copies data in AES_GCM_DATA_KEY with its data key wrapped with the current key instead
+     * of the key of its slot. The ciphertext does not authenticate the slot or the wrapped key.
+     */
+    private byte[] wrapDataKeyAgain(CipherLease lease, SecretKey key, byte[] input)
+            throws GeneralSecurityException {
+        DataKeyCache cache = mDataKeyCache;
+        long start = System.nanoTime();
+        byte[] keyBytes = unwrapKeyBytes(lease, getEnvelopeKey(key,
+                CiphertextEnvelope.readKeySlot(input, 0)), input, CiphertextEnvelope.HEADER_SIZE);
+        cache.recordUnwrap(System.nanoTime() - start);
+        start = System.nanoTime();
+        try {
+            byte[] output = input.clone();
+            CiphertextEnvelope.writeKeySlot(output, 0, mKeyFactory.getKeyVersion(key));
+            wrapKeyBytes(lease, key, keyBytes, output, CiphertextEnvelope.HEADER_SIZE);
+            cache.recordWrap(System.nanoTime() - start);
+            return output;
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    private byte[] newIv() {
+        byte[] iv = new byte[CiphertextEnvelope.IV_SIZE];
+        getIvRandom().nextBytes(iv);
+        return iv;
+    }
+
+    private SecureRandom getIvRandom() {
+        SecureRandom ivRandom = mIvRandom;
+        if (ivRandom == null) {
+            synchronized (this) {
+                ivRandom = mIvRandom;
+                if (ivRandom == null) {
+                    ivRandom = new SecureRandom();
+                    mIvRandom = ivRandom;
+                }
+            }
+        }
+        return ivRandom;
+    }
+
+    /*
+     * The legacy cipher derives its AES key from the key bytes on every init, the envelope modes
+     * use the bytes directly. The converted key is kept until the key factory hands out another
+     * key.
+     */
+    private SecretKey getAesKey(SecretKey key) throws InvalidKeyException {
+        AesKey aesKey = mAesKey;
+        if (aesKey == null || aesKey.mSourceKey != key) {
+            byte[] encoded = key.getEncoded();
+            if (encoded == null) {
+                throw new InvalidKeyException("Key can not be used as an AES key");
+            }
+            aesKey = new AesKey(key, new SecretKeySpec(encoded, AES_ALGO));
+            Arrays.fill(encoded, (byte) 0);
+            mAesKey = aesKey;
+        }
+        return aesKey.mAesKey;
+    }
+
+    /*
+     * Returns the key of the slot found in an envelope header. Only the last KEY_SLOTS versions
+     * can be told apart, data encrypted with older keys has to be re-encrypted before that.
+     */
+    private SecretKey getEnvelopeKey(SecretKey key, int keySlot) {
+        int version = mKeyFactory.getKeyVersion(key);
+        if (version <= 1 || CiphertextEnvelope.toKeySlot(version) == keySlot) {
+            return key;
+        }
+        if (keySlot == 0) {
+            // written before keys could be rotated, so with the first one
+            SecretKey firstKey = mKeyFactory.getKey(1);
+            return firstKey == null ? key : firstKey;
+        }
+        int oldestVersion = Math.max(1, version - CiphertextEnvelope.KEY_SLOTS + 1);
+        for (int olderVersion = version - 1; olderVersion >= oldestVersion; olderVersion--) {
+            if (CiphertextEnvelope.toKeySlot(olderVersion) == keySlot) {
+                SecretKey olderKey = mKeyFactory.getKey(olderVersion);
+                return olderKey == null ? key : olderKey;
+            }
+        }
+        return key;
+    }
+
+    private SecretKey getKeyOrThrow() throws InvalidKeyException {
+        SecretKey key = mKeyFactory == null ? null : mKeyFactory.getKey();
+        if (key == null) {
+            throw new InvalidKeyException("No encryption key available");
+        }
+        return key;
+    }
+
+    private CipherPool getPool(CipherMode mode) {
+        return mode == CipherMode.LEGACY_CBC ? mLegacyCipherPool : mGcmCipherPool;
     }
 
     /**
-     * Returns Cipher instance.
+     * Encrypts many payloads at once. The key is read once and every worker initialises one
+     * cipher for its whole share of the batch. Batches larger than the parallel threshold are
+     * split across the batch executor, up to the size of the cipher pool.
      *
-     * @return
+     * @param inputs payloads to encrypt
+     * @return encrypted payloads in input order, with the failure of every item which could not
+     * be encrypted
+     */
+    public BatchResult encryptAll(List<byte[]> inputs) {
+        return transformAll(Cipher.ENCRYPT_MODE, inputs.toArray(new byte[inputs.size()][]));
+    }
+
+    /**
+     * Array variant of {@link #encryptAll(List)}.
+     */
+    public BatchResult encryptAll(byte[]... inputs) {
+        return transformAll(Cipher.ENCRYPT_MODE, inputs);
+    }
+
+    /**
+     * Decrypts many payloads at once. Counterpart of {@link #encryptAll(List)}.
+     *
+     * @param inputs payloads to decrypt
+     * @return decrypted payloads in input order, with the failure of every item which could not
+     * be decrypted
+     */
+    public BatchResult decryptAll(List<byte[]> inputs) {
+        return transformAll(Cipher.DECRYPT_MODE, inputs.toArray(new byte[inputs.size()][]));
+    }
+
+    /**
+     * Array variant of {@link #decryptAll(List)}.
+     */
+    public BatchResult decryptAll(byte[]... inputs) {
+        return transformAll(Cipher.DECRYPT_MODE, inputs);
+    }
+
+    /**
+     * Sets the executor running parallel parts of batches. By default a shared pool with one
+     * thread per processor is used.
+     *
+     * @param executor executor, null processes every batch on the calling thread
+     */
+    public void setBatchExecutor(ExecutorService executor) {
+        mBatchExecutor = executor;
+    }
+
+    /**
+     * Sets the number of items a batch needs per worker before it is split. Splitting small
+     * batches costs more in hand-over than the parallel work saves.
+     *
+     * @param parallelThreshold minimum number of items per worker
+     */
+    public void setBatchParallelThreshold(int parallelThreshold) {
+        if (parallelThreshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        mBatchParallelThreshold = parallelThreshold;
+    }
+
+    private BatchResult transformAll(final int opmode, final byte[][] inputs) {
+        long start = Tracer.startTimer();
+        final BatchResult result = new BatchResult(inputs.length);
+        final CipherMode mode = mCipherMode;
+        final SecretKey key;
+        try {
+            key = getKeyOrThrow();
+        } catch (InvalidKeyException e) {
+            failItems(result, 0, inputs.length, e);
+            return result;
+        }
+
+        ExecutorService executor = mBatchExecutor;
+        int workers = Math.min(getPool(mode).getMaxSize(),
+                inputs.length / mBatchParallelThreshold);
+        if (executor == null || workers <= 1) {
+            transformSlice(opmode, mode, key, inputs, 0, inputs.length, result);
+        } else {
+            int sliceSize = (inputs.length + workers - 1) / workers;
+            List<Future<?>> futures = new ArrayList<Future<?>>(workers - 1);
+            // the calling thread takes the first slice itself
+            for (int from = sliceSize; from < inputs.length; from += sliceSize) {
+                final int sliceFrom = from;
+                final int sliceTo = Math.min(from + sliceSize, inputs.length);
+                futures.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        transformSlice(opmode, mode, key, inputs, sliceFrom, sliceTo, result);
+                    }
+                }));
+            }
+            transformSlice(opmode, mode, key, inputs, 0, sliceSize, result);
+            awaitSlices(futures, result, sliceSize);
+        }
+        Tracer.d(TAG, "Batch mode:%d, items:%d in %dus", opmode, inputs.length,
+                Tracer.elapsedMicros(start));
+        return result;
+    }
+
+    /*
+     * Processes a part of the batch with the same ciphers. The legacy cipher is initialised
+     * once, envelope ciphers once per item as every item gets its own IV.
+     */
+    private void transformSlice(int opmode, CipherMode mode, SecretKey key, byte[][] inputs,
+            int from, int to, BatchResult result) {
+        CipherLease lease = new CipherLease();
+        try {
+            for (int i = from; i < to; i++) {
+                if (inputs[i] == null) {
+                    result.setFailure(i, new IllegalArgumentException("Null payload"));
+                    continue;
+                }
+                try {
+                    if (opmode == Cipher.ENCRYPT_MODE) {
+                        result.setResult(i, encryptToArray(mode, lease, key, inputs[i]));
+                    } else {
+                        result.setResult(i, decryptToArray(lease, key, inputs[i]));
+                    }
+                } catch (NoSuchAlgorithmException e) {
+                    // no cipher available, the remaining items would fail the same way
+                    failItems(result, i, to, e);
+                    return;
+                } catch (GeneralSecurityException e) {
+                    result.setFailure(i, e);
+                    // the failed item may have left the cipher in an unknown state
+                    lease.invalidate();
+                }
+            }
+        } finally {
+            lease.release(true);
+        }
+    }
+
+    private static void awaitSlices(List<Future<?>> futures, BatchResult result, int sliceSize) {
+        for (int slice = 0; slice < futures.size(); slice++) {
+            int from = (slice + 1) * sliceSize;
+            int to = Math.min(from + sliceSize, result.size());
+            try {
+                futures.get(slice).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (int i = slice; i < futures.size(); i++) {
+                    futures.get(i).cancel(true);
+                }
+                failUnfinishedItems(result, from, result.size(), e);
+                return;
+            } catch (ExecutionException e) {
+                failUnfinishedItems(result, from, to, e);
+            } catch (CancellationException e) {
+                failUnfinishedItems(result, from, to, e);
+            }
+        }
+    }
+
+    private static void failItems(BatchResult result, int from, int to, Exception failure) {
+        for (int i = from; i < to; i++) {
+            result.setFailure(i, failure);
+        }
+    }
+
+    private static void failUnfinishedItems(BatchResult result, int from, int to,
+            Exception failure) {
+        for (int i = from; i < to; i++) {
+            if (result.get(i) == null && result.getFailure(i) == null) {
+                result.setFailure(i, failure);
+            }
+        }
+    }
+
+    /*
+     * Lazily created executor shared by all instances which do not set their own.
+     */
+    private static synchronized ExecutorService getDefaultBatchExecutor() {
+        if (sDefaultBatchExecutor == null) {
+            sDefaultBatchExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "CryptoBatch-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sDefaultBatchExecutor;
+    }
+
+    /**
+     * Encrypts everything available in the input stream and writes the result to the output
+     * stream. Data is processed in {@link #STREAM_CHUNK_SIZE} chunks, so memory use does not
+     * depend on the size of the input. Streams are not closed.
+     *
+     * @param in  plain data source
+     * @param out destination for the encrypted data
+     * @return number of bytes written to the output stream
+     * @throws IOException if reading, writing or the encryption itself fails
+     */
+    public long encryptStream(InputStream in, OutputStream out) throws IOException {
+        return transformStream(Cipher.ENCRYPT_MODE, in, out);
+    }
+
+    /**
+     * Decrypts everything available in the input stream and writes the result to the output
+     * stream. Counterpart of {@link #encryptStream(InputStream, OutputStream)}. Depending on
+     * the provider, authenticated modes either keep the whole stream in memory until the tag is
+     * verified or detect tampering only after the decrypted data has been written.
+     *
+     * @param in  encrypted data source
+     * @param out destination for the decrypted data
+     * @return number of bytes written to the output stream
+     * @throws IOException if reading, writing or the decryption itself fails
+     */
+    public long decryptStream(InputStream in, OutputStream out) throws IOException {
+        return transformStream(Cipher.DECRYPT_MODE, in, out);
+    }
+
+    /**
+     * Channel based variant of {@link #encryptStream(InputStream, OutputStream)}.
+     *
+     * @param in  plain data source
+     * @param out destination for the encrypted data
+     * @return number of bytes written to the output channel
+     * @throws IOException if reading, writing or the encryption itself fails
+     */
+    public long encryptChannel(ReadableByteChannel in, WritableByteChannel out)
+            throws IOException {
+        return transformStream(Cipher.ENCRYPT_MODE, Channels.newInputStream(in),
+                Channels.newOutputStream(out));
+    }
+
+    /**
+     * Channel based variant of {@link #decryptStream(InputStream, OutputStream)}.
+     *
+     * @param in  encrypted data source
+     * @param out destination for the decrypted data
+     * @return number of bytes written to the output channel
+     * @throws IOException if reading, writing or the decryption itself fails
+     */
+    public long decryptChannel(ReadableByteChannel in, WritableByteChannel out)
+            throws IOException {
+        return transformStream(Cipher.DECRYPT_MODE, Channels.newInputStream(in),
+                Channels.newOutputStream(out));
+    }
+
+    /**
+     * Creates a cipher encrypting one stream with the current key and cipher mode. Its header
+     * has to be written in front of the encrypted data.
+     *
+     * @return {@link StreamCipher}
+     * @throws GeneralSecurityException if there is no key or the cipher is not available
+     */
+    public StreamCipher newEncryptionStreamCipher() throws GeneralSecurityException {
+        return newEncryptionStreamCipher(mCipherMode, 0);
+    }
+
+    private StreamCipher newEncryptionStreamCipher(CipherMode mode, int flags)
+            throws GeneralSecurityException {
+        SecretKey key = getKeyOrThrow();
+        if (mode == CipherMode.LEGACY_CBC) {
+            return StreamCipher.forEncryption(newStreamCipher(mode, Cipher.ENCRYPT_MODE, key,
+                    IV_PARAMS_SPEC), null);
+        }
+        DataKeyCache.DataKey dataKey = null;
+        if (mode == CipherMode.AES_GCM_DATA_KEY) {
+            // the length of a stream is not known up front, so it gets a data key of its own
+            dataKey = newStreamDataKey(key);
+        }
+        try {
+            byte[] prefix = new byte[CiphertextEnvelope.getPrefixSize(mode)];
+            byte[] iv = newIv();
+            writePrefix(mode, key, dataKey, iv, flags, prefix, 0);
+            return StreamCipher.forEncryption(authenticateHeader(mode,
+                    newEnvelopeStreamCipher(mode, Cipher.ENCRYPT_MODE, key, dataKey, iv, 0),
+                    prefix, 0), prefix);
+        } finally {
+            if (dataKey != null) {
+                dataKey.getKey().destroy();
+            }
+        }
+    }
+
+    private DataKeyCache.DataKey newStreamDataKey(SecretKey key)
+            throws GeneralSecurityException {
+        DataKeyCache cache = mDataKeyCache;
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            DataKeyCache.DataKey dataKey = newDataKey(cache, lease, key);
+            cache.countMessage();
+            success = true;
+            return dataKey;
+        } finally {
+            lease.release(success);
+        }
+    }
+
+    /**
+     * Creates a cipher decrypting one stream, in the mode and with the key its header names. The
+     * first {@link StreamCipher#getHeaderLength()} bytes of the stream are not passed to the
+     * cipher.
+     *
+     * @param head   first bytes of the stream, {@link #getStreamHeadSize()} unless the stream
+     *               is shorter
+     * @param offset offset of the stream in the array
+     * @param length number of bytes available
+     * @return {@link StreamCipher}
+     * @throws GeneralSecurityException if there is no key or the cipher is not available
+     */
+    public StreamCipher newDecryptionStreamCipher(byte[] head, int offset, int length)
+            throws GeneralSecurityException {
+        SecretKey key = getKeyOrThrow();
+        CipherMode mode = CiphertextEnvelope.readMode(head, offset, length);
+        if (mode == CipherMode.LEGACY_CBC) {
+            return StreamCipher.forDecryption(newStreamCipher(mode, Cipher.DECRYPT_MODE, key,
+                    IV_PARAMS_SPEC), 0, false);
+        }
+        SecretKey envelopeKey = getEnvelopeKey(key, CiphertextEnvelope.readKeySlot(head, offset));
+        int prefixSize = CiphertextEnvelope.getPrefixSize(mode);
+        DataKeyCache cache = mDataKeyCache;
+        DataKeyCache.DataKey dataKey = null;
+        try {
+            if (mode == CipherMode.AES_GCM_DATA_KEY) {
+                CipherLease lease = new CipherLease();
+                boolean success = false;
+                try {
+                    dataKey = reserveDataKey(cache, lease, envelopeKey, head, offset);
+                    success = true;
+                } finally {
+                    lease.release(success);
+                }
+            }
+            return StreamCipher.forDecryption(authenticateHeader(mode,
+                    newEnvelopeStreamCipher(mode, Cipher.DECRYPT_MODE, envelopeKey, dataKey,
+                            head, offset + prefixSize - CiphertextEnvelope.IV_SIZE), head,
+                    offset), prefixSize, CiphertextEnvelope.isCompressed(head, offset));
+        } finally {
+            cache.release(dataKey);
+        }
+    }
+
+    /**
+     * Returns number of leading bytes {@link #newDecryptionStreamCipher(byte[], int, int)} needs
+     * to tell the format of a stream.
      */
-    private Cipher getCipher() {
-//		final String CIPHER_PROVIDER = "BC";
-        if (sCipher == null) {
+    public static int getStreamHeadSize() {
+        return CiphertextEnvelope.getMaxOverhead();
+    }
+
+    /*
+     * Pumps the stream through a dedicated Cipher instance, reusing the same buffers for every
+     * chunk. The envelope header is written before the first chunk or read from it. Whether a
+     * stream is compressed is decided on its first chunk.
+     */
+    private long transformStream(int opmode, InputStream in, OutputStream out)
+            throws IOException {
+        byte[] inputBuffer = new byte[STREAM_CHUNK_SIZE];
+        // bytes of the first chunk which still have to go through the cipher
+        int pendingOffset = 0;
+        int pendingLength = 0;
+        long written = 0;
+        Deflater deflater = null;
+        Inflater inflater = null;
+        try {
+            Cipher cipher;
+            if (opmode == Cipher.ENCRYPT_MODE) {
+                CipherMode mode = mCipherMode;
+                int level = mCompressionLevel;
+                int flags = 0;
+                if (mode != CipherMode.LEGACY_CBC && level != COMPRESSION_OFF) {
+                    pendingLength = readFully(in, inputBuffer, STREAM_CHUNK_SIZE);
+                    if (Compression.isWorthCompressing(inputBuffer, 0, pendingLength,
+                            pendingLength < STREAM_CHUNK_SIZE)) {
+                        deflater = new Deflater(level);
+                        flags = CiphertextEnvelope.FLAG_DEFLATE;
+                    }
+                }
+                StreamCipher streamCipher = newEncryptionStreamCipher(mode, flags);
+                cipher = streamCipher.getCipher();
+                byte[] header = streamCipher.getHeader();
+                out.write(header);
+                written += header.length;
+            } else {
+                pendingLength = readFully(in, inputBuffer, getStreamHeadSize());
+                // the stream can not be rewound, so there is no fallback to the legacy format
+                StreamCipher streamCipher = newDecryptionStreamCipher(inputBuffer, 0,
+                        pendingLength);
+                cipher = streamCipher.getCipher();
+                pendingOffset = streamCipher.getHeaderLength();
+                pendingLength -= pendingOffset;
+                if (streamCipher.isCompressed()) {
+                    inflater = new Inflater();
+                }
+            }
+
+            StreamPump pump = new StreamPump(cipher, deflater, inflater, out);
+            pump.write(inputBuffer, pendingOffset, pendingLength);
+            int read;
+            while ((read = in.read(inputBuffer)) != -1) {
+                pump.write(inputBuffer, 0, read);
+            }
+            written += pump.finish();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Stream transformation failed", e);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        out.flush();
+        Tracer.d(TAG, "Stream transformation mode:%d, written:%d", opmode, written);
+        return written;
+    }
+
+    /*
+     * Moves data of one stream through the cipher. When encrypting compressed streams the data
+     * is deflated before the cipher, when decrypting them it is inflated after it.
+     */
+    private static final class StreamPump {
+
+        private final Cipher mCipher;
+        private final Deflater mDeflater;
+        private final Inflater mInflater;
+        private final OutputStream mOut;
+        private final byte[] mZipBuffer;
+        private byte[] mOutputBuffer;
+        private long mWritten;
+
+        StreamPump(Cipher cipher, Deflater deflater, Inflater inflater, OutputStream out) {
+            mCipher = cipher;
+            mDeflater = deflater;
+            mInflater = inflater;
+            mOut = out;
+            mZipBuffer = deflater != null || inflater != null ? new byte[STREAM_CHUNK_SIZE]
+                    : null;
+            mOutputBuffer = new byte[getStreamBufferSize(cipher)];
+        }
+
+        void write(byte[] input, int offset, int length) throws IOException,
+                GeneralSecurityException {
+            if (mDeflater == null) {
+                update(input, offset, length);
+                return;
+            }
+            mDeflater.setInput(input, offset, length);
+            while (!mDeflater.needsInput()) {
+                update(mZipBuffer, 0, mDeflater.deflate(mZipBuffer));
+            }
+        }
+
+        /*
+         * Completes the stream, returns number of bytes written.
+         */
+        long finish() throws IOException, GeneralSecurityException {
+            if (mDeflater != null) {
+                mDeflater.finish();
+                while (!mDeflater.finished()) {
+                    update(mZipBuffer, 0, mDeflater.deflate(mZipBuffer));
+                }
+            }
+            if (mCipher.getOutputSize(0) > mOutputBuffer.length) {
+                // some providers hold back all authenticated data until the tag is verified
+                mOutputBuffer = new byte[mCipher.getOutputSize(0)];
+            }
+            emit(mOutputBuffer, mCipher.doFinal(mOutputBuffer, 0));
+            if (mInflater != null && !mInflater.finished()) {
+                throw new IOException("Truncated compressed stream");
+            }
+            return mWritten;
+        }
+
+        private void update(byte[] input, int offset, int length) throws IOException,
+                GeneralSecurityException {
+            emit(mOutputBuffer, mCipher.update(input, offset, length, mOutputBuffer, 0));
+        }
+
+        private void emit(byte[] output, int length) throws IOException {
+            if (mInflater == null) {
+                mOut.write(output, 0, length);
+                mWritten += length;
+                return;
+            }
+            mInflater.setInput(output, 0, length);
             try {
-//				sCipher = Cipher.getInstance(CIPHER_ALGO, CIPHER_PROVIDER);
-                sCipher = Cipher.getInstance(CIPHER_ALGO);
-            } catch (NoSuchAlgorithmException e) {
-                Log.d(TAG, "Impossible to get Cipher instancem" + e.getClass().getSimpleName());
-                e.printStackTrace();
-            } catch (NoSuchPaddingException e) {
-                Log.d(TAG, "Impossible to get Cipher instancem" + e.getClass().getSimpleName());
-                e.printStackTrace();
+                while (true) {
+                    int count = mInflater.inflate(mZipBuffer);
+                    if (count > 0) {
+                        mOut.write(mZipBuffer, 0, count);
+                        mWritten += count;
+                    } else if (mInflater.finished() || mInflater.needsInput()) {
+                        return;
+                    } else {
+                        throw new IOException("Compressed stream needs a dictionary");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed stream", e);
+            }
+        }
+    }
+
+    /*
+     * Fills the buffer with up to length bytes, stopping early only at the end of the stream.
+     */
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /*
+     * Some providers ask for an extra block of space when decrypting, as the last block is held
+     * back until doFinal().
+     */
+    private static int getStreamBufferSize(Cipher cipher) {
+        return cipher.getOutputSize(STREAM_CHUNK_SIZE) + BLOCK_SIZE;
+    }
+
+    /*
+     * Creates a Cipher which is not shared with the byte[] methods, as a stream may stay in use
+     * for a long time.
+     */
+    private Cipher newStreamCipher(CipherMode mode, int opmode, Key key,
+            AlgorithmParameterSpec params) throws GeneralSecurityException {
+        Provider provider = getPool(mode).getProvider();
+        Cipher cipher = provider == null ? Cipher.getInstance(mode.getTransformation())
+                : Cipher.getInstance(mode.getTransformation(), provider);
+        cipher.init(opmode, mode == CipherMode.LEGACY_CBC ? getLegacyKey(opmode, key) : key,
+                params);
+        return cipher;
+    }
+
+    /*
+     * Legacy data does not tell the key it was encrypted with, so it is only ever encrypted with
+     * the first key and always decrypted with it, even after a key rotation. Trying every key
+     * instead would now and then yield garbage: a wrong key passes the padding check about once
+     * in 256 attempts.
+     */
+    private Key getLegacyKey(int opmode, Key key) throws InvalidKeyException {
+        if (mKeyFactory == null || !(key instanceof SecretKey)
+                || mKeyFactory.getKeyVersion((SecretKey) key) <= 1) {
+            return key;
+        }
+        if (opmode == Cipher.ENCRYPT_MODE) {
+            throw new InvalidKeyException("Legacy mode can not be used after a key rotation");
+        }
+        SecretKey legacyKey = mKeyFactory.getKey(1);
+        if (legacyKey == null) {
+            throw new InvalidKeyException("Key of legacy data not available");
+        }
+        return legacyKey;
+    }
+
+    @SuppressWarnings("NewApi")
+    private Cipher newEnvelopeStreamCipher(CipherMode mode, int opmode, SecretKey key,
+            DataKeyCache.DataKey dataKey, byte[] iv, int ivOffset)
+            throws GeneralSecurityException {
+        return newStreamCipher(mode, opmode, dataKey != null ? dataKey.getKey()
+                : getAesKey(key), new GCMParameterSpec(CiphertextEnvelope.TAG_BITS, iv,
+                ivOffset, CiphertextEnvelope.IV_SIZE));
+    }
+
+    /**
+     * Does the one-off work of the first operation ahead of time: reads the key, creates a
+     * cipher of every mode and seeds the IV generator. A legacy cipher is also initialised with
+     * the key, its key derivation is the slowest step of the first encryption. Meant to be
+     * called on a background thread after start up.
+     */
+    public void warmUp() {
+        long start = Tracer.startTimer();
+        SecretKey key = mKeyFactory == null ? null : mKeyFactory.getKey();
+        CipherLease lease = new CipherLease();
+        boolean success = false;
+        try {
+            // after a key rotation nothing is encrypted in legacy mode any more
+            if (key != null && mKeyFactory.getKeyVersion() <= 1) {
+                lease.init(CipherMode.LEGACY_CBC, Cipher.ENCRYPT_MODE, key, IV_PARAMS_SPEC);
             }
+            success = true;
+            // not available before KitKat
+            lease.get(CipherMode.AES_GCM);
+            if (key != null) {
+                getAesKey(key);
+            }
+        } catch (GeneralSecurityException e) {
+            Tracer.w(TAG, "Impossible to warm up cipher", e);
+        } finally {
+            lease.release(success);
         }
-        return sCipher;
+        newIv();
+        Tracer.d(TAG, "Warmed up in %dus", Tracer.elapsedMicros(start));
     }
 
+    /**
+     * Returns the pool of ciphers of the current mode, e.g. to read its usage statistics.
+     *
+     * @return cipher pool
+     */
+    public CipherPool getCipherPool() {
+        return getPool(mCipherMode);
+    }
+
+    /**
+     * Returns the pool of ciphers used for the given mode.
+     *
+     * @return cipher pool
+     */
+    public CipherPool getCipherPool(CipherMode mode) {
+        return getPool(mode);
+    }
 
     /**
      * Returns crypto key.
@@ -183,6 +1623,77 @@ public class CryptoUtils {
      * @return
      */
     public String getCipherAlgo() {
-        return CIPHER_ALGO;
+        return mCipherMode.getTransformation();
+    }
+
+    /*
+     * Ciphers borrowed for one operation or one batch slice, at most one from each pool.
+     */
+    private final class CipherLease {
+        private PooledCipher mLegacyCipher;
+        private PooledCipher mGcmCipher;
+
+        private Cipher init(CipherMode mode, int opmode, Key key, AlgorithmParameterSpec params)
+                throws GeneralSecurityException {
+            if (mode == CipherMode.LEGACY_CBC) {
+                key = getLegacyKey(opmode, key);
+            }
+            return get(mode).init(opmode, key, params);
+        }
+
+        private PooledCipher get(CipherMode mode) throws NoSuchAlgorithmException {
+            if (mode == CipherMode.LEGACY_CBC) {
+                if (mLegacyCipher == null) {
+                    mLegacyCipher = borrow(mLegacyCipherPool);
+                }
+                return mLegacyCipher;
+            }
+            if (mGcmCipher == null) {
+                mGcmCipher = borrow(mGcmCipherPool);
+            }
+            return mGcmCipher;
+        }
+
+        private PooledCipher borrow(CipherPool pool) throws NoSuchAlgorithmException {
+            PooledCipher pooledCipher = pool.borrow();
+            if (pooledCipher == null) {
+                throw new NoSuchAlgorithmException("Cipher not available: "
+                        + pool.getTransformation());
+            }
+            return pooledCipher;
+        }
+
+        /*
+         * Makes the next user initialise the ciphers again, e.g. after a failed operation left
+         * them in an unknown state.
+         */
+        private void invalidate() {
+            if (mLegacyCipher != null) {
+                mLegacyCipher.invalidate();
+            }
+            if (mGcmCipher != null) {
+                mGcmCipher.invalidate();
+            }
+        }
+
+        private void release(boolean success) {
+            if (!success) {
+                invalidate();
+            }
+            mLegacyCipherPool.release(mLegacyCipher);
+            mGcmCipherPool.release(mGcmCipher);
+            mLegacyCipher = null;
+            mGcmCipher = null;
+        }
+    }
+
+    private static final class AesKey {
+        private final SecretKey mSourceKey;
+        private final SecretKey mAesKey;
+
+        private AesKey(SecretKey sourceKey, SecretKey aesKey) {
+            mSourceKey = sourceKey;
+            mAesKey = aesKey;
+        }
     }
 }
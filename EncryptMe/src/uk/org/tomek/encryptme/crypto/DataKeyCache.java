@@ -0,0 +1,334 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Data keys of {@link CipherMode#AES_GCM_DATA_KEY}. New data is encrypted with the current
+ * data key until it has encrypted a given number of messages or bytes or has reached a given
+ * age, only then is a new one generated and wrapped with the master key. Unwrapped data keys
+ * are kept in a bounded LRU map by key id, so reading data written with the same data key
+ * unwraps it once. <p>
+ * A data key in use by an operation is never wiped, evicted keys are destroyed once their last
+ * user is done with them.
+ *
+ * @author Tomek Giszczak
+ */
+public final class DataKeyCache {
+
+    public static final int DEFAULT_MAX_MESSAGES = 4096;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000L;
+    public static final int DEFAULT_MAX_UNWRAPPED_KEYS = 32;
+    private final int mMaxMessages;
+    private final long mMaxBytes;
+    private final long mMaxAgeMillis;
+    private final int mMaxUnwrappedKeys;
+    private final LinkedHashMap<Long, DataKey> mUnwrappedKeys;
+    private DataKey mCurrentKey;
+    private final AtomicLong mMessageCount = new AtomicLong();
+    private final AtomicLong mReuseCount = new AtomicLong();
+    private final AtomicLong mWrapCount = new AtomicLong();
+    private final AtomicLong mWrapNanos = new AtomicLong();
+    private final AtomicLong mUnwrapCount = new AtomicLong();
+    private final AtomicLong mUnwrapNanos = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+
+    private DataKeyCache(int maxMessages, long maxBytes, long maxAgeMillis,
+            int maxUnwrappedKeys) {
+        if (maxMessages < 1 || maxBytes < 1 || maxAgeMillis <= 0 || maxUnwrappedKeys < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxMessages = maxMessages;
+        mMaxBytes = maxBytes;
+        mMaxAgeMillis = maxAgeMillis;
+        mMaxUnwrappedKeys = maxUnwrappedKeys;
+        // access ordered map gives LRU iteration order
+        mUnwrappedKeys = new LinkedHashMap<Long, DataKey>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, DataKey> eldest) {
+                if (size() > mMaxUnwrappedKeys) {
+                    dereference(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Creates new instance of {@link DataKeyCache} with the default limits.
+     *
+     * @return {@link DataKeyCache}
+     */
+    public static DataKeyCache newInstance() {
+        return newInstance(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS,
+                DEFAULT_MAX_UNWRAPPED_KEYS);
+    }
+
+    /**
+     * Creates new instance of {@link DataKeyCache}.
+     *
+     * @param maxMessages      number of messages encrypted with one data key
+     * @param maxBytes         number of plain bytes encrypted with one data key, a message
+     *                         larger than that gets a data key of its own
+     * @param maxAgeMillis     time after which a data key is no longer used for new data and
+     *                         an unwrapped one is dropped
+     * @param maxUnwrappedKeys maximum number of unwrapped data keys kept for decryption
+     * @return {@link DataKeyCache}
+     */
+    public static DataKeyCache newInstance(int maxMessages, long maxBytes, long maxAgeMillis,
+            int maxUnwrappedKeys) {
+        return new DataKeyCache(maxMessages, maxBytes, maxAgeMillis, maxUnwrappedKeys);
+    }
+
+    /*
+     * Reserves the current data key for a message of the given length. Returns null if there
+     * is none for the master key or it has reached a limit, the caller then wraps a new one and
+     * passes it to setCurrentKey().
+     */
+    synchronized DataKey reserve(SecretKey masterKey, long length) {
+        DataKey dataKey = mCurrentKey;
+        if (dataKey == null || dataKey.mMasterKey != masterKey
+                || dataKey.mMessages >= mMaxMessages || dataKey.mBytes + length > mMaxBytes
+                || dataKey.isExpired(mMaxAgeMillis)) {
+            return null;
+        }
+        dataKey.mMessages++;
+        dataKey.mBytes += length;
+        dataKey.mReferences++;
+        mMessageCount.incrementAndGet();
+        mReuseCount.incrementAndGet();
+        return dataKey;
+    }
+
+    /*
+     * Makes a newly wrapped data key the current one and reserves it for a message of the
+     * given length. The key is also readable by id, so data encrypted with it is not unwrapped
+     * again.
+     */
+    synchronized DataKey setCurrentKey(DataKey dataKey, long length) {
+        if (mCurrentKey != null) {
+            dereference(mCurrentKey);
+        }
+        mCurrentKey = dataKey;
+        dataKey.mMessages = 1;
+        dataKey.mBytes = length;
+        // held as the current key, by id and by the caller
+        dataKey.mReferences = 3;
+        DataKey previous = mUnwrappedKeys.put(dataKey.mKeyId, dataKey);
+        if (previous != null) {
+            dereference(previous);
+        }
+        mMessageCount.incrementAndGet();
+        return dataKey;
+    }
+
+    /*
+     * Reserves the unwrapped data key of the key block at the given offset, returns null if it
+     * is not cached. A key block which differs from the cached one is a miss even if its id
+     * matches, so that a tampered wrapped key is caught by unwrapping it.
+     */
+    synchronized DataKey reserve(byte[] input, int offset) {
+        long keyId = CiphertextEnvelope.readKeyId(input, offset);
+        DataKey dataKey = mUnwrappedKeys.get(keyId);
+        if (dataKey != null && dataKey.isExpired(mMaxAgeMillis)) {
+            mUnwrappedKeys.remove(keyId);
+            dereference(dataKey);
+            dataKey = null;
+        }
+        if (dataKey == null || !dataKey.hasKeyBlock(input, offset)) {
+            return null;
+        }
+        dataKey.mReferences++;
+        mHitCount.incrementAndGet();
+        return dataKey;
+    }
+
+    /*
+     * Caches a newly unwrapped data key and reserves it. If another thread has unwrapped the
+     * same key in the meantime, that one is reserved instead and the given one destroyed.
+     */
+    synchronized DataKey add(DataKey dataKey) {
+        DataKey cached = mUnwrappedKeys.get(dataKey.mKeyId);
+        if (cached != null) {
+            dataKey.mKey.destroy();
+            cached.mReferences++;
+            return cached;
+        }
+        dataKey.mReferences = 2;
+        mUnwrappedKeys.put(dataKey.mKeyId, dataKey);
+        return dataKey;
+    }
+
+    /*
+     * Ends the use of a reserved data key.
+     */
+    synchronized void release(DataKey dataKey) {
+        if (dataKey != null) {
+            dereference(dataKey);
+        }
+    }
+
+    private static void dereference(DataKey dataKey) {
+        if (--dataKey.mReferences == 0) {
+            dataKey.mKey.destroy();
+        }
+    }
+
+    /*
+     * Counts a message encrypted with a data key of its own, e.g. a stream.
+     */
+    void countMessage() {
+        mMessageCount.incrementAndGet();
+    }
+
+    void recordWrap(long nanos) {
+        mWrapCount.incrementAndGet();
+        mWrapNanos.addAndGet(nanos);
+    }
+
+    void recordUnwrap(long nanos) {
+        mUnwrapCount.incrementAndGet();
+        mUnwrapNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Forgets all data keys. Keys in use are destroyed once their operation is done.
+     */
+    public synchronized void clear() {
+        if (mCurrentKey != null) {
+            dereference(mCurrentKey);
+            mCurrentKey = null;
+        }
+        Iterator<DataKey> iterator = mUnwrappedKeys.values().iterator();
+        while (iterator.hasNext()) {
+            dereference(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns number of unwrapped data keys kept for decryption.
+     */
+    public synchronized int size() {
+        return mUnwrappedKeys.size();
+    }
+
+    /**
+     * Returns number of messages encrypted with a data key of this cache.
+     */
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    /**
+     * Returns number of messages encrypted with a data key used before, without wrapping a
+     * new one.
+     */
+    public long getReuseCount() {
+        return mReuseCount.get();
+    }
+
+    /**
+     * Returns number of data keys generated and wrapped with the master key.
+     */
+    public long getWrapCount() {
+        return mWrapCount.get();
+    }
+
+    /**
+     * Returns total time in nanoseconds spent generating and wrapping data keys.
+     */
+    public long getWrapNanos() {
+        return mWrapNanos.get();
+    }
+
+    /**
+     * Returns number of data keys unwrapped with the master key.
+     */
+    public long getUnwrapCount() {
+        return mUnwrapCount.get();
+    }
+
+    /**
+     * Returns total time in nanoseconds spent unwrapping data keys.
+     */
+    public long getUnwrapNanos() {
+        return mUnwrapNanos.get();
+    }
+
+    /**
+     * Returns number of decryptions which found their data key unwrapped already.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DataKeyCache[size:%d/%d, messages:%d, reused:%d, wraps:%d, "
+                        + "wrapUs:%d, unwraps:%d, unwrapUs:%d, hits:%d]", size(),
+                mMaxUnwrappedKeys, getMessageCount(), getReuseCount(), getWrapCount(),
+                getWrapNanos() / 1000L, getUnwrapCount(), getUnwrapNanos() / 1000L,
+                getHitCount());
+    }
+
+    /*
+     * Data key with its id, its wrapped form and, for the keys generated by this instance, the
+     * master key which wrapped it. The counters are guarded by the cache.
+     */
+    static final class DataKey {
+        private final long mKeyId;
+        private final KeyMaterial mKey;
+        private final byte[] mKeyBlock;
+        private final SecretKey mMasterKey;
+        private final long mCreatedAt;
+        private int mMessages;
+        private long mBytes;
+        private int mReferences;
+
+        /*
+         * @param keyBlock key id followed by the wrapped key
+         */
+        DataKey(long keyId, KeyMaterial key, byte[] keyBlock, SecretKey masterKey) {
+            mKeyId = keyId;
+            mKey = key;
+            mKeyBlock = keyBlock;
+            mMasterKey = masterKey;
+            mCreatedAt = System.currentTimeMillis();
+            mReferences = 1;
+        }
+
+        KeyMaterial getKey() {
+            return mKey;
+        }
+
+        /*
+         * Copies the key id and the wrapped key, returns number of bytes written.
+         */
+        int writeKeyBlock(byte[] output, int offset) {
+            System.arraycopy(mKeyBlock, 0, output, offset, mKeyBlock.length);
+            return mKeyBlock.length;
+        }
+
+        // compares every byte, the time taken does not tell where the blocks differ
+        private boolean hasKeyBlock(byte[] input, int offset) {
+            int difference = 0;
+            for (int i = 0; i < mKeyBlock.length; i++) {
+                difference |= mKeyBlock[i] ^ input[offset + i];
+            }
+            return difference == 0;
+        }
+
+        private boolean isExpired(long maxAgeMillis) {
+            return System.currentTimeMillis() - mCreatedAt >= maxAgeMillis;
+        }
+    }
+}
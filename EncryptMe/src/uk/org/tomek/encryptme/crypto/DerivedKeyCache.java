@@ -0,0 +1,255 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded LRU cache of keys produced by a password based key derivation. Entries are looked up
+ * by algorithm, salt, iteration count, key length and a keyed hash of the passphrase, so the
+ * passphrase itself is never kept. Entries expire after a fixed time and the key bytes of
+ * evicted or expired entries are overwritten with zeros.
+ *
+ * @author Tomasz Giszczak
+ */
+public final class DerivedKeyCache {
+
+    private static final String HASH_ALGO = "HmacSHA256";
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    // keyed hash so that a cache dump can not be used to test passphrase guesses
+    private final SecretKeySpec mHashKey;
+    private final LinkedHashMap<CacheKey, CacheEntry> mEntries;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    private DerivedKeyCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1 || ttlMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        byte[] hashKey = new byte[32];
+        new SecureRandom().nextBytes(hashKey);
+        mHashKey = new SecretKeySpec(hashKey, HASH_ALGO);
+        Arrays.fill(hashKey, (byte) 0);
+        // access ordered map gives LRU iteration order
+        mEntries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                if (size() > mMaxEntries) {
+                    eldest.getValue().destroy();
+                    mEvictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Creates new instance of {@link DerivedKeyCache}.
+     *
+     * @param maxEntries maximum number of cached keys
+     * @param ttlMillis  time after which a cached key is dropped
+     * @return {@link DerivedKeyCache}
+     */
+    public static DerivedKeyCache newInstance(int maxEntries, long ttlMillis) {
+        return new DerivedKeyCache(maxEntries, ttlMillis);
+    }
+
+    /**
+     * Creates the lookup key for the given derivation parameters.
+     *
+     * @return cache key or null if the passphrase could not be hashed
+     */
+    public CacheKey newCacheKey(String algorithm, char[] passphrase, byte[] salt, int iterations,
+            int keyLength) {
+        byte[] passphraseHash = hashPassphrase(passphrase);
+        if (passphraseHash == null) {
+            return null;
+        }
+        return new CacheKey(algorithm, salt, iterations, keyLength, passphraseHash);
+    }
+
+    /**
+     * Returns cached key or null if there is no valid entry.
+     */
+    public SecretKey get(CacheKey cacheKey) {
+        synchronized (mEntries) {
+            CacheEntry entry = mEntries.get(cacheKey);
+            if (entry != null && entry.isExpired(mTtlMillis)) {
+                mEntries.remove(cacheKey);
+                entry.destroy();
+                mEvictionCount.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                mMissCount.incrementAndGet();
+                return null;
+            }
+            mHitCount.incrementAndGet();
+            return new SecretKeySpec(entry.mKeyBytes, entry.mAlgorithm);
+        }
+    }
+
+    /**
+     * Stores a copy of the key.
+     */
+    public void put(CacheKey cacheKey, SecretKey key) {
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            return;
+        }
+        // some providers hand out their internal array, which must not be wiped on eviction
+        CacheEntry entry = new CacheEntry(encoded.clone(), key.getAlgorithm());
+        synchronized (mEntries) {
+            CacheEntry previous = mEntries.put(cacheKey, entry);
+            if (previous != null) {
+                previous.destroy();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries and overwrites their key bytes.
+     */
+    public void clear() {
+        synchronized (mEntries) {
+            Iterator<CacheEntry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().destroy();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns number of cached keys.
+     */
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Returns number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns number of lookups which required a key derivation.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns number of entries dropped because of the size or time limit.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DerivedKeyCache[size:%d/%d, hits:%d, misses:%d, evictions:%d]",
+                size(), mMaxEntries, getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private byte[] hashPassphrase(char[] passphrase) {
+        ByteBuffer encoded = ByteBuffer.allocate(passphrase.length * 2);
+        encoded.asCharBuffer().put(CharBuffer.wrap(passphrase));
+        try {
+            Mac mac = Mac.getInstance(HASH_ALGO);
+            mac.init(mHashKey);
+            return mac.doFinal(encoded.array());
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * Lookup key of the cache.
+     */
+    public static final class CacheKey {
+        private final String mAlgorithm;
+        private final byte[] mSalt;
+        private final int mIterations;
+        private final int mKeyLength;
+        private final byte[] mPassphraseHash;
+        private final int mHashCode;
+
+        private CacheKey(String algorithm, byte[] salt, int iterations, int keyLength,
+                byte[] passphraseHash) {
+            mAlgorithm = algorithm;
+            mSalt = salt == null ? new byte[0] : salt.clone();
+            mIterations = iterations;
+            mKeyLength = keyLength;
+            mPassphraseHash = passphraseHash;
+            int hashCode = mAlgorithm.hashCode();
+            hashCode = 31 * hashCode + Arrays.hashCode(mSalt);
+            hashCode = 31 * hashCode + mIterations;
+            hashCode = 31 * hashCode + mKeyLength;
+            mHashCode = 31 * hashCode + Arrays.hashCode(mPassphraseHash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return mIterations == other.mIterations && mKeyLength == other.mKeyLength
+                    && mAlgorithm.equals(other.mAlgorithm) && Arrays.equals(mSalt, other.mSalt)
+                    && Arrays.equals(mPassphraseHash, other.mPassphraseHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class CacheEntry {
+        private final byte[] mKeyBytes;
+        private final String mAlgorithm;
+        private final long mCreatedAt;
+
+        private CacheEntry(byte[] keyBytes, String algorithm) {
+            mKeyBytes = keyBytes;
+            mAlgorithm = algorithm;
+            mCreatedAt = System.currentTimeMillis();
+        }
+
+        private boolean isExpired(long ttlMillis) {
+            return System.currentTimeMillis() - mCreatedAt >= ttlMillis;
+        }
+
+        private void destroy() {
+            Arrays.fill(mKeyBytes, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.org.tomek.encryptme.crypto;
+
+/**
+ * Identity of the app on a device, the input of
+ * {@link KeyFactory#generateKeyFromIdentity(DeviceIdentity)}. On a device it comes from
+ * {@link Platform#getDeviceIdentity()}, a server creates it from the values the device
+ * reported.
+ *
+ * @author Tomek Giszczak
+ */
+public final class DeviceIdentity {
+
+    private final String mAppId;
+    private final String mDeviceId;
+
+    private DeviceIdentity(String appId, String deviceId) {
+        mAppId = appId;
+        mDeviceId = deviceId;
+    }
+
+    /**
+     * Creates new instance of {@link DeviceIdentity}.
+     *
+     * @param appId    package name of the app
+     * @param deviceId serial number of the device or its Android ID
+     * @return {@link DeviceIdentity}
+     */
+    public static DeviceIdentity newInstance(String appId, String deviceId) {
+        if (appId == null || deviceId == null) {
+            throw new IllegalArgumentException("App and device ID must not be null");
+        }
+        return new DeviceIdentity(appId, deviceId);
+    }
+
+    /**
+     * Returns the package name of the app.
+     */
+    public String getAppId() {
+        return mAppId;
+    }
+
+    /**
+     * Returns the serial number of the device or its Android ID.
+     */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+}
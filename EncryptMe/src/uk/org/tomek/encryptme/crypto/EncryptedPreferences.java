@@ -0,0 +1,772 @@
+package uk.org.tomek.encryptme.crypto;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * {@link SharedPreferences} whose names and values are encrypted with {@link CryptoUtils}, a
+ * drop-in replacement for {@link Context#getSharedPreferences(String, int)}. <p>
+ * Everything is kept in a single file, read once on first use. Names are decrypted when the file
+ * is read, values only when they are read, and the decrypted bytes of the most recently used
+ * values are cached. Bytes leaving the cache are overwritten with zeros, so are all of them on
+ * {@link #clearCache()}. {@link Editor#apply()} saves in the background shortly after, so that
+ * a burst of changes is written once; {@link Editor#commit()} saves at once. Change listeners
+ * are called on the thread making the change. <p>
+ * File layout:
+ * <pre>
+ * 'E' 'P' | format version | entry count (int)
+ * entry:  name length (int) | encrypted name | value length (int) | encrypted value
+ * CRC32 of the above (int)
+ * </pre>
+ *
+ * @author Tomek Giszczak
+ */
+public final class EncryptedPreferences implements SharedPreferences {
+
+    /**
+     * Time applied changes wait in memory, so that a burst of them is saved at once.
+     */
+    public static final long FLUSH_DELAY_MS = 100;
+    /**
+     * Number of decrypted values kept by default.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    private static final String TAG = EncryptedPreferences.class.getSimpleName();
+    private static final String FILE_SUFFIX = ".eprefs";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte MAGIC_0 = 0x45;
+    private static final byte MAGIC_1 = 0x50;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 7;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_FILE_SIZE = 16 * 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    // first byte of a decrypted value
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+    // one instance per file, as the platform does per preferences name
+    private static final Map<String, EncryptedPreferences> sInstances =
+            new HashMap<String, EncryptedPreferences>();
+    private final CryptoUtils mCryptoUtils;
+    private final File mFile;
+    private final int mCacheSize;
+    // guarded by this, like everything below but the save state
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final LinkedHashMap<String, byte[]> mCache;
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
+            new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+    // serialises file writes, never taken while holding the instance lock
+    private final Object mSaveLock = new Object();
+    private final Runnable mFlushTask = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (EncryptedPreferences.this) {
+                mFlushScheduled = false;
+            }
+            try {
+                save();
+            } catch (IOException e) {
+                Tracer.w(TAG, "Impossible to save preferences", e);
+                e.printStackTrace();
+            }
+        }
+    };
+    private volatile boolean mLoaded;
+    private boolean mFlushScheduled;
+    private long mChangeCount;
+    private long mSavedChangeCount;
+    private long mCacheHitCount;
+    private long mCacheMissCount;
+
+    private EncryptedPreferences(CryptoUtils cryptoUtils, File file, int cacheSize) {
+        mCryptoUtils = cryptoUtils;
+        mFile = file;
+        mCacheSize = cacheSize;
+        // access ordered map gives LRU iteration order
+        mCache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() > mCacheSize) {
+                    Arrays.fill(eldest.getValue(), (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the encrypted preferences of the given name, in the app files and encrypted with
+     * the keys of {@link CryptoContext}. Every call with the same name returns the same instance.
+     *
+     * @param context any context
+     * @param name    preferences name
+     * @return {@link EncryptedPreferences}
+     */
+    public static EncryptedPreferences getInstance(Context context, String name) {
+        File file = new File(context.getFilesDir(), name + FILE_SUFFIX);
+        synchronized (sInstances) {
+            EncryptedPreferences instance = sInstances.get(file.getPath());
+            if (instance == null) {
+                instance = newInstance(CryptoContext.getInstance(context).getCryptoUtils(), file,
+                        DEFAULT_CACHE_SIZE);
+                sInstances.put(file.getPath(), instance);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Creates new instance of {@link EncryptedPreferences}. Nothing is read until the first call.
+     * There must not be two instances over the same file.
+     *
+     * @param cryptoUtils encrypts names and values, in its current cipher mode
+     * @param file        file holding the preferences, created on first save
+     * @param cacheSize   maximum number of decrypted values kept in memory, 0 for none
+     * @return {@link EncryptedPreferences}
+     */
+    public static EncryptedPreferences newInstance(CryptoUtils cryptoUtils, File file,
+            int cacheSize) {
+        if (cryptoUtils == null || file == null || cacheSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        return new EncryptedPreferences(cryptoUtils, file, cacheSize);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        ensureLoaded();
+        Map<String, byte[]> encryptedValues = new HashMap<String, byte[]>();
+        synchronized (this) {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                encryptedValues.put(entry.getKey(), entry.getValue().mEncryptedValue);
+            }
+        }
+        // not through the cache, a full read would push everything else out
+        Map<String, Object> all = new HashMap<String, Object>();
+        for (Map.Entry<String, byte[]> entry : encryptedValues.entrySet()) {
+            byte[] plainValue = mCryptoUtils.decryptData(entry.getValue());
+            if (plainValue != null) {
+                all.put(entry.getKey(), decode(plainValue));
+                Arrays.fill(plainValue, (byte) 0);
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        String value = (String) getValue(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Set<String> values = (Set<String>) getValue(key);
+        return values == null ? defValues : values;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) getValue(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) getValue(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) getValue(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) getValue(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        ensureLoaded();
+        synchronized (this) {
+            return mEntries.containsKey(key);
+        }
+    }
+
+    @Override
+    public SharedPreferences.Editor edit() {
+        return new Editor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, this);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Saves applied changes now, instead of after {@link #FLUSH_DELAY_MS}.
+     *
+     * @throws IOException if the file could not be written
+     */
+    public void flush() throws IOException {
+        save();
+    }
+
+    /**
+     * Overwrites every cached value with zeros and empties the cache, e.g. when the app goes to
+     * the background.
+     */
+    public synchronized void clearCache() {
+        for (byte[] plainValue : mCache.values()) {
+            Arrays.fill(plainValue, (byte) 0);
+        }
+        mCache.clear();
+    }
+
+    /**
+     * Returns number of reads served from the cache.
+     */
+    public synchronized long getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /**
+     * Returns number of reads which had to decrypt the value.
+     */
+    public synchronized long getCacheMissCount() {
+        return mCacheMissCount;
+    }
+
+    private Object getValue(String key) {
+        ensureLoaded();
+        byte[] encryptedValue;
+        synchronized (this) {
+            byte[] plainValue = mCache.get(key);
+            if (plainValue != null) {
+                mCacheHitCount++;
+                // decoded under the lock, an eviction would wipe the bytes
+                return decode(plainValue);
+            }
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            encryptedValue = entry.mEncryptedValue;
+            mCacheMissCount++;
+        }
+        byte[] plainValue = mCryptoUtils.decryptData(encryptedValue);
+        if (plainValue == null) {
+            return null;
+        }
+        Object value = decode(plainValue);
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            // unless the value has been changed in the meantime
+            if (mCacheSize > 0 && entry != null && entry.mEncryptedValue == encryptedValue
+                    && !mCache.containsKey(key)) {
+                mCache.put(key, plainValue);
+                plainValue = null;
+            }
+        }
+        if (plainValue != null) {
+            Arrays.fill(plainValue, (byte) 0);
+        }
+        return value;
+    }
+
+    /*
+     * Encrypts the changes of an editor and puts them in memory, all or none of them.
+     */
+    private boolean commitToMemory(Map<String, Object> changes, boolean clear) {
+        ensureLoaded();
+        Map<String, Entry> newEntries = new HashMap<String, Entry>();
+        Map<String, byte[]> plainValues = new HashMap<String, byte[]>();
+        boolean success = false;
+        try {
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    continue;
+                }
+                String key = change.getKey();
+                byte[] encryptedName = null;
+                synchronized (this) {
+                    Entry entry = mEntries.get(key);
+                    if (entry != null && !clear) {
+                        encryptedName = entry.mEncryptedName;
+                    }
+                }
+                if (encryptedName == null) {
+                    encryptedName = mCryptoUtils.encryptData(key.getBytes(UTF_8));
+                }
+                byte[] plainValue = encode(change.getValue());
+                plainValues.put(key, plainValue);
+                byte[] encryptedValue = mCryptoUtils.encryptData(plainValue);
+                if (encryptedName == null || encryptedValue == null) {
+                    return false;
+                }
+                newEntries.put(key, new Entry(encryptedName, encryptedValue));
+            }
+
+            Set<String> changedKeys = new HashSet<String>();
+            synchronized (this) {
+                if (clear) {
+                    changedKeys.addAll(mEntries.keySet());
+                    mEntries.clear();
+                    clearCache();
+                }
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    String key = change.getKey();
+                    byte[] cachedValue = mCache.remove(key);
+                    if (cachedValue != null) {
+                        Arrays.fill(cachedValue, (byte) 0);
+                    }
+                    if (change.getValue() == null) {
+                        if (mEntries.remove(key) != null) {
+                            changedKeys.add(key);
+                        }
+                    } else {
+                        mEntries.put(key, newEntries.get(key));
+                        if (mCacheSize > 0) {
+                            // written values are likely to be read soon
+                            mCache.put(key, plainValues.remove(key));
+                        }
+                        changedKeys.add(key);
+                    }
+                }
+                mChangeCount++;
+            }
+            success = true;
+            notifyListeners(changedKeys);
+            return true;
+        } finally {
+            for (byte[] plainValue : plainValues.values()) {
+                Arrays.fill(plainValue, (byte) 0);
+            }
+            if (!success) {
+                Tracer.w(TAG, "Impossible to encrypt " + changes.size() + " changes");
+            }
+        }
+    }
+
+    private void notifyListeners(Set<String> changedKeys) {
+        List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (mListeners) {
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            listeners = new ArrayList<OnSharedPreferenceChangeListener>(mListeners.keySet());
+        }
+        for (String key : changedKeys) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private synchronized void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            FileKeyStore.getFlushExecutor().schedule(mFlushTask, FLUSH_DELAY_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Values are encoded into exactly sized arrays, so that no copy of the plain bytes is left
+     * behind in a growing buffer.
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] encode(Object value) {
+        byte[] encoded;
+        if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(UTF_8);
+            encoded = new byte[1 + bytes.length];
+            encoded[0] = TYPE_STRING;
+            System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+            Arrays.fill(bytes, (byte) 0);
+        } else if (value instanceof Integer) {
+            encoded = new byte[5];
+            encoded[0] = TYPE_INT;
+            putInt(encoded, 1, (Integer) value);
+        } else if (value instanceof Long) {
+            long longValue = (Long) value;
+            encoded = new byte[9];
+            encoded[0] = TYPE_LONG;
+            putInt(encoded, 1, (int) (longValue >>> 32));
+            putInt(encoded, 5, (int) longValue);
+        } else if (value instanceof Float) {
+            encoded = new byte[5];
+            encoded[0] = TYPE_FLOAT;
+            putInt(encoded, 1, Float.floatToIntBits((Float) value));
+        } else if (value instanceof Boolean) {
+            encoded = new byte[] {TYPE_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        } else {
+            Set<String> values = (Set<String>) value;
+            List<byte[]> elements = new ArrayList<byte[]>(values.size());
+            int length = 5;
+            for (String element : values) {
+                byte[] bytes = element.getBytes(UTF_8);
+                elements.add(bytes);
+                length += 4 + bytes.length;
+            }
+            encoded = new byte[length];
+            encoded[0] = TYPE_STRING_SET;
+            putInt(encoded, 1, elements.size());
+            int offset = 5;
+            for (byte[] bytes : elements) {
+                putInt(encoded, offset, bytes.length);
+                System.arraycopy(bytes, 0, encoded, offset + 4, bytes.length);
+                offset += 4 + bytes.length;
+                Arrays.fill(bytes, (byte) 0);
+            }
+        }
+        return encoded;
+    }
+
+    private static Object decode(byte[] encoded) {
+        switch (encoded[0]) {
+            case TYPE_STRING:
+                return new String(encoded, 1, encoded.length - 1, UTF_8);
+            case TYPE_INT:
+                return getInt(encoded, 1);
+            case TYPE_LONG:
+                return ((long) getInt(encoded, 1) << 32) | (getInt(encoded, 5) & 0xffffffffL);
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat(getInt(encoded, 1));
+            case TYPE_BOOLEAN:
+                return encoded[1] != 0;
+            case TYPE_STRING_SET:
+                int count = getInt(encoded, 1);
+                Set<String> values = new HashSet<String>(count * 2);
+                int offset = 5;
+                for (int i = 0; i < count; i++) {
+                    int length = getInt(encoded, offset);
+                    values.add(new String(encoded, offset + 4, length, UTF_8));
+                    offset += 4 + length;
+                }
+                return values;
+            default:
+                throw new IllegalStateException("Unknown value type " + encoded[0]);
+        }
+    }
+
+    private static void putInt(byte[] output, int offset, int value) {
+        output[offset] = (byte) (value >>> 24);
+        output[offset + 1] = (byte) (value >>> 16);
+        output[offset + 2] = (byte) (value >>> 8);
+        output[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] input, int offset) {
+        return ((input[offset] & 0xff) << 24) | ((input[offset + 1] & 0xff) << 16)
+                | ((input[offset + 2] & 0xff) << 8) | (input[offset + 3] & 0xff);
+    }
+
+    private void ensureLoaded() {
+        if (!mLoaded) {
+            loadOnce();
+        }
+    }
+
+    private synchronized void loadOnce() {
+        if (mLoaded) {
+            return;
+        }
+        long start = Tracer.startTimer();
+        try {
+            load();
+        } catch (IOException e) {
+            // keep the file for inspection, a save would otherwise overwrite it
+            Tracer.w(TAG, "Impossible to read preferences, starting empty", e);
+            mEntries.clear();
+            File corruptFile = new File(mFile.getPath() + CORRUPT_SUFFIX);
+            if (!mFile.renameTo(corruptFile)) {
+                Tracer.w(TAG, "Impossible to move aside " + mFile);
+            }
+        }
+        mLoaded = true;
+        Tracer.d(TAG, "Loaded %d preferences in %dus", mEntries.size(),
+                Tracer.elapsedMicros(start));
+    }
+
+    private void load() throws IOException {
+        byte[] content;
+        FileInputStream in;
+        try {
+            in = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+            return;
+        }
+        try {
+            long length = in.getChannel().size();
+            if (length > MAX_FILE_SIZE) {
+                throw new IOException("Preferences file too large: " + length);
+            }
+            content = new byte[(int) length];
+            new DataInputStream(in).readFully(content);
+        } finally {
+            FilesHelper.closeQuietly(in);
+        }
+        parse(content);
+    }
+
+    private void parse(byte[] content) throws IOException {
+        if (content.length < HEADER_SIZE + CRC_SIZE || content[0] != MAGIC_0
+                || content[1] != MAGIC_1) {
+            throw new IOException("Not a preferences file");
+        }
+        if (content[2] != FORMAT_VERSION) {
+            throw new IOException("Unsupported preferences file version " + content[2]);
+        }
+        int bodyLength = content.length - CRC_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, bodyLength);
+        if (getInt(content, bodyLength) != (int) crc.getValue()) {
+            throw new IOException("Preferences file checksum mismatch");
+        }
+        int count = getInt(content, 3);
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            byte[] encryptedName = readField(content, offset, bodyLength);
+            offset += 4 + encryptedName.length;
+            byte[] encryptedValue = readField(content, offset, bodyLength);
+            offset += 4 + encryptedValue.length;
+            byte[] name = mCryptoUtils.decryptData(encryptedName);
+            if (name == null) {
+                // e.g. written with a key which is gone, the other entries are still fine
+                Tracer.w(TAG, "Skipping unreadable preference");
+                continue;
+            }
+            mEntries.put(new String(name, UTF_8), new Entry(encryptedName, encryptedValue));
+        }
+    }
+
+    private static byte[] readField(byte[] content, int offset, int limit) throws IOException {
+        if (offset + 4 > limit) {
+            throw new IOException("Truncated preferences file");
+        }
+        int length = getInt(content, offset);
+        if (length < 0 || length > limit - offset - 4) {
+            throw new IOException("Truncated preferences file");
+        }
+        byte[] field = new byte[length];
+        System.arraycopy(content, offset + 4, field, 0, length);
+        return field;
+    }
+
+    private void save() throws IOException {
+        synchronized (mSaveLock) {
+            long changeCount;
+            List<Entry> snapshot;
+            synchronized (this) {
+                changeCount = mChangeCount;
+                if (changeCount == mSavedChangeCount) {
+                    return;
+                }
+                // the arrays are never modified, only replaced
+                snapshot = new ArrayList<Entry>(mEntries.values());
+            }
+            long start = Tracer.startTimer();
+            write(snapshot);
+            synchronized (this) {
+                mSavedChangeCount = changeCount;
+            }
+            Tracer.d(TAG, "Saved %d preferences in %dus", snapshot.size(),
+                    Tracer.elapsedMicros(start));
+        }
+    }
+
+    private void write(List<Entry> snapshot) throws IOException {
+        int length = HEADER_SIZE;
+        for (Entry entry : snapshot) {
+            length += 8 + entry.mEncryptedName.length + entry.mEncryptedValue.length;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length + CRC_SIZE);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(snapshot.size());
+        for (Entry entry : snapshot) {
+            out.writeInt(entry.mEncryptedName.length);
+            out.write(entry.mEncryptedName);
+            out.writeInt(entry.mEncryptedValue.length);
+            out.write(entry.mEncryptedValue);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File tempFile = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            buffer.writeTo(fileOut);
+            // the rename must not reach the disk before the content
+            fileOut.getFD().sync();
+            fileOut.close();
+            FilesHelper.replaceFile(tempFile, mFile);
+            success = true;
+        } finally {
+            FilesHelper.closeQuietly(fileOut);
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    // encrypted name and value of a preference
+    private static final class Entry {
+
+        private final byte[] mEncryptedName;
+        private final byte[] mEncryptedValue;
+
+        private Entry(byte[] encryptedName, byte[] encryptedValue) {
+            mEncryptedName = encryptedName;
+            mEncryptedValue = encryptedValue;
+        }
+    }
+
+    /*
+     * Collects changes until they are committed or applied. A null value marks a removal.
+     */
+    private final class Editor implements SharedPreferences.Editor {
+
+        private final Map<String, Object> mChanges = new HashMap<String, Object>();
+        private boolean mClear;
+
+        @Override
+        public synchronized SharedPreferences.Editor putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor putStringSet(String key,
+                Set<String> values) {
+            mChanges.put(key, values == null ? null : new HashSet<String>(values));
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor putFloat(String key, float value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences.Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            if (!commitChanges()) {
+                return false;
+            }
+            try {
+                save();
+                return true;
+            } catch (IOException e) {
+                Tracer.w(TAG, "Impossible to save preferences", e);
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        @Override
+        public void apply() {
+            if (commitChanges()) {
+                scheduleFlush();
+            }
+        }
+
+        private boolean commitChanges() {
+            Map<String, Object> changes;
+            boolean clear;
+            synchronized (this) {
+                changes = new HashMap<String, Object>(mChanges);
+                clear = mClear;
+                mChanges.clear();
+                mClear = false;
+            }
+            return commitToMemory(changes, clear);
+        }
+    }
+}
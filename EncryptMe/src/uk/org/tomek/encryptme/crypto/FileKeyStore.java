@@ -0,0 +1,340 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * {@link SecretKeyStore} saving its keys in a single binary file. The file is read once, on
+ * first use, and kept in a {@link MemoryKeyStore}, so reads never touch the disk. Changes are
+ * saved in the background shortly after they are made, changes made in the meantime are
+ * saved together. Every save writes a temporary file, syncs it and renames it over the old
+ * one, so the file on disk is always either the old or the new version. <p>
+ * File layout:
+ * <pre>
+ * 'E' 'K' | format version | entry count (int)
+ * entry:  alias (UTF) | key version (int) | algorithm (UTF) | key length (short) | key
+ * CRC32 of the above (int)
+ * </pre>
+ *
+ * @author Tomek Giszczak
+ */
+public final class FileKeyStore implements SecretKeyStore {
+
+    /**
+     * Time changes wait in memory, so that a burst of them is saved at once.
+     */
+    public static final long FLUSH_DELAY_MS = 50;
+
+    private static final String TAG = FileKeyStore.class.getSimpleName();
+    private static final byte MAGIC_0 = 0x45;
+    private static final byte MAGIC_1 = 0x4B;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 7;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_FILE_SIZE = 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static ScheduledExecutorService sFlushExecutor;
+    private final File mFile;
+    private final MemoryKeyStore mCache = MemoryKeyStore.newInstance();
+    // serialises file writes, never taken while holding the instance lock
+    private final Object mSaveLock = new Object();
+    private final Runnable mFlushTask = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (FileKeyStore.this) {
+                mFlushScheduled = false;
+            }
+            try {
+                save();
+            } catch (IOException e) {
+                Tracer.w(TAG, "Impossible to save keys", e);
+                e.printStackTrace();
+            }
+        }
+    };
+    private volatile boolean mLoaded;
+    private boolean mFlushScheduled;
+    private long mChangeCount;
+    private long mSavedChangeCount;
+
+    private FileKeyStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Creates new instance of {@link FileKeyStore}. Nothing is read until the first call.
+     *
+     * @param file file holding the keys, created on first save
+     * @return {@link FileKeyStore}
+     */
+    public static FileKeyStore newInstance(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File must not be null");
+        }
+        return new FileKeyStore(file);
+    }
+
+    @Override
+    public SecretKey getKey(String alias) {
+        ensureLoaded();
+        return mCache.getKey(alias);
+    }
+
+    @Override
+    public SecretKey getKey(String alias, int version) {
+        ensureLoaded();
+        return mCache.getKey(alias, version);
+    }
+
+    @Override
+    public int getLatestVersion(String alias) {
+        ensureLoaded();
+        return mCache.getLatestVersion(alias);
+    }
+
+    @Override
+    public Set<String> getAliases() {
+        ensureLoaded();
+        return mCache.getAliases();
+    }
+
+    @Override
+    public synchronized int putKey(String alias, SecretKey key) {
+        ensureLoaded();
+        int version = mCache.putKey(alias, key);
+        onChanged();
+        return version;
+    }
+
+    @Override
+    public synchronized boolean deleteKey(String alias) {
+        ensureLoaded();
+        boolean deleted = mCache.deleteKey(alias);
+        if (deleted) {
+            onChanged();
+        }
+        return deleted;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        save();
+    }
+
+    private synchronized void onChanged() {
+        mChangeCount++;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            getFlushExecutor().schedule(mFlushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (!mLoaded) {
+            loadOnce();
+        }
+    }
+
+    private synchronized void loadOnce() {
+        if (mLoaded) {
+            return;
+        }
+        long start = Tracer.startTimer();
+        try {
+            load();
+        } catch (IOException e) {
+            // keep the file for inspection, a save would otherwise overwrite it
+            Tracer.w(TAG, "Impossible to read keys, starting empty", e);
+            File corruptFile = new File(mFile.getPath() + CORRUPT_SUFFIX);
+            if (!mFile.renameTo(corruptFile)) {
+                Tracer.w(TAG, "Impossible to move aside " + mFile);
+            }
+        }
+        mLoaded = true;
+        Tracer.d(TAG, "Loaded %d keys in %dus", mCache.getAliases().size(),
+                Tracer.elapsedMicros(start));
+    }
+
+    private void load() throws IOException {
+        byte[] content;
+        FileInputStream in;
+        try {
+            in = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+            return;
+        }
+        try {
+            long length = in.getChannel().size();
+            if (length > MAX_FILE_SIZE) {
+                throw new IOException("Key file too large: " + length);
+            }
+            content = new byte[(int) length];
+            new DataInputStream(in).readFully(content);
+        } finally {
+            FilesHelper.closeQuietly(in);
+        }
+        try {
+            parse(content);
+        } finally {
+            Arrays.fill(content, (byte) 0);
+        }
+    }
+
+    private void parse(byte[] content) throws IOException {
+        if (content.length < HEADER_SIZE + CRC_SIZE || content[0] != MAGIC_0
+                || content[1] != MAGIC_1) {
+            throw new IOException("Not a key file");
+        }
+        if (content[2] != FORMAT_VERSION) {
+            throw new IOException("Unsupported key file version " + content[2]);
+        }
+        int bodyLength = content.length - CRC_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, bodyLength);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        in.skipBytes(bodyLength);
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Key file checksum mismatch");
+        }
+        in = new DataInputStream(new ByteArrayInputStream(content, 3, bodyLength - 3));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String alias = in.readUTF();
+            int version = in.readInt();
+            String algorithm = in.readUTF();
+            byte[] encoded = new byte[in.readUnsignedShort()];
+            in.readFully(encoded);
+            if (version < 1 || encoded.length == 0) {
+                throw new IOException("Invalid key entry");
+            }
+            mCache.adoptKey(alias, version, KeyMaterial.newInstance(encoded, 0, encoded.length,
+                    algorithm));
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    private void save() throws IOException {
+        synchronized (mSaveLock) {
+            long changeCount;
+            Map<String, TreeMap<Integer, SecretKey>> snapshot;
+            synchronized (this) {
+                changeCount = mChangeCount;
+                if (changeCount == mSavedChangeCount) {
+                    return;
+                }
+                snapshot = mCache.snapshot();
+            }
+            long start = Tracer.startTimer();
+            try {
+                write(snapshot);
+            } finally {
+                for (TreeMap<Integer, SecretKey> versions : snapshot.values()) {
+                    for (SecretKey key : versions.values()) {
+                        ((KeyMaterial) key).destroy();
+                    }
+                }
+            }
+            synchronized (this) {
+                mSavedChangeCount = changeCount;
+            }
+            Tracer.d(TAG, "Saved %d changes in %dus", changeCount, Tracer.elapsedMicros(start));
+        }
+    }
+
+    private void write(Map<String, TreeMap<Integer, SecretKey>> snapshot) throws IOException {
+        int count = 0;
+        int maxLength = 0;
+        for (TreeMap<Integer, SecretKey> versions : snapshot.values()) {
+            count += versions.size();
+            for (SecretKey key : versions.values()) {
+                maxLength = Math.max(maxLength, ((KeyMaterial) key).getLength());
+            }
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(count);
+        // one scratch array for every key instead of a copy of each
+        byte[] encoded = new byte[maxLength];
+        for (Map.Entry<String, TreeMap<Integer, SecretKey>> entry : snapshot.entrySet()) {
+            for (Map.Entry<Integer, SecretKey> version : entry.getValue().entrySet()) {
+                KeyMaterial key = (KeyMaterial) version.getValue();
+                key.copyTo(encoded, 0);
+                out.writeUTF(entry.getKey());
+                out.writeInt(version.getKey());
+                out.writeUTF(key.getAlgorithm());
+                out.writeShort(key.getLength());
+                out.write(encoded, 0, key.getLength());
+            }
+        }
+        Arrays.fill(encoded, (byte) 0);
+        byte[] content = buffer.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        File tempFile = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            DataOutputStream fileData = new DataOutputStream(fileOut);
+            fileData.write(content);
+            fileData.writeInt((int) crc.getValue());
+            fileData.flush();
+            // the rename must not reach the disk before the content
+            fileOut.getFD().sync();
+            fileOut.close();
+            FilesHelper.replaceFile(tempFile, mFile);
+            success = true;
+        } finally {
+            Arrays.fill(content, (byte) 0);
+            FilesHelper.closeQuietly(fileOut);
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /*
+     * Single background thread for delayed saves, shared with EncryptedPreferences.
+     */
+    static synchronized ScheduledExecutorService getFlushExecutor() {
+        if (sFlushExecutor == null) {
+            sFlushExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "KeyStoreFlush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sFlushExecutor;
+    }
+}
@@ -0,0 +1,51 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.File;
+
+/**
+ * {@link Platform} of a plain JVM, e.g. a server processing data produced on devices: keys in
+ * a {@link FileKeyStore} in the given directory, no legacy store, and a device identity given
+ * by the caller.
+ *
+ * @author Tomek Giszczak
+ */
+public final class JvmPlatform implements Platform {
+
+    private final File mKeyDir;
+    private final DeviceIdentity mDeviceIdentity;
+
+    private JvmPlatform(File keyDir, DeviceIdentity deviceIdentity) {
+        mKeyDir = keyDir;
+        mDeviceIdentity = deviceIdentity;
+    }
+
+    /**
+     * Creates new instance of {@link JvmPlatform}.
+     *
+     * @param keyDir         directory of the key file, created when the store is opened
+     * @param deviceIdentity identity of the device whose key is derived, may be null
+     * @return {@link JvmPlatform}
+     */
+    public static JvmPlatform newInstance(File keyDir, DeviceIdentity deviceIdentity) {
+        if (keyDir == null) {
+            throw new IllegalArgumentException("Key directory must not be null");
+        }
+        return new JvmPlatform(keyDir, deviceIdentity);
+    }
+
+    @Override
+    public SecretKeyStore openKeyStore() {
+        mKeyDir.mkdirs();
+        return FileKeyStore.newInstance(new File(mKeyDir, KeyFactory.KEY_FILE));
+    }
+
+    @Override
+    public SecretKeyStore openLegacyKeyStore() {
+        return null;
+    }
+
+    @Override
+    public DeviceIdentity getDeviceIdentity() {
+        return mDeviceIdentity;
+    }
+}
@@ -0,0 +1,89 @@
+package uk.org.tomek.encryptme.crypto;
+
+/**
+ * Salt, iteration count and PRF of a password derived key. All three are needed to derive the
+ * same key again, so they are saved together, see {@link #getEncoded()}. <p>
+ * Encoded layout: format version | PRF id | iterations (int) | salt length | salt
+ *
+ * @author Tomek Giszczak
+ */
+public final class KeyDerivationParams {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 7;
+    private final Pbkdf2.Prf mPrf;
+    private final int mIterations;
+    private final byte[] mSalt;
+
+    private KeyDerivationParams(Pbkdf2.Prf prf, int iterations, byte[] salt) {
+        mPrf = prf;
+        mIterations = iterations;
+        mSalt = salt;
+    }
+
+    /**
+     * Creates new instance of {@link KeyDerivationParams}.
+     *
+     * @param prf        pseudo random function
+     * @param iterations iteration count
+     * @param salt       salt of at most 255 bytes
+     * @return {@link KeyDerivationParams}
+     */
+    public static KeyDerivationParams newInstance(Pbkdf2.Prf prf, int iterations, byte[] salt) {
+        if (prf == null || salt == null || salt.length > 255 || iterations < 1) {
+            throw new IllegalArgumentException("Invalid key derivation parameters");
+        }
+        return new KeyDerivationParams(prf, iterations, salt.clone());
+    }
+
+    /**
+     * Reads parameters saved with {@link #getEncoded()}.
+     *
+     * @param encoded encoded parameters
+     * @return {@link KeyDerivationParams}
+     * @throws IllegalArgumentException if the parameters are not in a known format
+     */
+    public static KeyDerivationParams fromEncoded(byte[] encoded) {
+        if (encoded == null || encoded.length < HEADER_SIZE || encoded[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown key derivation parameters");
+        }
+        Pbkdf2.Prf prf = Pbkdf2.Prf.fromId(encoded[1]);
+        int iterations = ((encoded[2] & 0xff) << 24) | ((encoded[3] & 0xff) << 16)
+                | ((encoded[4] & 0xff) << 8) | (encoded[5] & 0xff);
+        int saltLength = encoded[6] & 0xff;
+        if (prf == null || encoded.length != HEADER_SIZE + saltLength) {
+            throw new IllegalArgumentException("Unknown key derivation parameters");
+        }
+        byte[] salt = new byte[saltLength];
+        System.arraycopy(encoded, HEADER_SIZE, salt, 0, saltLength);
+        return newInstance(prf, iterations, salt);
+    }
+
+    /**
+     * Returns the parameters in a compact binary form, see {@link #fromEncoded(byte[])}.
+     */
+    public byte[] getEncoded() {
+        byte[] encoded = new byte[HEADER_SIZE + mSalt.length];
+        encoded[0] = FORMAT_VERSION;
+        encoded[1] = (byte) mPrf.getId();
+        encoded[2] = (byte) (mIterations >>> 24);
+        encoded[3] = (byte) (mIterations >>> 16);
+        encoded[4] = (byte) (mIterations >>> 8);
+        encoded[5] = (byte) mIterations;
+        encoded[6] = (byte) mSalt.length;
+        System.arraycopy(mSalt, 0, encoded, HEADER_SIZE, mSalt.length);
+        return encoded;
+    }
+
+    public Pbkdf2.Prf getPrf() {
+        return mPrf;
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    public byte[] getSalt() {
+        return mSalt.clone();
+    }
+}
@@ -1,18 +1,12 @@
 package uk.org.tomek.encryptme.crypto;
 
-import android.annotation.TargetApi;
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
-import android.os.Build;
-import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.Log;
-
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
@@ -21,7 +15,7 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import uk.org.tomek.encryptme.helpers.Tracer;
 
 /**
  * Creates encryption key used to encrypt/ decrypt the data.
@@ -30,50 +24,296 @@ import uk.org.tomek.encryptme.helpers.HexStringHelper;
  */
 public final class KeyFactory {
 
+    /**
+     * Alias of the key in the {@link SecretKeyStore}, the name older versions saved it under.
+     */
+    public static final String DEFAULT_KEY_ALIAS = "encryption_key";
+    /**
+     * Iterations of {@link #generateKey(char[], byte[])}.
+     */
+    public static final int DEFAULT_ITERATIONS = 1000;
+
     // logger TAG
     private static final String TAG = "KeyFactory";
     private static final String AES = "AES";
-    private static final String KEY_PREFS = "key_prefs";
-    private static final String ENCRYPTION_KEY = "encryption_key";
-    private static final String STANDARD_KEY_ALG_KITCAT = "PBKDF2WithHmacSHA1And8bit";
-    private static final String STANDARD_KEY_ALG_BEFORE_KITCAT = "PBKDF2WithHmacSHA1";
+    /**
+     * Name of the key file {@link Platform#openKeyStore()} keeps the keys in.
+     */
+    static final String KEY_FILE = "keys.bin";
     private static final String BACKUP_KEY_ALG = "PBEWithMD5AndDES";
-    private final SharedPreferences mSharedPreferences;
-    private SecretKey mKey;
+    private static final int DERIVED_KEY_LENGTH = 128;
+    private static final int SALT_LENGTH = 16;
+    // measured once per PRF, see calibrateIterations()
+    private static final long[] sIterationsPerSecond = new long[Pbkdf2.Prf.values().length];
+    private final Platform mPlatform;
+    private SecretKeyStore mKeyStore;
+    private volatile VersionedKey mCurrentKey;
+    // the saved key is read on first use, not when the instance is created
+    private volatile boolean mKeyLoaded;
+    private volatile boolean mLegacyDataMigrated;
+    private volatile DerivedKeyCache mDerivedKeyCache;
+    // replaced as a whole, indexed by Pbkdf2.Prf ordinal, null entries use Pbkdf2
+    private volatile Provider[] mKdfProviders = new Provider[Pbkdf2.Prf.values().length];
 
     // private constructor (please use newInstance() instead)
-    private KeyFactory(final Context context) {
-        if (context == null) {
+    private KeyFactory(final Platform platform) {
+        if (platform == null) {
             throw new IllegalArgumentException();
         }
-        mSharedPreferences = context.getSharedPreferences(KEY_PREFS, Context.MODE_PRIVATE);
-        // try to read saved key
-        SecretKey savedKey = readSavedKey();
-        if (savedKey == null) {
-            // no saved key available, therefore create a new one
-//            mKey = generateNewKeyNoPin();
-        } else {
-            mKey = savedKey;
-            Log.d(TAG, String.format("Using saved key:%s", mKey.getEncoded()));
+        mPlatform = platform;
+    }
+
+    // private constructor for instances using the given key store
+    private KeyFactory(final SecretKeyStore keyStore) {
+        if (keyStore == null) {
+            throw new IllegalArgumentException();
         }
+        mPlatform = null;
+        mKeyStore = keyStore;
+    }
+
+    /**
+     * Creates new instance of {@link KeyFactory} keeping its key in the store of the platform,
+     * which is opened on first use. A key found in the legacy store of the platform is moved
+     * there at the same time.
+     *
+     * @param platform {@link AndroidPlatform} on a device
+     * @return {@link KeyFactory}
+     */
+    public static KeyFactory newInstance(Platform platform) {
+        return new KeyFactory(platform);
     }
 
     /**
-     * Creates new instance of {@link KeyFactory}.
+     * Creates new instance of {@link KeyFactory} keeping its key in the given store, under
+     * {@link #DEFAULT_KEY_ALIAS}.
      *
+     * @param keyStore key store
      * @return {@link KeyFactory}
      */
-    public static KeyFactory newInstance(Context context) {
-        return new KeyFactory(context);
+    public static KeyFactory newInstance(SecretKeyStore keyStore) {
+        return new KeyFactory(keyStore);
     }
 
     /**
-     * Returns default key created during class initialisation.
+     * Creates new instance of {@link KeyFactory} which keeps its key in memory only, e.g. for
+     * tests and benchmarks.
      *
-     * @return default secret key
+     * @param key initial key, may be null
+     * @return {@link KeyFactory}
+     */
+    public static KeyFactory newInMemoryInstance(SecretKey key) {
+        MemoryKeyStore keyStore = MemoryKeyStore.newInstance();
+        if (key != null) {
+            keyStore.putKey(DEFAULT_KEY_ALIAS, key);
+        }
+        KeyFactory keyFactory = new KeyFactory(keyStore);
+        keyFactory.mCurrentKey = key == null ? null
+                : new VersionedKey(getStoredKey(keyStore, key, 1), 1);
+        keyFactory.mKeyLoaded = true;
+        return keyFactory;
+    }
+
+    /*
+     * Returns the copy the store keeps of the key, so that later lookups find it by identity and
+     * the caller can destroy its own key.
+     */
+    private static SecretKey getStoredKey(SecretKeyStore keyStore, SecretKey key, int version) {
+        SecretKey storedKey = keyStore.getKey(DEFAULT_KEY_ALIAS, version);
+        return storedKey != null ? storedKey : key;
+    }
+
+    /**
+     * Returns the store the key is saved in. Opening the store of the platform may touch the
+     * disk, so the first call is best made off the main thread.
+     *
+     * @return key store
+     */
+    public synchronized SecretKeyStore getKeyStore() {
+        if (mKeyStore == null) {
+            mKeyStore = mPlatform.openKeyStore();
+        }
+        return mKeyStore;
+    }
+
+    /**
+     * Returns the current key. The first call reads the saved key, which is disk I/O, so it is
+     * best made off the main thread, e.g. by {@link #warmUp()}.
+     *
+     * @return current secret key or null if there is none
      */
     public SecretKey getKey() {
-        return mKey;
+        if (!mKeyLoaded) {
+            loadSavedKey();
+        }
+        VersionedKey currentKey = mCurrentKey;
+        return currentKey == null ? null : currentKey.mKey;
+    }
+
+    /**
+     * Returns version of the current key in the key store, see
+     * {@link SecretKeyStore#getLatestVersion(String)}.
+     *
+     * @return key version or 0 if there is no key
+     */
+    public int getKeyVersion() {
+        if (!mKeyLoaded) {
+            loadSavedKey();
+        }
+        VersionedKey currentKey = mCurrentKey;
+        return currentKey == null ? 0 : currentKey.mVersion;
+    }
+
+    /**
+     * Returns the given version of the key. Older versions stay in the key store after
+     * {@link #rotateKey()}, so that data encrypted with them can still be read.
+     *
+     * @param version key version
+     * @return secret key or null if there is no such version
+     */
+    public SecretKey getKey(int version) {
+        VersionedKey currentKey = mCurrentKey;
+        if (currentKey != null && currentKey.mVersion == version) {
+            return currentKey.mKey;
+        }
+        return getKeyStore().getKey(DEFAULT_KEY_ALIAS, version);
+    }
+
+    /*
+     * Returns version of the given key, 0 if it is not one of the saved keys.
+     */
+    int getKeyVersion(SecretKey key) {
+        if (key == null) {
+            return 0;
+        }
+        VersionedKey currentKey = mCurrentKey;
+        if (currentKey != null && currentKey.mKey == key) {
+            return currentKey.mVersion;
+        }
+        SecretKeyStore keyStore = getKeyStore();
+        for (int version = keyStore.getLatestVersion(DEFAULT_KEY_ALIAS); version > 0; version--) {
+            // no copies of either key, both are KeyMaterial unless the store is a custom one
+            if (KeyMaterial.isEqual(key, keyStore.getKey(DEFAULT_KEY_ALIAS, version))) {
+                return version;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tells that no data encrypted in {@link CipherMode#LEGACY_CBC} is left, e.g. once a
+     * {@link ReEncryptionJob} in an envelope mode has gone through every store. The key can only
+     * be rotated after that. Not saved: the caller tells it again after a restart, until the
+     * first rotation, after which nothing is encrypted in legacy mode any more.
+     */
+    public void setLegacyDataMigrated() {
+        mLegacyDataMigrated = true;
+    }
+
+    /**
+     * Replaces the current key with a new one. The old key is kept as an older version, so data
+     * encrypted with it stays readable until it is re-encrypted, see {@link ReEncryptionJob}.
+     * Legacy data does not record its key, so it is always decrypted with the first key, and
+     * it has to be re-encrypted in an envelope mode before the first rotation, see
+     * {@link #setLegacyDataMigrated()}.
+     *
+     * @return version of the new key or 0 if no key could be created
+     * @throws IllegalStateException if legacy data may still exist
+     */
+    public synchronized int rotateKey() {
+        if (getKeyVersion() == 1 && !mLegacyDataMigrated) {
+            throw new IllegalStateException("Legacy data has to be re-encrypted in an envelope"
+                    + " mode before the key is rotated");
+        }
+        SecretKey key = generateKey();
+        if (key == null) {
+            return 0;
+        }
+        saveKey(key);
+        return mCurrentKey.mVersion;
+    }
+
+    /**
+     * Tells whether the saved key has been read already, so that {@link #getKey()} returns
+     * without I/O.
+     */
+    public boolean isKeyLoaded() {
+        return mKeyLoaded;
+    }
+
+    /**
+     * Reads the saved key and loads the key generation provider, so that neither happens on
+     * first use.
+     */
+    public void warmUp() {
+        long start = Tracer.startTimer();
+        getKey();
+        try {
+            KeyGenerator.getInstance(AES);
+        } catch (NoSuchAlgorithmException e) {
+            Tracer.w(TAG, "Impossible to warm up key providers", e);
+        }
+        Tracer.d(TAG, "Warmed up in %dus", Tracer.elapsedMicros(start));
+    }
+
+    private synchronized void loadSavedKey() {
+        if (mKeyLoaded) {
+            return;
+        }
+        long start = Tracer.startTimer();
+        SecretKeyStore keyStore = getKeyStore();
+        if (mPlatform != null && keyStore.getLatestVersion(DEFAULT_KEY_ALIAS) == 0) {
+            SecretKeyStore legacyKeyStore = mPlatform.openLegacyKeyStore();
+            if (legacyKeyStore != null) {
+                migrateSavedKey(legacyKeyStore, keyStore);
+            }
+        }
+        // try to read saved key
+        SecretKey savedKey = keyStore.getKey(DEFAULT_KEY_ALIAS);
+        if (savedKey == null) {
+            // no saved key available, therefore create a new one
+//            mKey = generateNewKeyNoPin();
+        } else {
+            int version = keyStore.getLatestVersion(DEFAULT_KEY_ALIAS);
+            mCurrentKey = new VersionedKey(savedKey, version);
+            Tracer.d(TAG, "Using saved key of %d bits", getKeyBits(savedKey));
+        }
+        mKeyLoaded = true;
+        Tracer.d(TAG, "Loaded saved key in %dus", Tracer.elapsedMicros(start));
+    }
+
+    private static long getKeyBits(SecretKey key) {
+        if (key instanceof KeyMaterial) {
+            return ((KeyMaterial) key).getLength() * 8L;
+        }
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            return 0;
+        }
+        Arrays.fill(encoded, (byte) 0);
+        return encoded.length * 8L;
+    }
+
+    /*
+     * Moves the key saved by older versions of the app, e.g. in the preferences, to the key
+     * store.
+     */
+    private static void migrateSavedKey(SecretKeyStore legacyKeyStore, SecretKeyStore keyStore) {
+        SecretKey legacyKey = legacyKeyStore.getKey(DEFAULT_KEY_ALIAS);
+        if (legacyKey == null) {
+            return;
+        }
+        keyStore.putKey(DEFAULT_KEY_ALIAS, legacyKey);
+        try {
+            keyStore.flush();
+            // only once the key is safe in its new place
+            legacyKeyStore.deleteKey(DEFAULT_KEY_ALIAS);
+            Tracer.d(TAG, "Migrated saved key of %d bits", getKeyBits(legacyKey));
+        } catch (IOException e) {
+            // the key stays in the preferences, the migration runs again on next start
+            Tracer.w(TAG, "Impossible to migrate saved key", e);
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -88,7 +328,7 @@ public final class KeyFactory {
         // check max supported key length for AES
         try {
             int maxAllowedKeyLength = Cipher.getMaxAllowedKeyLength(AES);
-            Log.d(TAG, String.format("maxAllowedKeyLength for AES=%d", maxAllowedKeyLength));
+            Tracer.d(TAG, "maxAllowedKeyLength for AES=%d", maxAllowedKeyLength);
             // set the output key length to 256 if supported
             if (maxAllowedKeyLength >= 256) {
                 outputKeyLength = 256;
@@ -106,14 +346,15 @@ public final class KeyFactory {
             keyGenerator.init(outputKeyLength, secureRandom);
             key = keyGenerator.generateKey();
         } catch (NoSuchAlgorithmException e) {
-            Log.d(TAG, "Impossible to create encryption key" + e.getClass().getSimpleName());
+            Tracer.w(TAG, "Impossible to create encryption key", e);
             e.printStackTrace();
         }
         return key;
     }
 
     /**
-     * Generates secret code with PIN code used as an input parameter.
+     * Generates secret code with PIN code used as an input parameter, with
+     * {@link #DEFAULT_ITERATIONS}. The keys of older versions were derived this way.
      *
      * @param passphraseOrPin initialisation password/PIN
      * @param salt initialisation salt
@@ -122,63 +363,185 @@ public final class KeyFactory {
      */
     public SecretKey generateKey(char[] passphraseOrPin, byte[] salt)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
-        // Number of PBKDF2 hardening rounds to use. Larger values increase
-        // computation time. You should select a value that causes computation
-        // to take >100ms.
-        final int iterations = 1000;
+        return generateKey(passphraseOrPin, KeyDerivationParams.newInstance(Pbkdf2.Prf.HMAC_SHA1,
+                DEFAULT_ITERATIONS, salt));
+    }
 
-        // Generate a 128-bit key
-        final int outputKeyLength = 128;
+    /**
+     * Generates secret code with PIN code used as an input parameter. The same parameters have
+     * to be used to derive the same key again, so they are best saved next to the data, see
+     * {@link KeyDerivationParams#getEncoded()}.
+     *
+     * @param passphraseOrPin initialisation password/PIN
+     * @param params salt, iteration count and PRF, e.g. from {@link #newDerivationParams(long)}
+     * @return 128 bit key
+     */
+    public SecretKey generateKey(char[] passphraseOrPin, KeyDerivationParams params) {
+        int iterations = params.getIterations();
+        byte[] salt = params.getSalt();
+        String algorithm = params.getPrf().getJceAlgorithm();
+        DerivedKeyCache cache = mDerivedKeyCache;
+        DerivedKeyCache.CacheKey cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.newCacheKey(algorithm, passphraseOrPin, salt, iterations,
+                    DERIVED_KEY_LENGTH);
+            SecretKey cachedKey = cacheKey == null ? null : cache.get(cacheKey);
+            if (cachedKey != null) {
+                return cachedKey;
+            }
+        }
 
-        // taking into account the change in KITKAT see
+        long start = Tracer.startTimer();
+        byte[] keyBytes = deriveKeyBytes(params.getPrf(), passphraseOrPin, salt, iterations);
+        SecretKey key = new SecretKeySpec(keyBytes, AES);
+        Arrays.fill(keyBytes, (byte) 0);
+        Tracer.d(TAG, "Derived key with %d iterations in %dus", iterations,
+                Tracer.elapsedMicros(start));
+        if (cacheKey != null) {
+            cache.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    private byte[] deriveKeyBytes(Pbkdf2.Prf prf, char[] passphraseOrPin, byte[] salt,
+            int iterations) {
+        Provider provider = mKdfProviders[prf.ordinal()];
+        // providers turn other chars into bytes in their own way, see ProviderSelector
+        if (provider != null && isAscii(passphraseOrPin)) {
+            PBEKeySpec spec = new PBEKeySpec(passphraseOrPin, salt, iterations,
+                    DERIVED_KEY_LENGTH);
+            try {
+                return SecretKeyFactory.getInstance(prf.getJceAlgorithm(), provider)
+                        .generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                Tracer.w(TAG, "Impossible to derive key with " + provider.getName(), e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+        // only the lower 8 bits of every char, as the platform PBKDF2WithHmacSHA1 did before
+        // KitKat and PBKDF2WithHmacSHA1And8bit does since, see
         // http://android-developers.blogspot.co.uk/2013/12/changes-to-secretkeyfactory-api-in.html
-        SecretKeyFactory secretKeyFactory = null;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            // Use compatibility key factory -- only uses lower 8-bits of passphrase chars
-            secretKeyFactory = SecretKeyFactory.getInstance(STANDARD_KEY_ALG_KITCAT);
-        } else {
-            // Traditional key factory. Will use lower 8-bits of passphrase chars on
-            // older Android versions (API level 18 and lower) and all available bits
-            // on KitKat and newer (API level 19 and higher).
-            secretKeyFactory = SecretKeyFactory.getInstance(STANDARD_KEY_ALG_BEFORE_KITCAT);
+        byte[] password = new byte[passphraseOrPin.length];
+        for (int i = 0; i < password.length; i++) {
+            password[i] = (byte) passphraseOrPin[i];
+        }
+        try {
+            return Pbkdf2.deriveKey(prf, password, salt, iterations, DERIVED_KEY_LENGTH / 8);
+        } finally {
+            Arrays.fill(password, (byte) 0);
+        }
+    }
+
+    private static boolean isAscii(char[] chars) {
+        if (chars.length == 0) {
+            // some providers refuse an empty password
+            return false;
+        }
+        for (char c : chars) {
+            if (c >= 0x80) {
+                return false;
+            }
         }
-        KeySpec keySpec = new PBEKeySpec(passphraseOrPin, salt, iterations, outputKeyLength);
-        return secretKeyFactory.generateSecret(keySpec);
+        return true;
     }
 
     /**
-     * Store current key in persistent storage.
+     * Derives keys of the given PRF with a {@link SecretKeyFactory} of the given provider
+     * instead of {@link Pbkdf2}, see {@link ProviderSelector}. The keys are the same either way,
+     * passphrases with non ASCII characters always go through {@link Pbkdf2}.
+     *
+     * @param prf      pseudo random function
+     * @param provider provider or null for {@link Pbkdf2}
      */
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
-    public void saveKey(final SecretKey key) {
-        mKey = key;
-        Editor preferencesEditor = mSharedPreferences.edit();
-        byte[] encodedKeyBytes = key.getEncoded();
-        Log.d(TAG,
-                String.format("Saving binary key:%s", HexStringHelper.hexEncode(encodedKeyBytes)));
-        preferencesEditor.putString(ENCRYPTION_KEY, new String(encodedKeyBytes,
-                CryptoUtils.DEFAULT_CHARSET));
-        preferencesEditor.commit();
+    public synchronized void setKdfProvider(Pbkdf2.Prf prf, Provider provider) {
+        Provider[] providers = mKdfProviders.clone();
+        providers[prf.ordinal()] = provider;
+        mKdfProviders = providers;
     }
 
-    /*
-     * Reads and recreates previously saved key.
+    /**
+     * Creates parameters for a new password derived key: a random salt and the iteration count
+     * which takes about the target time on this device. The device is measured on first call
+     * only, which takes some 50ms, so it does not belong on the main thread.
+     *
+     * @param targetMillis target derivation time, e.g. 100ms or more
+     * @return HMAC-SHA256 parameters
      */
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
-    private SecretKey readSavedKey() {
-        String keyString = mSharedPreferences.getString(ENCRYPTION_KEY, null);
-        if (TextUtils.isEmpty(keyString)) {
-            return null;
-        } else {
-            Log.d(TAG, String.format("Got String key:%s", keyString));
-            SecretKeySpec secretKeySpec = new SecretKeySpec(
-                    keyString.getBytes(CryptoUtils.DEFAULT_CHARSET), AES);
-            Log.d(TAG,
-                    String.format("Retrieved binary key:%s",
-                            HexStringHelper.hexEncode(secretKeySpec.getEncoded()))
-            );
-            return secretKeySpec;
+    public KeyDerivationParams newDerivationParams(long targetMillis) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return KeyDerivationParams.newInstance(Pbkdf2.Prf.HMAC_SHA256,
+                calibrateIterations(Pbkdf2.Prf.HMAC_SHA256, targetMillis), salt);
+    }
+
+    /**
+     * Returns the iteration count which takes about the target time on this device.
+     *
+     * @param prf          pseudo random function
+     * @param targetMillis target derivation time
+     * @return iteration count
+     */
+    public static synchronized int calibrateIterations(Pbkdf2.Prf prf, long targetMillis) {
+        // iterations per second do not change while the app runs
+        long rate = sIterationsPerSecond[prf.ordinal()];
+        if (rate == 0) {
+            rate = Pbkdf2.calibrate(prf, 1000);
+            sIterationsPerSecond[prf.ordinal()] = rate;
+            Tracer.d(TAG, "Measured %d iterations per second", rate);
+        }
+        long iterations = rate * targetMillis / 1000;
+        return (int) Math.max(Pbkdf2.MIN_ITERATIONS, Math.min(Pbkdf2.MAX_ITERATIONS, iterations));
+    }
+
+    /**
+     * Enables caching of keys returned by {@link #generateKey(char[], byte[])}, so that
+     * repeated derivations with the same passphrase and salt skip PBKDF2.
+     *
+     * @param maxEntries maximum number of cached keys
+     * @param ttlMillis  time after which a cached key has to be derived again
+     */
+    public void enableDerivedKeyCache(int maxEntries, long ttlMillis) {
+        DerivedKeyCache previous = mDerivedKeyCache;
+        mDerivedKeyCache = DerivedKeyCache.newInstance(maxEntries, ttlMillis);
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Disables the derived key cache and wipes its content.
+     */
+    public void disableDerivedKeyCache() {
+        DerivedKeyCache previous = mDerivedKeyCache;
+        mDerivedKeyCache = null;
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Returns derived key cache, e.g. to read its hit/miss counters.
+     *
+     * @return cache or null if caching is not enabled
+     */
+    public DerivedKeyCache getDerivedKeyCache() {
+        return mDerivedKeyCache;
+    }
+
+    /**
+     * Store current key in persistent storage. The key is used at once, the store saves it in
+     * the background, see {@link SecretKeyStore#flush()}.
+     */
+    public synchronized void saveKey(final SecretKey key) {
+        // loading the saved key first, so that it can not replace this one later
+        if (!mKeyLoaded) {
+            loadSavedKey();
         }
+        SecretKeyStore keyStore = getKeyStore();
+        int version = keyStore.putKey(DEFAULT_KEY_ALIAS, key);
+        mCurrentKey = new VersionedKey(getStoredKey(keyStore, key, version), version);
+        Tracer.d(TAG, "Saved key version %d", version);
     }
 
     /**
@@ -186,21 +549,26 @@ public final class KeyFactory {
      */
     public SecretKey generateNewKeyNoPin() {
         SecretKey keyNoPin = generateKey();
-        Log.d(TAG, String.format("Created new key=%s",
-                HexStringHelper.hexEncode(keyNoPin.getEncoded())));
+        Tracer.d(TAG, "Created new key, null:%s", keyNoPin == null);
         return keyNoPin;
     }
 
     /**
-     * Generate key using package name and device ID as key generator inputs.
+     * Generate key using app ID and device ID as key generator inputs. The same identity gives
+     * the same key on any platform, so a server can derive the key of a device from the
+     * values it reported.
      *
-     * @param context app context
+     * @param identity identity of the app on a device, see {@link Platform#getDeviceIdentity()}
+     * @return a key or null
      */
-    public SecretKey generateKeyFromPackage(final Context context) {
-        char[] packageChars = context.getPackageName().toCharArray();
-        byte[] serialNumber = getDeviceSerial(context).getBytes();
+    public SecretKey generateKeyFromIdentity(final DeviceIdentity identity) {
+        if (identity == null) {
+            throw new IllegalArgumentException("Device identity must not be null");
+        }
+        char[] appIdChars = identity.getAppId().toCharArray();
+        byte[] deviceId = identity.getDeviceId().getBytes();
         try {
-            return generateKey(packageChars, serialNumber);
+            return generateKey(appIdChars, deviceId);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         } catch (InvalidKeySpecException e) {
@@ -210,28 +578,15 @@ public final class KeyFactory {
         return null;
     }
 
-    /**
-     * Returns device serial number as String.
-     *
-     * @return
-     */
-    private static String getDeviceSerial(Context context) {
-        try {
-            String deviceSerial = (String) Build.class.getField("SERIAL").get(null);
+    // the key and its version are replaced together
+    private static final class VersionedKey {
 
-            // if it is still empty try a different way
-            if (TextUtils.isEmpty(deviceSerial)) {
-                deviceSerial = Settings.Secure.getString(context.getContentResolver(),
-                        Settings.Secure.ANDROID_ID);
-            }
-            Log.d(TAG, String.format("Got serial number:%s", deviceSerial));
+        private final SecretKey mKey;
+        private final int mVersion;
 
-            return deviceSerial;
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        } catch (NoSuchFieldException e) {
-            e.printStackTrace();
+        private VersionedKey(SecretKey key, int version) {
+            mKey = key;
+            mVersion = version;
         }
-        return null;
     }
 }
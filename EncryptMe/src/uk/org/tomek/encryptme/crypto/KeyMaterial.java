@@ -0,0 +1,352 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+import javax.security.auth.Destroyable;
+
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * {@link SecretKey} whose bytes live in a single direct buffer, outside of the Java heap, so
+ * that the garbage collector never moves copies of them around and {@link #destroy()} wipes the
+ * only one. The key stores hand out instances of it. <p>
+ * The library reads the bytes with {@link #borrow(Borrower)}, {@link #copyTo(byte[], int)} and
+ * {@link #isEqual(SecretKey, SecretKey)}, none of which allocates on the usual single threaded
+ * path. {@link #getEncoded()} still returns a copy, as the providers ask for one whenever a
+ * cipher is initialised. <p>
+ * Instances which become unreachable without being destroyed are counted as leaked and wiped
+ * once the garbage collector finds them, see {@link #getLeakedCount()}.
+ *
+ * @author Tomek Giszczak
+ */
+public final class KeyMaterial implements SecretKey, Destroyable {
+
+    private static final long serialVersionUID = 1L;
+    private static final String TAG = KeyMaterial.class.getSimpleName();
+    private static final String FORMAT = "RAW";
+    // flag of mState, the lower bits count the borrowers
+    private static final int DESTROYED = 0x80000000;
+    private static final ReferenceQueue<KeyMaterial> sCollectedKeys =
+            new ReferenceQueue<KeyMaterial>();
+    // keeps the trackers reachable until their key is destroyed or collected
+    private static final Set<LeakTracker> sLiveKeys =
+            Collections.synchronizedSet(new HashSet<LeakTracker>());
+    private static final AtomicLong sLeakedCount = new AtomicLong();
+    private final transient ByteBuffer mBuffer;
+    private final transient AtomicReference<ByteBuffer> mIdleView;
+    private final transient AtomicInteger mState = new AtomicInteger();
+    private final transient LeakTracker mTracker;
+    private final String mAlgorithm;
+    private final int mLength;
+
+    private KeyMaterial(ByteBuffer buffer, String algorithm) {
+        mBuffer = buffer;
+        mIdleView = new AtomicReference<ByteBuffer>(buffer.asReadOnlyBuffer());
+        mAlgorithm = algorithm;
+        mLength = buffer.capacity();
+        mTracker = new LeakTracker(this, buffer);
+        sLiveKeys.add(mTracker);
+    }
+
+    /**
+     * Creates new instance of {@link KeyMaterial} holding a copy of the given bytes. The caller
+     * still owns the array and should wipe it.
+     *
+     * @param key       key bytes
+     * @param offset    offset of the key in the array
+     * @param length    key length in bytes
+     * @param algorithm algorithm of the key, e.g. "AES"
+     * @return {@link KeyMaterial}
+     */
+    public static KeyMaterial newInstance(byte[] key, int offset, int length, String algorithm) {
+        if (key == null || algorithm == null || length < 1 || offset < 0
+                || offset > key.length - length) {
+            throw new IllegalArgumentException("Invalid key bytes or algorithm");
+        }
+        pollCollectedKeys();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(key, offset, length);
+        return new KeyMaterial(buffer, algorithm);
+    }
+
+    /**
+     * Creates new instance of {@link KeyMaterial} holding a copy of the given key. The copy of
+     * another {@link KeyMaterial} is made without going through the heap.
+     *
+     * @param key key to copy
+     * @return {@link KeyMaterial}
+     * @throws IllegalArgumentException if the key can not be exported
+     */
+    public static KeyMaterial newInstance(SecretKey key) {
+        if (key instanceof KeyMaterial) {
+            KeyMaterial source = (KeyMaterial) key;
+            pollCollectedKeys();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(source.mLength);
+            ByteBuffer view = source.acquire();
+            try {
+                buffer.put(view);
+            } finally {
+                source.release(view);
+            }
+            return new KeyMaterial(buffer, source.mAlgorithm);
+        }
+        byte[] encoded = key == null ? null : key.getEncoded();
+        if (encoded == null || encoded.length == 0) {
+            throw new IllegalArgumentException("Key can not be exported");
+        }
+        try {
+            return newInstance(encoded, 0, encoded.length, key.getAlgorithm());
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    /**
+     * Hands the key bytes to the borrower without copying them.
+     *
+     * @param borrower code using the key
+     * @return result of the borrower
+     * @throws IllegalStateException if the key has been destroyed
+     */
+    public <T> T borrow(Borrower<T> borrower) {
+        ByteBuffer view = acquire();
+        try {
+            return borrower.borrow(view);
+        } finally {
+            release(view);
+        }
+    }
+
+    /**
+     * Copies the key bytes into a caller owned array, e.g. a scratch array reused across calls.
+     *
+     * @param destination array with {@link #getLength()} bytes from the offset
+     * @param offset      offset in the array
+     * @throws IllegalStateException if the key has been destroyed
+     */
+    public void copyTo(byte[] destination, int offset) {
+        ByteBuffer view = acquire();
+        try {
+            view.get(destination, offset, mLength);
+        } finally {
+            release(view);
+        }
+    }
+
+    /**
+     * Compares two keys in constant time. Two instances of {@link KeyMaterial} are compared
+     * without copying their bytes.
+     *
+     * @return true if both keys have the same bytes, false if either is null
+     */
+    public static boolean isEqual(SecretKey first, SecretKey second) {
+        if (first == null || second == null) {
+            return false;
+        }
+        if (first == second) {
+            return true;
+        }
+        if (first instanceof KeyMaterial && second instanceof KeyMaterial) {
+            return ((KeyMaterial) first).isEqual((KeyMaterial) second);
+        }
+        byte[] firstBytes = first.getEncoded();
+        byte[] secondBytes = second.getEncoded();
+        try {
+            return firstBytes != null && secondBytes != null
+                    && MessageDigest.isEqual(firstBytes, secondBytes);
+        } finally {
+            if (firstBytes != null) {
+                Arrays.fill(firstBytes, (byte) 0);
+            }
+            if (secondBytes != null) {
+                Arrays.fill(secondBytes, (byte) 0);
+            }
+        }
+    }
+
+    private boolean isEqual(KeyMaterial other) {
+        if (mLength != other.mLength) {
+            return false;
+        }
+        ByteBuffer view = acquire();
+        try {
+            ByteBuffer otherView = other.acquire();
+            try {
+                int difference = 0;
+                for (int i = 0; i < mLength; i++) {
+                    difference |= view.get(i) ^ otherView.get(i);
+                }
+                return difference == 0;
+            } finally {
+                other.release(otherView);
+            }
+        } finally {
+            release(view);
+        }
+    }
+
+    /*
+     * Registers a borrower and returns a read only view of the whole key. The view is shared
+     * between the calls of one thread and only created again if several threads borrow at once.
+     */
+    private ByteBuffer acquire() {
+        int state;
+        do {
+            state = mState.get();
+            if ((state & DESTROYED) != 0) {
+                throw new IllegalStateException("Key has been destroyed");
+            }
+        } while (!mState.compareAndSet(state, state + 1));
+        ByteBuffer view = mIdleView.getAndSet(null);
+        if (view == null) {
+            view = mBuffer.asReadOnlyBuffer();
+        }
+        view.clear();
+        return view;
+    }
+
+    private void release(ByteBuffer view) {
+        mIdleView.set(view);
+        // the last borrower wipes a key destroyed in the meantime
+        if (mState.decrementAndGet() == DESTROYED) {
+            wipe();
+        }
+    }
+
+    /**
+     * Overwrites the key bytes. Borrowers using the key at the time finish first, further calls
+     * throw {@link IllegalStateException}. Destroying a key twice does nothing.
+     */
+    @Override
+    public void destroy() {
+        int state;
+        do {
+            state = mState.get();
+            if ((state & DESTROYED) != 0) {
+                return;
+            }
+        } while (!mState.compareAndSet(state, state | DESTROYED));
+        if (state == 0) {
+            wipe();
+        }
+    }
+
+    private void wipe() {
+        for (int i = 0; i < mLength; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+        sLiveKeys.remove(mTracker);
+        mTracker.clear();
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return (mState.get() & DESTROYED) != 0;
+    }
+
+    /**
+     * Returns a copy of the key bytes, which the caller should wipe.
+     *
+     * @throws IllegalStateException if the key has been destroyed
+     */
+    @Override
+    public byte[] getEncoded() {
+        byte[] encoded = new byte[mLength];
+        copyTo(encoded, 0);
+        return encoded;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    /**
+     * Returns the key length in bytes.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns number of instances neither destroyed nor collected yet.
+     */
+    public static int getLiveCount() {
+        pollCollectedKeys();
+        return sLiveKeys.size();
+    }
+
+    /**
+     * Returns number of instances the garbage collector found without them having been
+     * destroyed. Every one of them is reported in a warning trace when it is found.
+     */
+    public static long getLeakedCount() {
+        pollCollectedKeys();
+        return sLeakedCount.get();
+    }
+
+    private static void pollCollectedKeys() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) sCollectedKeys.poll()) != null) {
+            // destroyed keys clear their tracker, so it is never enqueued
+            sLiveKeys.remove(tracker);
+            ByteBuffer buffer = tracker.mBuffer;
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            sLeakedCount.incrementAndGet();
+            Tracer.w(TAG, "Key of " + buffer.capacity() + " bytes was not destroyed");
+        }
+    }
+
+    // keys must not end up in a file or a bundle by accident
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        throw new NotSerializableException(TAG);
+    }
+
+    /**
+     * Code using the bytes of a key, see {@link KeyMaterial#borrow(Borrower)}.
+     */
+    public interface Borrower<T> {
+
+        /**
+         * Uses the key.
+         *
+         * @param key read only buffer from position 0 to the key length, only valid during
+         *            the call
+         * @return any result
+         */
+        T borrow(ByteBuffer key);
+    }
+
+    /*
+     * Holds the buffer, not the key, so that the buffer can be wiped once the key is collected.
+     */
+    private static final class LeakTracker extends PhantomReference<KeyMaterial> {
+        private final ByteBuffer mBuffer;
+
+        private LeakTracker(KeyMaterial key, ByteBuffer buffer) {
+            super(key, sCollectedKeys);
+            mBuffer = buffer;
+        }
+    }
+}
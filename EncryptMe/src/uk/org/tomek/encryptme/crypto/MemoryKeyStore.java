@@ -0,0 +1,126 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.crypto.SecretKey;
+
+/**
+ * {@link SecretKeyStore} keeping its keys in memory only, e.g. for tests. Also serves as the
+ * read cache of {@link FileKeyStore}. Keys are held as {@link KeyMaterial} copies owned by the
+ * store, deleting or replacing a key destroys its copy.
+ *
+ * @author Tomek Giszczak
+ */
+public final class MemoryKeyStore implements SecretKeyStore {
+
+    private final Map<String, TreeMap<Integer, SecretKey>> mKeys =
+            new HashMap<String, TreeMap<Integer, SecretKey>>();
+
+    private MemoryKeyStore() {
+    }
+
+    /**
+     * Creates new, empty instance of {@link MemoryKeyStore}.
+     *
+     * @return {@link MemoryKeyStore}
+     */
+    public static MemoryKeyStore newInstance() {
+        return new MemoryKeyStore();
+    }
+
+    @Override
+    public synchronized SecretKey getKey(String alias) {
+        TreeMap<Integer, SecretKey> versions = mKeys.get(alias);
+        return versions == null ? null : versions.get(versions.lastKey());
+    }
+
+    @Override
+    public synchronized SecretKey getKey(String alias, int version) {
+        TreeMap<Integer, SecretKey> versions = mKeys.get(alias);
+        return versions == null ? null : versions.get(version);
+    }
+
+    @Override
+    public synchronized int getLatestVersion(String alias) {
+        TreeMap<Integer, SecretKey> versions = mKeys.get(alias);
+        return versions == null ? 0 : versions.lastKey();
+    }
+
+    @Override
+    public synchronized Set<String> getAliases() {
+        return new HashSet<String>(mKeys.keySet());
+    }
+
+    @Override
+    public synchronized int putKey(String alias, SecretKey key) {
+        int version = getLatestVersion(alias) + 1;
+        putKey(alias, version, key);
+        return version;
+    }
+
+    /*
+     * Stores the key under the given version, replacing the key stored there before.
+     */
+    synchronized void putKey(String alias, int version, SecretKey key) {
+        if (alias == null || key == null || version < 1) {
+            throw new IllegalArgumentException("Alias, key and version must be set");
+        }
+        // a copy, the caller may destroy its own key
+        adoptKey(alias, version, KeyMaterial.newInstance(key));
+    }
+
+    /*
+     * Stores the key under the given version without copying it, the store destroys it when it
+     * is replaced or deleted.
+     */
+    synchronized void adoptKey(String alias, int version, KeyMaterial key) {
+        TreeMap<Integer, SecretKey> versions = mKeys.get(alias);
+        if (versions == null) {
+            versions = new TreeMap<Integer, SecretKey>();
+            mKeys.put(alias, versions);
+        }
+        SecretKey previous = versions.put(version, key);
+        if (previous != null && previous != key) {
+            ((KeyMaterial) previous).destroy();
+        }
+    }
+
+    @Override
+    public synchronized boolean deleteKey(String alias) {
+        TreeMap<Integer, SecretKey> versions = mKeys.remove(alias);
+        if (versions == null) {
+            return false;
+        }
+        for (SecretKey key : versions.values()) {
+            ((KeyMaterial) key).destroy();
+        }
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        // nothing to save
+    }
+
+    /*
+     * Returns a copy of every version of every key, e.g. to save it. The copies are not deleted
+     * with the keys of the store, the caller destroys them once done.
+     */
+    synchronized Map<String, TreeMap<Integer, SecretKey>> snapshot() {
+        Map<String, TreeMap<Integer, SecretKey>> snapshot =
+                new LinkedHashMap<String, TreeMap<Integer, SecretKey>>();
+        for (Map.Entry<String, TreeMap<Integer, SecretKey>> entry : mKeys.entrySet()) {
+            TreeMap<Integer, SecretKey> versions = new TreeMap<Integer, SecretKey>();
+            for (Map.Entry<Integer, SecretKey> version : entry.getValue().entrySet()) {
+                versions.put(version.getKey(), KeyMaterial.newInstance(version.getValue()));
+            }
+            snapshot.put(entry.getKey(), versions);
+        }
+        return snapshot;
+    }
+}
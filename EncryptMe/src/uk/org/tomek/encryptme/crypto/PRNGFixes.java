@@ -24,6 +24,7 @@ import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.SecureRandomSpi;
 import java.security.Security;
+import java.util.Arrays;
 
 import android.os.Build;
 import android.os.Process;
@@ -42,17 +43,67 @@ public final class PRNGFixes {
     private static final byte[] BUILD_FINGERPRINT_AND_DEVICE_SERIAL =
         getBuildFingerprintAndDeviceSerial();
 
+    /** Whether {@link #apply()} has succeeded in this process. */
+    private static volatile boolean sApplied;
+
     /** Hidden constructor to prevent instantiation. */
     private PRNGFixes() {}
 
     /**
-     * Applies all fixes.
+     * Applies all fixes. Calls after the first successful one return
+     * immediately.
      *
      * @throws SecurityException if a fix is needed but could not be applied.
      */
     public static void apply() {
-        applyOpenSSLFix();
-        installLinuxPRNGSecureRandom();
+        if (sApplied) {
+            return;
+        }
+        synchronized (PRNGFixes.class) {
+            if (!sApplied) {
+                applyOpenSSLFix();
+                installLinuxPRNGSecureRandom();
+                sApplied = true;
+            }
+        }
+    }
+
+    /**
+     * Switches the Linux PRNG-backed {@code SecureRandom} installed by
+     * {@link #apply()} between the default mode, where every request is a
+     * separate read serialized across all threads, and a high-throughput mode
+     * where threads are spread over several buffered readers. In the
+     * high-throughput mode PRNG output is pulled into the process ahead of use.
+     * Only enable it after the process has been forked.
+     *
+     * @param enabled whether to use buffered, striped reads
+     */
+    public static void setHighThroughputMode(boolean enabled) {
+        LinuxPRNGSecureRandom.sHighThroughputMode = enabled;
+    }
+
+    /**
+     * Returns the number of buffered readers of the high-throughput mode, a
+     * power of two between two and four per processor, or 0 if the mode has
+     * not served a request yet.
+     */
+    public static int getStripeCount() {
+        UrandomStripe[] stripes = LinuxPRNGSecureRandom.sStripes;
+        return stripes == null ? 0 : stripes.length;
+    }
+
+    /**
+     * Returns the number of requests served by the high-throughput mode.
+     */
+    public static long getStripedRequestCount() {
+        UrandomStripe[] stripes = LinuxPRNGSecureRandom.sStripes;
+        long count = 0;
+        if (stripes != null) {
+            for (UrandomStripe stripe : stripes) {
+                count += stripe.getRequestCount();
+            }
+        }
+        return count;
     }
 
     /**
@@ -177,6 +228,13 @@ public final class PRNGFixes {
          * Concurrency: Read requests to the underlying Linux PRNG are
          * serialized (on sLock) to ensure that multiple threads do not get
          * duplicated PRNG output.
+         *
+         * In the high-throughput mode each thread is mapped to one of several
+         * stripes, each with its own stream and buffer guarded by the stripe.
+         * Threads on different stripes never wait for each other and small
+         * requests are served from the buffer without a read. Every buffered
+         * byte is handed out once and then overwritten, and a buffer filled
+         * before a fork is discarded by the child.
          */
 
 		private static final long serialVersionUID = -8005600388408962328L;
@@ -185,6 +243,19 @@ public final class PRNGFixes {
 
         private static final Object sLock = new Object();
 
+        private static final int STRIPE_BUFFER_SIZE = 4096;
+
+        /**
+         * Whether reads go through the buffered stripes.
+         */
+        static volatile boolean sHighThroughputMode;
+
+        /**
+         * Buffered readers of the high-throughput mode or {@code null} if not
+         * yet created. The length is a power of two.
+         */
+        private static volatile UrandomStripe[] sStripes;
+
         /**
          * Input stream for reading from Linux PRNG or {@code null} if not yet
          * opened.
@@ -232,6 +303,13 @@ public final class PRNGFixes {
             }
 
             try {
+                if (sHighThroughputMode) {
+                    UrandomStripe[] stripes = getStripes();
+                    int index = (int) Thread.currentThread().getId()
+                            & (stripes.length - 1);
+                    stripes[index].read(bytes);
+                    return;
+                }
                 DataInputStream in;
                 synchronized (sLock) {
                     in = getUrandomInputStream();
@@ -271,6 +349,27 @@ public final class PRNGFixes {
             }
         }
 
+        private static UrandomStripe[] getStripes() {
+            UrandomStripe[] stripes = sStripes;
+            if (stripes == null) {
+                synchronized (sLock) {
+                    stripes = sStripes;
+                    if (stripes == null) {
+                        // two to four stripes per processor keep collisions
+                        // rare, a power of two lets the thread id be masked
+                        int count = Integer.highestOneBit(
+                                Runtime.getRuntime().availableProcessors() * 4 - 1);
+                        stripes = new UrandomStripe[count];
+                        for (int i = 0; i < count; i++) {
+                            stripes[i] = new UrandomStripe();
+                        }
+                        sStripes = stripes;
+                    }
+                }
+            }
+            return stripes;
+        }
+
         private OutputStream getUrandomOutputStream() {
             synchronized (sLock) {
                 if (sUrandomOut == null) {
@@ -286,6 +385,78 @@ public final class PRNGFixes {
         }
     }
 
+    /**
+     * Buffered reader of the Linux PRNG used by one stripe of
+     * {@link LinuxPRNGSecureRandom} in the high-throughput mode.
+     */
+    private static final class UrandomStripe {
+
+        private final byte[] mBuffer =
+                new byte[LinuxPRNGSecureRandom.STRIPE_BUFFER_SIZE];
+
+        /** Position of the first unused byte, buffer length if empty. */
+        private int mPosition = mBuffer.length;
+
+        /** Process which filled the buffer. */
+        private int mPid;
+
+        /** Input stream of this stripe or {@code null} if not yet opened. */
+        private DataInputStream mIn;
+
+        /** Number of requests served by this stripe. */
+        private long mRequestCount;
+
+        synchronized void read(byte[] bytes) throws IOException {
+            mRequestCount++;
+            int pid = Process.myPid();
+            if (pid != mPid) {
+                // the buffer was inherited from the parent process
+                discard();
+                mPid = pid;
+            }
+            if (bytes.length >= mBuffer.length) {
+                getInputStream().readFully(bytes);
+                return;
+            }
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (mPosition == mBuffer.length) {
+                    getInputStream().readFully(mBuffer);
+                    mPosition = 0;
+                }
+                int count = Math.min(mBuffer.length - mPosition,
+                        bytes.length - offset);
+                System.arraycopy(mBuffer, mPosition, bytes, offset, count);
+                Arrays.fill(mBuffer, mPosition, mPosition + count, (byte) 0);
+                mPosition += count;
+                offset += count;
+            }
+        }
+
+        synchronized long getRequestCount() {
+            return mRequestCount;
+        }
+
+        private void discard() {
+            Arrays.fill(mBuffer, (byte) 0);
+            mPosition = mBuffer.length;
+        }
+
+        private DataInputStream getInputStream() {
+            if (mIn == null) {
+                try {
+                    mIn = new DataInputStream(new FileInputStream(
+                            LinuxPRNGSecureRandom.URANDOM_FILE));
+                } catch (IOException e) {
+                    throw new SecurityException("Failed to open "
+                            + LinuxPRNGSecureRandom.URANDOM_FILE
+                            + " for reading", e);
+                }
+            }
+            return mIn;
+        }
+    }
+
     /**
      * Generates a device- and invocation-specific seed to be mixed into the
      * Linux PRNG.
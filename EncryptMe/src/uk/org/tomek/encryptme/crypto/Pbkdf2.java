@@ -0,0 +1,368 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.util.Arrays;
+
+/**
+ * PBKDF2 (RFC 2898) with HMAC-SHA1 or HMAC-SHA256, independent of the platform providers. <p>
+ * HMAC hashes the password padded with ipad and with opad before every message. Both pads
+ * depend on the password only, so their hash state is computed once per derivation. Every
+ * iteration then hashes a single block for the inner and a single block for the outer hash,
+ * half the work of a generic HMAC, and works on int words without any allocation.
+ *
+ * @author Tomek Giszczak
+ */
+public final class Pbkdf2 {
+
+    /**
+     * Pseudo random function of the derivation.
+     */
+    public enum Prf {
+        HMAC_SHA1("PBKDF2WithHmacSHA1", 5, 1),
+        HMAC_SHA256("PBKDF2WithHmacSHA256", 8, 2);
+
+        private final String mJceAlgorithm;
+        private final int mDigestWords;
+        private final int mId;
+
+        private Prf(String jceAlgorithm, int digestWords, int id) {
+            mJceAlgorithm = jceAlgorithm;
+            mDigestWords = digestWords;
+            mId = id;
+        }
+
+        /**
+         * Returns the name of the equivalent {@link javax.crypto.SecretKeyFactory} algorithm.
+         */
+        public String getJceAlgorithm() {
+            return mJceAlgorithm;
+        }
+
+        /**
+         * Returns the length of the hash, the size of one block of derived key.
+         *
+         * @return length in bytes
+         */
+        public int getDigestLength() {
+            return mDigestWords * 4;
+        }
+
+        int getId() {
+            return mId;
+        }
+
+        static Prf fromId(int id) {
+            for (Prf prf : values()) {
+                if (prf.mId == id) {
+                    return prf;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lowest iteration count {@link #calibrate(Prf, long)} returns.
+     */
+    public static final int MIN_ITERATIONS = 1000;
+    /**
+     * Highest iteration count {@link #calibrate(Prf, long)} returns.
+     */
+    public static final int MAX_ITERATIONS = 10000000;
+
+    private static final int BLOCK_BYTES = 64;
+    private static final int BLOCK_WORDS = 16;
+    private static final byte IPAD = 0x36;
+    private static final byte OPAD = 0x5c;
+    // calibration runs until a measurement takes at least this long
+    private static final long MIN_CALIBRATION_NANOS = 20 * 1000 * 1000L;
+    private static final int[] SHA1_IV = {
+            0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0};
+    private static final int[] SHA256_IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+            0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+    private static final int[] SHA256_K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+            0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+            0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+            0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+            0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+            0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+            0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+            0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+            0xc67178f2};
+
+    private Pbkdf2() {
+    }
+
+    /**
+     * Derives a key from the password.
+     *
+     * @param prf        pseudo random function
+     * @param password   password bytes, the caller decides on the encoding of characters
+     * @param salt       salt
+     * @param iterations iteration count, at least 1
+     * @param keyLength  length of the derived key in bytes
+     * @return derived key
+     */
+    public static byte[] deriveKey(Prf prf, byte[] password, byte[] salt, int iterations,
+            int keyLength) {
+        if (prf == null || password == null || salt == null) {
+            throw new IllegalArgumentException("Prf, password and salt must not be null");
+        }
+        if (iterations < 1 || keyLength < 1) {
+            throw new IllegalArgumentException("Iterations and key length must be positive");
+        }
+        int digestWords = prf.mDigestWords;
+        int[] schedule = new int[prf == Prf.HMAC_SHA1 ? 80 : 64];
+        int[] innerState = new int[digestWords];
+        int[] outerState = new int[digestWords];
+        initPadState(prf, password, IPAD, innerState, schedule);
+        initPadState(prf, password, OPAD, outerState, schedule);
+
+        // one block holding a digest after the 64 byte pad, padding is the same every time
+        int[] digestBlock = new int[BLOCK_WORDS];
+        digestBlock[digestWords] = 0x80000000;
+        digestBlock[BLOCK_WORDS - 1] = (BLOCK_BYTES + digestWords * 4) * 8;
+        int[] inner = new int[digestWords];
+        int[] u = new int[digestWords];
+        int[] t = new int[digestWords];
+        byte[] saltAndIndex = new byte[salt.length + 4];
+        System.arraycopy(salt, 0, saltAndIndex, 0, salt.length);
+        byte[] output = new byte[keyLength];
+        int blockIndex = 1;
+        for (int offset = 0; offset < keyLength; offset += digestWords * 4, blockIndex++) {
+            // U1 = PRF(password, salt || INT(i))
+            writeInt(blockIndex, saltAndIndex, salt.length);
+            hash(prf, innerState, saltAndIndex, BLOCK_BYTES, inner, schedule);
+            System.arraycopy(inner, 0, digestBlock, 0, digestWords);
+            System.arraycopy(outerState, 0, u, 0, digestWords);
+            compress(prf, u, digestBlock, schedule);
+            System.arraycopy(u, 0, t, 0, digestWords);
+            for (int i = 1; i < iterations; i++) {
+                // U(j) = PRF(password, U(j-1))
+                System.arraycopy(u, 0, digestBlock, 0, digestWords);
+                System.arraycopy(innerState, 0, inner, 0, digestWords);
+                compress(prf, inner, digestBlock, schedule);
+                System.arraycopy(inner, 0, digestBlock, 0, digestWords);
+                System.arraycopy(outerState, 0, u, 0, digestWords);
+                compress(prf, u, digestBlock, schedule);
+                for (int j = 0; j < digestWords; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+            for (int j = 0; j < digestWords && offset + j * 4 < keyLength; j++) {
+                for (int k = 0; k < 4 && offset + j * 4 + k < keyLength; k++) {
+                    output[offset + j * 4 + k] = (byte) (t[j] >>> (24 - k * 8));
+                }
+            }
+        }
+        Arrays.fill(innerState, 0);
+        Arrays.fill(outerState, 0);
+        Arrays.fill(inner, 0);
+        Arrays.fill(u, 0);
+        Arrays.fill(t, 0);
+        Arrays.fill(digestBlock, 0);
+        Arrays.fill(schedule, 0);
+        return output;
+    }
+
+    /**
+     * Measures how fast this device derives keys and returns the iteration count which takes
+     * about the target time to derive one block of key, e.g. a 128 bit key. Takes some 50ms to
+     * run, so it does not belong on the main thread.
+     *
+     * @param prf          pseudo random function
+     * @param targetMillis target derivation time
+     * @return iteration count between {@link #MIN_ITERATIONS} and {@link #MAX_ITERATIONS}
+     */
+    public static int calibrate(Prf prf, long targetMillis) {
+        byte[] password = new byte[16];
+        byte[] salt = new byte[16];
+        int length = prf.getDigestLength();
+        // the first run also loads and compiles the code
+        deriveKey(prf, password, salt, MIN_ITERATIONS, length);
+        int iterations = MIN_ITERATIONS;
+        long elapsed;
+        while (true) {
+            long start = System.nanoTime();
+            deriveKey(prf, password, salt, iterations, length);
+            elapsed = Math.max(System.nanoTime() - start, 1);
+            if (elapsed >= MIN_CALIBRATION_NANOS || iterations >= MAX_ITERATIONS / 2) {
+                break;
+            }
+            iterations *= 2;
+        }
+        long calibrated = iterations * (targetMillis * 1000 * 1000L) / elapsed;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, calibrated));
+    }
+
+    /*
+     * Hash state after the password xor-ed with the pad, see RFC 2104.
+     */
+    private static void initPadState(Prf prf, byte[] password, byte pad, int[] state,
+            int[] schedule) {
+        byte[] key = password;
+        if (key.length > BLOCK_BYTES) {
+            int[] digest = new int[prf.mDigestWords];
+            hash(prf, initialState(prf), key, 0, digest, schedule);
+            key = new byte[digest.length * 4];
+            for (int i = 0; i < digest.length; i++) {
+                writeInt(digest[i], key, i * 4);
+            }
+            Arrays.fill(digest, 0);
+        }
+        int[] block = new int[BLOCK_WORDS];
+        for (int i = 0; i < BLOCK_BYTES; i++) {
+            int b = ((i < key.length ? key[i] : 0) ^ pad) & 0xff;
+            block[i >> 2] |= b << (24 - (i & 3) * 8);
+        }
+        System.arraycopy(initialState(prf), 0, state, 0, state.length);
+        compress(prf, state, block, schedule);
+        Arrays.fill(block, 0);
+        if (key != password) {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static int[] initialState(Prf prf) {
+        return prf == Prf.HMAC_SHA1 ? SHA1_IV : SHA256_IV;
+    }
+
+    /*
+     * Hashes the message continuing from the given state, which has already absorbed
+     * prefixLength bytes, and pads it.
+     */
+    private static void hash(Prf prf, int[] fromState, byte[] message, long prefixLength,
+            int[] state, int[] schedule) {
+        System.arraycopy(fromState, 0, state, 0, state.length);
+        int paddedLength = (message.length + 8 + BLOCK_BYTES) & ~(BLOCK_BYTES - 1);
+        byte[] padded = new byte[paddedLength];
+        System.arraycopy(message, 0, padded, 0, message.length);
+        padded[message.length] = (byte) 0x80;
+        long bitLength = (prefixLength + message.length) * 8;
+        writeInt((int) (bitLength >>> 32), padded, paddedLength - 8);
+        writeInt((int) bitLength, padded, paddedLength - 4);
+        int[] block = new int[BLOCK_WORDS];
+        for (int offset = 0; offset < paddedLength; offset += BLOCK_BYTES) {
+            for (int i = 0; i < BLOCK_WORDS; i++) {
+                int p = offset + i * 4;
+                block[i] = (padded[p] << 24) | ((padded[p + 1] & 0xff) << 16)
+                        | ((padded[p + 2] & 0xff) << 8) | (padded[p + 3] & 0xff);
+            }
+            compress(prf, state, block, schedule);
+        }
+        Arrays.fill(padded, (byte) 0);
+        Arrays.fill(block, 0);
+    }
+
+    private static void compress(Prf prf, int[] state, int[] block, int[] schedule) {
+        if (prf == Prf.HMAC_SHA1) {
+            sha1Compress(state, block, schedule);
+        } else {
+            sha256Compress(state, block, schedule);
+        }
+    }
+
+    private static void sha1Compress(int[] state, int[] block, int[] w) {
+        System.arraycopy(block, 0, w, 0, BLOCK_WORDS);
+        for (int i = 16; i < 80; i++) {
+            int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            w[i] = (x << 1) | (x >>> 31);
+        }
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        // one loop per round function, no branch in the loop body
+        for (int i = 0; i < 20; i++) {
+            int temp = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + 0x5a827999 + e + w[i];
+            e = d;
+            d = c;
+            c = (b << 30) | (b >>> 2);
+            b = a;
+            a = temp;
+        }
+        for (int i = 20; i < 40; i++) {
+            int temp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + 0x6ed9eba1 + e + w[i];
+            e = d;
+            d = c;
+            c = (b << 30) | (b >>> 2);
+            b = a;
+            a = temp;
+        }
+        for (int i = 40; i < 60; i++) {
+            int temp = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + 0x8f1bbcdc + e
+                    + w[i];
+            e = d;
+            d = c;
+            c = (b << 30) | (b >>> 2);
+            b = a;
+            a = temp;
+        }
+        for (int i = 60; i < 80; i++) {
+            int temp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + 0xca62c1d6 + e + w[i];
+            e = d;
+            d = c;
+            c = (b << 30) | (b >>> 2);
+            b = a;
+            a = temp;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+    }
+
+    private static void sha256Compress(int[] state, int[] block, int[] w) {
+        System.arraycopy(block, 0, w, 0, BLOCK_WORDS);
+        for (int i = 16; i < 64; i++) {
+            int x = w[i - 15];
+            int y = w[i - 2];
+            int s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+            int s1 = ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13)) ^ (y >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int f = state[5];
+        int g = state[6];
+        int h = state[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = ((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7));
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = h + s1 + ch + SHA256_K[i] + w[i];
+            int s0 = ((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10));
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    private static void writeInt(int value, byte[] output, int offset) {
+        output[offset] = (byte) (value >>> 24);
+        output[offset + 1] = (byte) (value >>> 16);
+        output[offset + 2] = (byte) (value >>> 8);
+        output[offset + 3] = (byte) value;
+    }
+}
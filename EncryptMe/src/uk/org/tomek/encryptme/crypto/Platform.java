@@ -0,0 +1,39 @@
+package uk.org.tomek.encryptme.crypto;
+
+/**
+ * What the crypto classes need from the platform they run on: where the keys are kept and
+ * what identifies the app on a device. Logging goes through
+ * {@link uk.org.tomek.encryptme.helpers.Tracer} and its sink. <p>
+ * Apart from the Android adapters ({@link AndroidPlatform}, {@link PreferencesKeyStore},
+ * {@link EncryptedPreferences}, {@link CryptoContext}, {@link AsyncCrypto}, {@link PRNGFixes}
+ * and the Android sinks and executors of the helpers) the crypto classes are plain Java and
+ * also run on a server JVM with {@link JvmPlatform}.
+ *
+ * @author Tomek Giszczak
+ */
+public interface Platform {
+
+    /**
+     * Opens the store the keys are kept in. Called once, on first use of the key, usually off
+     * the main thread.
+     *
+     * @return key store
+     */
+    SecretKeyStore openKeyStore();
+
+    /**
+     * Returns the store older versions of the app kept the key in. Called only while the key
+     * store has no key, which is then moved over.
+     *
+     * @return key store or null if there is none
+     */
+    SecretKeyStore openLegacyKeyStore();
+
+    /**
+     * Returns the identity {@link KeyFactory#generateKeyFromIdentity(DeviceIdentity)} derives a
+     * key from. May be slow, e.g. ask the system.
+     *
+     * @return identity or null if the platform does not know it
+     */
+    DeviceIdentity getDeviceIdentity();
+}
@@ -0,0 +1,106 @@
+package uk.org.tomek.encryptme.crypto;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * {@link SecretKeyStore} over the {@link SharedPreferences} file older versions of the app
+ * saved their key in, one Latin-1 string per alias. The format has no versions, so every key
+ * has version 1 and putting a key replaces it. Kept to migrate saved keys to
+ * {@link FileKeyStore}, new keys should not be stored here.
+ *
+ * @author Tomek Giszczak
+ */
+public final class PreferencesKeyStore implements SecretKeyStore {
+
+    private static final String TAG = PreferencesKeyStore.class.getSimpleName();
+    private static final String KEY_PREFS = "key_prefs";
+    private static final String AES = "AES";
+    private static final int VERSION = 1;
+    private final SharedPreferences mSharedPreferences;
+
+    private PreferencesKeyStore(SharedPreferences sharedPreferences) {
+        mSharedPreferences = sharedPreferences;
+    }
+
+    /**
+     * Creates new instance of {@link PreferencesKeyStore} over the preferences the app has
+     * always used for its key.
+     *
+     * @return {@link PreferencesKeyStore}
+     */
+    public static PreferencesKeyStore newInstance(Context context) {
+        return new PreferencesKeyStore(context.getSharedPreferences(KEY_PREFS,
+                Context.MODE_PRIVATE));
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    public SecretKey getKey(String alias) {
+        String keyString = mSharedPreferences.getString(alias, null);
+        if (TextUtils.isEmpty(keyString)) {
+            return null;
+        }
+        Tracer.d(TAG, "Retrieved key of %d bits", keyString.length() * 8L);
+        // the string itself belongs to the preferences, only the bytes can be wiped
+        byte[] encoded = keyString.getBytes(CryptoUtils.DEFAULT_CHARSET);
+        try {
+            return KeyMaterial.newInstance(encoded, 0, encoded.length, AES);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    @Override
+    public SecretKey getKey(String alias, int version) {
+        return version == VERSION ? getKey(alias) : null;
+    }
+
+    @Override
+    public int getLatestVersion(String alias) {
+        return mSharedPreferences.contains(alias) ? VERSION : 0;
+    }
+
+    @Override
+    public Set<String> getAliases() {
+        Map<String, ?> all = mSharedPreferences.getAll();
+        return new HashSet<String>(all.keySet());
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    public int putKey(String alias, SecretKey key) {
+        byte[] encodedKeyBytes = key.getEncoded();
+        Tracer.d(TAG, "Saving key of %d bits", encodedKeyBytes.length * 8L);
+        mSharedPreferences.edit().putString(alias, new String(encodedKeyBytes,
+                CryptoUtils.DEFAULT_CHARSET)).commit();
+        Arrays.fill(encodedKeyBytes, (byte) 0);
+        return VERSION;
+    }
+
+    @Override
+    public boolean deleteKey(String alias) {
+        if (!mSharedPreferences.contains(alias)) {
+            return false;
+        }
+        mSharedPreferences.edit().remove(alias).commit();
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        // every change is committed at once
+    }
+}
@@ -0,0 +1,590 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * Picks the fastest installed provider of every algorithm the library uses: the transformation
+ * of each {@link CipherMode} and the PBKDF2 algorithm of each {@link Pbkdf2.Prf}, for which the
+ * built-in {@link Pbkdf2} competes too. Every candidate is timed on a fixed workload for a few
+ * milliseconds, and only used if its output matches the output of the others, as the data it
+ * produces has to stay readable whichever provider wins next time. <p>
+ * Probing takes some 50ms per candidate, so it does not belong on the main thread. The choice
+ * is saved and reused until the installed providers change, e.g. after a system update. <p>
+ * File layout:
+ * <pre>
+ * 'P' 'S' | format version | providers fingerprint (UTF) | algorithm count (int)
+ * algorithm:  name (UTF) | candidate count (short) | candidate
+ * candidate:  provider name (UTF) | score (long), -1 if its output did not match
+ * CRC32 of the above (int)
+ * </pre>
+ *
+ * @author Tomek Giszczak
+ */
+public final class ProviderSelector {
+
+    /**
+     * Name of the candidate standing for {@link Pbkdf2}.
+     */
+    public static final String BUILT_IN = "built-in";
+    /**
+     * Score of a candidate whose output did not match.
+     */
+    public static final long REJECTED = -1;
+    /**
+     * Default time every candidate is measured for.
+     */
+    public static final long DEFAULT_PROBE_MILLIS = 40;
+
+    private static final String TAG = ProviderSelector.class.getSimpleName();
+    private static final byte MAGIC_0 = 0x50;
+    private static final byte MAGIC_1 = 0x53;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 3;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_FILE_SIZE = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int PROBE_MESSAGE_SIZE = 4096;
+    private static final int PROBE_KDF_ITERATIONS = Pbkdf2.MIN_ITERATIONS;
+    private static final int PROBE_KDF_KEY_BITS = 128;
+    // PBKDF2 providers turn chars into bytes in different ways, they only agree on ASCII
+    private static final char[] PROBE_PASSWORD = "probe-passphrase".toCharArray();
+    private final File mFile;
+    private final long mProbeNanos;
+    private Selection mSelection;
+
+    private ProviderSelector(File file, long probeMillis) {
+        if (probeMillis < 1) {
+            throw new IllegalArgumentException("Probe time must be positive");
+        }
+        mFile = file;
+        mProbeNanos = probeMillis * 1000000L;
+    }
+
+    /**
+     * Creates new instance of {@link ProviderSelector}. Nothing is read or measured until the
+     * first call.
+     *
+     * @param file file the choice is saved in, null to probe on every start
+     * @return {@link ProviderSelector}
+     */
+    public static ProviderSelector newInstance(File file) {
+        return new ProviderSelector(file, DEFAULT_PROBE_MILLIS);
+    }
+
+    /**
+     * Creates new instance of {@link ProviderSelector}.
+     *
+     * @param file        file the choice is saved in, null to probe on every start
+     * @param probeMillis time every candidate is measured for
+     * @return {@link ProviderSelector}
+     */
+    public static ProviderSelector newInstance(File file, long probeMillis) {
+        return new ProviderSelector(file, probeMillis);
+    }
+
+    /**
+     * Returns the saved choice if it was made with the providers installed now, otherwise
+     * probes them and saves the new choice.
+     *
+     * @return {@link Selection}
+     */
+    public synchronized Selection select() {
+        if (mSelection != null) {
+            return mSelection;
+        }
+        String fingerprint = getFingerprint();
+        if (mFile != null) {
+            long start = Tracer.startTimer();
+            try {
+                Selection saved = load();
+                if (saved != null && saved.mFingerprint.equals(fingerprint)) {
+                    mSelection = saved;
+                    Tracer.d(TAG, "Loaded saved choice in %dus", Tracer.elapsedMicros(start));
+                    return saved;
+                }
+            } catch (IOException e) {
+                Tracer.w(TAG, "Impossible to read saved choice, probing again", e);
+            }
+        }
+        return probe(fingerprint);
+    }
+
+    /**
+     * Probes the providers again, whatever has been saved, and saves the new choice.
+     *
+     * @return {@link Selection}
+     */
+    public synchronized Selection probe() {
+        return probe(getFingerprint());
+    }
+
+    private Selection probe(String fingerprint) {
+        long start = Tracer.startTimer();
+        Map<String, List<Candidate>> candidates = new LinkedHashMap<String, List<Candidate>>();
+        for (CipherMode mode : CipherMode.values()) {
+            // modes sharing a transformation share their ciphers
+            if (!candidates.containsKey(mode.getTransformation())) {
+                candidates.put(mode.getTransformation(), probeCipher(mode));
+            }
+        }
+        for (Pbkdf2.Prf prf : Pbkdf2.Prf.values()) {
+            candidates.put(prf.getJceAlgorithm(), probeKdf(prf));
+        }
+        Selection selection = new Selection(fingerprint, candidates, false);
+        Tracer.d(TAG, "Probed providers in %dus", Tracer.elapsedMicros(start));
+        Tracer.d(TAG, "%s", selection);
+        if (mFile != null) {
+            try {
+                save(selection);
+            } catch (IOException e) {
+                Tracer.w(TAG, "Impossible to save choice", e);
+                e.printStackTrace();
+            }
+        }
+        mSelection = selection;
+        return selection;
+    }
+
+    /*
+     * Names and versions of the installed providers in their order of preference. getVersion()
+     * is deprecated on Java 9 in favour of getVersionStr(), which Android does not have.
+     */
+    @SuppressWarnings("deprecation")
+    private static String getFingerprint() {
+        StringBuilder fingerprint = new StringBuilder(128);
+        fingerprint.append(System.getProperty("java.vm.version"));
+        for (Provider provider : Security.getProviders()) {
+            fingerprint.append(';').append(provider.getName()).append(':')
+                    .append(provider.getVersion());
+        }
+        return fingerprint.toString();
+    }
+
+    private List<Candidate> probeCipher(CipherMode mode) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        byte[] input = newProbeInput();
+        byte[] reference = null;
+        for (Provider provider : Security.getProviders()) {
+            Cipher cipher;
+            try {
+                cipher = Cipher.getInstance(mode.getTransformation(), provider);
+            } catch (GeneralSecurityException e) {
+                // not supported by this provider
+                continue;
+            }
+            long score;
+            try {
+                byte[] output = initProbeCipher(cipher, mode, Cipher.ENCRYPT_MODE, 0)
+                        .doFinal(input);
+                byte[] decrypted = initProbeCipher(cipher, mode, Cipher.DECRYPT_MODE, 0)
+                        .doFinal(output);
+                if (reference == null) {
+                    reference = output;
+                }
+                if (Arrays.equals(reference, output) && Arrays.equals(input, decrypted)) {
+                    score = measureCipher(cipher, mode, input);
+                } else {
+                    Tracer.w(TAG, provider.getName() + " output does not match");
+                    score = REJECTED;
+                }
+            } catch (GeneralSecurityException e) {
+                Tracer.w(TAG, "Impossible to probe " + provider.getName(), e);
+                score = REJECTED;
+            } catch (RuntimeException e) {
+                // some providers throw ProviderException for what they do not support
+                Tracer.w(TAG, "Impossible to probe " + provider.getName(), e);
+                score = REJECTED;
+            }
+            candidates.add(new Candidate(provider.getName(), score));
+        }
+        return candidates;
+    }
+
+    /*
+     * Returns the bytes encrypted per second. The legacy cipher is initialised once, as the
+     * pool does, every envelope message needs its own IV.
+     */
+    private long measureCipher(Cipher cipher, CipherMode mode, byte[] input)
+            throws GeneralSecurityException {
+        initProbeCipher(cipher, mode, Cipher.ENCRYPT_MODE, 1);
+        byte[] output = new byte[cipher.getOutputSize(input.length)];
+        int counter = 2;
+        // the first runs also load and compile the code
+        long start = System.nanoTime();
+        long measureStart = start + mProbeNanos / 4;
+        long deadline = measureStart + mProbeNanos;
+        long bytes = 0;
+        long now;
+        do {
+            if (mode != CipherMode.LEGACY_CBC) {
+                initProbeCipher(cipher, mode, Cipher.ENCRYPT_MODE, counter++);
+            }
+            cipher.doFinal(input, 0, input.length, output, 0);
+            now = System.nanoTime();
+            if (now < measureStart) {
+                start = now;
+            } else {
+                bytes += input.length;
+            }
+        } while (now < deadline);
+        return bytes * 1000000000L / Math.max(1, now - start);
+    }
+
+    @SuppressWarnings("NewApi")
+    private static Cipher initProbeCipher(Cipher cipher, CipherMode mode, int opmode, int counter)
+            throws GeneralSecurityException {
+        SecretKey key = new SecretKeySpec(newProbeBytes(32, 7), "AES");
+        if (mode == CipherMode.LEGACY_CBC) {
+            cipher.init(opmode, key, new IvParameterSpec(new byte[16]));
+        } else {
+            byte[] iv = new byte[CiphertextEnvelope.IV_SIZE];
+            iv[0] = (byte) (counter >>> 24);
+            iv[1] = (byte) (counter >>> 16);
+            iv[2] = (byte) (counter >>> 8);
+            iv[3] = (byte) counter;
+            cipher.init(opmode, key, new GCMParameterSpec(CiphertextEnvelope.TAG_BITS, iv));
+        }
+        return cipher;
+    }
+
+    private List<Candidate> probeKdf(Pbkdf2.Prf prf) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        byte[] salt = newProbeBytes(16, 3);
+        byte[] password = new byte[PROBE_PASSWORD.length];
+        for (int i = 0; i < password.length; i++) {
+            password[i] = (byte) PROBE_PASSWORD[i];
+        }
+        byte[] reference = Pbkdf2.deriveKey(prf, password, salt, PROBE_KDF_ITERATIONS,
+                PROBE_KDF_KEY_BITS / 8);
+        candidates.add(new Candidate(BUILT_IN, measureKdf(prf, null, password, salt)));
+        for (Provider provider : Security.getProviders()) {
+            try {
+                SecretKeyFactory.getInstance(prf.getJceAlgorithm(), provider);
+            } catch (GeneralSecurityException e) {
+                // not supported by this provider
+                continue;
+            }
+            long score;
+            try {
+                if (Arrays.equals(reference, deriveJce(prf, provider, salt))) {
+                    score = measureKdf(prf, provider, password, salt);
+                } else {
+                    Tracer.w(TAG, provider.getName() + " output does not match");
+                    score = REJECTED;
+                }
+            } catch (GeneralSecurityException e) {
+                Tracer.w(TAG, "Impossible to probe " + provider.getName(), e);
+                score = REJECTED;
+            } catch (RuntimeException e) {
+                Tracer.w(TAG, "Impossible to probe " + provider.getName(), e);
+                score = REJECTED;
+            }
+            candidates.add(new Candidate(provider.getName(), score));
+        }
+        return candidates;
+    }
+
+    /*
+     * Returns the PBKDF2 iterations done per second, by the given provider or by Pbkdf2 if null.
+     */
+    private long measureKdf(Pbkdf2.Prf prf, Provider provider, byte[] password, byte[] salt) {
+        long start = System.nanoTime();
+        long measureStart = start + mProbeNanos / 4;
+        long deadline = measureStart + mProbeNanos;
+        long iterations = 0;
+        long now;
+        try {
+            do {
+                if (provider == null) {
+                    Pbkdf2.deriveKey(prf, password, salt, PROBE_KDF_ITERATIONS,
+                            PROBE_KDF_KEY_BITS / 8);
+                } else {
+                    deriveJce(prf, provider, salt);
+                }
+                now = System.nanoTime();
+                if (now < measureStart) {
+                    start = now;
+                } else {
+                    iterations += PROBE_KDF_ITERATIONS;
+                }
+            } while (now < deadline);
+        } catch (GeneralSecurityException e) {
+            Tracer.w(TAG, "Impossible to probe " + provider, e);
+            return REJECTED;
+        }
+        return iterations * 1000000000L / Math.max(1, now - start);
+    }
+
+    private static byte[] deriveJce(Pbkdf2.Prf prf, Provider provider, byte[] salt)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(PROBE_PASSWORD, salt, PROBE_KDF_ITERATIONS,
+                PROBE_KDF_KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance(prf.getJceAlgorithm(), provider)
+                    .generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] newProbeInput() {
+        return newProbeBytes(PROBE_MESSAGE_SIZE, 1);
+    }
+
+    /*
+     * Same bytes on every run and every device, the outputs of the candidates are compared.
+     */
+    private static byte[] newProbeBytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        int state = seed;
+        for (int i = 0; i < length; i++) {
+            state = state * 1103515245 + 12345;
+            bytes[i] = (byte) (state >>> 16);
+        }
+        return bytes;
+    }
+
+    private Selection load() throws IOException {
+        byte[] content;
+        FileInputStream in;
+        try {
+            in = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+            return null;
+        }
+        try {
+            long length = in.getChannel().size();
+            if (length > MAX_FILE_SIZE) {
+                throw new IOException("Provider file too large: " + length);
+            }
+            content = new byte[(int) length];
+            new DataInputStream(in).readFully(content);
+        } finally {
+            FilesHelper.closeQuietly(in);
+        }
+
+        if (content.length < HEADER_SIZE + CRC_SIZE || content[0] != MAGIC_0
+                || content[1] != MAGIC_1) {
+            throw new IOException("Not a provider file");
+        }
+        if (content[2] != FORMAT_VERSION) {
+            // written by another version, probed again
+            return null;
+        }
+        int bodyLength = content.length - CRC_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, bodyLength);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(content));
+        data.skipBytes(bodyLength);
+        if (data.readInt() != (int) crc.getValue()) {
+            throw new IOException("Provider file checksum mismatch");
+        }
+        data = new DataInputStream(new ByteArrayInputStream(content, HEADER_SIZE,
+                bodyLength - HEADER_SIZE));
+        String fingerprint = data.readUTF();
+        Map<String, List<Candidate>> candidates = new LinkedHashMap<String, List<Candidate>>();
+        int algorithmCount = data.readInt();
+        for (int i = 0; i < algorithmCount; i++) {
+            String algorithm = data.readUTF();
+            int candidateCount = data.readUnsignedShort();
+            List<Candidate> list = new ArrayList<Candidate>(candidateCount);
+            for (int j = 0; j < candidateCount; j++) {
+                list.add(new Candidate(data.readUTF(), data.readLong()));
+            }
+            candidates.put(algorithm, list);
+        }
+        return new Selection(fingerprint, candidates, true);
+    }
+
+    private void save(Selection selection) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(FORMAT_VERSION);
+        out.writeUTF(selection.mFingerprint);
+        out.writeInt(selection.mCandidates.size());
+        for (Map.Entry<String, List<Candidate>> entry : selection.mCandidates.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeShort(entry.getValue().size());
+            for (Candidate candidate : entry.getValue()) {
+                out.writeUTF(candidate.mProviderName);
+                out.writeLong(candidate.mScore);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File tempFile = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            buffer.writeTo(fileOut);
+            fileOut.getFD().sync();
+            fileOut.close();
+            FilesHelper.replaceFile(tempFile, mFile);
+            success = true;
+        } finally {
+            FilesHelper.closeQuietly(fileOut);
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Measured candidates of every algorithm and the fastest of them.
+     */
+    public static final class Selection {
+        private final String mFingerprint;
+        private final Map<String, List<Candidate>> mCandidates;
+        private final boolean mLoaded;
+
+        private Selection(String fingerprint, Map<String, List<Candidate>> candidates,
+                boolean loaded) {
+            mFingerprint = fingerprint;
+            mCandidates = candidates;
+            mLoaded = loaded;
+        }
+
+        /**
+         * Pins the chosen providers: the ciphers of every mode of the given instance and the
+         * key derivation of its {@link KeyFactory}. A chosen provider which is no longer
+         * installed leaves the default in place.
+         *
+         * @param cryptoUtils instance to configure
+         */
+        public void applyTo(CryptoUtils cryptoUtils) {
+            for (CipherMode mode : CipherMode.values()) {
+                cryptoUtils.setCipherProvider(mode,
+                        getInstalledProvider(mode.getTransformation()));
+            }
+            KeyFactory keyFactory = cryptoUtils.getKeyFactory();
+            if (keyFactory != null) {
+                for (Pbkdf2.Prf prf : Pbkdf2.Prf.values()) {
+                    keyFactory.setKdfProvider(prf, getInstalledProvider(prf.getJceAlgorithm()));
+                }
+            }
+        }
+
+        private Provider getInstalledProvider(String algorithm) {
+            String name = getProviderName(algorithm);
+            return name == null || BUILT_IN.equals(name) ? null : Security.getProvider(name);
+        }
+
+        /**
+         * Returns name of the fastest provider of the algorithm.
+         *
+         * @param algorithm cipher transformation or PBKDF2 algorithm name
+         * @return provider name, {@link #BUILT_IN} or null if no provider passed
+         */
+        public String getProviderName(String algorithm) {
+            Candidate best = null;
+            List<Candidate> candidates = mCandidates.get(algorithm);
+            if (candidates != null) {
+                for (Candidate candidate : candidates) {
+                    if (candidate.mScore > 0 && (best == null || candidate.mScore > best.mScore)) {
+                        best = candidate;
+                    }
+                }
+            }
+            return best == null ? null : best.mProviderName;
+        }
+
+        /**
+         * Returns every measured candidate of the algorithm, in the order of preference of the
+         * providers.
+         *
+         * @param algorithm cipher transformation or PBKDF2 algorithm name
+         * @return candidates, empty if the algorithm was not probed
+         */
+        public List<Candidate> getCandidates(String algorithm) {
+            List<Candidate> candidates = mCandidates.get(algorithm);
+            return candidates == null ? Collections.<Candidate>emptyList()
+                    : Collections.unmodifiableList(candidates);
+        }
+
+        /**
+         * Returns true if the choice was read from the file instead of being probed.
+         */
+        public boolean isLoaded() {
+            return mLoaded;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Selection[");
+            builder.append(mLoaded ? "saved" : "probed");
+            for (Map.Entry<String, List<Candidate>> entry : mCandidates.entrySet()) {
+                builder.append(", ").append(entry.getKey()).append(": ")
+                        .append(getProviderName(entry.getKey())).append(' ')
+                        .append(entry.getValue());
+            }
+            return builder.append(']').toString();
+        }
+    }
+
+    /**
+     * Provider measured for one algorithm.
+     */
+    public static final class Candidate {
+        private final String mProviderName;
+        private final long mScore;
+
+        private Candidate(String providerName, long score) {
+            mProviderName = providerName;
+            mScore = score;
+        }
+
+        /**
+         * Returns name of the provider, or {@link #BUILT_IN}.
+         */
+        public String getProviderName() {
+            return mProviderName;
+        }
+
+        /**
+         * Returns bytes encrypted per second for ciphers, PBKDF2 iterations per second for key
+         * derivations, or {@link #REJECTED}.
+         */
+        public long getScore() {
+            return mScore;
+        }
+
+        @Override
+        public String toString() {
+            return mProviderName + "=" + mScore;
+        }
+    }
+}
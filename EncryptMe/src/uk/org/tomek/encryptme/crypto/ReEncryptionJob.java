@@ -0,0 +1,543 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.zip.CRC32;
+
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import uk.org.tomek.encryptme.helpers.Tracer;
+
+/**
+ * Re-encrypts stored data with the current key and cipher mode after
+ * {@link KeyFactory#rotateKey()}, see {@link CryptoUtils#reEncrypt(byte[])}. The job runs on
+ * its own low priority thread, in batches: after every batch it saves a checkpoint, so a job
+ * stopped or killed with the process resumes where it was, and then sleeps long enough to keep
+ * its CPU share and I/O rate under the configured limits. <p>
+ * Data stays readable throughout, items not re-encrypted yet are decrypted with the older key.
+ * The job only writes envelope modes, so it is also the way to move legacy data to one before
+ * the first key rotation, see {@link KeyFactory#setLegacyDataMigrated()}.
+ * Checkpoint layout:
+ * <pre>
+ * magic 'R' 'J' | version | key version (int) | mode id | next index (int) | re-encrypted (int)
+ * | skipped (int) | failed (int) | bytes (long) | CRC32
+ * </pre>
+ *
+ * @author Tomek Giszczak
+ */
+public final class ReEncryptionJob {
+
+    /**
+     * Items the job goes through, e.g. rows of a table or files of a directory. Called on the job
+     * thread only.
+     */
+    public interface Store {
+
+        /**
+         * Returns number of items, the job works through indexes 0 to count - 1.
+         */
+        int getCount() throws IOException;
+
+        /**
+         * Returns encrypted data of the item or null if the item is gone.
+         */
+        byte[] read(int index) throws IOException;
+
+        /**
+         * Replaces encrypted data of the item.
+         */
+        void write(int index, byte[] data) throws IOException;
+    }
+
+    /**
+     * Receives {@link Progress} after every batch and once the job stops, on the job thread.
+     */
+    public interface ProgressListener {
+
+        void onProgress(Progress progress);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 32;
+    public static final float DEFAULT_MAX_CPU_SHARE = 0.25f;
+    private static final String TAG = ReEncryptionJob.class.getSimpleName();
+    private static final byte MAGIC_0 = 0x52;
+    private static final byte MAGIC_1 = 0x4a;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int CHECKPOINT_SIZE = 36;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final CryptoUtils mCryptoUtils;
+    private final Store mStore;
+    private final File mCheckpointFile;
+    private final Object mLock = new Object();
+    private volatile int mBatchSize = DEFAULT_BATCH_SIZE;
+    private volatile float mMaxCpuShare = DEFAULT_MAX_CPU_SHARE;
+    private volatile long mMaxBytesPerSecond;
+    private volatile ProgressListener mProgressListener;
+    private volatile Progress mProgress;
+    private volatile boolean mStopRequested;
+    // guarded by mLock
+    private Thread mThread;
+
+    // private constructor (please use newInstance() instead)
+    private ReEncryptionJob(CryptoUtils cryptoUtils, Store store, File checkpointFile) {
+        mCryptoUtils = cryptoUtils;
+        mStore = store;
+        mCheckpointFile = checkpointFile;
+    }
+
+    /**
+     * Creates new instance of {@link ReEncryptionJob}.
+     *
+     * @param cryptoUtils    crypto utils with the key factory holding the keys
+     * @param store          items to re-encrypt
+     * @param checkpointFile file the progress is saved in, one per store
+     * @return {@link ReEncryptionJob}
+     */
+    public static ReEncryptionJob newInstance(CryptoUtils cryptoUtils, Store store,
+            File checkpointFile) {
+        if (cryptoUtils == null || cryptoUtils.getKeyFactory() == null || store == null
+                || checkpointFile == null) {
+            throw new IllegalArgumentException();
+        }
+        return new ReEncryptionJob(cryptoUtils, store, checkpointFile);
+    }
+
+    /**
+     * Sets number of items between two checkpoints.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Sets the share of one CPU the job may use, the job sleeps after every batch to stay below
+     * it.
+     *
+     * @param maxCpuShare share between 0 (exclusive) and 1
+     */
+    public void setMaxCpuShare(float maxCpuShare) {
+        if (maxCpuShare <= 0 || maxCpuShare > 1) {
+            throw new IllegalArgumentException("CPU share must be in (0, 1]");
+        }
+        mMaxCpuShare = maxCpuShare;
+    }
+
+    /**
+     * Limits the rate the job reads encrypted data at.
+     *
+     * @param maxBytesPerSecond maximum rate or 0 for no limit
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        mMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * Starts the job on a background thread, from the last checkpoint if there is one for the
+     * current key.
+     *
+     * @return false if the job is running already
+     * @throws IllegalStateException if the crypto utils encrypt in {@link CipherMode#LEGACY_CBC},
+     *                               which does not record the key of the data
+     */
+    public boolean start() {
+        if (mCryptoUtils.getCipherMode() == CipherMode.LEGACY_CBC) {
+            throw new IllegalStateException("Data can only be re-encrypted in an envelope mode");
+        }
+        synchronized (mLock) {
+            if (mThread != null) {
+                return false;
+            }
+            mStopRequested = false;
+            mThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    runJob();
+                }
+            }, "ReEncryption");
+            mThread.setDaemon(true);
+            mThread.setPriority(Thread.MIN_PRIORITY);
+            mThread.start();
+            return true;
+        }
+    }
+
+    /**
+     * Asks the job to stop after the current batch. The checkpoint of the last batch is kept, so
+     * a later {@link #start()} continues from there.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStopRequested = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mThread != null;
+        }
+    }
+
+    /**
+     * Waits for the job to stop.
+     *
+     * @param timeoutMillis maximum wait time
+     * @return true if the job is not running
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join(timeoutMillis);
+        }
+        return !isRunning();
+    }
+
+    /**
+     * Returns progress after the last batch.
+     *
+     * @return progress or null if the job has not been started
+     */
+    public Progress getProgress() {
+        return mProgress;
+    }
+
+    private void runJob() {
+        long runStart = System.nanoTime();
+        Checkpoint checkpoint = null;
+        int total = 0;
+        long runBytes = 0;
+        int runItems = 0;
+        IOException error = null;
+        try {
+            KeyFactory keyFactory = mCryptoUtils.getKeyFactory();
+            // the new key has to be on disk before any data depends on it
+            keyFactory.getKeyStore().flush();
+            int keyVersion = keyFactory.getKeyVersion();
+            int modeId = mCryptoUtils.getCipherMode().getAlgorithmId();
+            checkpoint = readCheckpoint();
+            if (checkpoint == null || checkpoint.mKeyVersion != keyVersion
+                    || checkpoint.mModeId != modeId) {
+                checkpoint = new Checkpoint(keyVersion, modeId);
+            }
+            total = mStore.getCount();
+            Tracer.d(TAG, "Starting at %d of %d", checkpoint.mNextIndex, total);
+            while (!mStopRequested && checkpoint.mNextIndex < total) {
+                long batchStart = System.nanoTime();
+                int batchEnd = Math.min(total, checkpoint.mNextIndex + mBatchSize);
+                long batchBytes = 0;
+                for (int i = checkpoint.mNextIndex; i < batchEnd; i++) {
+                    byte[] data = mStore.read(i);
+                    if (data == null) {
+                        checkpoint.mSkipped++;
+                        continue;
+                    }
+                    batchBytes += data.length;
+                    try {
+                        byte[] reEncrypted = mCryptoUtils.reEncrypt(data);
+                        if (reEncrypted == null) {
+                            checkpoint.mSkipped++;
+                        } else {
+                            mStore.write(i, reEncrypted);
+                            checkpoint.mReEncrypted++;
+                        }
+                    } catch (GeneralSecurityException e) {
+                        // left as it is, the job does not stop for one unreadable item
+                        checkpoint.mFailed++;
+                        Tracer.w(TAG, "Impossible to re-encrypt item", e);
+                    }
+                }
+                runItems += batchEnd - checkpoint.mNextIndex;
+                runBytes += batchBytes;
+                checkpoint.mNextIndex = batchEnd;
+                checkpoint.mBytes += batchBytes;
+                writeCheckpoint(checkpoint);
+                publish(checkpoint, total, runItems, runBytes, runStart, false, null);
+                throttle(System.nanoTime() - batchStart, batchBytes);
+            }
+        } catch (IOException e) {
+            // the last checkpoint stays, the next start continues from it
+            Tracer.w(TAG, "Re-encryption stopped", e);
+            e.printStackTrace();
+            error = e;
+        } finally {
+            if (checkpoint == null) {
+                checkpoint = new Checkpoint(0, 0);
+            }
+            publish(checkpoint, total, runItems, runBytes, runStart, true, error);
+            synchronized (mLock) {
+                mThread = null;
+            }
+        }
+    }
+
+    /*
+     * Sleeps so that the busy time is at most the CPU share of the wall time, and the bytes of the
+     * batch are not read faster than the rate limit.
+     */
+    private void throttle(long busyNanos, long batchBytes) {
+        float cpuShare = mMaxCpuShare;
+        long sleepNanos = (long) (busyNanos * (1 - cpuShare) / cpuShare);
+        long maxBytesPerSecond = mMaxBytesPerSecond;
+        if (maxBytesPerSecond > 0) {
+            sleepNanos = Math.max(sleepNanos,
+                    batchBytes * 1000000000L / maxBytesPerSecond - busyNanos);
+        }
+        long deadline = System.nanoTime() + sleepNanos;
+        synchronized (mLock) {
+            long remainingNanos = sleepNanos;
+            while (!mStopRequested && remainingNanos > 0) {
+                try {
+                    mLock.wait(remainingNanos / 1000000, (int) (remainingNanos % 1000000));
+                } catch (InterruptedException e) {
+                    mStopRequested = true;
+                    return;
+                }
+                remainingNanos = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    private void publish(Checkpoint checkpoint, int total, int runItems, long runBytes,
+            long runStart, boolean finished, IOException error) {
+        long runNanos = System.nanoTime() - runStart;
+        Progress progress = new Progress(checkpoint, total, runItems, runBytes, runNanos,
+                finished, error);
+        mProgress = progress;
+        ProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.onProgress(progress);
+        }
+    }
+
+    private Checkpoint readCheckpoint() {
+        byte[] content = new byte[CHECKPOINT_SIZE];
+        FileInputStream in;
+        try {
+            in = new FileInputStream(mCheckpointFile);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            DataInputStream data = new DataInputStream(in);
+            data.readFully(content);
+            if (data.read() != -1) {
+                throw new IOException("Checkpoint too long");
+            }
+        } catch (IOException e) {
+            Tracer.w(TAG, "Ignoring unreadable checkpoint", e);
+            return null;
+        } finally {
+            FilesHelper.closeQuietly(in);
+        }
+        return Checkpoint.parse(content);
+    }
+
+    private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+        byte[] content = checkpoint.getEncoded();
+        File tempFile = new File(mCheckpointFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            fileOut.write(content);
+            // the rename must not reach the disk before the content
+            fileOut.getFD().sync();
+            fileOut.close();
+            FilesHelper.replaceFile(tempFile, mCheckpointFile);
+            success = true;
+        } finally {
+            FilesHelper.closeQuietly(fileOut);
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * State of the job. The counters cover every run for the current key, the rates only the
+     * last run.
+     */
+    public static final class Progress {
+
+        private final int mTotal;
+        private final int mDone;
+        private final int mReEncrypted;
+        private final int mSkipped;
+        private final int mFailed;
+        private final long mBytes;
+        private final long mRunMillis;
+        private final long mItemsPerSecond;
+        private final long mBytesPerSecond;
+        private final boolean mStopped;
+        private final IOException mError;
+
+        private Progress(Checkpoint checkpoint, int total, int runItems, long runBytes,
+                long runNanos, boolean stopped, IOException error) {
+            mTotal = total;
+            mDone = Math.min(checkpoint.mNextIndex, total);
+            mReEncrypted = checkpoint.mReEncrypted;
+            mSkipped = checkpoint.mSkipped;
+            mFailed = checkpoint.mFailed;
+            mBytes = checkpoint.mBytes;
+            mRunMillis = runNanos / 1000000;
+            long nanos = Math.max(1, runNanos);
+            mItemsPerSecond = runItems * 1000000000L / nanos;
+            mBytesPerSecond = (long) (runBytes * 1e9 / nanos);
+            mStopped = stopped;
+            mError = error;
+        }
+
+        /**
+         * Returns number of items in the store when the run started.
+         */
+        public int getTotal() {
+            return mTotal;
+        }
+
+        /**
+         * Returns number of items gone through, whatever their outcome.
+         */
+        public int getDone() {
+            return mDone;
+        }
+
+        public int getReEncrypted() {
+            return mReEncrypted;
+        }
+
+        /**
+         * Returns number of items which were up to date or gone.
+         */
+        public int getSkipped() {
+            return mSkipped;
+        }
+
+        /**
+         * Returns number of items no saved key could decrypt.
+         */
+        public int getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * Returns number of encrypted bytes read.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Returns wall time of the last run, sleeps included.
+         */
+        public long getRunMillis() {
+            return mRunMillis;
+        }
+
+        public long getItemsPerSecond() {
+            return mItemsPerSecond;
+        }
+
+        public long getBytesPerSecond() {
+            return mBytesPerSecond;
+        }
+
+        /**
+         * Tells whether the run is over, because it went through every item, was stopped or
+         * failed.
+         */
+        public boolean isStopped() {
+            return mStopped;
+        }
+
+        /**
+         * Tells whether every item has been gone through.
+         */
+        public boolean isComplete() {
+            return mError == null && mDone == mTotal;
+        }
+
+        /**
+         * Returns the I/O error which stopped the run or null.
+         */
+        public IOException getError() {
+            return mError;
+        }
+    }
+
+    // progress saved after every batch
+    private static final class Checkpoint {
+
+        private final int mKeyVersion;
+        private final int mModeId;
+        private int mNextIndex;
+        private int mReEncrypted;
+        private int mSkipped;
+        private int mFailed;
+        private long mBytes;
+
+        private Checkpoint(int keyVersion, int modeId) {
+            mKeyVersion = keyVersion;
+            mModeId = modeId;
+        }
+
+        private static Checkpoint parse(byte[] content) {
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, CHECKPOINT_SIZE - 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            try {
+                if (in.readByte() != MAGIC_0 || in.readByte() != MAGIC_1
+                        || in.readByte() != FORMAT_VERSION) {
+                    return null;
+                }
+                Checkpoint checkpoint = new Checkpoint(in.readInt(), in.readUnsignedByte());
+                checkpoint.mNextIndex = in.readInt();
+                checkpoint.mReEncrypted = in.readInt();
+                checkpoint.mSkipped = in.readInt();
+                checkpoint.mFailed = in.readInt();
+                checkpoint.mBytes = in.readLong();
+                return in.readInt() == (int) crc.getValue() ? checkpoint : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private byte[] getEncoded() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHECKPOINT_SIZE);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(MAGIC_0);
+            out.writeByte(MAGIC_1);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(mKeyVersion);
+            out.writeByte(mModeId);
+            out.writeInt(mNextIndex);
+            out.writeInt(mReEncrypted);
+            out.writeInt(mSkipped);
+            out.writeInt(mFailed);
+            out.writeLong(mBytes);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.toByteArray());
+            out.writeInt((int) crc.getValue());
+            return buffer.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package uk.org.tomek.encryptme.crypto;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Storage of named secret keys. Every alias holds a history of versions numbered from 1, so
+ * that data encrypted with an older version stays readable after a new one has been added.
+ * Implementations are thread safe.
+ *
+ * @author Tomek Giszczak
+ */
+public interface SecretKeyStore {
+
+    /**
+     * Returns the latest version of the key.
+     *
+     * @param alias key name
+     * @return key or null if there is none
+     */
+    SecretKey getKey(String alias);
+
+    /**
+     * Returns the given version of the key.
+     *
+     * @param alias   key name
+     * @param version version as returned by {@link #putKey(String, SecretKey)}
+     * @return key or null if there is no such version
+     */
+    SecretKey getKey(String alias, int version);
+
+    /**
+     * Returns the number of the latest version of the key.
+     *
+     * @param alias key name
+     * @return version or 0 if there is no key of this name
+     */
+    int getLatestVersion(String alias);
+
+    /**
+     * Returns the names of all stored keys.
+     */
+    Set<String> getAliases();
+
+    /**
+     * Adds a new version of the key. Persistent stores may save it in the background, see
+     * {@link #flush()}.
+     *
+     * @param alias key name
+     * @param key   new key
+     * @return version of the new key
+     */
+    int putKey(String alias, SecretKey key);
+
+    /**
+     * Removes every version of the key.
+     *
+     * @param alias key name
+     * @return true if there was a key of this name
+     */
+    boolean deleteKey(String alias);
+
+    /**
+     * Blocks until every change made so far has been saved.
+     *
+     * @throws IOException if the changes could not be saved
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,70 @@
+package uk.org.tomek.encryptme.crypto;
+
+import javax.crypto.Cipher;
+
+/**
+ * Cipher set up for one stream of data in the format of
+ * {@link CryptoUtils#encryptStream(java.io.InputStream, java.io.OutputStream)}, for callers
+ * which move the data themselves, e.g. through mapped files. The cipher belongs to the stream
+ * and is not shared with anything else.
+ *
+ * @author Tomek Giszczak
+ */
+public final class StreamCipher {
+
+    private static final byte[] NO_HEADER = new byte[0];
+    private final Cipher mCipher;
+    private final byte[] mHeader;
+    private final int mHeaderLength;
+    private final boolean mCompressed;
+
+    private StreamCipher(Cipher cipher, byte[] header, int headerLength, boolean compressed) {
+        mCipher = cipher;
+        mHeader = header;
+        mHeaderLength = headerLength;
+        mCompressed = compressed;
+    }
+
+    static StreamCipher forEncryption(Cipher cipher, byte[] header) {
+        return new StreamCipher(cipher, header == null ? NO_HEADER : header,
+                header == null ? 0 : header.length, false);
+    }
+
+    static StreamCipher forDecryption(Cipher cipher, int headerLength, boolean compressed) {
+        return new StreamCipher(cipher, NO_HEADER, headerLength, compressed);
+    }
+
+    /**
+     * Returns the cipher, initialised for encryption or decryption. The data goes through
+     * {@link Cipher#update} and ends with {@link Cipher#doFinal}.
+     */
+    public Cipher getCipher() {
+        return mCipher;
+    }
+
+    /**
+     * Returns the bytes to write in front of the encrypted data, empty when decrypting or in
+     * {@link CipherMode#LEGACY_CBC}.
+     */
+    public byte[] getHeader() {
+        return mHeader.clone();
+    }
+
+    /**
+     * Returns number of bytes in front of the encrypted data which do not go through the
+     * cipher.
+     */
+    public int getHeaderLength() {
+        return mHeaderLength;
+    }
+
+    /**
+     * Tells whether the decrypted data is compressed and has to go through a
+     * {@link java.util.zip.Inflater}, see {@link CryptoUtils#setCompressionLevel(int)}. Always
+     * false when encrypting, data is only compressed by the stream methods of
+     * {@link CryptoUtils}.
+     */
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+}
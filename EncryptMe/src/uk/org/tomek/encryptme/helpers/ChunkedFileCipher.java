@@ -0,0 +1,454 @@
+package uk.org.tomek.encryptme.helpers;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seekable encrypted file format made of fixed size segments, each encrypted on its own with
+ * AES-GCM. Segments can therefore be encrypted and decrypted in parallel, and any byte range can
+ * be read by decrypting only the segments it touches. <p>
+ * Layout (big endian):
+ * <pre>
+ * header:  magic "EMCF" | version (1) | reserved (3) | segment size (4) | plain length (8)
+ *          | file id (16)
+ * segment: nonce (12) | ciphertext (segment size, shorter for the last one) | tag (16)
+ * </pre>
+ * Every segment is authenticated together with the header and its own index, so segments can
+ * not be swapped, moved between files or dropped without the read failing.
+ *
+ * @author tomek
+ */
+public final class ChunkedFileCipher {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+	public static final int HEADER_SIZE = 36;
+	private static final int MAGIC = 0x454d4346; // "EMCF"
+	private static final byte VERSION = 1;
+	private static final String CIPHER_ALGO = "AES/GCM/NoPadding";
+	private static final int NONCE_SIZE = 12;
+	private static final int TAG_SIZE = 16;
+	private static final int TAG_BITS = TAG_SIZE * 8;
+	private static final int FILE_ID_SIZE = 16;
+	private static final int SEGMENT_OVERHEAD = NONCE_SIZE + TAG_SIZE;
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final SecureRandom sSecureRandom = new SecureRandom();
+
+	private ChunkedFileCipher() {
+	}
+
+	/**
+	 * Encrypts the source file into the destination file using one thread per segment worker.
+	 *
+	 * @param key AES key
+	 * @param source plain file
+	 * @param destination encrypted file, replaced once the whole file is encrypted
+	 * @param segmentSize plain bytes per segment
+	 * @param threads number of worker threads
+	 * @throws IOException if the file could not be read, written or encrypted
+	 */
+	public static void encrypt(SecretKey key, File source, File destination, int segmentSize,
+			int threads) throws IOException {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("Segment size must be positive");
+		}
+		final SecretKeySpec aesKey = toAesKey(key);
+		File tempFile = new File(destination.getPath() + TEMP_SUFFIX);
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		RandomAccessFile out = null;
+		boolean success = false;
+		try {
+			out = new RandomAccessFile(tempFile, "rw");
+			long plainLength = in.length();
+			byte[] fileId = new byte[FILE_ID_SIZE];
+			sSecureRandom.nextBytes(fileId);
+			final Header header = new Header(segmentSize, plainLength, fileId);
+			out.setLength(header.getEncryptedLength());
+			final FileChannel inChannel = in.getChannel();
+			final FileChannel outChannel = out.getChannel();
+			writeFully(outChannel, ByteBuffer.wrap(header.toBytes()), 0);
+
+			runSegments(header, threads, new SegmentWorkerFactory() {
+
+				@Override
+				public SegmentWorker newWorker() throws GeneralSecurityException {
+					final Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
+					final ByteBuffer plain = ByteBuffer.allocate(header.mSegmentSize);
+					final ByteBuffer encrypted = ByteBuffer.allocate(
+							header.mSegmentSize + SEGMENT_OVERHEAD);
+					final byte[] nonce = new byte[NONCE_SIZE];
+					return new SegmentWorker() {
+
+						@Override
+						public void process(long segment) throws IOException,
+								GeneralSecurityException {
+							plain.clear();
+							plain.limit(header.getPlainSegmentLength(segment));
+							readFully(inChannel, plain, segment * header.mSegmentSize);
+							plain.flip();
+							sSecureRandom.nextBytes(nonce);
+							cipher.init(Cipher.ENCRYPT_MODE, aesKey,
+									new GCMParameterSpec(TAG_BITS, nonce));
+							cipher.updateAAD(header.getAad(segment));
+							encrypted.clear();
+							encrypted.put(nonce);
+							cipher.doFinal(plain, encrypted);
+							encrypted.flip();
+							writeFully(outChannel, encrypted, header.getSegmentOffset(segment));
+						}
+					};
+				}
+			});
+			// the rename must not reach the disk before the content
+			outChannel.force(true);
+			out.close();
+			FilesHelper.replaceFile(tempFile, destination);
+			success = true;
+		} finally {
+			FilesHelper.closeQuietly(in);
+			FilesHelper.closeQuietly(out);
+			if (!success) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Decrypts the whole source file into the destination file in parallel.
+	 *
+	 * @param key AES key used for encryption
+	 * @param source encrypted file
+	 * @param destination plain file, replaced once the whole file is decrypted
+	 * @param threads number of worker threads
+	 * @throws IOException if the file could not be read, written, or failed authentication
+	 */
+	public static void decrypt(SecretKey key, File source, File destination, int threads)
+			throws IOException {
+		final Reader reader = Reader.open(key, source);
+		File tempFile = new File(destination.getPath() + TEMP_SUFFIX);
+		RandomAccessFile out = null;
+		boolean success = false;
+		try {
+			out = new RandomAccessFile(tempFile, "rw");
+			out.setLength(reader.length());
+			final FileChannel outChannel = out.getChannel();
+			final Header header = reader.mHeader;
+			runSegments(header, threads, new SegmentWorkerFactory() {
+
+				@Override
+				public SegmentWorker newWorker() throws GeneralSecurityException {
+					final Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
+					final ByteBuffer encrypted = ByteBuffer.allocate(
+							header.mSegmentSize + SEGMENT_OVERHEAD);
+					final ByteBuffer plain = ByteBuffer.allocate(header.mSegmentSize);
+					return new SegmentWorker() {
+
+						@Override
+						public void process(long segment) throws IOException,
+								GeneralSecurityException {
+							reader.decryptSegment(cipher, segment, encrypted, plain);
+							writeFully(outChannel, plain, segment * header.mSegmentSize);
+						}
+					};
+				}
+			});
+			// the rename must not reach the disk before the content
+			outChannel.force(true);
+			out.close();
+			FilesHelper.replaceFile(tempFile, destination);
+			success = true;
+		} finally {
+			FilesHelper.closeQuietly(reader);
+			FilesHelper.closeQuietly(out);
+			if (!success) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Random access reader of an encrypted file. A single reader may be used from several
+	 * threads.
+	 */
+	public static final class Reader implements Closeable {
+
+		private final RandomAccessFile mFile;
+		private final FileChannel mChannel;
+		private final Header mHeader;
+		private final SecretKeySpec mKey;
+
+		private Reader(RandomAccessFile file, Header header, SecretKeySpec key) {
+			mFile = file;
+			mChannel = file.getChannel();
+			mHeader = header;
+			mKey = key;
+		}
+
+		/**
+		 * Opens an encrypted file and validates its header.
+		 *
+		 * @param key AES key used for encryption
+		 * @param file encrypted file
+		 * @return reader
+		 * @throws IOException if the file is not in the expected format
+		 */
+		public static Reader open(SecretKey key, File file) throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			boolean success = false;
+			try {
+				ByteBuffer headerBytes = ByteBuffer.allocate(HEADER_SIZE);
+				readFully(randomAccessFile.getChannel(), headerBytes, 0);
+				Header header = Header.parse(headerBytes.array());
+				if (randomAccessFile.length() != header.getEncryptedLength()) {
+					throw new IOException("Encrypted file has unexpected length");
+				}
+				Reader reader = new Reader(randomAccessFile, header, toAesKey(key));
+				success = true;
+				return reader;
+			} finally {
+				if (!success) {
+					FilesHelper.closeQuietly(randomAccessFile);
+				}
+			}
+		}
+
+		/**
+		 * Returns number of plain bytes in the file.
+		 */
+		public long length() {
+			return mHeader.mPlainLength;
+		}
+
+		/**
+		 * Reads plain bytes from the given position, decrypting only the segments which hold
+		 * them.
+		 *
+		 * @param position offset in the plain data
+		 * @param length number of bytes to read, shortened at the end of the file
+		 * @return plain bytes
+		 * @throws IOException if the file could not be read or failed authentication
+		 */
+		public byte[] read(long position, int length) throws IOException {
+			if (position < 0 || length < 0) {
+				throw new IllegalArgumentException();
+			}
+			int count = (int) Math.max(0, Math.min(length, mHeader.mPlainLength - position));
+			byte[] result = new byte[count];
+			if (count == 0) {
+				return result;
+			}
+			int segmentSize = mHeader.mSegmentSize;
+			try {
+				Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
+				ByteBuffer encrypted = ByteBuffer.allocate(segmentSize + SEGMENT_OVERHEAD);
+				ByteBuffer plain = ByteBuffer.allocate(segmentSize);
+				int copied = 0;
+				while (copied < count) {
+					long plainPosition = position + copied;
+					long segment = plainPosition / segmentSize;
+					decryptSegment(cipher, segment, encrypted, plain);
+					plain.position((int) (plainPosition - segment * segmentSize));
+					int chunk = Math.min(plain.remaining(), count - copied);
+					plain.get(result, copied, chunk);
+					copied += chunk;
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Impossible to decrypt", e);
+			}
+			return result;
+		}
+
+		/*
+		 * Decrypts one segment into the plain buffer, which is flipped for reading.
+		 */
+		private void decryptSegment(Cipher cipher, long segment, ByteBuffer encrypted,
+				ByteBuffer plain) throws IOException, GeneralSecurityException {
+			int plainLength = mHeader.getPlainSegmentLength(segment);
+			encrypted.clear();
+			encrypted.limit(plainLength + SEGMENT_OVERHEAD);
+			readFully(mChannel, encrypted, mHeader.getSegmentOffset(segment));
+			encrypted.flip();
+			byte[] nonce = new byte[NONCE_SIZE];
+			encrypted.get(nonce);
+			cipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_BITS, nonce));
+			cipher.updateAAD(mHeader.getAad(segment));
+			plain.clear();
+			try {
+				cipher.doFinal(encrypted, plain);
+			} catch (AEADBadTagException e) {
+				throw new IOException("Segment " + segment + " failed authentication", e);
+			}
+			plain.flip();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mFile.close();
+		}
+	}
+
+	/*
+	 * Parsed file header.
+	 */
+	private static final class Header {
+		private final int mSegmentSize;
+		private final long mPlainLength;
+		private final byte[] mFileId;
+		private final byte[] mBytes;
+
+		private Header(int segmentSize, long plainLength, byte[] fileId) {
+			mSegmentSize = segmentSize;
+			mPlainLength = plainLength;
+			mFileId = fileId;
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			buffer.putInt(MAGIC).put(VERSION).put(new byte[3]).putInt(segmentSize)
+					.putLong(plainLength).put(fileId);
+			mBytes = buffer.array();
+		}
+
+		private static Header parse(byte[] bytes) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Not a chunked encrypted file");
+			}
+			byte version = buffer.get();
+			if (version != VERSION) {
+				throw new IOException("Unsupported chunked file version " + version);
+			}
+			buffer.position(buffer.position() + 3);
+			int segmentSize = buffer.getInt();
+			long plainLength = buffer.getLong();
+			if (segmentSize < 1 || plainLength < 0) {
+				throw new IOException("Corrupted chunked file header");
+			}
+			byte[] fileId = new byte[FILE_ID_SIZE];
+			buffer.get(fileId);
+			return new Header(segmentSize, plainLength, fileId);
+		}
+
+		private byte[] toBytes() {
+			return mBytes.clone();
+		}
+
+		private long getSegmentCount() {
+			return (mPlainLength + mSegmentSize - 1) / mSegmentSize;
+		}
+
+		private int getPlainSegmentLength(long segment) {
+			return (int) Math.min(mSegmentSize, mPlainLength - segment * mSegmentSize);
+		}
+
+		private long getSegmentOffset(long segment) {
+			return HEADER_SIZE + segment * (mSegmentSize + (long) SEGMENT_OVERHEAD);
+		}
+
+		private long getEncryptedLength() {
+			return HEADER_SIZE + mPlainLength + getSegmentCount() * SEGMENT_OVERHEAD;
+		}
+
+		private byte[] getAad(long segment) {
+			return ByteBuffer.allocate(HEADER_SIZE + 8).put(mBytes).putLong(segment).array();
+		}
+	}
+
+	private interface SegmentWorker {
+		void process(long segment) throws IOException, GeneralSecurityException;
+	}
+
+	private interface SegmentWorkerFactory {
+		SegmentWorker newWorker() throws GeneralSecurityException;
+	}
+
+	/*
+	 * Runs the given number of workers, each taking the next unprocessed segment until all are
+	 * done. Memory use is bounded by the buffers of the workers.
+	 */
+	private static void runSegments(Header header, int threads,
+			final SegmentWorkerFactory workerFactory) throws IOException {
+		final long segmentCount = header.getSegmentCount();
+		final AtomicLong nextSegment = new AtomicLong();
+		int workers = (int) Math.max(1, Math.min(threads, segmentCount));
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+			for (int i = 0; i < workers; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						SegmentWorker worker = workerFactory.newWorker();
+						long segment;
+						while ((segment = nextSegment.getAndIncrement()) < segmentCount) {
+							worker.process(segment);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					// make the other workers stop at their next segment
+					nextSegment.set(segmentCount);
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					throw new IOException("Segment processing failed", cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			nextSegment.set(segmentCount);
+			throw new IOException("Interrupted");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static SecretKeySpec toAesKey(SecretKey key) {
+		if (key == null) {
+			throw new IllegalArgumentException("No encryption key available");
+		}
+		return new SecretKeySpec(key.getEncoded(), "AES");
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
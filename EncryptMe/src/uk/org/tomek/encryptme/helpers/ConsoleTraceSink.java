@@ -0,0 +1,27 @@
+package uk.org.tomek.encryptme.helpers;
+
+import java.io.PrintStream;
+
+/**
+ * {@link TraceSink} writing to the standard error stream, the default outside Android. On a
+ * device the standard streams also end up in the Android log, though under their own tag.
+ */
+public final class ConsoleTraceSink implements TraceSink {
+
+	private static final String LEVELS = "??VDIWE";
+	private final PrintStream mOut;
+
+	public ConsoleTraceSink() {
+		this(System.err);
+	}
+
+	public ConsoleTraceSink(PrintStream out) {
+		mOut = out;
+	}
+
+	@Override
+	public void trace(int level, String tag, String message) {
+		char levelChar = level >= 0 && level < LEVELS.length() ? LEVELS.charAt(level) : '?';
+		mOut.println(levelChar + "/" + tag + ": " + message);
+	}
+}
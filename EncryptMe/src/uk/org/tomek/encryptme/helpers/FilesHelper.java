@@ -1,11 +1,412 @@
 package uk.org.tomek.encryptme.helpers;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.StreamCipher;
+
 /**
  * Class contains methods helping to save files in the filesystem.
- * 
+ *
  * @author tomek
  *
  */
-public class FilesHelper {
+public final class FilesHelper {
+
+	/**
+	 * Receives progress of {@link FilesHelper#encryptFileMapped} and
+	 * {@link FilesHelper#decryptFileMapped}, on the thread doing the work.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param processedBytes bytes of the source file gone through so far
+		 * @param totalBytes size of the source file
+		 */
+		void onProgress(long processedBytes, long totalBytes);
+	}
+
+	/**
+	 * Size of the source file regions mapped at once by the mapped methods.
+	 */
+	public static final long DEFAULT_MAP_WINDOW = 16 * 1024 * 1024;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+	// bytes handed to the cipher at once, also the granularity of the progress
+	private static final int MAP_SLICE_SIZE = 1024 * 1024;
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+	private FilesHelper() {
+	}
+
+	/**
+	 * Encrypts the source file into the destination file. The file is streamed through the
+	 * cipher, so it does not need to fit in memory. The destination is written to a temporary
+	 * file first and only replaces an existing file once encryption has succeeded.
+	 *
+	 * @param cryptoUtils crypto utils holding the key
+	 * @param source plain file
+	 * @param destination encrypted file
+	 * @return size of the encrypted file
+	 * @throws IOException if the file could not be read, written or encrypted
+	 */
+	public static long encryptFile(CryptoUtils cryptoUtils, File source, File destination)
+			throws IOException {
+		return transformFile(cryptoUtils, source, destination, true);
+	}
+
+	/**
+	 * Decrypts the source file into the destination file. Counterpart of
+	 * {@link #encryptFile(CryptoUtils, File, File)}.
+	 *
+	 * @param cryptoUtils crypto utils holding the key
+	 * @param source encrypted file
+	 * @param destination plain file
+	 * @return size of the decrypted file
+	 * @throws IOException if the file could not be read, written or decrypted
+	 */
+	public static long decryptFile(CryptoUtils cryptoUtils, File source, File destination)
+			throws IOException {
+		return transformFile(cryptoUtils, source, destination, false);
+	}
+
+	/**
+	 * Encrypts the source file into the destination file like
+	 * {@link #encryptFile(CryptoUtils, File, File)}, but maps the source file instead of reading
+	 * it through heap arrays. Mapped regions are passed to
+	 * {@link Cipher#update(ByteBuffer, ByteBuffer)} and the result is written from a direct
+	 * buffer at explicit positions of the destination channel. Both methods write the same
+	 * format, so either one can decrypt the result. Unlike the stream methods this one never
+	 * compresses, see {@link CryptoUtils#setCompressionLevel(int)}.
+	 *
+	 * @param cryptoUtils crypto utils holding the key and cipher mode
+	 * @param source plain file
+	 * @param destination encrypted file
+	 * @param listener progress listener, may be null
+	 * @return size of the encrypted file
+	 * @throws IOException if the file could not be read, written or encrypted
+	 */
+	public static long encryptFileMapped(CryptoUtils cryptoUtils, File source, File destination,
+			ProgressListener listener) throws IOException {
+		return transformFileMapped(cryptoUtils, source, destination, true, DEFAULT_MAP_WINDOW,
+				listener);
+	}
+
+	/**
+	 * Decrypts the source file into the destination file through mapped regions. Counterpart of
+	 * {@link #encryptFileMapped(CryptoUtils, File, File, ProgressListener)}. Like
+	 * {@link CryptoUtils#decryptStream}, authenticated modes may hold the whole file in memory
+	 * until the tag is verified, depending on the provider. Compressed files are inflated
+	 * through a heap buffer.
+	 *
+	 * @param cryptoUtils crypto utils holding the key
+	 * @param source encrypted file
+	 * @param destination plain file
+	 * @param listener progress listener, may be null
+	 * @return size of the decrypted file
+	 * @throws IOException if the file could not be read, written or decrypted
+	 */
+	public static long decryptFileMapped(CryptoUtils cryptoUtils, File source, File destination,
+			ProgressListener listener) throws IOException {
+		return transformFileMapped(cryptoUtils, source, destination, false, DEFAULT_MAP_WINDOW,
+				listener);
+	}
+
+	/**
+	 * Variant of {@link #encryptFileMapped(CryptoUtils, File, File, ProgressListener)} and
+	 * {@link #decryptFileMapped(CryptoUtils, File, File, ProgressListener)} with a given mapping
+	 * window. A region stays mapped until its buffer is garbage collected, so a smaller window
+	 * uses less address space, which is scarce in 32 bit processes.
+	 *
+	 * @param encrypt true to encrypt, false to decrypt
+	 * @param windowSize size of the regions mapped at once
+	 * @return size of the destination file
+	 * @throws IOException if the file could not be read, written or transformed
+	 */
+	public static long transformFileMapped(CryptoUtils cryptoUtils, File source,
+			File destination, boolean encrypt, long windowSize, ProgressListener listener)
+			throws IOException {
+		if (windowSize < 1 || windowSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid window size " + windowSize);
+		}
+		File tempFile = new File(destination.getPath() + TEMP_SUFFIX);
+		FileInputStream in = new FileInputStream(source);
+		RandomAccessFile out = null;
+		boolean success = false;
+		try {
+			out = new RandomAccessFile(tempFile, "rw");
+			out.setLength(0);
+			long written = transformChannel(cryptoUtils, in.getChannel(), out.getChannel(),
+					encrypt, windowSize, listener);
+			out.close();
+			replaceFile(tempFile, destination);
+			success = true;
+			return written;
+		} finally {
+			closeQuietly(in);
+			closeQuietly(out);
+			if (!success) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Encrypts the source file into the seekable {@link ChunkedFileCipher} format, using all
+	 * available processors.
+	 *
+	 * @param keyFactory source of the encryption key
+	 * @param source plain file
+	 * @param destination encrypted file
+	 * @throws IOException if the file could not be read, written or encrypted
+	 */
+	public static void encryptFileChunked(KeyFactory keyFactory, File source, File destination)
+			throws IOException {
+		ChunkedFileCipher.encrypt(keyFactory.getKey(), source, destination,
+				ChunkedFileCipher.DEFAULT_SEGMENT_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Decrypts a file created by {@link #encryptFileChunked(KeyFactory, File, File)}, using all
+	 * available processors.
+	 *
+	 * @param keyFactory source of the encryption key
+	 * @param source encrypted file
+	 * @param destination plain file
+	 * @throws IOException if the file could not be read, written or failed authentication
+	 */
+	public static void decryptFileChunked(KeyFactory keyFactory, File source, File destination)
+			throws IOException {
+		ChunkedFileCipher.decrypt(keyFactory.getKey(), source, destination,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Opens a file created by {@link #encryptFileChunked(KeyFactory, File, File)} for random
+	 * access reads. The reader has to be closed by the caller.
+	 *
+	 * @param keyFactory source of the encryption key
+	 * @param file encrypted file
+	 * @return reader
+	 * @throws IOException if the file could not be opened or is not in the chunked format
+	 */
+	public static ChunkedFileCipher.Reader openChunkedFile(KeyFactory keyFactory, File file)
+			throws IOException {
+		return ChunkedFileCipher.Reader.open(keyFactory.getKey(), file);
+	}
+
+	/**
+	 * Opens the append-only {@link RecordLog} kept in the given directory, creating it if there
+	 * is none. A record torn by a crash is dropped on the way. The log has to be closed by the
+	 * caller.
+	 *
+	 * @param keyFactory source of the encryption key
+	 * @param directory directory of the log segments
+	 * @param syncPolicy when committed records are forced to storage
+	 * @return log
+	 * @throws IOException if the log could not be opened or created
+	 */
+	public static RecordLog openRecordLog(KeyFactory keyFactory, File directory,
+			RecordLog.SyncPolicy syncPolicy) throws IOException {
+		return RecordLog.open(keyFactory.getKey(), directory, syncPolicy);
+	}
+
+	private static long transformFile(CryptoUtils cryptoUtils, File source, File destination,
+			boolean encrypt) throws IOException {
+		File tempFile = new File(destination.getPath() + TEMP_SUFFIX);
+		InputStream in = new FileInputStream(source);
+		boolean success = false;
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			long written;
+			try {
+				if (encrypt) {
+					written = cryptoUtils.encryptStream(in, out);
+				} else {
+					written = cryptoUtils.decryptStream(in, out);
+				}
+			} finally {
+				out.close();
+			}
+			replaceFile(tempFile, destination);
+			success = true;
+			return written;
+		} finally {
+			closeQuietly(in);
+			if (!success) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	private static long transformChannel(CryptoUtils cryptoUtils, FileChannel in,
+			FileChannel out, boolean encrypt, long windowSize, ProgressListener listener)
+			throws IOException {
+		long size = in.size();
+		long inputPosition = 0;
+		long outputPosition = 0;
+		Inflater inflater = null;
+		try {
+			StreamCipher streamCipher;
+			if (encrypt) {
+				streamCipher = cryptoUtils.newEncryptionStreamCipher();
+				outputPosition += writeFully(out, ByteBuffer.wrap(streamCipher.getHeader()),
+						outputPosition);
+			} else {
+				ByteBuffer head = ByteBuffer.allocate((int) Math.min(size,
+						CryptoUtils.getStreamHeadSize()));
+				int read = 0;
+				while (head.hasRemaining() && read != -1) {
+					read = in.read(head, head.position());
+				}
+				streamCipher = cryptoUtils.newDecryptionStreamCipher(head.array(), 0,
+						head.position());
+				inputPosition = streamCipher.getHeaderLength();
+			}
+			Cipher cipher = streamCipher.getCipher();
+			ByteBuffer output;
+			byte[] inflateBuffer = null;
+			if (streamCipher.isCompressed()) {
+				// the inflater only reads arrays, the output is inflated from a heap buffer
+				inflater = new Inflater();
+				inflateBuffer = new byte[MAP_SLICE_SIZE];
+				output = ByteBuffer.allocate(cipher.getOutputSize(MAP_SLICE_SIZE));
+			} else {
+				output = ByteBuffer.allocateDirect(cipher.getOutputSize(MAP_SLICE_SIZE));
+			}
+			while (inputPosition < size) {
+				MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, inputPosition,
+						Math.min(windowSize, size - inputPosition));
+				while (window.hasRemaining()) {
+					int sliceLength = Math.min(MAP_SLICE_SIZE, window.remaining());
+					ByteBuffer slice = window.slice();
+					slice.limit(sliceLength);
+					output = clearWithCapacity(output, cipher.getOutputSize(sliceLength));
+					cipher.update(slice, output);
+					output.flip();
+					outputPosition += writeOutput(out, output, outputPosition, inflater,
+							inflateBuffer);
+					window.position(window.position() + sliceLength);
+					inputPosition += sliceLength;
+					if (listener != null) {
+						listener.onProgress(inputPosition, size);
+					}
+				}
+			}
+			// some providers hold back all authenticated data until the tag is verified
+			output = clearWithCapacity(output, cipher.getOutputSize(0));
+			cipher.doFinal(EMPTY_BUFFER.duplicate(), output);
+			output.flip();
+			outputPosition += writeOutput(out, output, outputPosition, inflater, inflateBuffer);
+			if (inflater != null && !inflater.finished()) {
+				throw new IOException("Truncated compressed file");
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("File transformation failed", e);
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+		return outputPosition;
+	}
+
+	/*
+	 * Writes the cipher output, inflating it first if the file is compressed.
+	 */
+	private static long writeOutput(FileChannel out, ByteBuffer output, long position,
+			Inflater inflater, byte[] inflateBuffer) throws IOException {
+		if (inflater == null) {
+			return writeFully(out, output, position);
+		}
+		inflater.setInput(output.array(), output.arrayOffset() + output.position(),
+				output.remaining());
+		long written = 0;
+		try {
+			while (true) {
+				int count = inflater.inflate(inflateBuffer);
+				if (count > 0) {
+					written += writeFully(out, ByteBuffer.wrap(inflateBuffer, 0, count),
+							position + written);
+				} else if (inflater.finished() || inflater.needsInput()) {
+					return written;
+				} else {
+					throw new IOException("Compressed file needs a dictionary");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed file", e);
+		}
+	}
+
+	/*
+	 * Grows by doubling, as with providers holding back the output its required size grows with
+	 * every slice.
+	 */
+	private static ByteBuffer clearWithCapacity(ByteBuffer buffer, int capacity) {
+		if (buffer.capacity() < capacity) {
+			int newCapacity = (int) Math.min(Integer.MAX_VALUE,
+					Math.max(capacity, 2L * buffer.capacity()));
+			return buffer.isDirect() ? ByteBuffer.allocateDirect(newCapacity)
+					: ByteBuffer.allocate(newCapacity);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + length - buffer.remaining());
+		}
+		return length;
+	}
+
+	/**
+	 * Moves the source file in place of the destination file.
+	 *
+	 * @param source file to move
+	 * @param destination target location
+	 * @throws IOException if the file could not be moved
+	 */
+	public static void replaceFile(File source, File destination) throws IOException {
+		// rename() does not overwrite on every platform
+		if (!source.renameTo(destination)) {
+			if (!destination.delete() || !source.renameTo(destination)) {
+				throw new IOException("Impossible to move " + source + " to " + destination);
+			}
+		}
+	}
 
+	/**
+	 * Closes the stream ignoring any exception.
+	 *
+	 * @param closeable stream to close, may be null
+	 */
+	public static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignored) {
+				// nothing to do
+			}
+		}
+	}
 }
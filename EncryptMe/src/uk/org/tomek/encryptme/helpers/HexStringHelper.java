@@ -1,37 +1,447 @@
 package uk.org.tomek.encryptme.helpers;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven binary to text codec. Supports compact hex ("0a1b"), formatted hex as shown in
+ * the UI ("0x0a, 0x1b"), Base64 and URL safe Base64, with decoders for all of them. Encoders
+ * write straight into a {@code char[]}, an {@link Appendable} or a {@link ByteBuffer}.
+ *
+ * @author tomek
+ */
 public final class HexStringHelper {
-	
-	/**
-     * Hex encodes a byte array. <BR>
-     * Returns an empty string if the input array is null or empty. <p>
-     * From http://www.scottjjohnson.com/blog/AesWithCbcExample.java
-     * 
-     * @param input bytes to encode
-     * @return string containing hex representation of input byte array
-     */
+
+	/**
+	 * Text encodings supported by the helper.
+	 */
+	public enum Encoding {
+		/** Two lower case hex digits per byte. */
+		HEX,
+		/** "0x" and two lower case hex digits per byte, separated by ", ". */
+		HEX_FORMATTED,
+		/** RFC 4648 Base64 with padding. */
+		BASE64,
+		/** RFC 4648 URL and file name safe Base64 without padding. */
+		BASE64_URL
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final char[] BASE64_ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final char[] BASE64_URL_ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final char BASE64_PADDING = '=';
+	private static final String SEPARATOR = ", ";
+	// both digits of every byte value, so a byte takes one lookup
+	private static final char[] HEX_PAIRS = new char[512];
+	// value of every ASCII character, -1 for characters which are not digits
+	private static final byte[] HEX_VALUES = new byte[128];
+	private static final byte[] BASE64_VALUES = new byte[128];
+	// input bytes encoded per step by the Appendable and ByteBuffer variants, a multiple of 6
+	private static final int CHUNK_SIZE = 768;
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			HEX_PAIRS[i * 2] = HEX_DIGITS[i >>> 4];
+			HEX_PAIRS[i * 2 + 1] = HEX_DIGITS[i & 0x0f];
+		}
+		for (int i = 0; i < 128; i++) {
+			HEX_VALUES[i] = (byte) Character.digit((char) i, 16);
+			BASE64_VALUES[i] = -1;
+		}
+		for (int i = 0; i < 64; i++) {
+			// the decoder accepts both alphabets
+			BASE64_VALUES[BASE64_ALPHABET[i]] = (byte) i;
+			BASE64_VALUES[BASE64_URL_ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	private HexStringHelper() {
+	}
+
+	/**
+	 * Hex encodes a byte array in the "0x0a, 0x1b" format. <BR>
+	 * Returns an empty string if the input array is null or empty.
+	 *
+	 * @param input bytes to encode
+	 * @return string containing hex representation of input byte array
+	 */
 	public static String hexEncode(byte[] input) {
+		return encode(Encoding.HEX_FORMATTED, input);
+	}
+
+	/**
+	 * Hex encodes a byte array with two digits per byte and no separators.
+	 *
+	 * @param input bytes to encode
+	 * @return hex string, empty if the input array is null or empty
+	 */
+	public static String hexEncodeCompact(byte[] input) {
+		return encode(Encoding.HEX, input);
+	}
+
+	/**
+	 * Decodes compact or formatted hex. "0x" prefixes, commas and white space are skipped.
+	 *
+	 * @param input hex string
+	 * @return decoded bytes
+	 * @throws IllegalArgumentException if the input is not valid hex
+	 */
+	public static byte[] hexDecode(CharSequence input) {
+		byte[] output = new byte[input.length() / 2];
+		int count = 0;
+		int high = -1;
+		int length = input.length();
+		for (int i = 0; i < length; i++) {
+			char c = input.charAt(i);
+			if (c == '0' && high == -1 && i + 1 < length
+					&& (input.charAt(i + 1) == 'x' || input.charAt(i + 1) == 'X')) {
+				i++;
+				continue;
+			}
+			if (c == ',' || Character.isWhitespace(c)) {
+				if (high != -1) {
+					throw new IllegalArgumentException("Odd number of hex digits at " + i);
+				}
+				continue;
+			}
+			int value = c < 128 ? HEX_VALUES[c] : -1;
+			if (value == -1) {
+				throw new IllegalArgumentException("Invalid hex character at " + i);
+			}
+			if (high == -1) {
+				high = value;
+			} else {
+				output[count++] = (byte) (high << 4 | value);
+				high = -1;
+			}
+		}
+		if (high != -1) {
+			throw new IllegalArgumentException("Odd number of hex digits");
+		}
+		return trim(output, count);
+	}
+
+	/**
+	 * Base64 encodes a byte array.
+	 *
+	 * @param input bytes to encode
+	 * @return Base64 string with padding, empty if the input array is null or empty
+	 */
+	public static String base64Encode(byte[] input) {
+		return encode(Encoding.BASE64, input);
+	}
+
+	/**
+	 * URL safe Base64 encodes a byte array.
+	 *
+	 * @param input bytes to encode
+	 * @return Base64 string without padding, empty if the input array is null or empty
+	 */
+	public static String base64UrlEncode(byte[] input) {
+		return encode(Encoding.BASE64_URL, input);
+	}
+
+	/**
+	 * Decodes standard or URL safe Base64, with or without padding. White space is skipped.
+	 *
+	 * @param input Base64 string
+	 * @return decoded bytes
+	 * @throws IllegalArgumentException if the input is not valid Base64
+	 */
+	public static byte[] base64Decode(CharSequence input) {
+		int length = input.length();
+		byte[] output = new byte[length / 4 * 3 + 2];
+		int count = 0;
+		int bits = 0;
+		int digits = 0;
+		int i = 0;
+		for (; i < length; i++) {
+			char c = input.charAt(i);
+			if (c == BASE64_PADDING) {
+				break;
+			}
+			if (Character.isWhitespace(c)) {
+				continue;
+			}
+			int value = c < 128 ? BASE64_VALUES[c] : -1;
+			if (value == -1) {
+				throw new IllegalArgumentException("Invalid Base64 character at " + i);
+			}
+			bits = bits << 6 | value;
+			if (++digits == 4) {
+				output[count++] = (byte) (bits >> 16);
+				output[count++] = (byte) (bits >> 8);
+				output[count++] = (byte) bits;
+				bits = 0;
+				digits = 0;
+			}
+		}
+		for (; i < length; i++) {
+			char c = input.charAt(i);
+			if (c != BASE64_PADDING && !Character.isWhitespace(c)) {
+				throw new IllegalArgumentException("Data after Base64 padding at " + i);
+			}
+		}
+		if (digits == 1) {
+			throw new IllegalArgumentException("Truncated Base64 input");
+		} else if (digits == 2) {
+			output[count++] = (byte) (bits >> 4);
+		} else if (digits == 3) {
+			output[count++] = (byte) (bits >> 10);
+			output[count++] = (byte) (bits >> 2);
+		}
+		return trim(output, count);
+	}
+
+	/**
+	 * Decodes text in the given encoding.
+	 *
+	 * @throws IllegalArgumentException if the input is not valid
+	 */
+	public static byte[] decode(Encoding encoding, CharSequence input) {
+		if (encoding == Encoding.HEX || encoding == Encoding.HEX_FORMATTED) {
+			return hexDecode(input);
+		}
+		return base64Decode(input);
+	}
+
+	/**
+	 * Encodes a byte array.
+	 *
+	 * @return encoded string, empty if the input array is null or empty
+	 */
+	public static String encode(Encoding encoding, byte[] input) {
 		if (input == null || input.length == 0) {
 			return "";
 		}
+		char[] output = new char[getEncodedLength(encoding, input.length)];
+		encode(encoding, input, 0, input.length, output, 0);
+		return new String(output);
+	}
+
+	/**
+	 * Encodes the remaining bytes of a buffer, e.g. a direct one, without copying all of them
+	 * to the heap. The bytes pass through a small array which is wiped afterwards, the position
+	 * of the buffer does not change.
+	 *
+	 * @return encoded string, empty if nothing remains
+	 */
+	public static String encode(Encoding encoding, ByteBuffer input) {
+		int length = input.remaining();
+		char[] output = new char[getEncodedLength(encoding, length)];
+		byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+		int outputOffset = 0;
+		for (int from = 0; from < length; from += CHUNK_SIZE) {
+			int count = Math.min(CHUNK_SIZE, length - from);
+			for (int i = 0; i < count; i++) {
+				chunk[i] = input.get(input.position() + from + i);
+			}
+			outputOffset += encodeChunk(encoding, chunk, 0, count, output, outputOffset,
+					from != 0, from + CHUNK_SIZE >= length);
+		}
+		Arrays.fill(chunk, (byte) 0);
+		return new String(output);
+	}
+
+	/**
+	 * Returns number of characters the encoding of the given number of bytes takes.
+	 */
+	public static int getEncodedLength(Encoding encoding, int length) {
+		long encodedLength;
+		switch (encoding) {
+			case HEX:
+				encodedLength = 2L * length;
+				break;
+			case HEX_FORMATTED:
+				encodedLength = length == 0 ? 0 : 6L * length - SEPARATOR.length();
+				break;
+			case BASE64:
+				encodedLength = (length + 2L) / 3 * 4;
+				break;
+			default:
+				encodedLength = (4L * length + 2) / 3;
+				break;
+		}
+		if (encodedLength > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Input too large: " + length);
+		}
+		return (int) encodedLength;
+	}
 
-		int inputLength = input.length;
-		StringBuilder output = new StringBuilder(inputLength * 2);
+	/**
+	 * Encodes part of the input array into a caller owned char array.
+	 *
+	 * @param output needs {@link #getEncodedLength(Encoding, int)} chars from the offset
+	 * @return number of chars written
+	 */
+	public static int encode(Encoding encoding, byte[] input, int offset, int length,
+			char[] output, int outputOffset) {
+		return encodeChunk(encoding, input, offset, length, output, outputOffset, false, true);
+	}
+
+	/**
+	 * Encodes part of the input array into an {@link Appendable}, e.g. a {@link StringBuilder}
+	 * or a {@link java.io.Writer}, through a small fixed buffer.
+	 *
+	 * @throws IOException if the {@link Appendable} fails
+	 */
+	public static void encode(Encoding encoding, byte[] input, int offset, int length,
+			Appendable output) throws IOException {
+		char[] chunk = new char[getEncodedLength(encoding, CHUNK_SIZE) + SEPARATOR.length()];
+		CharBuffer chunkBuffer = CharBuffer.wrap(chunk);
+		int end = offset + length;
+		for (int from = offset; from < end; from += CHUNK_SIZE) {
+			int count = encodeChunk(encoding, input, from, Math.min(CHUNK_SIZE, end - from), chunk,
+					0, from != offset, from + CHUNK_SIZE >= end);
+			if (output instanceof StringBuilder) {
+				((StringBuilder) output).append(chunk, 0, count);
+			} else {
+				output.append(chunkBuffer, 0, count);
+			}
+		}
+	}
 
-		for (int i = 0; i < inputLength; i++) {
-			int next = input[i] & 0xff;
-			if (next < 0x10) {
-				output.append("0");
+	/**
+	 * Encodes part of the input array into a buffer as US-ASCII bytes.
+	 *
+	 * @param output needs {@link #getEncodedLength(Encoding, int)} bytes remaining, its position
+	 * is moved past the written bytes
+	 * @return number of bytes written
+	 */
+	public static int encode(Encoding encoding, byte[] input, int offset, int length,
+			ByteBuffer output) {
+		int encodedLength = getEncodedLength(encoding, length);
+		if (output.remaining() < encodedLength) {
+			throw new IllegalArgumentException("Output buffer needs " + encodedLength + " bytes");
+		}
+		char[] chunk = new char[getEncodedLength(encoding, CHUNK_SIZE) + SEPARATOR.length()];
+		byte[] array = output.hasArray() ? output.array() : new byte[chunk.length];
+		int end = offset + length;
+		for (int from = offset; from < end; from += CHUNK_SIZE) {
+			int count = encodeChunk(encoding, input, from, Math.min(CHUNK_SIZE, end - from), chunk,
+					0, from != offset, from + CHUNK_SIZE >= end);
+			// heap buffers are written in place, direct ones through the chunk array
+			int arrayOffset = output.hasArray() ? output.arrayOffset() + output.position() : 0;
+			for (int i = 0; i < count; i++) {
+				array[arrayOffset + i] = (byte) chunk[i];
+			}
+			if (output.hasArray()) {
+				output.position(output.position() + count);
+			} else {
+				output.put(array, 0, count);
 			}
+		}
+		return encodedLength;
+	}
+
+	/*
+	 * Encodes a part of the input. Chunks after the first one start with a separator, padding is
+	 * only added to the last one.
+	 */
+	private static int encodeChunk(Encoding encoding, byte[] input, int offset, int length,
+			char[] output, int outputOffset, boolean leadingSeparator, boolean last) {
+		switch (encoding) {
+			case HEX:
+				return encodeHex(input, offset, length, output, outputOffset);
+			case HEX_FORMATTED:
+				return encodeFormattedHex(input, offset, length, output, outputOffset,
+						leadingSeparator);
+			case BASE64:
+				return encodeBase64(BASE64_ALPHABET, last, input, offset, length, output,
+						outputOffset);
+			default:
+				return encodeBase64(BASE64_URL_ALPHABET, false, input, offset, length, output,
+						outputOffset);
+		}
+	}
+
+	private static int encodeHex(byte[] input, int offset, int length, char[] output,
+			int outputOffset) {
+		int out = outputOffset;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			int pair = (input[i] & 0xff) << 1;
+			output[out++] = HEX_PAIRS[pair];
+			output[out++] = HEX_PAIRS[pair + 1];
+		}
+		return out - outputOffset;
+	}
 
-			output.append("0x");
-			output.append(Integer.toHexString(next));
-			if (i != inputLength - 1) {
-				output.append(", ");
+	private static int encodeFormattedHex(byte[] input, int offset, int length, char[] output,
+			int outputOffset, boolean leadingSeparator) {
+		int out = outputOffset;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (leadingSeparator || i != offset) {
+				output[out++] = ',';
+				output[out++] = ' ';
 			}
+			int pair = (input[i] & 0xff) << 1;
+			output[out++] = '0';
+			output[out++] = 'x';
+			output[out++] = HEX_PAIRS[pair];
+			output[out++] = HEX_PAIRS[pair + 1];
 		}
+		return out - outputOffset;
+	}
 
-		return output.toString();
+	private static int encodeBase64(char[] alphabet, boolean padding, byte[] input, int offset,
+			int length, char[] output, int outputOffset) {
+		int out = outputOffset;
+		int i = offset;
+		int end = offset + length;
+		// six bytes at a time, a long holds the 48 bits of eight output characters
+		for (; end - i >= 6; i += 6) {
+			long bits = (input[i] & 0xffL) << 40 | (input[i + 1] & 0xffL) << 32
+					| (input[i + 2] & 0xffL) << 24 | (input[i + 3] & 0xffL) << 16
+					| (input[i + 4] & 0xffL) << 8 | (input[i + 5] & 0xffL);
+			output[out++] = alphabet[(int) (bits >>> 42) & 0x3f];
+			output[out++] = alphabet[(int) (bits >>> 36) & 0x3f];
+			output[out++] = alphabet[(int) (bits >>> 30) & 0x3f];
+			output[out++] = alphabet[(int) (bits >>> 24) & 0x3f];
+			output[out++] = alphabet[(int) (bits >>> 18) & 0x3f];
+			output[out++] = alphabet[(int) (bits >>> 12) & 0x3f];
+			output[out++] = alphabet[(int) (bits >>> 6) & 0x3f];
+			output[out++] = alphabet[(int) bits & 0x3f];
+		}
+		for (; end - i >= 3; i += 3) {
+			int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | (input[i + 2] & 0xff);
+			output[out++] = alphabet[bits >>> 18];
+			output[out++] = alphabet[(bits >>> 12) & 0x3f];
+			output[out++] = alphabet[(bits >>> 6) & 0x3f];
+			output[out++] = alphabet[bits & 0x3f];
+		}
+		int remaining = end - i;
+		if (remaining > 0) {
+			int bits = (input[i] & 0xff) << 16;
+			if (remaining == 2) {
+				bits |= (input[i + 1] & 0xff) << 8;
+			}
+			output[out++] = alphabet[bits >>> 18];
+			output[out++] = alphabet[(bits >>> 12) & 0x3f];
+			if (remaining == 2) {
+				output[out++] = alphabet[(bits >>> 6) & 0x3f];
+			}
+			if (padding) {
+				if (remaining == 1) {
+					output[out++] = BASE64_PADDING;
+				}
+				output[out++] = BASE64_PADDING;
+			}
+		}
+		return out - outputOffset;
 	}
 
+	private static byte[] trim(byte[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		byte[] trimmed = new byte[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
 }
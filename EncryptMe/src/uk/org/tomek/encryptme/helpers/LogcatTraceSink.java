@@ -0,0 +1,15 @@
+package uk.org.tomek.encryptme.helpers;
+
+import android.util.Log;
+
+/**
+ * {@link TraceSink} writing to the Android log. Tracer levels use the same values as
+ * {@link Log} priorities.
+ */
+public final class LogcatTraceSink implements TraceSink {
+
+	@Override
+	public void trace(int level, String tag, String message) {
+		Log.println(level, tag, message);
+	}
+}
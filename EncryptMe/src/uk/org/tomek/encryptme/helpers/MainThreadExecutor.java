@@ -0,0 +1,35 @@
+package uk.org.tomek.encryptme.helpers;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * {@link Executor} running tasks on the main (UI) thread, e.g. to deliver results of background
+ * operations to views.
+ *
+ * @author tomek
+ */
+public final class MainThreadExecutor implements Executor {
+
+	private final Handler mHandler;
+
+	private MainThreadExecutor() {
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Creates new instance of {@link MainThreadExecutor}.
+	 *
+	 * @return {@link MainThreadExecutor}
+	 */
+	public static MainThreadExecutor newInstance() {
+		return new MainThreadExecutor();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		mHandler.post(command);
+	}
+}
@@ -0,0 +1,1054 @@
+package uk.org.tomek.encryptme.helpers;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Append-only log of small encrypted records, kept in a directory of segment files. Every
+ * record is framed and encrypted on its own with AES-GCM, authenticated together with the log
+ * id, its length and its sequence number, so records can not be altered, reordered or moved
+ * between logs without the read failing. <p>
+ * Layout (big endian):
+ * <pre>
+ * segment: magic "EMRL" | version (1) | reserved (3) | base sequence (8) | log id (16)
+ * record:  length of the rest (4) | sequence (8) | nonce (12) | ciphertext | tag (16)
+ * index:   magic "EMRI" | version (1) | reserved (3) | segment length (8) | entries (4)
+ *          | (sequence (8) | offset (8)) per entry | CRC32 (4)
+ * </pre>
+ * {@link #append(byte[])} only encrypts a record into a buffer. {@link #commit()} writes all
+ * buffered records at once, so threads committing at the same time share one write and one
+ * fsync, and the {@link SyncPolicy} decides when the segment is forced to storage. <p>
+ * Once the active segment reaches the segment size it is forced, sealed with a sparse index of
+ * every {@link #INDEX_INTERVAL}th record and a new segment is started. Sealed segments can be
+ * dropped with {@link #deleteBefore(long)} or rewritten without some records with
+ * {@link #compact(RecordFilter)}. <p>
+ * Opening a log scans the active segment and cuts it after its last complete and authentic
+ * record, which drops a record torn by a crash.
+ *
+ * @author tomek
+ */
+public final class RecordLog implements Closeable {
+
+	/**
+	 * When committed records are forced to storage.
+	 */
+	public enum SyncPolicy {
+		/**
+		 * Every commit forces the segment before it returns.
+		 */
+		ALWAYS,
+		/**
+		 * A commit forces the segment if the last force is older than the sync interval, see
+		 * {@link RecordLog#setSyncInterval(long)}.
+		 */
+		INTERVAL,
+		/**
+		 * The file system decides when committed records reach storage.
+		 */
+		NEVER
+	}
+
+	/**
+	 * Decides which records {@link RecordLog#compact(RecordFilter)} keeps.
+	 */
+	public interface RecordFilter {
+
+		/**
+		 * @param sequence sequence number of the record
+		 * @param record decrypted record
+		 * @return true to keep the record
+		 */
+		boolean keep(long sequence, byte[] record);
+	}
+
+	public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+	/**
+	 * Records between two entries of the sparse index.
+	 */
+	public static final int INDEX_INTERVAL = 64;
+	/**
+	 * Largest record accepted by {@link #append(byte[])}.
+	 */
+	public static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+	private static final String TAG = RecordLog.class.getSimpleName();
+	private static final int MAGIC = 0x454d524c; // "EMRL"
+	private static final int INDEX_MAGIC = 0x454d5249; // "EMRI"
+	private static final byte VERSION = 1;
+	private static final String CIPHER_ALGO = "AES/GCM/NoPadding";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int HEADER_SIZE = 32;
+	private static final int LOG_ID_SIZE = 16;
+	// length and sequence
+	private static final int FRAME_HEADER_SIZE = 12;
+	private static final int NONCE_SIZE = 12;
+	private static final int TAG_SIZE = 16;
+	private static final int TAG_BITS = TAG_SIZE * 8;
+	private static final int RECORD_OVERHEAD = FRAME_HEADER_SIZE + NONCE_SIZE + TAG_SIZE;
+	// buffered bytes which make append() commit on its own
+	private static final int GROUP_COMMIT_SIZE = 64 * 1024;
+	private static final int INDEX_HEADER_SIZE = 20;
+	private static final SecureRandom sSecureRandom = new SecureRandom();
+
+	private final File mDirectory;
+	private final SecretKeySpec mKey;
+	private final byte[] mLogId;
+	private final SyncPolicy mSyncPolicy;
+	private final long mSegmentSize;
+	private final int mGroupCommitSize;
+	// guards the segments, the read cipher and compaction
+	private final Object mReadLock = new Object();
+	private final TreeMap<Long, Segment> mSegments = new TreeMap<Long, Segment>();
+	private final Cipher mReadCipher;
+	// guards the active segment and the file writes
+	private final Object mCommitLock = new Object();
+	private Segment mActiveSegment;
+	private long mLastSyncMillis;
+	private volatile long mSyncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+	private volatile long mCommittedSequence;
+	// guarded by this
+	private final Cipher mWriteCipher;
+	private ByteBuffer mPending = ByteBuffer.allocate(GROUP_COMMIT_SIZE);
+	private ByteBuffer mSpare;
+	private long mNextSequence;
+	private boolean mClosed;
+
+	private RecordLog(File directory, SecretKeySpec key, byte[] logId, SyncPolicy syncPolicy,
+			long segmentSize) throws IOException {
+		mDirectory = directory;
+		mKey = key;
+		mLogId = logId;
+		mSyncPolicy = syncPolicy;
+		mSegmentSize = segmentSize;
+		// small segments are not overshot by a whole buffer
+		mGroupCommitSize = (int) Math.min(GROUP_COMMIT_SIZE, segmentSize);
+		try {
+			mReadCipher = Cipher.getInstance(CIPHER_ALGO);
+			mWriteCipher = Cipher.getInstance(CIPHER_ALGO);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cipher not available", e);
+		}
+	}
+
+	/**
+	 * Opens the log kept in the given directory with the default segment size, creating it if
+	 * there is none, and recovers it after a crash.
+	 *
+	 * @param key AES key of the records
+	 * @param directory directory of the segment files
+	 * @param syncPolicy when committed records are forced to storage
+	 * @return log, to be closed by the caller
+	 * @throws IOException if the log could not be read or created
+	 */
+	public static RecordLog open(SecretKey key, File directory, SyncPolicy syncPolicy)
+			throws IOException {
+		return open(key, directory, syncPolicy, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Variant of {@link #open(SecretKey, File, SyncPolicy)} with a given segment size.
+	 *
+	 * @param segmentSize size after which the active segment is sealed and a new one started
+	 */
+	public static RecordLog open(SecretKey key, File directory, SyncPolicy syncPolicy,
+			long segmentSize) throws IOException {
+		if (key == null) {
+			throw new IllegalArgumentException("No encryption key available");
+		}
+		if (syncPolicy == null || segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Invalid sync policy or segment size");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Impossible to create " + directory);
+		}
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX) || name.endsWith(TEMP_SUFFIX);
+			}
+		});
+		if (files == null) {
+			throw new IOException("Impossible to list " + directory);
+		}
+		// zero padded names sort by base sequence
+		Arrays.sort(files);
+		List<File> segmentFiles = new ArrayList<File>(files.length);
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				// left by an interrupted compaction or index write
+				file.delete();
+			} else {
+				segmentFiles.add(file);
+			}
+		}
+		SecretKeySpec aesKey = new SecretKeySpec(key.getEncoded(), "AES");
+		byte[] logId = readLogId(segmentFiles);
+		RecordLog log = new RecordLog(directory, aesKey, logId, syncPolicy, segmentSize);
+		boolean success = false;
+		try {
+			log.recover(segmentFiles);
+			success = true;
+			return log;
+		} finally {
+			if (!success) {
+				log.closeSegments();
+			}
+		}
+	}
+
+	/*
+	 * Loads the sealed segments and scans the active one, which is cut after its last valid
+	 * record.
+	 */
+	private void recover(List<File> segmentFiles) throws IOException {
+		long start = Tracer.startTimer();
+		Segment last = null;
+		boolean recovered = false;
+		// sequence numbers are never handed out twice, even if their records are gone
+		long nextSequence = 0;
+		for (int i = 0; i < segmentFiles.size(); i++) {
+			File file = segmentFiles.get(i);
+			boolean active = i == segmentFiles.size() - 1;
+			long baseSequence = parseBaseSequence(file);
+			nextSequence = Math.max(nextSequence, baseSequence);
+			Segment segment = Segment.open(file, baseSequence);
+			if (segment == null) {
+				if (!active) {
+					throw new IOException("Segment " + file + " has no valid header");
+				}
+				// created just before a crash
+				file.delete();
+				continue;
+			}
+			if (!Arrays.equals(mLogId, segment.mLogId)) {
+				segment.close();
+				throw new IOException("Segment " + file + " belongs to another log");
+			}
+			mSegments.put(segment.mBaseSequence, segment);
+			if (active) {
+				recoverActiveSegment(segment);
+				recovered = true;
+			} else if (!segment.loadIndex()) {
+				segment.scan();
+			}
+			last = segment;
+		}
+		if (last != null) {
+			nextSequence = Math.max(nextSequence, last.mLastSequence + 1);
+		}
+		if (!recovered) {
+			// a sealed segment is never appended to again
+			last = createSegment(nextSequence);
+		}
+		mActiveSegment = last;
+		mNextSequence = nextSequence;
+		mCommittedSequence = nextSequence - 1;
+		mLastSyncMillis = System.currentTimeMillis();
+		Tracer.d(TAG, "Recovered %d segments in %dus", mSegments.size(),
+				Tracer.elapsedMicros(start));
+	}
+
+	private void recoverActiveSegment(Segment segment) throws IOException {
+		long fileLength = segment.getChannel().size();
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		long offset = HEADER_SIZE;
+		long previousSequence = segment.mBaseSequence - 1;
+		while (offset < fileLength) {
+			int length = readFrameHeader(segment.getChannel(), frame, offset, fileLength);
+			long sequence = frame.getLong(4);
+			if (length < 0 || sequence <= previousSequence
+					|| decryptRecord(segment, offset, length, sequence) == null) {
+				break;
+			}
+			segment.addRecord(sequence, offset);
+			previousSequence = sequence;
+			offset += FRAME_HEADER_SIZE + length;
+		}
+		if (offset < fileLength) {
+			Tracer.w(TAG, "Truncating " + (fileLength - offset) + " bytes of a torn record in "
+					+ segment.mFile.getName());
+			segment.getChannel().truncate(offset);
+			segment.getChannel().force(false);
+		}
+		segment.mSize = offset;
+		// rebuilt from the segment itself whenever it is the active one
+		new File(mDirectory, segment.getIndexName()).delete();
+	}
+
+	/**
+	 * Sets the time after which a commit forces the segment with {@link SyncPolicy#INTERVAL}.
+	 *
+	 * @param syncIntervalMillis interval in milliseconds
+	 */
+	public void setSyncInterval(long syncIntervalMillis) {
+		if (syncIntervalMillis < 0) {
+			throw new IllegalArgumentException("Sync interval must not be negative");
+		}
+		mSyncIntervalMillis = syncIntervalMillis;
+	}
+
+	/**
+	 * Encrypts a record into the commit buffer. The record can be read once it is committed, a
+	 * full buffer commits on its own.
+	 *
+	 * @param record plain record, up to {@link #MAX_RECORD_SIZE} bytes
+	 * @return sequence number of the record
+	 * @throws IOException if the log is closed or the record could not be encrypted or
+	 * committed
+	 */
+	public long append(byte[] record) throws IOException {
+		if (record.length > MAX_RECORD_SIZE) {
+			throw new IllegalArgumentException("Record larger than " + MAX_RECORD_SIZE);
+		}
+		long sequence;
+		boolean full;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IOException("Log is closed");
+			}
+			ByteBuffer pending = ensureCapacity(mPending, record.length + RECORD_OVERHEAD);
+			mPending = pending;
+			sequence = mNextSequence;
+			int frameOffset = pending.position();
+			byte[] nonce = new byte[NONCE_SIZE];
+			sSecureRandom.nextBytes(nonce);
+			pending.putInt(NONCE_SIZE + record.length + TAG_SIZE).putLong(sequence).put(nonce);
+			try {
+				mWriteCipher.init(Cipher.ENCRYPT_MODE, mKey,
+						new GCMParameterSpec(TAG_BITS, nonce));
+				mWriteCipher.updateAAD(mLogId);
+				mWriteCipher.updateAAD(pending.array(), frameOffset, FRAME_HEADER_SIZE);
+				int written = mWriteCipher.doFinal(record, 0, record.length, pending.array(),
+						pending.position());
+				pending.position(pending.position() + written);
+			} catch (GeneralSecurityException e) {
+				pending.position(frameOffset);
+				throw new IOException("Impossible to encrypt record", e);
+			}
+			mNextSequence = sequence + 1;
+			full = pending.position() >= mGroupCommitSize;
+		}
+		if (full) {
+			commit();
+		}
+		return sequence;
+	}
+
+	/**
+	 * Writes the records appended so far to the active segment and forces it as the
+	 * {@link SyncPolicy} requires. If another thread is committing, this one waits and returns
+	 * without a write of its own when that commit has taken its records along.
+	 *
+	 * @throws IOException if the records could not be written
+	 */
+	public void commit() throws IOException {
+		long target;
+		synchronized (this) {
+			target = mNextSequence - 1;
+		}
+		synchronized (mCommitLock) {
+			if (mCommittedSequence >= target) {
+				return;
+			}
+			ByteBuffer batch;
+			long lastSequence;
+			synchronized (this) {
+				batch = mPending;
+				lastSequence = mNextSequence - 1;
+				mPending = mSpare != null ? mSpare : ByteBuffer.allocate(GROUP_COMMIT_SIZE);
+				mSpare = null;
+			}
+			batch.flip();
+			boolean written = false;
+			try {
+				writeBatch(batch);
+				written = true;
+			} finally {
+				synchronized (this) {
+					if (written) {
+						batch.clear();
+						if (batch.capacity() <= GROUP_COMMIT_SIZE * 2) {
+							mSpare = batch;
+						}
+					} else {
+						mPending = requeue(batch, mPending);
+					}
+				}
+			}
+			mCommittedSequence = lastSequence;
+			if (mActiveSegment.mSize >= mSegmentSize) {
+				roll(lastSequence + 1);
+			}
+		}
+	}
+
+	/*
+	 * Writes and forces the batch before touching the segment state, so a failed batch can be
+	 * written again at the same offset.
+	 */
+	private void writeBatch(ByteBuffer batch) throws IOException {
+		Segment segment = mActiveSegment;
+		long offset = segment.mSize;
+		FileChannel channel = segment.getChannel();
+		writeFully(channel, batch.duplicate(), offset);
+		long now = System.currentTimeMillis();
+		if (mSyncPolicy == SyncPolicy.ALWAYS || mSyncPolicy == SyncPolicy.INTERVAL
+				&& now - mLastSyncMillis >= mSyncIntervalMillis) {
+			channel.force(false);
+			mLastSyncMillis = now;
+		}
+		// index the records, they are readable once the size covers them
+		int position = 0;
+		while (position < batch.limit()) {
+			segment.addRecord(batch.getLong(position + 4), offset + position);
+			position += FRAME_HEADER_SIZE + batch.getInt(position);
+		}
+		segment.mSize = offset + batch.limit();
+	}
+
+	/*
+	 * Puts the records of a failed batch back in front of the ones appended since, so that the
+	 * next commit writes them again in sequence order.
+	 */
+	private static ByteBuffer requeue(ByteBuffer batch, ByteBuffer pending) {
+		batch.position(batch.limit());
+		batch.limit(batch.capacity());
+		ByteBuffer requeued = ensureCapacity(batch, pending.position());
+		pending.flip();
+		requeued.put(pending);
+		return requeued;
+	}
+
+	/*
+	 * Seals the active segment and starts a new one with the given base sequence.
+	 */
+	private void roll(long baseSequence) throws IOException {
+		Segment sealed = mActiveSegment;
+		sealed.getChannel().force(false);
+		writeIndex(sealed);
+		Segment segment = createSegment(baseSequence);
+		mActiveSegment = segment;
+		Tracer.d(TAG, "Rolled segment at sequence %d", baseSequence);
+	}
+
+	private Segment createSegment(long baseSequence) throws IOException {
+		File file = new File(mDirectory, String.format("%020d%s", baseSequence, SEGMENT_SUFFIX));
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean success = false;
+		try {
+			randomAccessFile.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).put(VERSION).put(new byte[3]).putLong(baseSequence)
+					.put(mLogId).flip();
+			writeFully(randomAccessFile.getChannel(), header, 0);
+			randomAccessFile.getChannel().force(true);
+			Segment segment = new Segment(file, randomAccessFile, baseSequence, mLogId);
+			segment.mSize = HEADER_SIZE;
+			synchronized (mReadLock) {
+				mSegments.put(baseSequence, segment);
+			}
+			success = true;
+			return segment;
+		} finally {
+			if (!success) {
+				FilesHelper.closeQuietly(randomAccessFile);
+			}
+		}
+	}
+
+	/**
+	 * Reads a record, committing the buffered records first if it is one of them.
+	 *
+	 * @param sequence sequence number returned by {@link #append(byte[])}
+	 * @return decrypted record or null if the log has no record with this sequence number, e.g.
+	 * after compaction
+	 * @throws IOException if the record could not be read or failed authentication
+	 */
+	public byte[] read(long sequence) throws IOException {
+		if (sequence > mCommittedSequence) {
+			commit();
+		}
+		synchronized (mReadLock) {
+			SortedMap<Long, Segment> headMap = mSegments.headMap(sequence + 1);
+			if (headMap.isEmpty()) {
+				return null;
+			}
+			Segment segment = headMap.get(headMap.lastKey());
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+			long size = segment.mSize;
+			long offset = segment.getIndexedOffset(sequence);
+			while (offset < size) {
+				int length = readFrameHeader(segment.getChannel(), frame, offset, size);
+				if (length < 0) {
+					throw new IOException("Corrupted record at " + offset + " of "
+							+ segment.mFile.getName());
+				}
+				long frameSequence = frame.getLong(4);
+				if (frameSequence == sequence) {
+					byte[] record = decryptRecord(segment, offset, length, sequence);
+					if (record == null) {
+						throw new IOException("Record " + sequence + " failed authentication");
+					}
+					return record;
+				}
+				if (frameSequence > sequence) {
+					break;
+				}
+				offset += FRAME_HEADER_SIZE + length;
+			}
+			return null;
+		}
+	}
+
+	/*
+	 * Reads the length and sequence of a record into the buffer. Returns the length, or -1 if
+	 * the record does not fit in the given size.
+	 */
+	private static int readFrameHeader(FileChannel channel, ByteBuffer frame, long offset,
+			long size) throws IOException {
+		if (size - offset < RECORD_OVERHEAD) {
+			return -1;
+		}
+		frame.clear();
+		readFully(channel, frame, offset);
+		int length = frame.getInt(0);
+		if (length < NONCE_SIZE + TAG_SIZE || length > NONCE_SIZE + MAX_RECORD_SIZE + TAG_SIZE
+				|| size - offset - FRAME_HEADER_SIZE < length) {
+			return -1;
+		}
+		return length;
+	}
+
+	/*
+	 * Returns the decrypted record at the given offset or null if it failed authentication.
+	 */
+	private byte[] decryptRecord(Segment segment, long offset, int length, long sequence)
+			throws IOException {
+		ByteBuffer encrypted = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+		readFully(segment.getChannel(), encrypted, offset);
+		byte[] bytes = encrypted.array();
+		synchronized (mReadCipher) {
+			try {
+				mReadCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_BITS,
+						bytes, FRAME_HEADER_SIZE, NONCE_SIZE));
+				mReadCipher.updateAAD(mLogId);
+				mReadCipher.updateAAD(bytes, 0, FRAME_HEADER_SIZE);
+				return mReadCipher.doFinal(bytes, FRAME_HEADER_SIZE + NONCE_SIZE,
+						length - NONCE_SIZE);
+			} catch (AEADBadTagException e) {
+				return null;
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Impossible to decrypt record " + sequence, e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the sealed segments holding only records older than the given sequence number.
+	 *
+	 * @param sequence first sequence number to keep
+	 * @return number of deleted segments
+	 */
+	public int deleteBefore(long sequence) {
+		int deleted = 0;
+		synchronized (mReadLock) {
+			// the records of a segment end where the next one starts, the active one is kept
+			while (mSegments.size() > 1) {
+				Segment segment = mSegments.remove(mSegments.firstKey());
+				if (mSegments.firstKey() > sequence) {
+					mSegments.put(segment.mBaseSequence, segment);
+					break;
+				}
+				segment.delete(mDirectory);
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Rewrites the sealed segments without the records the filter rejects. The kept records are
+	 * copied as they are, with their sequence numbers. Segments left without records are
+	 * deleted.
+	 *
+	 * @param filter decides which records to keep
+	 * @return number of dropped records
+	 * @throws IOException if a segment could not be read or rewritten
+	 */
+	public long compact(RecordFilter filter) throws IOException {
+		long start = Tracer.startTimer();
+		long dropped = 0;
+		List<Segment> sealed = new ArrayList<Segment>();
+		synchronized (mCommitLock) {
+			synchronized (mReadLock) {
+				sealed.addAll(mSegments.headMap(mActiveSegment.mBaseSequence).values());
+			}
+		}
+		for (Segment segment : sealed) {
+			synchronized (mReadLock) {
+				if (mSegments.get(segment.mBaseSequence) == segment) {
+					dropped += compactSegment(segment, filter);
+				}
+			}
+		}
+		Tracer.d(TAG, "Compacted %d segments in %dus", sealed.size(),
+				Tracer.elapsedMicros(start));
+		return dropped;
+	}
+
+	private long compactSegment(Segment segment, RecordFilter filter) throws IOException {
+		File tempFile = new File(segment.mFile.getPath() + TEMP_SUFFIX);
+		RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+		Segment compacted = null;
+		long dropped = 0;
+		try {
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(segment.getChannel(), header, 0);
+			header.flip();
+			writeFully(outChannel, header, 0);
+			compacted = new Segment(segment.mFile, out, segment.mBaseSequence, mLogId);
+			long outOffset = HEADER_SIZE;
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+			long offset = HEADER_SIZE;
+			while (offset < segment.mSize) {
+				int length = readFrameHeader(segment.getChannel(), frame, offset, segment.mSize);
+				if (length < 0) {
+					throw new IOException("Corrupted record at " + offset + " of "
+							+ segment.mFile.getName());
+				}
+				long sequence = frame.getLong(4);
+				byte[] record = decryptRecord(segment, offset, length, sequence);
+				if (record == null) {
+					throw new IOException("Record " + sequence + " failed authentication");
+				}
+				if (filter.keep(sequence, record)) {
+					ByteBuffer encrypted = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+					readFully(segment.getChannel(), encrypted, offset);
+					encrypted.flip();
+					writeFully(outChannel, encrypted, outOffset);
+					compacted.addRecord(sequence, outOffset);
+					outOffset += FRAME_HEADER_SIZE + length;
+				} else {
+					dropped++;
+				}
+				Arrays.fill(record, (byte) 0);
+				offset += FRAME_HEADER_SIZE + length;
+			}
+			compacted.mSize = outOffset;
+			if (dropped == 0) {
+				compacted.close();
+				tempFile.delete();
+				return 0;
+			}
+			if (compacted.mLastSequence < 0) {
+				compacted.close();
+				mSegments.remove(segment.mBaseSequence);
+				segment.delete(mDirectory);
+				return dropped;
+			}
+			outChannel.force(true);
+			compacted.close();
+			FilesHelper.replaceFile(tempFile, segment.mFile);
+			mSegments.remove(segment.mBaseSequence);
+			segment.close();
+			Segment reopened = Segment.open(segment.mFile, segment.mBaseSequence);
+			if (reopened == null || !reopened.loadIndexFrom(compacted)) {
+				throw new IOException("Impossible to reopen " + segment.mFile);
+			}
+			mSegments.put(reopened.mBaseSequence, reopened);
+			writeIndex(reopened);
+			return dropped;
+		} finally {
+			FilesHelper.closeQuietly(out);
+			tempFile.delete();
+		}
+	}
+
+	/*
+	 * Saves the sparse index of a sealed segment next to it, through a temporary file.
+	 */
+	private void writeIndex(Segment segment) throws IOException {
+		File indexFile = new File(mDirectory, segment.getIndexName());
+		File tempFile = new File(indexFile.getPath() + TEMP_SUFFIX);
+		int entries = segment.mIndexSize;
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + entries * 16 + 4);
+		buffer.putInt(INDEX_MAGIC).put(VERSION).put(new byte[3]).putLong(segment.mSize)
+				.putInt(entries);
+		for (int i = 0; i < entries; i++) {
+			buffer.putLong(segment.mIndexSequences[i]).putLong(segment.mIndexOffsets[i]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) crc.getValue());
+		RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+		boolean success = false;
+		try {
+			out.setLength(0);
+			buffer.flip();
+			writeFully(out.getChannel(), buffer, 0);
+			out.getChannel().force(true);
+			out.close();
+			FilesHelper.replaceFile(tempFile, indexFile);
+			success = true;
+		} finally {
+			FilesHelper.closeQuietly(out);
+			if (!success) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the sequence number the next appended record gets.
+	 */
+	public synchronized long getNextSequence() {
+		return mNextSequence;
+	}
+
+	/**
+	 * Returns the sequence number of the last committed record, -1 if there is none.
+	 */
+	public long getCommittedSequence() {
+		return mCommittedSequence;
+	}
+
+	/**
+	 * Returns number of segment files, the active one included.
+	 */
+	public int getSegmentCount() {
+		synchronized (mReadLock) {
+			return mSegments.size();
+		}
+	}
+
+	/**
+	 * Commits and forces the buffered records, whatever the {@link SyncPolicy}, and closes the
+	 * segment files.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+		}
+		try {
+			commit();
+			synchronized (mCommitLock) {
+				mActiveSegment.getChannel().force(false);
+			}
+		} finally {
+			closeSegments();
+		}
+	}
+
+	private void closeSegments() {
+		synchronized (mReadLock) {
+			for (Segment segment : mSegments.values()) {
+				segment.close();
+			}
+		}
+	}
+
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+		if (buffer.remaining() >= extra) {
+			return buffer;
+		}
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+				buffer.position() + extra));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	/*
+	 * Returns the log id of the first segment with a complete header, or a new one.
+	 */
+	private static byte[] readLogId(List<File> segmentFiles) throws IOException {
+		for (File file : segmentFiles) {
+			Segment segment = Segment.open(file, parseBaseSequence(file));
+			if (segment != null) {
+				segment.close();
+				return segment.mLogId;
+			}
+		}
+		byte[] logId = new byte[LOG_ID_SIZE];
+		sSecureRandom.nextBytes(logId);
+		return logId;
+	}
+
+	private static long parseBaseSequence(File file) throws IOException {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected segment name " + name);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/*
+	 * One segment file with its sparse index. The size only covers whole, committed records.
+	 */
+	private static final class Segment {
+		private final File mFile;
+		// guarded by this segment
+		private RandomAccessFile mRandomAccessFile;
+		private FileChannel mChannel;
+		private boolean mClosed;
+		private final long mBaseSequence;
+		private final byte[] mLogId;
+		private volatile long mSize;
+		private long mLastSequence = -1;
+		private int mRecordCount;
+		private long[] mIndexSequences = new long[16];
+		private long[] mIndexOffsets = new long[16];
+		private volatile int mIndexSize;
+
+		private Segment(File file, RandomAccessFile randomAccessFile, long baseSequence,
+				byte[] logId) {
+			mFile = file;
+			mRandomAccessFile = randomAccessFile;
+			mChannel = randomAccessFile.getChannel();
+			mBaseSequence = baseSequence;
+			mLogId = logId;
+		}
+
+		/*
+		 * Opens an existing segment, returns null if its header is missing or torn.
+		 */
+		private static Segment open(File file, long baseSequence) throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			boolean success = false;
+			try {
+				if (randomAccessFile.length() < HEADER_SIZE) {
+					return null;
+				}
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				readFully(randomAccessFile.getChannel(), header, 0);
+				header.flip();
+				if (header.getInt() != MAGIC || header.get() != VERSION) {
+					throw new IOException("Not a record log segment: " + file);
+				}
+				header.position(header.position() + 3);
+				if (header.getLong() != baseSequence) {
+					throw new IOException("Segment " + file + " has an unexpected sequence");
+				}
+				byte[] logId = new byte[LOG_ID_SIZE];
+				header.get(logId);
+				Segment segment = new Segment(file, randomAccessFile, baseSequence, logId);
+				segment.mSize = randomAccessFile.length();
+				success = true;
+				return segment;
+			} finally {
+				if (!success) {
+					FilesHelper.closeQuietly(randomAccessFile);
+				}
+			}
+		}
+
+		private String getIndexName() {
+			String name = mFile.getName();
+			return name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX;
+		}
+
+		/*
+		 * Called in sequence order, keeps every INDEX_INTERVAL-th record in the index.
+		 */
+		private void addRecord(long sequence, long offset) {
+			if (mRecordCount % INDEX_INTERVAL == 0) {
+				if (mIndexSize == mIndexSequences.length) {
+					long[] sequences = new long[mIndexSize * 2];
+					long[] offsets = new long[mIndexSize * 2];
+					System.arraycopy(mIndexSequences, 0, sequences, 0, mIndexSize);
+					System.arraycopy(mIndexOffsets, 0, offsets, 0, mIndexSize);
+					// offsets first, readers look at the sequences
+					mIndexOffsets = offsets;
+					mIndexSequences = sequences;
+				}
+				mIndexSequences[mIndexSize] = sequence;
+				mIndexOffsets[mIndexSize] = offset;
+				mIndexSize++;
+			}
+			mRecordCount++;
+			mLastSequence = sequence;
+		}
+
+		/*
+		 * Returns offset of the last indexed record not after the given sequence, where the
+		 * scan for the record starts.
+		 */
+		private long getIndexedOffset(long sequence) {
+			long[] sequences = mIndexSequences;
+			long[] offsets = mIndexOffsets;
+			int low = 0;
+			int high = Math.min(mIndexSize, Math.min(sequences.length, offsets.length)) - 1;
+			long offset = HEADER_SIZE;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (sequences[middle] <= sequence) {
+					offset = offsets[middle];
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return offset;
+		}
+
+		/*
+		 * Loads the saved index, returns false if it is missing or does not match the segment.
+		 */
+		private boolean loadIndex() throws IOException {
+			File indexFile = new File(mFile.getParentFile(), getIndexName());
+			long length = indexFile.length();
+			if (length < INDEX_HEADER_SIZE + 4 || length > Integer.MAX_VALUE) {
+				return false;
+			}
+			RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate((int) length);
+				readFully(in.getChannel(), buffer, 0);
+				CRC32 crc = new CRC32();
+				crc.update(buffer.array(), 0, (int) length - 4);
+				if (buffer.getInt((int) length - 4) != (int) crc.getValue()) {
+					return false;
+				}
+				buffer.flip();
+				if (buffer.getInt() != INDEX_MAGIC || buffer.get() != VERSION) {
+					return false;
+				}
+				buffer.position(buffer.position() + 3);
+				long segmentLength = buffer.getLong();
+				int entries = buffer.getInt();
+				if (segmentLength != mSize || entries < 1
+						|| length != INDEX_HEADER_SIZE + entries * 16L + 4) {
+					return false;
+				}
+				for (int i = 0; i < entries; i++) {
+					long sequence = buffer.getLong();
+					long offset = buffer.getLong();
+					// entries stand for INDEX_INTERVAL records each
+					mRecordCount = i * INDEX_INTERVAL;
+					addRecord(sequence, offset);
+				}
+			} finally {
+				FilesHelper.closeQuietly(in);
+			}
+			// the last record is only known after a scan from the last entry
+			scanFrom(mIndexOffsets[mIndexSize - 1], true);
+			return true;
+		}
+
+		private boolean loadIndexFrom(Segment source) {
+			if (source.mSize != mSize) {
+				return false;
+			}
+			mIndexSequences = source.mIndexSequences.clone();
+			mIndexOffsets = source.mIndexOffsets.clone();
+			mIndexSize = source.mIndexSize;
+			mRecordCount = source.mRecordCount;
+			mLastSequence = source.mLastSequence;
+			return true;
+		}
+
+		/*
+		 * Rebuilds the index from the record headers, without decrypting them.
+		 */
+		private void scan() throws IOException {
+			scanFrom(HEADER_SIZE, false);
+		}
+
+		private void scanFrom(long offset, boolean indexed) throws IOException {
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+			long size = mSize;
+			while (offset < size) {
+				int length = readFrameHeader(getChannel(), frame, offset, size);
+				if (length < 0) {
+					break;
+				}
+				long sequence = frame.getLong(4);
+				if (indexed) {
+					// the first record is in the index already
+					indexed = false;
+					mLastSequence = sequence;
+				} else {
+					addRecord(sequence, offset);
+				}
+				offset += FRAME_HEADER_SIZE + length;
+			}
+			mSize = offset;
+		}
+
+		/*
+		 * Returns the open channel. A thread interrupted during a read or write closes the
+		 * channel for every user, in which case the file is opened again.
+		 */
+		private synchronized FileChannel getChannel() throws IOException {
+			if (!mChannel.isOpen()) {
+				if (mClosed) {
+					throw new IOException("Log is closed");
+				}
+				FilesHelper.closeQuietly(mRandomAccessFile);
+				mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+				mChannel = mRandomAccessFile.getChannel();
+			}
+			return mChannel;
+		}
+
+		private synchronized void close() {
+			mClosed = true;
+			FilesHelper.closeQuietly(mRandomAccessFile);
+		}
+
+		private void delete(File directory) {
+			close();
+			mFile.delete();
+			new File(directory, getIndexName()).delete();
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package uk.org.tomek.encryptme.helpers;
+
+/**
+ * Destination of the diagnostic messages produced through {@link Tracer}.
+ */
+public interface TraceSink {
+
+	/**
+	 * Receives an already formatted message. Called only for enabled levels.
+	 *
+	 * @param level one of the {@link Tracer} levels
+	 * @param tag source of the message
+	 * @param message formatted message
+	 */
+	void trace(int level, String tag, String message);
+}
@@ -0,0 +1,153 @@
+package uk.org.tomek.encryptme.helpers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Diagnostic tracing used by the crypto classes in place of direct logging. <BR>
+ * A disabled level costs a single field read: messages are formatted only after the level and
+ * sampling checks passed, and the overloads taking {@code long} arguments avoid boxing. Callers
+ * building expensive arguments should check {@link #isEnabled(int)} first. <p>
+ * Traces should describe sizes and timings, never the content of keys or data.
+ */
+public final class Tracer {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int OFF = Integer.MAX_VALUE;
+
+	private static volatile int sLevel = WARN;
+	private static volatile int sSampleRate = 1;
+	// the Android log once a platform adapter replaced it, see setSink()
+	private static volatile TraceSink sSink = new ConsoleTraceSink();
+	private static final AtomicInteger sSampleCounter = new AtomicInteger();
+
+	private Tracer() {
+	}
+
+	/**
+	 * Sets the lowest level which is traced, {@link #OFF} disables tracing.
+	 *
+	 * @param level one of the level constants
+	 */
+	public static void setLevel(int level) {
+		sLevel = level;
+	}
+
+	/**
+	 * Returns the lowest level which is traced.
+	 */
+	public static int getLevel() {
+		return sLevel;
+	}
+
+	/**
+	 * Traces only every n-th message below {@link #WARN}, warnings and errors are never
+	 * skipped.
+	 *
+	 * @param sampleRate 1 traces every message
+	 */
+	public static void setSampleRate(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be positive");
+		}
+		sSampleRate = sampleRate;
+	}
+
+	/**
+	 * Replaces the destination of traced messages.
+	 *
+	 * @param sink new sink, not null
+	 */
+	public static void setSink(TraceSink sink) {
+		if (sink == null) {
+			throw new IllegalArgumentException();
+		}
+		sSink = sink;
+	}
+
+	/**
+	 * Returns the destination of traced messages.
+	 */
+	public static TraceSink getSink() {
+		return sSink;
+	}
+
+	/**
+	 * Checks whether a message of the given level would be traced. Sampling is applied here,
+	 * so every positive answer should be followed by exactly one trace call.
+	 *
+	 * @param level one of the level constants
+	 * @return true if the message should be traced
+	 */
+	public static boolean isEnabled(int level) {
+		if (level < sLevel) {
+			return false;
+		}
+		int sampleRate = sSampleRate;
+		return sampleRate == 1 || level >= WARN
+				|| sSampleCounter.getAndIncrement() % sampleRate == 0;
+	}
+
+	/**
+	 * Returns start time for {@link #elapsedMicros(long)} or 0 if debug tracing is disabled,
+	 * which saves the clock read.
+	 */
+	public static long startTimer() {
+		return DEBUG < sLevel ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Returns microseconds since {@link #startTimer()}.
+	 */
+	public static long elapsedMicros(long startNanos) {
+		return startNanos == 0 ? 0 : (System.nanoTime() - startNanos) / 1000;
+	}
+
+	public static void d(String tag, String message) {
+		if (isEnabled(DEBUG)) {
+			sSink.trace(DEBUG, tag, message);
+		}
+	}
+
+	public static void d(String tag, String format, long arg) {
+		if (isEnabled(DEBUG)) {
+			sSink.trace(DEBUG, tag, String.format(format, arg));
+		}
+	}
+
+	public static void d(String tag, String format, long arg1, long arg2) {
+		if (isEnabled(DEBUG)) {
+			sSink.trace(DEBUG, tag, String.format(format, arg1, arg2));
+		}
+	}
+
+	public static void d(String tag, String format, long arg1, long arg2, long arg3) {
+		if (isEnabled(DEBUG)) {
+			sSink.trace(DEBUG, tag, String.format(format, arg1, arg2, arg3));
+		}
+	}
+
+	public static void d(String tag, String format, Object arg) {
+		if (isEnabled(DEBUG)) {
+			sSink.trace(DEBUG, tag, String.format(format, arg));
+		}
+	}
+
+	public static void w(String tag, String message) {
+		if (isEnabled(WARN)) {
+			sSink.trace(WARN, tag, message);
+		}
+	}
+
+	/**
+	 * Traces a failure, naming only the exception class.
+	 */
+	public static void w(String tag, String message, Throwable throwable) {
+		if (isEnabled(WARN)) {
+			sSink.trace(WARN, tag, message + ", " + throwable.getClass().getSimpleName());
+		}
+	}
+}
@@ -1,23 +1,49 @@
 package uk.org.tomek.encryptme.presenters;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.crypto.SecretKey;
+
+import android.content.Context;
+import uk.org.tomek.encryptme.crypto.AsyncCrypto;
 import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyMaterial;
 import uk.org.tomek.encryptme.helpers.HexStringHelper;
 import uk.org.tomek.encryptme.views.MainScreenView;
 
 /**
- * Presenter for the main activity. 
+ * Presenter for the main activity. Encryption and key creation run in the background through
+ * {@link AsyncCrypto}, the view only receives their results. All methods are called on the main
+ * thread, as are the callbacks.
  */
 public final class MainActivityPresenter {
 	
+	// shows the key without copying it out of its buffer
+	private static final KeyMaterial.Borrower<String> HEX_ENCODER = new KeyMaterial.Borrower<String>() {
+
+		@Override
+		public String borrow(ByteBuffer key) {
+			return HexStringHelper.encode(HexStringHelper.Encoding.HEX_FORMATTED, key);
+		}
+	};
 	private final CryptoUtils mCryptoUtils;
+	private final AsyncCrypto mAsyncCrypto;
 	private MainScreenView mMainViewView;
+	private Future<String> mPendingKeyContent;
+	private Future<String> mPendingEncryption;
+	private Future<SecretKey> mPendingKeyCreation;
 
-	private MainActivityPresenter(CryptoUtils cryptoUtils) {
+	private MainActivityPresenter(CryptoUtils cryptoUtils, AsyncCrypto asyncCrypto) {
 		mCryptoUtils = cryptoUtils;
+		mAsyncCrypto = asyncCrypto;
 	}
 
-	public static MainActivityPresenter newInstance(CryptoUtils cryptoUtils) {
-		return new MainActivityPresenter(cryptoUtils);
+	public static MainActivityPresenter newInstance(CryptoUtils cryptoUtils,
+			AsyncCrypto asyncCrypto) {
+		return new MainActivityPresenter(cryptoUtils, asyncCrypto);
 	}
 
 	/**
@@ -30,13 +56,144 @@ public final class MainActivityPresenter {
 	}
 
 	/**
-	 * Displays the data in the view.
+	 * Cancels pending operations and forgets the view, e.g. when it is destroyed.
+	 */
+	public void detachView() {
+		cancel(mPendingKeyContent);
+		cancel(mPendingEncryption);
+		cancel(mPendingKeyCreation);
+		mPendingKeyContent = null;
+		mPendingEncryption = null;
+		mPendingKeyCreation = null;
+		mMainViewView = null;
+	}
+
+	/**
+	 * Displays the data in the view. The key is shown once it has been read in the background.
 	 */
 	public void present() {
-        if (mCryptoUtils.getKey() != null) {
-            mMainViewView.showKeyContent(HexStringHelper.hexEncode(mCryptoUtils.getKey().getEncoded()));
-        }
+		if (mMainViewView == null) {
+			return;
+		}
 		mMainViewView.showEncryptionType(mCryptoUtils.getCipherAlgo());
+		cancel(mPendingKeyContent);
+		mPendingKeyContent = mAsyncCrypto.submit(new Callable<String>() {
+
+			@Override
+			public String call() {
+				// the first call reads the saved key
+				SecretKey key = mCryptoUtils.getKey();
+				if (key instanceof KeyMaterial) {
+					return ((KeyMaterial) key).borrow(HEX_ENCODER);
+				}
+				return key != null ? HexStringHelper.hexEncode(key.getEncoded()) : null;
+			}
+		}, new AsyncCrypto.Callback<String>() {
+
+			@Override
+			public void onSuccess(String result) {
+				mPendingKeyContent = null;
+				if (mMainViewView != null && result != null) {
+					mMainViewView.showKeyContent(result);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				mPendingKeyContent = null;
+				showError(error);
+			}
+		});
+	}
+
+	/**
+	 * Encrypts the text in the background and shows the result. An encryption still pending is
+	 * cancelled, only the latest input is shown.
+	 * 
+	 * @param inputText
+	 */
+	public void encrypt(final String inputText) {
+		cancel(mPendingEncryption);
+		// formatting a large ciphertext is kept off the main thread too
+		mPendingEncryption = mAsyncCrypto.submit(new Callable<String>() {
+
+			@Override
+			public String call() throws GeneralSecurityException {
+				byte[] encrypted = mCryptoUtils.encryptData(inputText);
+				if (encrypted == null) {
+					throw new GeneralSecurityException("Impossible to encrypt data");
+				}
+				return HexStringHelper.hexEncode(encrypted);
+			}
+		}, new AsyncCrypto.Callback<String>() {
+
+			@Override
+			public void onSuccess(String result) {
+				mPendingEncryption = null;
+				if (mMainViewView != null) {
+					mMainViewView.showEncryptedData(result);
+				}
+				updateProgress();
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				mPendingEncryption = null;
+				showError(error);
+				updateProgress();
+			}
+		});
+		updateProgress();
+	}
+
+	/**
+	 * Creates and saves a new key in the background, then refreshes the view.
+	 * 
+	 * @param context app context
+	 */
+	public void createNewKey(Context context) {
+		if (mPendingKeyCreation != null) {
+			// the key being created now is as new as another one would be
+			return;
+		}
+		mPendingKeyCreation = mAsyncCrypto.createKeyFromPackage(context,
+				new AsyncCrypto.Callback<SecretKey>() {
+
+			@Override
+			public void onSuccess(SecretKey result) {
+				mPendingKeyCreation = null;
+				// refresh key values on the screen
+				present();
+				updateProgress();
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				mPendingKeyCreation = null;
+				showError(error);
+				updateProgress();
+			}
+		});
+		updateProgress();
+	}
+
+	private void showError(Throwable error) {
+		if (mMainViewView != null) {
+			String message = error.getMessage();
+			mMainViewView.showError(message != null ? message : error.toString());
+		}
+	}
+
+	private void updateProgress() {
+		if (mMainViewView != null) {
+			mMainViewView.showProgress(mPendingEncryption != null || mPendingKeyCreation != null);
+		}
+	}
+
+	private static void cancel(Future<?> future) {
+		if (future != null) {
+			future.cancel(true);
+		}
 	}
 
 }
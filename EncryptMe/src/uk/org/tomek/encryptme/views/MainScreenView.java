@@ -15,4 +15,25 @@ public interface MainScreenView {
 	 * @param key
 	 */
 	void showKeyContent(String key);
+
+	/**
+	 * Sets the encrypted input on the main screen.
+	 * 
+	 * @param encryptedData
+	 */
+	void showEncryptedData(String encryptedData);
+
+	/**
+	 * Tells the user that an operation failed.
+	 * 
+	 * @param message
+	 */
+	void showError(String message);
+
+	/**
+	 * Shows or hides the progress indicator while operations run in the background.
+	 * 
+	 * @param inProgress
+	 */
+	void showProgress(boolean inProgress);
 }
@@ -0,0 +1,259 @@
+package uk.org.tomek.encryptme.test;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.tomek.encryptme.crypto.AsyncCrypto;
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import android.test.AndroidTestCase;
+
+
+public class AsyncCryptoTests extends AndroidTestCase {
+
+	private static final long TIMEOUT_SECONDS = 10;
+	private KeyFactory mKeyFactory;
+	private CryptoUtils mCryptoUtils;
+	private ExecutorService mExecutor;
+	private SynchronousExecutor mCallbackExecutor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		mCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		mExecutor = Executors.newSingleThreadExecutor();
+		mCallbackExecutor = new SynchronousExecutor();
+	}
+
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		super.tearDown();
+	}
+
+	private AsyncCrypto newAsyncCrypto(Executor callbackExecutor) {
+		return AsyncCrypto.newInstance(mCryptoUtils, mKeyFactory, mExecutor, callbackExecutor);
+	}
+
+	/*
+	 * Waits until every task queued so far and its callback are done, the executor has one
+	 * thread only.
+	 */
+	private void drain() throws Exception {
+		mExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				// nothing to do
+			}
+		}).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public void testResultIsDeliveredOnCallbackExecutor() throws Exception {
+		AsyncCrypto asyncCrypto = newAsyncCrypto(mCallbackExecutor);
+		byte[] plain = "async".getBytes(CryptoUtils.DEFAULT_CHARSET);
+		RecordingCallback<byte[]> encrypted = new RecordingCallback<byte[]>();
+		asyncCrypto.encrypt(plain, encrypted);
+		encrypted.await();
+		assertNull(encrypted.mError);
+		assertTrue(encrypted.mOnCallbackExecutor);
+		assertNotSame(Thread.currentThread(), encrypted.mThread);
+
+		RecordingCallback<byte[]> decrypted = new RecordingCallback<byte[]>();
+		asyncCrypto.decrypt(encrypted.mResult, decrypted);
+		decrypted.await();
+		assertTrue(Arrays.equals(plain, decrypted.mResult));
+		assertTrue(decrypted.mOnCallbackExecutor);
+		assertEquals(2, mCallbackExecutor.mExecuted.get());
+	}
+
+	public void testFailureIsDeliveredToOnFailure() throws Exception {
+		AsyncCrypto asyncCrypto = newAsyncCrypto(mCallbackExecutor);
+		RecordingCallback<byte[]> decrypted = new RecordingCallback<byte[]>();
+		asyncCrypto.decrypt(new byte[] {1, 2, 3}, decrypted);
+		decrypted.await();
+		assertNull(decrypted.mResult);
+		assertTrue(decrypted.mError instanceof GeneralSecurityException);
+		assertTrue(decrypted.mOnCallbackExecutor);
+
+		// any exception of a submitted task, not wrapped
+		final IOException error = new IOException("read failed");
+		RecordingCallback<String> callback = new RecordingCallback<String>();
+		asyncCrypto.submit(new Callable<String>() {
+
+			@Override
+			public String call() throws IOException {
+				throw error;
+			}
+		}, callback);
+		callback.await();
+		assertSame(error, callback.mError);
+		assertEquals(1, callback.mCalls.get());
+	}
+
+	public void testCancelledQueuedTaskDropsCallback() throws Exception {
+		AsyncCrypto asyncCrypto = newAsyncCrypto(mCallbackExecutor);
+		final CountDownLatch release = new CountDownLatch(1);
+		// keeps the only thread busy
+		asyncCrypto.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws InterruptedException {
+				release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				return null;
+			}
+		}, null);
+		final AtomicInteger runs = new AtomicInteger();
+		RecordingCallback<String> callback = new RecordingCallback<String>();
+		Future<String> future = asyncCrypto.submit(new Callable<String>() {
+
+			@Override
+			public String call() {
+				runs.incrementAndGet();
+				return "result";
+			}
+		}, callback);
+		assertTrue(future.cancel(false));
+		release.countDown();
+		drain();
+		assertEquals(0, runs.get());
+		assertEquals(0, callback.mCalls.get());
+		assertEquals(0, mCallbackExecutor.mExecuted.get());
+	}
+
+	public void testCancelDropsCallbackOnItsWay() throws Exception {
+		// holds the delivery back, as the main thread does while it is busy
+		QueueingExecutor callbackExecutor = new QueueingExecutor();
+		AsyncCrypto asyncCrypto = newAsyncCrypto(callbackExecutor);
+		RecordingCallback<byte[]> callback = new RecordingCallback<byte[]>();
+		Future<byte[]> future = asyncCrypto.encrypt(new byte[] {1, 2, 3}, callback);
+		drain();
+		assertTrue(future.isDone());
+		assertEquals(1, callbackExecutor.mQueue.size());
+		// too late to stop the task, not too late for the callback
+		assertFalse(future.cancel(false));
+		callbackExecutor.runAll();
+		assertEquals(0, callback.mCalls.get());
+	}
+
+	public void testSharedExecutorRunsTasksInOrder() throws Exception {
+		AsyncCrypto asyncCrypto = AsyncCrypto.newInstance(mCryptoUtils, mKeyFactory,
+				mCallbackExecutor);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		Future<Integer> last = null;
+		for (int i = 0; i < 100; i++) {
+			final int index = i;
+			last = asyncCrypto.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() {
+					order.add(index);
+					threads.add(Thread.currentThread());
+					return index;
+				}
+			}, null);
+		}
+		assertEquals(Integer.valueOf(99), last.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals(100, order.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.valueOf(i), order.get(i));
+			assertSame(threads.get(0), threads.get(i));
+		}
+		// a second instance queues on the same thread
+		AsyncCrypto other = AsyncCrypto.newInstance(mCryptoUtils, mKeyFactory, null);
+		Future<Thread> thread = other.submit(new Callable<Thread>() {
+
+			@Override
+			public Thread call() {
+				return Thread.currentThread();
+			}
+		}, null);
+		assertSame(threads.get(0), thread.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	/*
+	 * Runs deliveries right away on the calling thread, marking them as its own.
+	 */
+	private static final class SynchronousExecutor implements Executor {
+		private static final ThreadLocal<Boolean> sRunning = new ThreadLocal<Boolean>();
+		private final AtomicInteger mExecuted = new AtomicInteger();
+
+		@Override
+		public void execute(Runnable command) {
+			mExecuted.incrementAndGet();
+			sRunning.set(Boolean.TRUE);
+			try {
+				command.run();
+			} finally {
+				sRunning.remove();
+			}
+		}
+
+		private static boolean isRunning() {
+			return sRunning.get() != null;
+		}
+	}
+
+	private static final class QueueingExecutor implements Executor {
+		private final List<Runnable> mQueue = Collections.synchronizedList(new ArrayList<Runnable>());
+
+		@Override
+		public void execute(Runnable command) {
+			mQueue.add(command);
+		}
+
+		private void runAll() {
+			for (Runnable command : new ArrayList<Runnable>(mQueue)) {
+				command.run();
+			}
+			mQueue.clear();
+		}
+	}
+
+	private static final class RecordingCallback<T> implements AsyncCrypto.Callback<T> {
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private final AtomicInteger mCalls = new AtomicInteger();
+		private volatile T mResult;
+		private volatile Throwable mError;
+		private volatile Thread mThread;
+		private volatile boolean mOnCallbackExecutor;
+
+		@Override
+		public void onSuccess(T result) {
+			mResult = result;
+			record();
+		}
+
+		@Override
+		public void onFailure(Throwable error) {
+			mError = error;
+			record();
+		}
+
+		private void record() {
+			mThread = Thread.currentThread();
+			mOnCallbackExecutor = SynchronousExecutor.isRunning();
+			mCalls.incrementAndGet();
+			mDone.countDown();
+		}
+
+		private void await() throws InterruptedException {
+			assertTrue(mDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+	}
+
+}
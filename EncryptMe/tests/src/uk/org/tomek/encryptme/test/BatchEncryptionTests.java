@@ -0,0 +1,120 @@
+package uk.org.tomek.encryptme.test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import uk.org.tomek.encryptme.crypto.BatchResult;
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import android.test.AndroidTestCase;
+
+
+public class BatchEncryptionTests extends AndroidTestCase {
+
+	private static final int ITEMS = 200;
+	private KeyFactory mKeyFactory;
+	private ExecutorService mExecutor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		mExecutor = Executors.newFixedThreadPool(4);
+	}
+
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		super.tearDown();
+	}
+
+	private CryptoUtils newCryptoUtils(CipherMode mode, int cipherPoolSize, boolean parallel) {
+		CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory, cipherPoolSize);
+		cryptoUtils.setCipherMode(mode);
+		cryptoUtils.setBatchExecutor(parallel ? mExecutor : null);
+		// every worker gets a slice even for a small batch
+		cryptoUtils.setBatchParallelThreshold(1);
+		return cryptoUtils;
+	}
+
+	private static List<byte[]> newPayloads(int count) {
+		Random random = new Random(count);
+		List<byte[]> payloads = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			// every payload has its own length, a mixed up order can not go unnoticed
+			byte[] payload = new byte[i + 1];
+			random.nextBytes(payload);
+			payloads.add(payload);
+		}
+		return payloads;
+	}
+
+	public void testParallelSlicesKeepInputOrder() {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 4, true);
+			List<byte[]> payloads = newPayloads(ITEMS);
+			BatchResult encrypted = cryptoUtils.encryptAll(payloads);
+			assertEquals(ITEMS, encrypted.size());
+			assertEquals(0, encrypted.getFailureCount());
+			for (int i = 0; i < ITEMS; i += 17) {
+				assertTrue(mode + " item " + i,
+						Arrays.equals(payloads.get(i), cryptoUtils.decryptData(encrypted.get(i))));
+			}
+			BatchResult decrypted = cryptoUtils.decryptAll(encrypted.getResults());
+			assertEquals(0, decrypted.getFailureCount());
+			for (int i = 0; i < ITEMS; i++) {
+				assertTrue(mode + " item " + i, Arrays.equals(payloads.get(i), decrypted.get(i)));
+			}
+		}
+	}
+
+	public void testFailedItemsAreReported() {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 4, true);
+			List<byte[]> payloads = newPayloads(ITEMS);
+			List<byte[]> encrypted = cryptoUtils.encryptAll(payloads).getResults();
+			// a failure in the slice of the calling thread and in the slices of the workers
+			encrypted.set(3, null);
+			byte[] truncated = encrypted.get(ITEMS / 2);
+			encrypted.set(ITEMS / 2, Arrays.copyOf(truncated, truncated.length - 1));
+			byte[] tampered = encrypted.get(ITEMS - 1).clone();
+			tampered[tampered.length - 1] ^= 1;
+			encrypted.set(ITEMS - 1, tampered);
+			BatchResult decrypted = cryptoUtils.decryptAll(encrypted);
+			assertEquals(mode.toString(), 3, decrypted.getFailureCount());
+			for (int i = 0; i < ITEMS; i++) {
+				if (i == 3 || i == ITEMS / 2 || i == ITEMS - 1) {
+					assertFalse(mode + " item " + i, decrypted.isSuccess(i));
+					assertNotNull(decrypted.getFailure(i));
+					assertNull(decrypted.get(i));
+				} else {
+					assertTrue(mode + " item " + i, decrypted.isSuccess(i));
+					assertTrue(Arrays.equals(payloads.get(i), decrypted.get(i)));
+				}
+			}
+		}
+	}
+
+	public void testFailedItemDoesNotBreakLaterItems() {
+		for (CipherMode mode : CipherMode.values()) {
+			// one slice and a single cipher, so every item goes through the same one
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 1, false);
+			List<byte[]> payloads = newPayloads(10);
+			List<byte[]> encrypted = cryptoUtils.encryptAll(payloads).getResults();
+			byte[] broken = encrypted.get(4);
+			encrypted.set(4, Arrays.copyOf(broken, broken.length - 1));
+			BatchResult decrypted = cryptoUtils.decryptAll(encrypted);
+			assertEquals(mode.toString(), 1, decrypted.getFailureCount());
+			assertFalse(decrypted.isSuccess(4));
+			for (int i = 5; i < payloads.size(); i++) {
+				assertTrue(mode + " item " + i, Arrays.equals(payloads.get(i), decrypted.get(i)));
+			}
+			// the cipher released by the batch still works for a single payload
+			assertTrue(Arrays.equals(payloads.get(0), cryptoUtils.decryptData(encrypted.get(0))));
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package uk.org.tomek.encryptme.test;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CipherPool;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import android.test.AndroidTestCase;
+
+
+public class BufferEncryptionTests extends AndroidTestCase {
+
+	private KeyFactory mKeyFactory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+	}
+
+	private CryptoUtils newCryptoUtils(CipherMode mode, int cipherPoolSize) {
+		CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory, cipherPoolSize);
+		cryptoUtils.setCipherMode(mode);
+		return cryptoUtils;
+	}
+
+	private static byte[] newPayload(int length) {
+		byte[] payload = new byte[length];
+		new Random(length).nextBytes(payload);
+		return payload;
+	}
+
+	private static ByteBuffer allocate(int capacity, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private static byte[] remaining(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	public void testHeapAndDirectBuffers() throws GeneralSecurityException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 2);
+			for (int i = 0; i < 4; i++) {
+				boolean directSrc = (i & 1) != 0;
+				boolean directDst = (i & 2) != 0;
+				String message = mode + " direct src " + directSrc + " direct dst " + directDst;
+				byte[] plain = newPayload(100 + i);
+				ByteBuffer src = allocate(plain.length, directSrc);
+				src.put(plain);
+				src.flip();
+				ByteBuffer encrypted = allocate(
+						cryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, plain.length), directDst);
+				int count = cryptoUtils.encrypt(src, encrypted);
+				assertEquals(message, count, encrypted.position());
+				assertFalse(message, src.hasRemaining());
+				encrypted.flip();
+
+				// the other way round for decryption
+				ByteBuffer encryptedSrc = allocate(count, directDst);
+				encryptedSrc.put(encrypted);
+				encryptedSrc.flip();
+				byte[] encryptedBytes = remaining(encryptedSrc.duplicate());
+				assertTrue(message, Arrays.equals(plain, cryptoUtils.decryptData(encryptedBytes)));
+				ByteBuffer decrypted = allocate(
+						cryptoUtils.getOutputSize(Cipher.DECRYPT_MODE, count), directSrc);
+				assertEquals(message, plain.length, cryptoUtils.decrypt(encryptedSrc, decrypted));
+				decrypted.flip();
+				assertTrue(message, Arrays.equals(plain, remaining(decrypted)));
+			}
+		}
+	}
+
+	public void testArrayOffsets() throws GeneralSecurityException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 2);
+			byte[] plain = newPayload(77);
+			byte[] input = new byte[plain.length + 20];
+			Arrays.fill(input, (byte) 0x55);
+			System.arraycopy(plain, 0, input, 13, plain.length);
+			int size = cryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, plain.length);
+			byte[] encrypted = new byte[size + 10];
+			Arrays.fill(encrypted, (byte) 0x33);
+			int count = cryptoUtils.encrypt(input, 13, plain.length, encrypted, 7);
+			// nothing written outside of the given range
+			for (int i = 0; i < 7; i++) {
+				assertEquals(mode.toString(), 0x33, encrypted[i]);
+			}
+			for (int i = 7 + count; i < encrypted.length; i++) {
+				assertEquals(mode.toString(), 0x33, encrypted[i]);
+			}
+			byte[] encryptedCopy = new byte[count];
+			System.arraycopy(encrypted, 7, encryptedCopy, 0, count);
+			assertTrue(mode.toString(), Arrays.equals(plain, cryptoUtils.decryptData(encryptedCopy)));
+
+			byte[] decrypted = new byte[count + 5];
+			Arrays.fill(decrypted, (byte) 0x44);
+			assertEquals(plain.length, cryptoUtils.decrypt(encrypted, 7, count, decrypted, 5));
+			for (int i = 0; i < 5; i++) {
+				assertEquals(mode.toString(), 0x44, decrypted[i]);
+			}
+			assertTrue(mode.toString(),
+					Arrays.equals(plain, Arrays.copyOfRange(decrypted, 5, 5 + plain.length)));
+		}
+	}
+
+	public void testUndersizedOutputIsRejected() throws GeneralSecurityException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 2);
+			byte[] plain = newPayload(64);
+			int size = cryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, plain.length);
+			ByteBuffer dst = ByteBuffer.allocate(size - 1);
+			try {
+				cryptoUtils.encrypt(ByteBuffer.wrap(plain), dst);
+				fail(mode + " encrypted into a short buffer");
+			} catch (ShortBufferException expected) {
+				assertEquals(0, dst.position());
+			}
+			try {
+				cryptoUtils.encrypt(plain, 0, plain.length, new byte[size], 1);
+				fail(mode + " encrypted into a short array");
+			} catch (ShortBufferException expected) {
+				// expected
+			}
+
+			byte[] encrypted = cryptoUtils.encryptData(plain);
+			try {
+				cryptoUtils.decrypt(ByteBuffer.wrap(encrypted),
+						ByteBuffer.allocate(encrypted.length - 1));
+				fail(mode + " decrypted into a short buffer");
+			} catch (ShortBufferException expected) {
+				// expected
+			}
+			try {
+				cryptoUtils.decrypt(encrypted, 0, encrypted.length, new byte[encrypted.length], 1);
+				fail(mode + " decrypted into a short array");
+			} catch (ShortBufferException expected) {
+				// expected
+			}
+			// the failed calls did not use up a cipher
+			assertTrue(Arrays.equals(plain, cryptoUtils.decryptData(encrypted)));
+		}
+	}
+
+	public void testOutputSizeBounds() throws GeneralSecurityException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 2);
+			int overhead = -1;
+			for (int length = 0; length <= 48; length++) {
+				byte[] plain = newPayload(length);
+				int size = cryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, length);
+				byte[] encrypted = new byte[size];
+				int count = cryptoUtils.encrypt(plain, 0, length, encrypted, 0);
+				if (mode == CipherMode.LEGACY_CBC) {
+					// the padding is exact, a whole block for aligned input
+					assertEquals(size, count);
+					assertEquals((length / 16 + 1) * 16, count);
+				} else {
+					assertTrue(mode + " length " + length, count <= size);
+					// the envelope adds the same number of bytes to any input
+					if (overhead < 0) {
+						overhead = size - length;
+					}
+					assertEquals(mode + " length " + length, overhead, size - length);
+				}
+				int decryptedSize = cryptoUtils.getOutputSize(Cipher.DECRYPT_MODE, count);
+				assertTrue(mode + " length " + length, decryptedSize >= length);
+				byte[] decrypted = new byte[decryptedSize];
+				assertEquals(length, cryptoUtils.decrypt(encrypted, 0, count, decrypted, 0));
+			}
+		}
+	}
+
+	public void testCipherReusedAfterFailedDoFinal() throws GeneralSecurityException {
+		for (CipherMode mode : CipherMode.values()) {
+			// a single pooled cipher, so the failed one is the one used next
+			CryptoUtils cryptoUtils = newCryptoUtils(mode, 1);
+			byte[] plain = newPayload(50);
+			byte[] encrypted = cryptoUtils.encryptData(plain);
+			byte[] tampered = encrypted.clone();
+			tampered[tampered.length - 1] ^= 1;
+			byte[] output = new byte[encrypted.length];
+			for (int i = 0; i < 3; i++) {
+				try {
+					cryptoUtils.decrypt(ByteBuffer.wrap(tampered), ByteBuffer.wrap(output));
+					if (mode != CipherMode.LEGACY_CBC) {
+						fail(mode + " accepted tampered data");
+					}
+				} catch (GeneralSecurityException expected) {
+					// expected, CBC may still see valid padding
+				}
+				ByteBuffer dst = ByteBuffer.wrap(output);
+				assertEquals(plain.length, cryptoUtils.decrypt(ByteBuffer.wrap(encrypted), dst));
+				assertTrue(mode.toString(), Arrays.equals(plain, Arrays.copyOf(output, plain.length)));
+				byte[] again = new byte[encrypted.length];
+				int count = cryptoUtils.encrypt(plain, 0, plain.length, again, 0);
+				assertTrue(mode.toString(), Arrays.equals(plain,
+						cryptoUtils.decryptData(Arrays.copyOf(again, count))));
+			}
+			assertEquals(1, cryptoUtils.getCipherPool(mode).getCreatedCount());
+		}
+	}
+
+	public void testPooledCipherInitSkipsSameParameters() throws GeneralSecurityException {
+		CipherPool pool = CipherPool.newInstance("AES/CBC/PKCS5Padding", 1);
+		byte[] ivBytes = new byte[16];
+		new SecureRandom().nextBytes(ivBytes);
+		IvParameterSpec iv = new IvParameterSpec(ivBytes);
+		SecretKey key = mKeyFactory.getKey();
+		byte[] plain = newPayload(40);
+
+		CipherPool.PooledCipher pooled = pool.borrow();
+		byte[] encrypted = pooled.init(Cipher.ENCRYPT_MODE, key, iv).doFinal(plain);
+		Cipher cipher = pooled.init(Cipher.DECRYPT_MODE, key, iv);
+		assertTrue(Arrays.equals(plain, cipher.doFinal(encrypted)));
+		// same parameters, the cipher is handed out as it is
+		assertSame(cipher, pooled.init(Cipher.DECRYPT_MODE, key, iv));
+		assertTrue(Arrays.equals(plain, cipher.doFinal(encrypted)));
+
+		byte[] broken = encrypted.clone();
+		broken[broken.length - 17] ^= 0x7f;
+		try {
+			cipher.doFinal(broken);
+		} catch (BadPaddingException expected) {
+			// usually, depends on the last plain byte
+		}
+		pooled.invalidate();
+		assertTrue(Arrays.equals(plain, pooled.init(Cipher.DECRYPT_MODE, key, iv).doFinal(encrypted)));
+		pool.release(pooled);
+
+		// the next borrower gets the same cipher, still usable with other parameters
+		CipherPool.PooledCipher next = pool.borrow();
+		assertSame(pooled, next);
+		assertTrue(Arrays.equals(encrypted, next.init(Cipher.ENCRYPT_MODE, key, iv).doFinal(plain)));
+		pool.release(next);
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+}
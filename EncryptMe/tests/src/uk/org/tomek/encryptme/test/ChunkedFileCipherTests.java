@@ -0,0 +1,99 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.helpers.ChunkedFileCipher;
+import android.test.AndroidTestCase;
+
+
+public class ChunkedFileCipherTests extends AndroidTestCase {
+
+	private static final int SEGMENT_SIZE = 1024;
+	private KeyFactory mKeyFactory;
+	private byte[] mPlainData;
+	private File mPlainFile;
+	private File mEncryptedFile;
+	private File mDecryptedFile;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mKeyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory.saveKey(mKeyFactory.generateKey());
+		mPlainData = new byte[10 * SEGMENT_SIZE + 123];
+		new Random(1).nextBytes(mPlainData);
+		File dir = getContext().getCacheDir();
+		mPlainFile = new File(dir, "plain.bin");
+		mEncryptedFile = new File(dir, "plain.bin.enc");
+		mDecryptedFile = new File(dir, "plain.bin.dec");
+		FileOutputStream out = new FileOutputStream(mPlainFile);
+		out.write(mPlainData);
+		out.close();
+		ChunkedFileCipher.encrypt(mKeyFactory.getKey(), mPlainFile, mEncryptedFile, SEGMENT_SIZE, 4);
+	}
+
+	protected void tearDown() throws Exception {
+		mPlainFile.delete();
+		mEncryptedFile.delete();
+		mDecryptedFile.delete();
+		super.tearDown();
+	}
+
+	public void testDecryptWholeFile() throws IOException {
+		ChunkedFileCipher.decrypt(mKeyFactory.getKey(), mEncryptedFile, mDecryptedFile, 4);
+		byte[] decrypted = new byte[(int) mDecryptedFile.length()];
+		FileInputStream in = new FileInputStream(mDecryptedFile);
+		assertEquals(decrypted.length, in.read(decrypted));
+		in.close();
+		assertTrue(Arrays.equals(mPlainData, decrypted));
+	}
+
+	public void testRandomAccessRead() throws IOException {
+		ChunkedFileCipher.Reader reader = ChunkedFileCipher.Reader.open(mKeyFactory.getKey(), mEncryptedFile);
+		assertEquals(mPlainData.length, reader.length());
+		// across a segment boundary, and past the end of the file
+		assertTrue(Arrays.equals(Arrays.copyOfRange(mPlainData, 1000, 1100), reader.read(1000, 100)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(mPlainData, mPlainData.length - 10, mPlainData.length),
+				reader.read(mPlainData.length - 10, 100)));
+		reader.close();
+	}
+
+	public void testTamperedSegmentIsRejected() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mEncryptedFile, "rw");
+		file.seek(ChunkedFileCipher.HEADER_SIZE + 3 * SEGMENT_SIZE);
+		int value = file.read();
+		file.seek(ChunkedFileCipher.HEADER_SIZE + 3 * SEGMENT_SIZE);
+		file.write(value ^ 1);
+		file.close();
+		try {
+			ChunkedFileCipher.decrypt(mKeyFactory.getKey(), mEncryptedFile, mDecryptedFile, 4);
+			fail();
+		} catch (IOException expected) {
+			assertFalse(mDecryptedFile.exists());
+		}
+	}
+
+	public void testFailedDecryptKeepsDestination() throws IOException {
+		ChunkedFileCipher.decrypt(mKeyFactory.getKey(), mEncryptedFile, mDecryptedFile, 4);
+		long length = mDecryptedFile.length();
+		RandomAccessFile file = new RandomAccessFile(mEncryptedFile, "rw");
+		file.seek(file.length() - 1);
+		int value = file.read();
+		file.seek(file.length() - 1);
+		file.write(value ^ 1);
+		file.close();
+		try {
+			ChunkedFileCipher.decrypt(mKeyFactory.getKey(), mEncryptedFile, mDecryptedFile, 4);
+			fail();
+		} catch (IOException expected) {
+			assertEquals(length, mDecryptedFile.length());
+			assertFalse(new File(mDecryptedFile.getPath() + ".tmp").exists());
+		}
+	}
+
+}
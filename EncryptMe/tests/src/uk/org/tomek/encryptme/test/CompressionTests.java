@@ -0,0 +1,153 @@
+package uk.org.tomek.encryptme.test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import android.test.AndroidTestCase;
+
+
+public class CompressionTests extends AndroidTestCase {
+
+	private CryptoUtils mCryptoUtils;
+	private byte[] mText;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mCryptoUtils = CryptoUtils.newInstance(KeyFactory.newInMemoryInstance(keyFactory.generateKey()));
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		mCryptoUtils.setCompressionLevel(6);
+		mText = newJson(200);
+	}
+
+	public void testTextIsCompressed() {
+		byte[] encrypted = mCryptoUtils.encryptData(mText);
+		assertTrue(encrypted.length < mText.length / 2);
+		assertTrue(Arrays.equals(mText, mCryptoUtils.decryptData(encrypted)));
+	}
+
+	public void testRandomAndSmallDataAreNotCompressed() {
+		byte[] random = new byte[8 * 1024];
+		new Random(1).nextBytes(random);
+		int overhead = mCryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, 0);
+		assertEquals(random.length + overhead, mCryptoUtils.encryptData(random).length);
+
+		byte[] small = newJson(1);
+		assertEquals(small.length + overhead, mCryptoUtils.encryptData(small).length);
+	}
+
+	public void testLegacyModeIsNotCompressed() {
+		mCryptoUtils.setCipherMode(CipherMode.LEGACY_CBC);
+		byte[] encrypted = mCryptoUtils.encryptData(mText);
+		assertTrue(encrypted.length > mText.length);
+		assertTrue(Arrays.equals(mText, mCryptoUtils.decryptData(encrypted)));
+	}
+
+	public void testCompressedDataDecryptsWithCompressionOff() {
+		byte[] encrypted = mCryptoUtils.encryptData(mText);
+		mCryptoUtils.setCompressionLevel(CryptoUtils.COMPRESSION_OFF);
+		assertTrue(Arrays.equals(mText, mCryptoUtils.decryptData(encrypted)));
+	}
+
+	public void testCompressionFlagIsAuthenticated() {
+		// the lowest bit of the header flags marks compressed data
+		byte[] compressed = mCryptoUtils.encryptData(mText);
+		compressed[4] ^= 1;
+		assertNull(mCryptoUtils.decryptData(compressed));
+
+		mCryptoUtils.setCompressionLevel(CryptoUtils.COMPRESSION_OFF);
+		byte[] plain = mCryptoUtils.encryptData(mText);
+		plain[4] ^= 1;
+		assertNull(mCryptoUtils.decryptData(plain));
+	}
+
+	public void testDecryptIntoBuffer() throws Exception {
+		byte[] encrypted = mCryptoUtils.encryptData(mText);
+		byte[] output = new byte[mText.length + 10];
+		int count = mCryptoUtils.decrypt(encrypted, 0, encrypted.length, output, 10);
+		assertEquals(mText.length, count);
+		assertTrue(Arrays.equals(mText, Arrays.copyOfRange(output, 10, output.length)));
+		try {
+			mCryptoUtils.decrypt(encrypted, 0, encrypted.length, new byte[encrypted.length], 0);
+			fail("Decrypted into a buffer which is too small");
+		} catch (ShortBufferException e) {
+			// expected
+		}
+	}
+
+	public void testStreamRoundTrip() throws Exception {
+		byte[] text = newJson(2000);
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		mCryptoUtils.encryptStream(new ByteArrayInputStream(text), encrypted);
+		assertTrue(encrypted.size() < text.length / 2);
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		long written = mCryptoUtils.decryptStream(
+				new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+		assertEquals(text.length, written);
+		assertTrue(Arrays.equals(text, decrypted.toByteArray()));
+	}
+
+	public void testCompressedFileDecryptsMapped() throws Exception {
+		byte[] text = newJson(2000);
+		File dir = getContext().getCacheDir();
+		File plainFile = new File(dir, "compressed.json");
+		File encryptedFile = new File(dir, "compressed.json.enc");
+		File decryptedFile = new File(dir, "compressed.json.dec");
+		try {
+			FileOutputStream out = new FileOutputStream(plainFile);
+			out.write(text);
+			out.close();
+			FilesHelper.encryptFile(mCryptoUtils, plainFile, encryptedFile);
+			assertTrue(encryptedFile.length() < text.length / 2);
+
+			assertEquals(text.length, FilesHelper.decryptFileMapped(mCryptoUtils, encryptedFile,
+					decryptedFile, null));
+			byte[] decrypted = new byte[text.length];
+			FileInputStream in = new FileInputStream(decryptedFile);
+			int offset = 0;
+			while (offset < decrypted.length) {
+				offset += in.read(decrypted, offset, decrypted.length - offset);
+			}
+			in.close();
+			assertTrue(Arrays.equals(text, decrypted));
+		} finally {
+			plainFile.delete();
+			encryptedFile.delete();
+			decryptedFile.delete();
+		}
+	}
+
+	public void testInvalidLevelIsRejected() {
+		try {
+			mCryptoUtils.setCompressionLevel(10);
+			fail("Accepted compression level 10");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static byte[] newJson(int records) {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < records; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"id\":").append(i).append(",\"name\":\"user").append(i)
+					.append("\",\"email\":\"user").append(i)
+					.append("@example.com\",\"active\":").append(i % 3 == 0).append('}');
+		}
+		return json.append(']').toString().getBytes(CryptoUtils.DEFAULT_CHARSET);
+	}
+}
@@ -1,7 +1,19 @@
 package uk.org.tomek.encryptme.test;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.crypto.Cipher;
+
+import uk.org.tomek.encryptme.crypto.AndroidPlatform;
+import uk.org.tomek.encryptme.crypto.BatchResult;
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoContext;
 import uk.org.tomek.encryptme.crypto.CryptoUtils;
 import uk.org.tomek.encryptme.crypto.KeyFactory;
 import android.test.AndroidTestCase;
@@ -13,12 +25,13 @@ public class CryptUtilsTests extends AndroidTestCase {
 	private static final byte[] INPUT_DATA_BYTES = {(byte) 0x01, (byte) 0x02, (byte) 0x03,
 		(byte) 0x04,(byte) 0x05,(byte) 0x06,(byte) 0x07,(byte) 0x08,(byte) 0x09,(byte) 0x0A,
 		(byte) 0x0B,(byte) 0x0C,(byte) 0x0D,(byte) 0x0E,(byte) 0x0F,(byte) 0x00};
+	private static final int ENVELOPE_HEADER_SIZE = 5;
 	private String TAG = CryptUtilsTests.class.getSimpleName();
 	private KeyFactory mKeyFactory;
 	
 	protected void setUp() throws Exception {
 		super.setUp();
-		mKeyFactory = KeyFactory.newInstance(getContext());
+		mKeyFactory = KeyFactory.newInstance(AndroidPlatform.newInstance(getContext()));
 	}
 
 	public void testEncryptDataBytes() {
@@ -38,4 +51,92 @@ public class CryptUtilsTests extends AndroidTestCase {
 		assertTrue(Arrays.equals(inputString.getBytes(CryptoUtils.DEFAULT_CHARSET), decryptedData));
 	}
 
+	public void testConcurrentEncryption() throws Exception {
+		final CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory, 2);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 4; i++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					for (int j = 0; j < 100; j++) {
+						byte[] decrypted = cryptoUtils.decryptData(cryptoUtils.encryptData(INPUT_DATA_BYTES));
+						if (!Arrays.equals(INPUT_DATA_BYTES, decrypted)) {
+							return false;
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		executor.shutdown();
+		assertTrue(cryptoUtils.getCipherPool().getCreatedCount() <= 2);
+	}
+
+	public void testGcmModeReadsLegacyData() {
+		CryptoUtils legacyCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		CryptoUtils gcmCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		gcmCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		byte[] legacyData = legacyCryptoUtils.encryptData(INPUT_DATA_BYTES);
+		byte[] gcmData = gcmCryptoUtils.encryptData(INPUT_DATA_BYTES);
+		assertTrue(Arrays.equals(INPUT_DATA_BYTES, gcmCryptoUtils.decryptData(legacyData)));
+		assertTrue(Arrays.equals(INPUT_DATA_BYTES, legacyCryptoUtils.decryptData(gcmData)));
+		// every message gets its own IV
+		assertFalse(Arrays.equals(gcmData, gcmCryptoUtils.encryptData(INPUT_DATA_BYTES)));
+	}
+
+	public void testGcmModeRejectsTamperedData() {
+		CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		cryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		byte[] encryptedData = cryptoUtils.encryptData(INPUT_DATA_BYTES);
+		encryptedData[encryptedData.length - 1] ^= 1;
+		assertNull(cryptoUtils.decryptData(encryptedData));
+	}
+
+	public void testGcmModeRejectsTamperedDataOfWholeBlocks() {
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(
+				KeyFactory.newInMemoryInstance(null).generateKey());
+		for (CipherMode mode : new CipherMode[] {CipherMode.AES_GCM, CipherMode.AES_GCM_DATA_KEY}) {
+			CryptoUtils cryptoUtils = CryptoUtils.newInstance(keyFactory);
+			cryptoUtils.setCipherMode(mode);
+			// a whole number of blocks, like legacy data
+			int overhead = cryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, 0);
+			byte[] plain = new byte[(overhead / 16 + 1) * 16 - overhead];
+			List<byte[]> tampered = new ArrayList<byte[]>();
+			for (int message = 0; message < 10; message++) {
+				byte[] encryptedData = cryptoUtils.encryptData(plain);
+				assertEquals(0, encryptedData.length % 16);
+				// everything after the header, which only names the mode and the key
+				for (int bit = ENVELOPE_HEADER_SIZE * 8; bit < encryptedData.length * 8; bit++) {
+					byte[] copy = encryptedData.clone();
+					copy[bit / 8] ^= 1 << (bit % 8);
+					tampered.add(copy);
+				}
+			}
+			BatchResult result = cryptoUtils.decryptAll(tampered);
+			assertEquals(mode.toString(), tampered.size(), result.getFailureCount());
+			byte[] encryptedData = cryptoUtils.encryptData(plain);
+			encryptedData[encryptedData.length - 1] ^= 1;
+			assertNull(cryptoUtils.decryptData(encryptedData));
+		}
+	}
+
+	public void testKeyIsLoadedOnFirstUse() {
+		KeyFactory keyFactory = KeyFactory.newInstance(AndroidPlatform.newInstance(getContext()));
+		assertFalse(keyFactory.isKeyLoaded());
+		keyFactory.getKey();
+		assertTrue(keyFactory.isKeyLoaded());
+	}
+
+	public void testCryptoContextIsShared() {
+		CryptoContext cryptoContext = CryptoContext.getInstance(getContext());
+		assertSame(cryptoContext, CryptoContext.getInstance(getContext()));
+		assertSame(cryptoContext.getCryptoUtils(), CryptoContext.getInstance(getContext())
+				.getCryptoUtils());
+	}
+
 }
@@ -0,0 +1,128 @@
+package uk.org.tomek.encryptme.test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.DataKeyCache;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import android.test.AndroidTestCase;
+
+
+public class DataKeyTests extends AndroidTestCase {
+
+	// header (5) and key id (8), followed by the wrapped data key
+	private static final int KEY_ID_END = 13;
+	// the wrapped data key ends where the IV starts
+	private static final int WRAPPED_KEY_END = 57;
+	private static final byte[] PLAIN = "Envelope encrypted with a data key".getBytes();
+	private KeyFactory mKeyFactory;
+	private CryptoUtils mCryptoUtils;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		// nothing is encrypted in legacy mode
+		mKeyFactory.setLegacyDataMigrated();
+		mCryptoUtils = newCryptoUtils();
+	}
+
+	private CryptoUtils newCryptoUtils() {
+		CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		cryptoUtils.setCipherMode(CipherMode.AES_GCM_DATA_KEY);
+		return cryptoUtils;
+	}
+
+	public void testDataKeyIsReusedUpToMessageLimit() {
+		mCryptoUtils.setDataKeyLimits(3, 1024 * 1024, 60000);
+		byte[][] encrypted = new byte[7][];
+		for (int i = 0; i < encrypted.length; i++) {
+			encrypted[i] = mCryptoUtils.encryptData(PLAIN);
+			assertEquals(PLAIN.length + mCryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, 0), encrypted[i].length);
+		}
+		DataKeyCache cache = mCryptoUtils.getDataKeyCache();
+		assertEquals(7, cache.getMessageCount());
+		assertEquals(3, cache.getWrapCount());
+		assertEquals(4, cache.getReuseCount());
+		assertTrue(cache.getWrapNanos() > 0);
+		assertTrue(Arrays.equals(Arrays.copyOf(encrypted[0], KEY_ID_END), Arrays.copyOf(encrypted[2], KEY_ID_END)));
+		assertFalse(Arrays.equals(Arrays.copyOf(encrypted[2], KEY_ID_END), Arrays.copyOf(encrypted[3], KEY_ID_END)));
+		for (byte[] data : encrypted) {
+			assertTrue(Arrays.equals(PLAIN, mCryptoUtils.decryptData(data)));
+		}
+		// the keys of this instance are never unwrapped
+		assertEquals(0, cache.getUnwrapCount());
+	}
+
+	public void testByteLimitStartsNewDataKey() {
+		mCryptoUtils.setDataKeyLimits(100, 2 * PLAIN.length - 1, 60000);
+		mCryptoUtils.encryptData(PLAIN);
+		mCryptoUtils.encryptData(PLAIN);
+		assertEquals(2, mCryptoUtils.getDataKeyCache().getWrapCount());
+		assertEquals(0, mCryptoUtils.getDataKeyCache().getReuseCount());
+	}
+
+	public void testDataKeyIsUnwrappedOnce() {
+		byte[][] encrypted = new byte[5][];
+		for (int i = 0; i < encrypted.length; i++) {
+			encrypted[i] = mCryptoUtils.encryptData(PLAIN);
+		}
+		CryptoUtils reader = newCryptoUtils();
+		for (byte[] data : encrypted) {
+			assertTrue(Arrays.equals(PLAIN, reader.decryptData(data)));
+		}
+		DataKeyCache cache = reader.getDataKeyCache();
+		assertEquals(1, cache.getUnwrapCount());
+		assertEquals(4, cache.getHitCount());
+		assertEquals(1, cache.size());
+	}
+
+	public void testRotationOnlyWrapsDataKeyAgain() throws Exception {
+		byte[] encrypted = mCryptoUtils.encryptData(PLAIN);
+		assertNull(mCryptoUtils.reEncrypt(encrypted));
+		assertEquals(2, mKeyFactory.rotateKey());
+		byte[] reEncrypted = mCryptoUtils.reEncrypt(encrypted);
+		assertEquals(encrypted.length, reEncrypted.length);
+		assertFalse(Arrays.equals(Arrays.copyOf(encrypted, WRAPPED_KEY_END), Arrays.copyOf(reEncrypted, WRAPPED_KEY_END)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(encrypted, WRAPPED_KEY_END, encrypted.length),
+				Arrays.copyOfRange(reEncrypted, WRAPPED_KEY_END, reEncrypted.length)));
+		assertNull(mCryptoUtils.reEncrypt(reEncrypted));
+		assertTrue(Arrays.equals(PLAIN, newCryptoUtils().decryptData(reEncrypted)));
+		assertTrue(Arrays.equals(PLAIN, newCryptoUtils().decryptData(encrypted)));
+	}
+
+	public void testTamperedKeyBlockIsRejected() {
+		byte[] encrypted = mCryptoUtils.encryptData(PLAIN);
+		byte[] otherKeyId = encrypted.clone();
+		otherKeyId[KEY_ID_END - 1] ^= 1;
+		assertNull(mCryptoUtils.decryptData(otherKeyId));
+		byte[] otherWrappedKey = encrypted.clone();
+		otherWrappedKey[WRAPPED_KEY_END - 1] ^= 1;
+		assertNull(newCryptoUtils().decryptData(otherWrappedKey));
+	}
+
+	public void testBuffersStreamsAndCompression() throws Exception {
+		ByteBuffer src = ByteBuffer.allocateDirect(PLAIN.length);
+		src.put(PLAIN).flip();
+		ByteBuffer encrypted = ByteBuffer.allocateDirect(mCryptoUtils.getOutputSize(Cipher.ENCRYPT_MODE, PLAIN.length));
+		mCryptoUtils.encrypt(src, encrypted);
+		encrypted.flip();
+		ByteBuffer decrypted = ByteBuffer.allocate(encrypted.remaining());
+		newCryptoUtils().decrypt(encrypted, decrypted);
+		assertTrue(Arrays.equals(PLAIN, Arrays.copyOf(decrypted.array(), decrypted.position())));
+
+		byte[] plain = new byte[100000];
+		ByteArrayOutputStream encryptedStream = new ByteArrayOutputStream();
+		mCryptoUtils.setCompressionLevel(6);
+		mCryptoUtils.encryptStream(new ByteArrayInputStream(plain), encryptedStream);
+		ByteArrayOutputStream decryptedStream = new ByteArrayOutputStream();
+		newCryptoUtils().decryptStream(new ByteArrayInputStream(encryptedStream.toByteArray()), decryptedStream);
+		assertTrue(Arrays.equals(plain, decryptedStream.toByteArray()));
+		assertTrue(Arrays.equals(plain, newCryptoUtils().decryptData(mCryptoUtils.encryptData(plain))));
+	}
+}
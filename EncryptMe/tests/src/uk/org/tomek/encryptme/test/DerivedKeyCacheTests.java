@@ -0,0 +1,104 @@
+package uk.org.tomek.encryptme.test;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import uk.org.tomek.encryptme.crypto.DerivedKeyCache;
+import uk.org.tomek.encryptme.crypto.DerivedKeyCache.CacheKey;
+import android.test.AndroidTestCase;
+
+
+public class DerivedKeyCacheTests extends AndroidTestCase {
+
+	private static final String ALGO = "PBKDF2WithHmacSHA1";
+	private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8};
+	private static final long LONG_TTL = 60 * 1000;
+
+	private static CacheKey cacheKey(DerivedKeyCache cache, String passphrase) {
+		return cache.newCacheKey(ALGO, passphrase.toCharArray(), SALT, 1000, 256);
+	}
+
+	private static SecretKey key(int value) {
+		byte[] bytes = new byte[32];
+		Arrays.fill(bytes, (byte) value);
+		return new SecretKeySpec(bytes, "AES");
+	}
+
+	public void testSameParametersShareEntry() {
+		DerivedKeyCache cache = DerivedKeyCache.newInstance(4, LONG_TTL);
+		cache.put(cacheKey(cache, "secret"), key(1));
+		assertEquals(key(1), cache.get(cacheKey(cache, "secret")));
+		assertNull(cache.get(cacheKey(cache, "other")));
+		assertNull(cache.get(cache.newCacheKey(ALGO, "secret".toCharArray(), SALT, 1001, 256)));
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() {
+		DerivedKeyCache cache = DerivedKeyCache.newInstance(2, LONG_TTL);
+		cache.put(cacheKey(cache, "a"), key(1));
+		cache.put(cacheKey(cache, "b"), key(2));
+		// "b" becomes the least recently used one
+		assertNotNull(cache.get(cacheKey(cache, "a")));
+		cache.put(cacheKey(cache, "c"), key(3));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get(cacheKey(cache, "b")));
+		assertEquals(key(1), cache.get(cacheKey(cache, "a")));
+		assertEquals(key(3), cache.get(cacheKey(cache, "c")));
+	}
+
+	public void testExpiredEntryIsDropped() throws InterruptedException {
+		DerivedKeyCache cache = DerivedKeyCache.newInstance(4, 50);
+		cache.put(cacheKey(cache, "secret"), key(1));
+		assertNotNull(cache.get(cacheKey(cache, "secret")));
+		Thread.sleep(100);
+		assertNull(cache.get(cacheKey(cache, "secret")));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	public void testKeysHandedOutSurviveEvictionAndClear() throws InterruptedException {
+		DerivedKeyCache cache = DerivedKeyCache.newInstance(1, 50);
+		cache.put(cacheKey(cache, "a"), key(1));
+		SecretKey evicted = cache.get(cacheKey(cache, "a"));
+		cache.put(cacheKey(cache, "b"), key(2));
+		SecretKey expired = cache.get(cacheKey(cache, "b"));
+		Thread.sleep(100);
+		assertNull(cache.get(cacheKey(cache, "b")));
+		cache.put(cacheKey(cache, "c"), key(3));
+		SecretKey cleared = cache.get(cacheKey(cache, "c"));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(cacheKey(cache, "c")));
+		// the cache wipes its own copies only
+		assertEquals(key(1), evicted);
+		assertEquals(key(2), expired);
+		assertEquals(key(3), cleared);
+	}
+
+	public void testStoredKeyIsACopy() {
+		DerivedKeyCache cache = DerivedKeyCache.newInstance(4, LONG_TTL);
+		byte[] keyBytes = new byte[32];
+		Arrays.fill(keyBytes, (byte) 1);
+		SecretKey key = new SecretKeySpec(keyBytes, "AES");
+		cache.put(cacheKey(cache, "a"), key);
+		SecretKey cached = cache.get(cacheKey(cache, "a"));
+		cache.clear();
+		assertTrue(Arrays.equals(keyBytes, key.getEncoded()));
+		assertTrue(Arrays.equals(keyBytes, cached.getEncoded()));
+	}
+
+	public void testCounters() {
+		DerivedKeyCache cache = DerivedKeyCache.newInstance(1, LONG_TTL);
+		assertNull(cache.get(cacheKey(cache, "a")));
+		cache.put(cacheKey(cache, "a"), key(1));
+		cache.get(cacheKey(cache, "a"));
+		cache.get(cacheKey(cache, "a"));
+		cache.put(cacheKey(cache, "b"), key(2));
+		assertNull(cache.get(cacheKey(cache, "a")));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+}
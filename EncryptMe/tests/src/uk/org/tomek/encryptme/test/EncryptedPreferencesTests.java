@@ -0,0 +1,118 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.EncryptedPreferences;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+
+public class EncryptedPreferencesTests extends AndroidTestCase {
+
+	private static final String SECRET = "my secret value";
+	private CryptoUtils mCryptoUtils;
+	private File mFile;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mCryptoUtils = CryptoUtils.newInstance(KeyFactory.newInMemoryInstance(keyFactory.generateKey()));
+		mFile = new File(getContext().getCacheDir(), "test.eprefs");
+		mFile.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testValuesSurviveReopening() throws Exception {
+		Set<String> set = new HashSet<String>();
+		set.add("one");
+		set.add("two");
+		EncryptedPreferences preferences = newPreferences(4);
+		assertTrue(preferences.edit().putString("string", SECRET).putInt("int", -7)
+				.putLong("long", Long.MAX_VALUE).putFloat("float", 1.5f)
+				.putBoolean("boolean", true).putStringSet("set", set).commit());
+
+		EncryptedPreferences reopened = newPreferences(4);
+		assertEquals(SECRET, reopened.getString("string", null));
+		assertEquals(-7, reopened.getInt("int", 0));
+		assertEquals(Long.MAX_VALUE, reopened.getLong("long", 0));
+		assertEquals(1.5f, reopened.getFloat("float", 0));
+		assertTrue(reopened.getBoolean("boolean", false));
+		assertEquals(set, reopened.getStringSet("set", null));
+		assertEquals(6, reopened.getAll().size());
+		assertEquals("default", reopened.getString("missing", "default"));
+	}
+
+	public void testFileHoldsNoPlainText() throws Exception {
+		EncryptedPreferences preferences = newPreferences(4);
+		preferences.edit().putString("account_name", SECRET).commit();
+		byte[] content = new byte[(int) mFile.length()];
+		FileInputStream in = new FileInputStream(mFile);
+		in.read(content);
+		in.close();
+		String text = new String(content, CryptoUtils.DEFAULT_CHARSET);
+		assertFalse(text.contains(SECRET));
+		assertFalse(text.contains("account_name"));
+	}
+
+	public void testApplySavesInBackground() throws Exception {
+		EncryptedPreferences preferences = newPreferences(4);
+		for (int i = 0; i < 20; i++) {
+			preferences.edit().putInt("key" + i, i).apply();
+		}
+		assertEquals(19, preferences.getInt("key19", 0));
+		Thread.sleep(EncryptedPreferences.FLUSH_DELAY_MS * 10);
+		assertEquals(19, newPreferences(4).getInt("key19", 0));
+	}
+
+	public void testCacheServesRepeatedReads() throws Exception {
+		EncryptedPreferences preferences = newPreferences(2);
+		preferences.edit().putString("a", "1").putString("b", "2").putString("c", "3").commit();
+		preferences.clearCache();
+		preferences.getString("a", null);
+		preferences.getString("a", null);
+		assertEquals(1, preferences.getCacheMissCount());
+		assertEquals(1, preferences.getCacheHitCount());
+		// two values fit, the third pushes out the least recently used
+		preferences.getString("b", null);
+		preferences.getString("c", null);
+		preferences.getString("a", null);
+		assertEquals(4, preferences.getCacheMissCount());
+	}
+
+	public void testRemoveClearAndListeners() throws Exception {
+		EncryptedPreferences preferences = newPreferences(4);
+		final List<String> changedKeys = new ArrayList<String>();
+		SharedPreferences.OnSharedPreferenceChangeListener listener =
+				new SharedPreferences.OnSharedPreferenceChangeListener() {
+
+			@Override
+			public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+				changedKeys.add(key);
+			}
+		};
+		preferences.registerOnSharedPreferenceChangeListener(listener);
+		preferences.edit().putString("a", "1").putString("b", "2").commit();
+		preferences.edit().remove("a").commit();
+		assertFalse(preferences.contains("a"));
+		assertTrue(preferences.contains("b"));
+		preferences.edit().clear().putString("c", "3").commit();
+		assertFalse(preferences.contains("b"));
+		assertEquals("3", newPreferences(4).getString("c", null));
+		assertEquals(5, changedKeys.size());
+		preferences.unregisterOnSharedPreferenceChangeListener(listener);
+	}
+
+	private EncryptedPreferences newPreferences(int cacheSize) {
+		return EncryptedPreferences.newInstance(mCryptoUtils, mFile, cacheSize);
+	}
+}
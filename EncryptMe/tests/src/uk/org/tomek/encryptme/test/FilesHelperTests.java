@@ -0,0 +1,107 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import android.test.AndroidTestCase;
+
+
+public class FilesHelperTests extends AndroidTestCase {
+
+	// several windows and slices, ending in a partial block
+	private static final int WINDOW_SIZE = 1000 * 1000;
+	private static final int DATA_SIZE = 3 * 1024 * 1024 + 123;
+	private CryptoUtils mCryptoUtils;
+	private byte[] mPlainData;
+	private File mPlainFile;
+	private File mEncryptedFile;
+	private File mDecryptedFile;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mCryptoUtils = CryptoUtils.newInstance(KeyFactory.newInMemoryInstance(keyFactory.generateKey()));
+		mPlainData = new byte[DATA_SIZE];
+		new Random(1).nextBytes(mPlainData);
+		File dir = getContext().getCacheDir();
+		mPlainFile = new File(dir, "mapped.bin");
+		mEncryptedFile = new File(dir, "mapped.bin.enc");
+		mDecryptedFile = new File(dir, "mapped.bin.dec");
+		FileOutputStream out = new FileOutputStream(mPlainFile);
+		out.write(mPlainData);
+		out.close();
+	}
+
+	protected void tearDown() throws Exception {
+		mPlainFile.delete();
+		mEncryptedFile.delete();
+		mDecryptedFile.delete();
+		super.tearDown();
+	}
+
+	public void testMappedRoundTripLegacy() throws IOException {
+		checkMappedRoundTrip(CipherMode.LEGACY_CBC);
+	}
+
+	public void testMappedRoundTripGcm() throws IOException {
+		checkMappedRoundTrip(CipherMode.AES_GCM);
+	}
+
+	public void testMappedAndStreamFormatsMatch() throws IOException {
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		FilesHelper.encryptFile(mCryptoUtils, mPlainFile, mEncryptedFile);
+		FilesHelper.transformFileMapped(mCryptoUtils, mEncryptedFile, mDecryptedFile, false,
+				WINDOW_SIZE, null);
+		assertTrue(Arrays.equals(mPlainData, readFile(mDecryptedFile)));
+
+		FilesHelper.transformFileMapped(mCryptoUtils, mPlainFile, mEncryptedFile, true,
+				WINDOW_SIZE, null);
+		FilesHelper.decryptFile(mCryptoUtils, mEncryptedFile, mDecryptedFile);
+		assertTrue(Arrays.equals(mPlainData, readFile(mDecryptedFile)));
+	}
+
+	private void checkMappedRoundTrip(CipherMode mode) throws IOException {
+		mCryptoUtils.setCipherMode(mode);
+		final long[] progress = new long[2];
+		FilesHelper.ProgressListener listener = new FilesHelper.ProgressListener() {
+
+			@Override
+			public void onProgress(long processedBytes, long totalBytes) {
+				assertTrue(processedBytes > progress[0]);
+				progress[0] = processedBytes;
+				progress[1] = totalBytes;
+			}
+		};
+		long encryptedSize = FilesHelper.transformFileMapped(mCryptoUtils, mPlainFile,
+				mEncryptedFile, true, WINDOW_SIZE, listener);
+		assertEquals(mEncryptedFile.length(), encryptedSize);
+		assertEquals(DATA_SIZE, progress[0]);
+		assertEquals(DATA_SIZE, progress[1]);
+
+		long decryptedSize = FilesHelper.transformFileMapped(mCryptoUtils, mEncryptedFile,
+				mDecryptedFile, false, WINDOW_SIZE, null);
+		assertEquals(DATA_SIZE, decryptedSize);
+		assertTrue(Arrays.equals(mPlainData, readFile(mDecryptedFile)));
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] content = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < content.length) {
+				offset += in.read(content, offset, content.length - offset);
+			}
+		} finally {
+			in.close();
+		}
+		return content;
+	}
+}
@@ -0,0 +1,69 @@
+package uk.org.tomek.encryptme.test;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import uk.org.tomek.encryptme.helpers.HexStringHelper.Encoding;
+import android.test.AndroidTestCase;
+
+
+public class HexStringHelperTests extends AndroidTestCase {
+
+	private static final byte[] INPUT_DATA_BYTES = {(byte) 0x01, (byte) 0xab, (byte) 0x10,
+		(byte) 0xff, (byte) 0x00};
+
+	public void testHexFormats() {
+		assertEquals("0x01, 0xab, 0x10, 0xff, 0x00", HexStringHelper.hexEncode(INPUT_DATA_BYTES));
+		assertEquals("01ab10ff00", HexStringHelper.hexEncodeCompact(INPUT_DATA_BYTES));
+		assertEquals("", HexStringHelper.hexEncode(null));
+	}
+
+	public void testBase64Formats() {
+		assertEquals("AasQ/wA=", HexStringHelper.base64Encode(INPUT_DATA_BYTES));
+		assertEquals("AasQ_wA", HexStringHelper.base64UrlEncode(INPUT_DATA_BYTES));
+	}
+
+	public void testRoundTrip() {
+		Random random = new Random(1);
+		for (int length = 0; length < 100; length++) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			for (Encoding encoding : Encoding.values()) {
+				String encoded = HexStringHelper.encode(encoding, data);
+				assertEquals(HexStringHelper.getEncodedLength(encoding, length), encoded.length());
+				assertTrue(Arrays.equals(data, HexStringHelper.decode(encoding, encoded)));
+			}
+		}
+	}
+
+	public void testDirectBufferInput() {
+		Random random = new Random(2);
+		byte[] data = new byte[2000];
+		random.nextBytes(data);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 3);
+		buffer.position(3);
+		buffer.put(data);
+		for (Encoding encoding : Encoding.values()) {
+			buffer.position(3);
+			assertEquals(HexStringHelper.encode(encoding, data), HexStringHelper.encode(encoding, buffer));
+			assertEquals(3, buffer.position());
+		}
+	}
+
+	public void testInvalidInput() {
+		try {
+			HexStringHelper.hexDecode("0x1");
+			fail("Odd number of digits accepted");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+		try {
+			HexStringHelper.base64Decode("AB*C");
+			fail("Invalid character accepted");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+}
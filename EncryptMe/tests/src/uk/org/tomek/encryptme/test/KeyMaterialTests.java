@@ -0,0 +1,122 @@
+package uk.org.tomek.encryptme.test;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.KeyMaterial;
+import uk.org.tomek.encryptme.crypto.MemoryKeyStore;
+import android.test.AndroidTestCase;
+
+
+public class KeyMaterialTests extends AndroidTestCase {
+
+	private static final byte[] KEY_BYTES = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+	public void testKeyBytesAreBorrowedWithoutCopy() {
+		KeyMaterial key = KeyMaterial.newInstance(KEY_BYTES, 0, KEY_BYTES.length, "AES");
+		final byte[] borrowed = new byte[KEY_BYTES.length];
+		Boolean readOnly = key.borrow(new KeyMaterial.Borrower<Boolean>() {
+
+			@Override
+			public Boolean borrow(ByteBuffer keyBuffer) {
+				assertEquals(KEY_BYTES.length, keyBuffer.remaining());
+				keyBuffer.get(borrowed);
+				return keyBuffer.isReadOnly();
+			}
+		});
+		assertTrue(readOnly);
+		assertTrue(Arrays.equals(KEY_BYTES, borrowed));
+		assertTrue(Arrays.equals(KEY_BYTES, key.getEncoded()));
+		assertEquals("RAW", key.getFormat());
+		key.destroy();
+	}
+
+	public void testDestroyWipesKey() {
+		KeyMaterial key = KeyMaterial.newInstance(new SecretKeySpec(KEY_BYTES, "AES"));
+		final ByteBuffer[] leakedView = new ByteBuffer[1];
+		key.borrow(new KeyMaterial.Borrower<Void>() {
+
+			@Override
+			public Void borrow(ByteBuffer keyBuffer) {
+				leakedView[0] = keyBuffer;
+				return null;
+			}
+		});
+		key.destroy();
+		key.destroy();
+		assertTrue(key.isDestroyed());
+		for (int i = 0; i < KEY_BYTES.length; i++) {
+			assertEquals(0, leakedView[0].get(i));
+		}
+		try {
+			key.getEncoded();
+			fail("Destroyed key must not be readable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testKeyDestroyedWhileBorrowedIsWipedAfterwards() {
+		final KeyMaterial key = KeyMaterial.newInstance(KEY_BYTES, 0, KEY_BYTES.length, "AES");
+		final ByteBuffer[] view = new ByteBuffer[1];
+		byte first = key.borrow(new KeyMaterial.Borrower<Byte>() {
+
+			@Override
+			public Byte borrow(ByteBuffer keyBuffer) {
+				view[0] = keyBuffer;
+				key.destroy();
+				// still readable until the borrower returns
+				return keyBuffer.get(0);
+			}
+		});
+		assertEquals(KEY_BYTES[0], first);
+		assertEquals(0, view[0].get(0));
+	}
+
+	public void testKeysAreComparedWithoutCopy() {
+		KeyMaterial key = KeyMaterial.newInstance(KEY_BYTES, 0, KEY_BYTES.length, "AES");
+		KeyMaterial copy = KeyMaterial.newInstance(key);
+		byte[] otherBytes = KEY_BYTES.clone();
+		otherBytes[15] ^= 1;
+		assertTrue(KeyMaterial.isEqual(key, copy));
+		assertTrue(KeyMaterial.isEqual(key, new SecretKeySpec(KEY_BYTES, "AES")));
+		assertFalse(KeyMaterial.isEqual(key, new SecretKeySpec(otherBytes, "AES")));
+		assertFalse(KeyMaterial.isEqual(key, null));
+		key.destroy();
+		assertTrue(Arrays.equals(KEY_BYTES, copy.getEncoded()));
+		copy.destroy();
+	}
+
+	public void testStoreDestroysDeletedKeys() {
+		MemoryKeyStore keyStore = MemoryKeyStore.newInstance();
+		SecretKey key = new SecretKeySpec(KEY_BYTES, "AES");
+		keyStore.putKey("alias", key);
+		SecretKey storedKey = keyStore.getKey("alias");
+		assertTrue(storedKey instanceof KeyMaterial);
+		assertTrue(Arrays.equals(KEY_BYTES, storedKey.getEncoded()));
+		assertTrue(keyStore.deleteKey("alias"));
+		assertTrue(((KeyMaterial) storedKey).isDestroyed());
+	}
+
+	public void testKeyFactoryUsesStoredKey() {
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(new SecretKeySpec(KEY_BYTES, "AES"));
+		assertTrue(keyFactory.getKey() instanceof KeyMaterial);
+		keyFactory.setLegacyDataMigrated();
+		assertEquals(2, keyFactory.rotateKey());
+		assertTrue(keyFactory.getKey() instanceof KeyMaterial);
+		assertTrue(Arrays.equals(KEY_BYTES, keyFactory.getKey(1).getEncoded()));
+	}
+
+	public void testLeakedKeysAreCounted() throws Exception {
+		long leaked = KeyMaterial.getLeakedCount();
+		KeyMaterial.newInstance(KEY_BYTES, 0, KEY_BYTES.length, "AES");
+		for (int i = 0; i < 50 && KeyMaterial.getLeakedCount() == leaked; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertTrue(KeyMaterial.getLeakedCount() > leaked);
+	}
+}
@@ -0,0 +1,209 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.ReEncryptionJob;
+import android.test.AndroidTestCase;
+
+
+public class KeyRotationTests extends AndroidTestCase {
+
+	private static final int ITEMS = 50;
+	private KeyFactory mKeyFactory;
+	private CryptoUtils mCryptoUtils;
+	private File mCheckpointFile;
+	private List<byte[]> mPlainItems;
+	private ListStore mStore;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		// nothing is encrypted in legacy mode
+		mKeyFactory.setLegacyDataMigrated();
+		mCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		mCheckpointFile = new File(getContext().getCacheDir(), "reencryption.bin");
+		mCheckpointFile.delete();
+		mPlainItems = new ArrayList<byte[]>();
+		mStore = new ListStore();
+		for (int i = 0; i < ITEMS; i++) {
+			byte[] plain = ("item " + i).getBytes(CryptoUtils.DEFAULT_CHARSET);
+			mPlainItems.add(plain);
+			mStore.mItems.add(mCryptoUtils.encryptData(plain));
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		mCheckpointFile.delete();
+		super.tearDown();
+	}
+
+	public void testOldDataReadableAfterRotation() {
+		assertEquals(1, mKeyFactory.getKeyVersion());
+		assertEquals(2, mKeyFactory.rotateKey());
+		assertEquals(2, mKeyFactory.getKeyVersion());
+		assertItemsReadable();
+		byte[] newData = mCryptoUtils.encryptData(mPlainItems.get(0));
+		assertTrue(Arrays.equals(mPlainItems.get(0), mCryptoUtils.decryptData(newData)));
+	}
+
+	public void testEveryKeySlotIsReadable() {
+		for (int version = 2; version <= 20; version++) {
+			assertEquals(version, mKeyFactory.rotateKey());
+			byte[] newData = mCryptoUtils.encryptData(mPlainItems.get(0));
+			assertTrue(Arrays.equals(mPlainItems.get(0), mCryptoUtils.decryptData(newData)));
+		}
+	}
+
+	public void testJobReEncryptsWithNewKey() throws Exception {
+		mKeyFactory.rotateKey();
+		ReEncryptionJob job = newJob();
+		assertTrue(job.start());
+		assertTrue(job.await(10000));
+
+		ReEncryptionJob.Progress progress = job.getProgress();
+		assertTrue(progress.isComplete());
+		assertEquals(ITEMS, progress.getReEncrypted());
+		assertEquals(0, progress.getFailed());
+		assertItemsReadable();
+		for (byte[] item : mStore.mItems) {
+			assertNull(mCryptoUtils.reEncrypt(item));
+		}
+	}
+
+	public void testJobResumesFromCheckpoint() throws Exception {
+		mKeyFactory.rotateKey();
+		final ReEncryptionJob job = newJob();
+		job.setProgressListener(new ReEncryptionJob.ProgressListener() {
+
+			@Override
+			public void onProgress(ReEncryptionJob.Progress progress) {
+				if (progress.getDone() >= 20) {
+					job.stop();
+				}
+			}
+		});
+		job.start();
+		assertTrue(job.await(10000));
+		assertEquals(20, job.getProgress().getDone());
+		assertFalse(job.getProgress().isComplete());
+
+		// as if the process had been restarted
+		ReEncryptionJob resumedJob = newJob();
+		resumedJob.start();
+		assertTrue(resumedJob.await(10000));
+		assertTrue(resumedJob.getProgress().isComplete());
+		assertEquals(ITEMS, resumedJob.getProgress().getReEncrypted());
+		// every item written once over both runs
+		assertEquals(ITEMS, mStore.mWrites);
+		assertItemsReadable();
+	}
+
+	public void testLegacyDataIsMigratedBeforeRotation() throws Exception {
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		mCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		assertEquals(CipherMode.LEGACY_CBC, mCryptoUtils.getCipherMode());
+		for (int i = 0; i < ITEMS; i++) {
+			mStore.mItems.set(i, mCryptoUtils.encryptData(mPlainItems.get(i)));
+		}
+		try {
+			mKeyFactory.rotateKey();
+			fail("Key must not be rotated while there is legacy data");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+		try {
+			newJob().start();
+			fail("Job must not write legacy data");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+
+		// moved to an envelope mode with the key the data was written with
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		ReEncryptionJob job = newJob();
+		job.start();
+		assertTrue(job.await(10000));
+		assertEquals(ITEMS, job.getProgress().getReEncrypted());
+		assertEquals(0, job.getProgress().getFailed());
+		assertItemsReadable();
+
+		mKeyFactory.setLegacyDataMigrated();
+		assertEquals(2, mKeyFactory.rotateKey());
+		ReEncryptionJob rotationJob = newJob();
+		rotationJob.start();
+		assertTrue(rotationJob.await(10000));
+		assertTrue(rotationJob.getProgress().isComplete());
+		assertEquals(ITEMS, rotationJob.getProgress().getReEncrypted());
+		assertItemsReadable();
+	}
+
+	public void testLegacyDataLeftAfterRotationIsReadWithFirstKey() throws Exception {
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		mCryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		// enough items that trying the new key first would let some wrong padding through
+		List<byte[]> plainItems = new ArrayList<byte[]>();
+		mStore.mItems.clear();
+		for (int i = 0; i < 2000; i++) {
+			byte[] plain = ("legacy item " + i).getBytes(CryptoUtils.DEFAULT_CHARSET);
+			plainItems.add(plain);
+			mStore.mItems.add(mCryptoUtils.encryptData(plain));
+		}
+		// as if the items had been missed when legacy data was re-encrypted
+		mKeyFactory.setLegacyDataMigrated();
+		assertEquals(2, mKeyFactory.rotateKey());
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		ReEncryptionJob job = newJob();
+		job.setBatchSize(500);
+		job.start();
+		assertTrue(job.await(30000));
+		assertEquals(plainItems.size(), job.getProgress().getReEncrypted());
+		assertEquals(0, job.getProgress().getFailed());
+		for (int i = 0; i < plainItems.size(); i++) {
+			assertTrue("item " + i, Arrays.equals(plainItems.get(i), mCryptoUtils.decryptData(mStore.mItems.get(i))));
+		}
+	}
+
+	private ReEncryptionJob newJob() {
+		ReEncryptionJob job = ReEncryptionJob.newInstance(mCryptoUtils, mStore, mCheckpointFile);
+		job.setBatchSize(10);
+		job.setMaxCpuShare(1f);
+		return job;
+	}
+
+	private void assertItemsReadable() {
+		for (int i = 0; i < ITEMS; i++) {
+			assertTrue(Arrays.equals(mPlainItems.get(i), mCryptoUtils.decryptData(mStore.mItems.get(i))));
+		}
+	}
+
+	private static final class ListStore implements ReEncryptionJob.Store {
+
+		private final List<byte[]> mItems = new ArrayList<byte[]>();
+		private volatile int mWrites;
+
+		@Override
+		public int getCount() {
+			return mItems.size();
+		}
+
+		@Override
+		public byte[] read(int index) {
+			return mItems.get(index);
+		}
+
+		@Override
+		public void write(int index, byte[] data) {
+			mItems.set(index, data);
+			mWrites++;
+		}
+	}
+}
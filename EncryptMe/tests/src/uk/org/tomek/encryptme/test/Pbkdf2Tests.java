@@ -0,0 +1,47 @@
+package uk.org.tomek.encryptme.test;
+import java.util.Arrays;
+
+import uk.org.tomek.encryptme.crypto.KeyDerivationParams;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.Pbkdf2;
+import uk.org.tomek.encryptme.crypto.Pbkdf2.Prf;
+import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import android.test.AndroidTestCase;
+
+
+public class Pbkdf2Tests extends AndroidTestCase {
+
+	public void testSha1Vectors() {
+		// RFC 6070
+		assertDerivedKey("0c60c80f961f0e71f3a9b524af6012062fe037a6", Prf.HMAC_SHA1, "password",
+				"salt", 1, 20);
+		assertDerivedKey("4b007901b765489abead49d926f721d065a429c1", Prf.HMAC_SHA1, "password",
+				"salt", 4096, 20);
+		assertDerivedKey("3d2eec4fe41c849b80c8d83662c0e44a8b291a964cf2f07038", Prf.HMAC_SHA1,
+				"passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096, 25);
+	}
+
+	public void testSha256Vectors() {
+		assertDerivedKey("120fb6cffcf8b32c43e7225256c4f837a86548c92ccc35480805987cb70be17b",
+				Prf.HMAC_SHA256, "password", "salt", 1, 32);
+		assertDerivedKey("c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a",
+				Prf.HMAC_SHA256, "password", "salt", 4096, 32);
+	}
+
+	public void testCalibratedParams() {
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		KeyDerivationParams params = keyFactory.newDerivationParams(100);
+		assertTrue(params.getIterations() >= Pbkdf2.MIN_ITERATIONS);
+		KeyDerivationParams savedParams = KeyDerivationParams.fromEncoded(params.getEncoded());
+		assertEquals(params.getIterations(), savedParams.getIterations());
+		assertTrue(Arrays.equals(keyFactory.generateKey("1234".toCharArray(), params).getEncoded(),
+				keyFactory.generateKey("1234".toCharArray(), savedParams).getEncoded()));
+	}
+
+	private static void assertDerivedKey(String expected, Prf prf, String password, String salt,
+			int iterations, int keyLength) {
+		byte[] key = Pbkdf2.deriveKey(prf, password.getBytes(), salt.getBytes(), iterations,
+				keyLength);
+		assertEquals(expected, HexStringHelper.hexEncodeCompact(key));
+	}
+}
@@ -0,0 +1,89 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import uk.org.tomek.encryptme.crypto.DeviceIdentity;
+import uk.org.tomek.encryptme.crypto.JvmPlatform;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.MemoryKeyStore;
+import uk.org.tomek.encryptme.crypto.Platform;
+import uk.org.tomek.encryptme.crypto.SecretKeyStore;
+import android.test.AndroidTestCase;
+
+
+public class PlatformTests extends AndroidTestCase {
+
+	private File mKeyDir;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mKeyDir = new File(getContext().getCacheDir(), "platform_keys");
+		deleteKeyDir();
+	}
+
+	protected void tearDown() throws Exception {
+		deleteKeyDir();
+		super.tearDown();
+	}
+
+	public void testJvmPlatformKeepsKeyInKeyDir() throws Exception {
+		KeyFactory keyFactory = KeyFactory.newInstance(JvmPlatform.newInstance(mKeyDir, null));
+		assertNull(keyFactory.getKey());
+		SecretKey key = keyFactory.generateNewKeyNoPin();
+		keyFactory.saveKey(key);
+		keyFactory.getKeyStore().flush();
+
+		KeyFactory reopened = KeyFactory.newInstance(JvmPlatform.newInstance(mKeyDir, null));
+		assertTrue(Arrays.equals(key.getEncoded(), reopened.getKey().getEncoded()));
+	}
+
+	public void testKeyFromIdentityIsReproducible() {
+		DeviceIdentity identity = DeviceIdentity.newInstance("uk.org.tomek.encryptme", "0123456789");
+		KeyFactory deviceKeyFactory = KeyFactory.newInMemoryInstance(null);
+		KeyFactory serverKeyFactory = KeyFactory.newInstance(JvmPlatform.newInstance(mKeyDir,
+				identity));
+		SecretKey deviceKey = deviceKeyFactory.generateKeyFromIdentity(identity);
+		SecretKey serverKey = serverKeyFactory.generateKeyFromIdentity(DeviceIdentity.newInstance(
+				"uk.org.tomek.encryptme", "0123456789"));
+		assertTrue(Arrays.equals(deviceKey.getEncoded(), serverKey.getEncoded()));
+	}
+
+	public void testLegacyKeyIsMigrated() throws Exception {
+		final MemoryKeyStore keyStore = MemoryKeyStore.newInstance();
+		final MemoryKeyStore legacyKeyStore = MemoryKeyStore.newInstance();
+		SecretKey legacyKey = KeyFactory.newInMemoryInstance(null).generateKey();
+		legacyKeyStore.putKey(KeyFactory.DEFAULT_KEY_ALIAS, legacyKey);
+		KeyFactory keyFactory = KeyFactory.newInstance(new Platform() {
+
+			@Override
+			public SecretKeyStore openKeyStore() {
+				return keyStore;
+			}
+
+			@Override
+			public SecretKeyStore openLegacyKeyStore() {
+				return legacyKeyStore;
+			}
+
+			@Override
+			public DeviceIdentity getDeviceIdentity() {
+				return null;
+			}
+		});
+		assertTrue(Arrays.equals(legacyKey.getEncoded(), keyFactory.getKey().getEncoded()));
+		assertEquals(1, keyStore.getLatestVersion(KeyFactory.DEFAULT_KEY_ALIAS));
+		assertNull(legacyKeyStore.getKey(KeyFactory.DEFAULT_KEY_ALIAS));
+	}
+
+	private void deleteKeyDir() {
+		File[] files = mKeyDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mKeyDir.delete();
+	}
+}
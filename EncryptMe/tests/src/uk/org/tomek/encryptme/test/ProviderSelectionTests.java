@@ -0,0 +1,100 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyDerivationParams;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.Pbkdf2;
+import uk.org.tomek.encryptme.crypto.ProviderSelector;
+import android.test.AndroidTestCase;
+
+
+public class ProviderSelectionTests extends AndroidTestCase {
+
+	private static final long PROBE_MILLIS = 5;
+	private File mFile;
+	private CryptoUtils mCryptoUtils;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(getContext().getCacheDir(), "providers_test.bin");
+		mFile.delete();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mCryptoUtils = CryptoUtils.newInstance(KeyFactory.newInMemoryInstance(keyFactory.generateKey()));
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+	}
+
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testChoiceIsSavedAndReused() {
+		ProviderSelector.Selection probed = ProviderSelector.newInstance(mFile, PROBE_MILLIS).select();
+		assertFalse(probed.isLoaded());
+		assertTrue(mFile.length() > 0);
+
+		ProviderSelector.Selection saved = ProviderSelector.newInstance(mFile, PROBE_MILLIS).select();
+		assertTrue(saved.isLoaded());
+		for (CipherMode mode : CipherMode.values()) {
+			String transformation = mode.getTransformation();
+			assertEquals(probed.getProviderName(transformation), saved.getProviderName(transformation));
+			assertEquals(probed.getCandidates(transformation).size(), saved.getCandidates(transformation).size());
+		}
+	}
+
+	public void testCorruptFileIsProbedAgain() throws Exception {
+		ProviderSelector.newInstance(mFile, PROBE_MILLIS).select();
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.seek(5);
+		file.write(0xFF);
+		file.close();
+		assertFalse(ProviderSelector.newInstance(mFile, PROBE_MILLIS).select().isLoaded());
+	}
+
+	public void testBuiltInKdfIsMeasured() {
+		ProviderSelector.Selection selection = ProviderSelector.newInstance(null, PROBE_MILLIS).select();
+		for (Pbkdf2.Prf prf : Pbkdf2.Prf.values()) {
+			ProviderSelector.Candidate builtIn = selection.getCandidates(prf.getJceAlgorithm()).get(0);
+			assertEquals(ProviderSelector.BUILT_IN, builtIn.getProviderName());
+			assertTrue(builtIn.getScore() > 0);
+			assertNotNull(selection.getProviderName(prf.getJceAlgorithm()));
+		}
+	}
+
+	public void testDataIsReadableWithEveryProvider() {
+		ProviderSelector.Selection selection = ProviderSelector.newInstance(null, PROBE_MILLIS).select();
+		byte[] input = "Any provider reads what another one wrote".getBytes();
+		for (ProviderSelector.Candidate candidate : selection.getCandidates(CipherMode.AES_GCM.getTransformation())) {
+			if (candidate.getScore() == ProviderSelector.REJECTED) {
+				continue;
+			}
+			Provider provider = Security.getProvider(candidate.getProviderName());
+			mCryptoUtils.setCipherProvider(CipherMode.AES_GCM, provider);
+			byte[] encrypted = mCryptoUtils.encryptData(input);
+			assertSame(provider, mCryptoUtils.getCipherPool(CipherMode.AES_GCM).getProvider());
+			mCryptoUtils.setCipherProvider(CipherMode.AES_GCM, null);
+			assertTrue(Arrays.equals(input, mCryptoUtils.decryptData(encrypted)));
+		}
+		selection.applyTo(mCryptoUtils);
+		assertTrue(Arrays.equals(input, mCryptoUtils.decryptData(mCryptoUtils.encryptData(input))));
+	}
+
+	public void testKdfProviderDerivesSameKey() {
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		KeyDerivationParams params = KeyDerivationParams.newInstance(Pbkdf2.Prf.HMAC_SHA1, 1000, new byte[16]);
+		SecretKey builtIn = keyFactory.generateKey("1234".toCharArray(), params);
+		for (Provider provider : Security.getProviders()) {
+			keyFactory.setKdfProvider(Pbkdf2.Prf.HMAC_SHA1, provider);
+			SecretKey key = keyFactory.generateKey("1234".toCharArray(), params);
+			assertTrue(provider.getName(), Arrays.equals(builtIn.getEncoded(), key.getEncoded()));
+		}
+	}
+}
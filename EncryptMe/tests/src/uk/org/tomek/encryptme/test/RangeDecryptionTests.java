@@ -0,0 +1,111 @@
+package uk.org.tomek.encryptme.test;
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import android.test.AndroidTestCase;
+
+
+public class RangeDecryptionTests extends AndroidTestCase {
+
+	private static final int[] LENGTHS = {0, 1, 15, 16, 17, 31, 32, 33, 100};
+	private KeyFactory mKeyFactory;
+	private CryptoUtils mCryptoUtils;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		// a single cipher, so every call reuses the one the call before released
+		mCryptoUtils = CryptoUtils.newInstance(mKeyFactory, 1);
+	}
+
+	private static byte[] newPlain(int size) {
+		byte[] plain = new byte[size];
+		new Random(size).nextBytes(plain);
+		return plain;
+	}
+
+	private void assertRangesMatch(byte[] plain) {
+		byte[] encrypted = mCryptoUtils.encryptData(plain);
+		assertTrue(Arrays.equals(plain, mCryptoUtils.decryptData(encrypted)));
+		for (int offset = 0; offset <= plain.length + 20; offset += offset < 40 || offset > plain.length - 40 ? 1 : 97) {
+			for (int length : LENGTHS) {
+				int from = Math.min(offset, plain.length);
+				int to = Math.min(plain.length, offset + length);
+				byte[] expected = Arrays.copyOfRange(plain, from, Math.max(from, to));
+				byte[] range = mCryptoUtils.decryptRange(encrypted, offset, length);
+				assertTrue("offset " + offset + " length " + length, Arrays.equals(expected, range));
+			}
+		}
+	}
+
+	public void testRangesMatchFullDecryption() {
+		assertRangesMatch(newPlain(5000));
+		assertRangesMatch(newPlain(7));
+	}
+
+	public void testRangesOfBlockAlignedData() {
+		// the final block is all padding
+		assertRangesMatch(newPlain(4096));
+		assertRangesMatch(newPlain(16));
+	}
+
+	public void testCipherIsResetAfterRangeBeforeFinalBlock() {
+		byte[] plain = newPlain(1000);
+		byte[] encrypted = mCryptoUtils.encryptData(plain);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(plain, 100, 110), mCryptoUtils.decryptRange(encrypted, 100, 10)));
+		assertTrue(Arrays.equals(plain, mCryptoUtils.decryptData(encrypted)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(plain, 0, 10), mCryptoUtils.decryptRange(encrypted, 0, 10)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(plain, 0, 10), mCryptoUtils.decryptRange(encrypted, 0, 10)));
+	}
+
+	public void testRangesOfDataEncryptedWithOlderKey() {
+		byte[] plain = newPlain(1000);
+		byte[] encrypted = mCryptoUtils.encryptData(plain);
+		try {
+			mKeyFactory.rotateKey();
+			fail("Key must not be rotated while there is legacy data");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+		// as if the data had been missed when legacy data was re-encrypted
+		mKeyFactory.setLegacyDataMigrated();
+		assertEquals(2, mKeyFactory.rotateKey());
+		assertEquals(3, mKeyFactory.rotateKey());
+		assertTrue(Arrays.equals(plain, mCryptoUtils.decryptData(encrypted)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(plain, 500, 540), mCryptoUtils.decryptRange(encrypted, 500, 40)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(plain, 990, 1000), mCryptoUtils.decryptRange(encrypted, 990, 100)));
+		// legacy data is only ever encrypted with the first key
+		assertNull(mCryptoUtils.encryptData(plain));
+	}
+
+	public void testWholeRangeOfEmptyData() {
+		byte[] encrypted = mCryptoUtils.encryptData(new byte[0]);
+		assertEquals(0, mCryptoUtils.decryptRange(encrypted, 0, 10).length);
+	}
+
+	public void testInvalidDataReturnsNull() {
+		byte[] encrypted = mCryptoUtils.encryptData(newPlain(100));
+		assertNull(mCryptoUtils.decryptRange(Arrays.copyOf(encrypted, encrypted.length - 1), 0, 10));
+		byte[] corrupted = encrypted.clone();
+		// the padding lives in the final block
+		corrupted[encrypted.length - 17] ^= 0x55;
+		assertNull(mCryptoUtils.decryptRange(corrupted, 90, 10));
+		// blocks before the final one are not checked, like CBC itself
+		assertNotNull(mCryptoUtils.decryptRange(corrupted, 0, 10));
+	}
+
+	public void testEnvelopeDataIsRejected() {
+		mCryptoUtils.setCipherMode(CipherMode.AES_GCM);
+		byte[] encrypted = mCryptoUtils.encryptData(newPlain(100));
+		try {
+			mCryptoUtils.decryptRange(encrypted, 0, 10);
+			fail("Authenticated data must be decrypted in full");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import uk.org.tomek.encryptme.helpers.RecordLog;
+import android.test.AndroidTestCase;
+
+
+public class RecordLogTests extends AndroidTestCase {
+
+	// a few hundred records per segment
+	private static final long SEGMENT_SIZE = 16 * 1024;
+	private KeyFactory mKeyFactory;
+	private File mDirectory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mKeyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory.saveKey(mKeyFactory.generateKey());
+		mDirectory = new File(getContext().getCacheDir(), "records");
+		deleteDirectory();
+	}
+
+	protected void tearDown() throws Exception {
+		deleteDirectory();
+		super.tearDown();
+	}
+
+	private void deleteDirectory() {
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDirectory.delete();
+	}
+
+	private RecordLog openLog(RecordLog.SyncPolicy syncPolicy) throws IOException {
+		return RecordLog.open(mKeyFactory.getKey(), mDirectory, syncPolicy, SEGMENT_SIZE);
+	}
+
+	private static byte[] record(long sequence) {
+		return ("record number " + sequence).getBytes();
+	}
+
+	private File lastSegment() {
+		File[] files = mDirectory.listFiles();
+		Arrays.sort(files);
+		File last = null;
+		for (File file : files) {
+			if (file.getName().endsWith(".log")) {
+				last = file;
+			}
+		}
+		return last;
+	}
+
+	public void testAppendAndReadAcrossSegments() throws IOException {
+		RecordLog log = FilesHelper.openRecordLog(mKeyFactory, mDirectory, RecordLog.SyncPolicy.NEVER);
+		assertEquals(0, log.getNextSequence());
+		log.close();
+		log = openLog(RecordLog.SyncPolicy.INTERVAL);
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(i, log.append(record(i)));
+			if (i % 100 == 99) {
+				log.commit();
+			}
+		}
+		// read before an explicit commit
+		assertTrue(Arrays.equals(record(1999), log.read(1999)));
+		assertTrue(log.getSegmentCount() > 3);
+		for (int i = 0; i < 2000; i += 7) {
+			assertTrue(Arrays.equals(record(i), log.read(i)));
+		}
+		assertNull(log.read(2000));
+		log.close();
+	}
+
+	public void testReopenUsesSavedIndex() throws IOException {
+		RecordLog log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		for (int i = 0; i < 1500; i++) {
+			log.append(record(i));
+		}
+		log.close();
+		int indexFiles = 0;
+		for (File file : mDirectory.listFiles()) {
+			if (file.getName().endsWith(".idx")) {
+				indexFiles++;
+			}
+		}
+		log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		assertEquals(log.getSegmentCount() - 1, indexFiles);
+		assertEquals(1500, log.getNextSequence());
+		assertEquals(1499, log.getCommittedSequence());
+		for (int i = 0; i < 1500; i += 13) {
+			assertTrue(Arrays.equals(record(i), log.read(i)));
+		}
+		assertEquals(1500, log.append(record(1500)));
+		assertTrue(Arrays.equals(record(1500), log.read(1500)));
+		log.close();
+	}
+
+	public void testTornRecordIsTruncated() throws IOException {
+		RecordLog log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		for (int i = 0; i < 10; i++) {
+			log.append(record(i));
+		}
+		log.close();
+		File segment = lastSegment();
+		long length = segment.length();
+		// half written record at the end
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(length - 5);
+		file.close();
+		log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		assertEquals(9, log.getNextSequence());
+		assertNull(log.read(9));
+		assertTrue(Arrays.equals(record(8), log.read(8)));
+		assertEquals(9, log.append(record(9)));
+		log.close();
+		log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		assertTrue(Arrays.equals(record(9), log.read(9)));
+		log.close();
+	}
+
+	public void testTamperedRecordIsRejected() throws IOException {
+		RecordLog log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		for (int i = 0; i < 3; i++) {
+			log.append(record(i));
+		}
+		log.commit();
+		RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+		// inside the ciphertext of the second record
+		long offset = 32 + 24 + record(0).length + 16 + 30;
+		file.seek(offset);
+		int value = file.read();
+		file.seek(offset);
+		file.write(value ^ 1);
+		file.close();
+		assertTrue(Arrays.equals(record(0), log.read(0)));
+		try {
+			log.read(1);
+			fail("Tampered record must not be returned");
+		} catch (IOException e) {
+			// expected
+		}
+		log.close();
+		// recovery keeps the records before it only
+		log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		assertEquals(1, log.getNextSequence());
+		log.close();
+	}
+
+	public void testCompactAndDeleteSealedSegments() throws IOException {
+		RecordLog log = openLog(RecordLog.SyncPolicy.NEVER);
+		for (int i = 0; i < 2000; i++) {
+			log.append(record(i));
+		}
+		log.commit();
+		int segments = log.getSegmentCount();
+		long dropped = log.compact(new RecordLog.RecordFilter() {
+
+			@Override
+			public boolean keep(long sequence, byte[] record) {
+				return sequence % 2 == 0 || sequence >= 1000;
+			}
+		});
+		assertTrue(dropped > 0);
+		assertEquals(segments, log.getSegmentCount());
+		assertTrue(Arrays.equals(record(998), log.read(998)));
+		assertNull(log.read(999));
+		assertTrue(Arrays.equals(record(1999), log.read(1999)));
+		assertTrue(log.deleteBefore(1000) > 0);
+		assertNull(log.read(0));
+		assertTrue(Arrays.equals(record(1000), log.read(1000)));
+		log.close();
+		log = openLog(RecordLog.SyncPolicy.NEVER);
+		assertNull(log.read(999));
+		assertTrue(Arrays.equals(record(1998), log.read(1998)));
+		assertEquals(2000, log.getNextSequence());
+		log.close();
+	}
+
+	public void testFailedCommitKeepsRecordsPending() throws IOException {
+		RecordLog log = openLog(RecordLog.SyncPolicy.NEVER);
+		log.append(record(0));
+		log.commit();
+		log.append(record(1));
+		// an interrupted thread fails the write and closes the channel
+		Thread.currentThread().interrupt();
+		try {
+			log.commit();
+			fail("Commit of an interrupted thread must fail");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals(0, log.getCommittedSequence());
+		log.append(record(2));
+		log.commit();
+		assertEquals(2, log.getCommittedSequence());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(Arrays.equals(record(i), log.read(i)));
+		}
+		log.close();
+		log = openLog(RecordLog.SyncPolicy.NEVER);
+		assertEquals(3, log.getNextSequence());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(Arrays.equals(record(i), log.read(i)));
+		}
+		log.close();
+	}
+
+	public void testConcurrentAppendsShareCommits() throws Exception {
+		final RecordLog log = openLog(RecordLog.SyncPolicy.ALWAYS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 250; i++) {
+							long sequence = log.append(record(getId() * 1000 + i));
+							log.commit();
+							assertTrue(log.getCommittedSequence() >= sequence);
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(failure.get());
+		assertEquals(1000, log.getNextSequence());
+		for (int i = 0; i < 1000; i++) {
+			assertNotNull(log.read(i));
+		}
+		log.close();
+	}
+}
@@ -0,0 +1,94 @@
+package uk.org.tomek.encryptme.test;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import uk.org.tomek.encryptme.crypto.FileKeyStore;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.crypto.MemoryKeyStore;
+import uk.org.tomek.encryptme.crypto.PreferencesKeyStore;
+import uk.org.tomek.encryptme.crypto.SecretKeyStore;
+import android.test.AndroidTestCase;
+
+
+public class SecretKeyStoreTests extends AndroidTestCase {
+
+	private static final String ALIAS = "test_key";
+	private KeyFactory mKeyFactory;
+	private File mKeyFile;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mKeyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFile = new File(getContext().getCacheDir(), "keys.bin");
+		mKeyFile.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		mKeyFile.delete();
+		new File(mKeyFile.getPath() + ".corrupt").delete();
+		PreferencesKeyStore.newInstance(getContext()).deleteKey(ALIAS);
+		super.tearDown();
+	}
+
+	public void testMemoryKeyStoreVersions() {
+		checkVersions(MemoryKeyStore.newInstance());
+	}
+
+	public void testFileKeyStoreVersions() throws Exception {
+		SecretKeyStore keyStore = FileKeyStore.newInstance(mKeyFile);
+		SecretKey[] keys = checkVersions(keyStore);
+		keyStore.flush();
+
+		SecretKeyStore reopenedKeyStore = FileKeyStore.newInstance(mKeyFile);
+		assertEquals(2, reopenedKeyStore.getLatestVersion(ALIAS));
+		assertKeyEquals(keys[0], reopenedKeyStore.getKey(ALIAS, 1));
+		assertKeyEquals(keys[1], reopenedKeyStore.getKey(ALIAS));
+	}
+
+	public void testFileKeyStoreSavesInBackground() throws Exception {
+		SecretKeyStore keyStore = FileKeyStore.newInstance(mKeyFile);
+		keyStore.putKey(ALIAS, mKeyFactory.generateKey());
+		Thread.sleep(FileKeyStore.FLUSH_DELAY_MS * 10);
+		assertEquals(1, FileKeyStore.newInstance(mKeyFile).getLatestVersion(ALIAS));
+	}
+
+	public void testFileKeyStoreIgnoresCorruptFile() throws Exception {
+		SecretKeyStore keyStore = FileKeyStore.newInstance(mKeyFile);
+		keyStore.putKey(ALIAS, mKeyFactory.generateKey());
+		keyStore.flush();
+		RandomAccessFile file = new RandomAccessFile(mKeyFile, "rw");
+		file.seek(10);
+		file.write(0xff);
+		file.close();
+		assertNull(FileKeyStore.newInstance(mKeyFile).getKey(ALIAS));
+	}
+
+	public void testPreferencesKeyStore() throws Exception {
+		SecretKey key = mKeyFactory.generateKey();
+		SecretKeyStore legacyKeyStore = PreferencesKeyStore.newInstance(getContext());
+		legacyKeyStore.putKey(ALIAS, key);
+		assertKeyEquals(key, legacyKeyStore.getKey(ALIAS));
+		assertTrue(legacyKeyStore.deleteKey(ALIAS));
+		assertEquals(0, legacyKeyStore.getLatestVersion(ALIAS));
+	}
+
+	private SecretKey[] checkVersions(SecretKeyStore keyStore) {
+		SecretKey[] keys = {mKeyFactory.generateKey(), mKeyFactory.generateKey()};
+		assertNull(keyStore.getKey(ALIAS));
+		assertEquals(0, keyStore.getLatestVersion(ALIAS));
+		assertEquals(1, keyStore.putKey(ALIAS, keys[0]));
+		assertEquals(2, keyStore.putKey(ALIAS, keys[1]));
+		assertKeyEquals(keys[0], keyStore.getKey(ALIAS, 1));
+		assertKeyEquals(keys[1], keyStore.getKey(ALIAS));
+		assertTrue(keyStore.getAliases().contains(ALIAS));
+		return keys;
+	}
+
+	private static void assertKeyEquals(SecretKey expected, SecretKey actual) {
+		assertNotNull(actual);
+		assertTrue(Arrays.equals(expected.getEncoded(), actual.getEncoded()));
+	}
+}
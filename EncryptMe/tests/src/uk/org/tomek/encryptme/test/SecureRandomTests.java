@@ -0,0 +1,112 @@
+package uk.org.tomek.encryptme.test;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.tomek.encryptme.crypto.PRNGFixes;
+import uk.org.tomek.encryptme.helpers.HexStringHelper;
+import android.test.AndroidTestCase;
+
+
+public class SecureRandomTests extends AndroidTestCase {
+
+	private static final int THREADS = 8;
+	private static final int REQUESTS = 500;
+	// sizes of a GCM IV and a key, and one which does not divide the stripe buffer
+	private static final int[] REQUEST_SIZES = {12, 32, 100};
+	private ExecutorService mExecutor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mExecutor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	protected void tearDown() throws Exception {
+		PRNGFixes.setHighThroughputMode(false);
+		mExecutor.shutdownNow();
+		super.tearDown();
+	}
+
+	private static SecureRandom newSecureRandom() {
+		// the engine is used directly, the fixes only install it on old platforms
+		return new SecureRandom(new PRNGFixes.LinuxPRNGSecureRandom(), null) {
+			private static final long serialVersionUID = 1L;
+		};
+	}
+
+	/*
+	 * Every thread takes its requests from one shared instance, the output of all of them is
+	 * collected as hex strings.
+	 */
+	private List<String> nextBytesOnAllThreads(final SecureRandom secureRandom) throws Exception {
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(mExecutor.submit(new Callable<List<String>>() {
+
+				@Override
+				public List<String> call() {
+					List<String> output = new ArrayList<String>(REQUESTS);
+					for (int j = 0; j < REQUESTS; j++) {
+						byte[] bytes = new byte[REQUEST_SIZES[j % REQUEST_SIZES.length]];
+						secureRandom.nextBytes(bytes);
+						output.add(HexStringHelper.hexEncodeCompact(bytes));
+					}
+					// bigger than a stripe buffer, read past it
+					byte[] large = new byte[5000];
+					secureRandom.nextBytes(large);
+					output.add(HexStringHelper.hexEncodeCompact(large));
+					return output;
+				}
+			}));
+		}
+		List<String> output = new ArrayList<String>();
+		for (Future<List<String>> future : futures) {
+			output.addAll(future.get(30, TimeUnit.SECONDS));
+		}
+		return output;
+	}
+
+	private static void assertDistinctAndNonZero(List<String> output) {
+		assertEquals(THREADS * (REQUESTS + 1), output.size());
+		Set<String> distinct = new HashSet<String>(output);
+		assertEquals("no output handed out twice", output.size(), distinct.size());
+		for (String hex : output) {
+			// a byte handed out twice is zero the second time
+			assertFalse(hex, hex.contains("000000000000"));
+		}
+	}
+
+	public void testStripedOutputIsDistinctAcrossThreads() throws Exception {
+		PRNGFixes.setHighThroughputMode(true);
+		long requests = PRNGFixes.getStripedRequestCount();
+		List<String> output = nextBytesOnAllThreads(newSecureRandom());
+		// every request went through the stripes
+		assertEquals(requests + output.size(), PRNGFixes.getStripedRequestCount());
+		assertDistinctAndNonZero(output);
+	}
+
+	public void testDefaultModeDoesNotUseStripes() throws Exception {
+		PRNGFixes.setHighThroughputMode(false);
+		long requests = PRNGFixes.getStripedRequestCount();
+		assertDistinctAndNonZero(nextBytesOnAllThreads(newSecureRandom()));
+		assertEquals(requests, PRNGFixes.getStripedRequestCount());
+	}
+
+	public void testStripeCount() {
+		PRNGFixes.setHighThroughputMode(true);
+		newSecureRandom().nextBytes(new byte[16]);
+		int processors = Runtime.getRuntime().availableProcessors();
+		int count = PRNGFixes.getStripeCount();
+		assertEquals("power of two", Integer.highestOneBit(count), count);
+		assertTrue(count + " stripes", count >= 2 * processors);
+		assertTrue(count + " stripes", count < 4 * processors);
+	}
+
+}
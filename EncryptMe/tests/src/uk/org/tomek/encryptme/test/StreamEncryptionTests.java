@@ -0,0 +1,208 @@
+package uk.org.tomek.encryptme.test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.org.tomek.encryptme.crypto.CipherMode;
+import uk.org.tomek.encryptme.crypto.CryptoUtils;
+import uk.org.tomek.encryptme.crypto.KeyFactory;
+import uk.org.tomek.encryptme.helpers.FilesHelper;
+import android.test.AndroidTestCase;
+
+
+public class StreamEncryptionTests extends AndroidTestCase {
+
+	// empty, shorter than a chunk, exactly one chunk, just over it and several chunks
+	private static final int[] SIZES = {0, 1, CryptoUtils.STREAM_CHUNK_SIZE,
+			CryptoUtils.STREAM_CHUNK_SIZE + 1, 3 * CryptoUtils.STREAM_CHUNK_SIZE + 5};
+	private KeyFactory mKeyFactory;
+	private File mPlainFile;
+	private File mEncryptedFile;
+	private File mDecryptedFile;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyFactory keyFactory = KeyFactory.newInMemoryInstance(null);
+		mKeyFactory = KeyFactory.newInMemoryInstance(keyFactory.generateKey());
+		File dir = getContext().getCacheDir();
+		mPlainFile = new File(dir, "stream.bin");
+		mEncryptedFile = new File(dir, "stream.bin.enc");
+		mDecryptedFile = new File(dir, "stream.bin.dec");
+	}
+
+	protected void tearDown() throws Exception {
+		mPlainFile.delete();
+		mEncryptedFile.delete();
+		mDecryptedFile.delete();
+		super.tearDown();
+	}
+
+	private CryptoUtils newCryptoUtils(CipherMode mode) {
+		CryptoUtils cryptoUtils = CryptoUtils.newInstance(mKeyFactory);
+		cryptoUtils.setCipherMode(mode);
+		return cryptoUtils;
+	}
+
+	private static byte[] newPayload(int length) {
+		byte[] payload = new byte[length];
+		new Random(length).nextBytes(payload);
+		return payload;
+	}
+
+	private static byte[] encryptStream(CryptoUtils cryptoUtils, byte[] plain) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long written = cryptoUtils.encryptStream(new ByteArrayInputStream(plain), out);
+		assertEquals(out.size(), written);
+		return out.toByteArray();
+	}
+
+	private static byte[] decryptStream(CryptoUtils cryptoUtils, byte[] encrypted)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long written = cryptoUtils.decryptStream(new ByteArrayInputStream(encrypted), out);
+		assertEquals(out.size(), written);
+		return out.toByteArray();
+	}
+
+	public void testStreamRoundTripLegacy() throws IOException {
+		checkStreamRoundTrip(CipherMode.LEGACY_CBC);
+	}
+
+	public void testStreamRoundTripGcm() throws IOException {
+		checkStreamRoundTrip(CipherMode.AES_GCM);
+		checkStreamRoundTrip(CipherMode.AES_GCM_DATA_KEY);
+	}
+
+	private void checkStreamRoundTrip(CipherMode mode) throws IOException {
+		CryptoUtils cryptoUtils = newCryptoUtils(mode);
+		for (int size : SIZES) {
+			byte[] plain = newPayload(size);
+			byte[] encrypted = encryptStream(cryptoUtils, plain);
+			assertTrue(mode + " size " + size, encrypted.length > size);
+			assertTrue(mode + " size " + size,
+					Arrays.equals(plain, decryptStream(cryptoUtils, encrypted)));
+		}
+	}
+
+	public void testChannelRoundTrip() throws IOException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode);
+			for (int size : SIZES) {
+				byte[] plain = newPayload(size);
+				ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+				assertEquals(cryptoUtils.encryptChannel(
+						Channels.newChannel(new ByteArrayInputStream(plain)),
+						Channels.newChannel(encrypted)), encrypted.size());
+				// both variants write the same format
+				assertTrue(mode + " size " + size, Arrays.equals(plain,
+						decryptStream(cryptoUtils, encrypted.toByteArray())));
+
+				byte[] streamEncrypted = encryptStream(cryptoUtils, plain);
+				ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+				assertEquals(size, cryptoUtils.decryptChannel(
+						Channels.newChannel(new ByteArrayInputStream(streamEncrypted)),
+						Channels.newChannel(decrypted)));
+				assertTrue(mode + " size " + size,
+						Arrays.equals(plain, decrypted.toByteArray()));
+			}
+		}
+	}
+
+	public void testEmptyInput() throws IOException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode);
+			byte[] encrypted = encryptStream(cryptoUtils, new byte[0]);
+			if (mode == CipherMode.LEGACY_CBC) {
+				// a block of padding only
+				assertEquals(16, encrypted.length);
+			}
+			assertEquals(mode.toString(), 0, decryptStream(cryptoUtils, encrypted).length);
+		}
+	}
+
+	public void testTruncatedGcmStreamFails() throws IOException {
+		for (CipherMode mode : new CipherMode[] {CipherMode.AES_GCM, CipherMode.AES_GCM_DATA_KEY}) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode);
+			for (int size : SIZES) {
+				byte[] encrypted = encryptStream(cryptoUtils, newPayload(size));
+				// a lost tag, a lost part of it, a lost chunk and a stream cut inside the header
+				int[] cuts = {16, 1, CryptoUtils.STREAM_CHUNK_SIZE, encrypted.length - 3};
+				for (int cut : cuts) {
+					if (cut > encrypted.length) {
+						continue;
+					}
+					byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - cut);
+					try {
+						decryptStream(cryptoUtils, truncated);
+						fail(mode + " size " + size + " accepted a stream cut by " + cut);
+					} catch (IOException expected) {
+						// expected
+					}
+				}
+			}
+		}
+	}
+
+	public void testFileRoundTrip() throws IOException {
+		for (CipherMode mode : CipherMode.values()) {
+			CryptoUtils cryptoUtils = newCryptoUtils(mode);
+			for (int size : SIZES) {
+				byte[] plain = newPayload(size);
+				writeFile(mPlainFile, plain);
+				long encryptedSize = FilesHelper.encryptFile(cryptoUtils, mPlainFile,
+						mEncryptedFile);
+				assertEquals(mEncryptedFile.length(), encryptedSize);
+				assertEquals(size, FilesHelper.decryptFile(cryptoUtils, mEncryptedFile,
+						mDecryptedFile));
+				assertTrue(mode + " size " + size, Arrays.equals(plain, readFile(mDecryptedFile)));
+			}
+		}
+	}
+
+	public void testTruncatedFileKeepsDestination() throws IOException {
+		CryptoUtils cryptoUtils = newCryptoUtils(CipherMode.AES_GCM);
+		byte[] plain = newPayload(2 * CryptoUtils.STREAM_CHUNK_SIZE);
+		writeFile(mPlainFile, plain);
+		FilesHelper.encryptFile(cryptoUtils, mPlainFile, mEncryptedFile);
+		byte[] encrypted = readFile(mEncryptedFile);
+		writeFile(mEncryptedFile, Arrays.copyOf(encrypted, encrypted.length - 1));
+		byte[] previous = newPayload(10);
+		writeFile(mDecryptedFile, previous);
+		try {
+			FilesHelper.decryptFile(cryptoUtils, mEncryptedFile, mDecryptedFile);
+			fail("Truncated file decrypted");
+		} catch (IOException expected) {
+			// expected
+		}
+		assertTrue(Arrays.equals(previous, readFile(mDecryptedFile)));
+	}
+
+	private static void writeFile(File file, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] content = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < content.length) {
+				offset += in.read(content, offset, content.length - offset);
+			}
+		} finally {
+			in.close();
+		}
+		return content;
+	}
+}
@@ -0,0 +1,133 @@
+package uk.org.tomek.encryptme.test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.tomek.encryptme.helpers.TraceSink;
+import uk.org.tomek.encryptme.helpers.Tracer;
+import android.test.AndroidTestCase;
+
+
+public class TracerTests extends AndroidTestCase {
+
+	private static final String TAG = "TracerTests";
+	private TraceSink mPreviousSink;
+	private int mPreviousLevel;
+	private RecordingSink mSink;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPreviousSink = Tracer.getSink();
+		mPreviousLevel = Tracer.getLevel();
+		mSink = new RecordingSink();
+		Tracer.setSink(mSink);
+	}
+
+	protected void tearDown() throws Exception {
+		Tracer.setSink(mPreviousSink);
+		Tracer.setLevel(mPreviousLevel);
+		Tracer.setSampleRate(1);
+		super.tearDown();
+	}
+
+	public void testDisabledLevelsNeverReachSink() {
+		Tracer.setLevel(Tracer.WARN);
+		CountingArgument argument = new CountingArgument();
+		Tracer.d(TAG, "message");
+		Tracer.d(TAG, "%d", 1);
+		Tracer.d(TAG, "%d %d", 1, 2);
+		Tracer.d(TAG, "%d %d %d", 1, 2, 3);
+		Tracer.d(TAG, "%s", argument);
+		assertEquals(0, mSink.mMessages.size());
+		// not even formatted
+		assertEquals(0, argument.mFormatted);
+		assertFalse(Tracer.isEnabled(Tracer.DEBUG));
+		assertEquals(0, Tracer.startTimer());
+
+		Tracer.w(TAG, "warning");
+		Tracer.w(TAG, "failure", new IOException("secret content"));
+		assertEquals(2, mSink.mMessages.size());
+		assertEquals(Tracer.WARN, mSink.mLevels.get(0).intValue());
+		assertEquals("warning", mSink.mMessages.get(0));
+		// only the exception class, never its message
+		assertEquals("failure, IOException", mSink.mMessages.get(1));
+
+		Tracer.setLevel(Tracer.OFF);
+		Tracer.w(TAG, "warning");
+		assertEquals(2, mSink.mMessages.size());
+	}
+
+	public void testEnabledLevelIsFormatted() {
+		Tracer.setLevel(Tracer.DEBUG);
+		CountingArgument argument = new CountingArgument();
+		Tracer.d(TAG, "%d %d %d", 1, 2, 3);
+		Tracer.d(TAG, "%s", argument);
+		assertEquals(1, argument.mFormatted);
+		assertEquals("1 2 3", mSink.mMessages.get(0));
+		assertEquals("argument", mSink.mMessages.get(1));
+		assertEquals(TAG, mSink.mTags.get(0));
+		assertEquals(Tracer.DEBUG, mSink.mLevels.get(0).intValue());
+		assertTrue(Tracer.startTimer() != 0);
+	}
+
+	public void testSamplingSkipsDebugOnly() {
+		Tracer.setLevel(Tracer.DEBUG);
+		Tracer.setSampleRate(4);
+		for (int i = 0; i < 40; i++) {
+			Tracer.d(TAG, "%d", i);
+		}
+		assertEquals(10, mSink.mMessages.size());
+		for (int i = 0; i < 5; i++) {
+			Tracer.w(TAG, "warning");
+		}
+		assertEquals(15, mSink.mMessages.size());
+		try {
+			Tracer.setSampleRate(0);
+			fail("Sample rate must be positive");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+	public void testSinkSwap() {
+		Tracer.setLevel(Tracer.DEBUG);
+		Tracer.d(TAG, "first");
+		RecordingSink other = new RecordingSink();
+		Tracer.setSink(other);
+		assertSame(other, Tracer.getSink());
+		Tracer.d(TAG, "second");
+		assertEquals(1, mSink.mMessages.size());
+		assertEquals(1, other.mMessages.size());
+		assertEquals("second", other.mMessages.get(0));
+		try {
+			Tracer.setSink(null);
+			fail("Sink must not be null");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+		assertSame(other, Tracer.getSink());
+	}
+
+	private static final class RecordingSink implements TraceSink {
+		private final List<Integer> mLevels = new ArrayList<Integer>();
+		private final List<String> mTags = new ArrayList<String>();
+		private final List<String> mMessages = new ArrayList<String>();
+
+		@Override
+		public synchronized void trace(int level, String tag, String message) {
+			mLevels.add(level);
+			mTags.add(tag);
+			mMessages.add(message);
+		}
+	}
+
+	private static final class CountingArgument {
+		private int mFormatted;
+
+		@Override
+		public String toString() {
+			mFormatted++;
+			return "argument";
+		}
+	}
+}